@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Generates the records and payloads benchmarks run against. All data comes from a {@link RecordFactory} so the shape
+ * matches what {@link RecordKinesisPutter} sends.
+ */
+class BenchmarkData {
+    // Referrers are spread across this many resources
+    static final int RESOURCES = 10;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Create a factory that produces up to {@code distinctKeys} distinct (resource, referrer) pairs.
+     *
+     * @param distinctKeys Approximate number of distinct records the factory will produce.
+     * @return A new record factory.
+     */
+    static RecordFactory recordFactory(int distinctKeys) {
+        List<String> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            resources.add("/resource/" + i + ".html");
+        }
+        List<String> referrers = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, distinctKeys / RESOURCES); i++) {
+            referrers.add("http://www.referrer" + i + ".com");
+        }
+        return new RecordFactory(resources, referrers);
+    }
+
+    /**
+     * Create every distinct record a {@link #recordFactory(int)} of the same cardinality can produce.
+     *
+     * @param distinctKeys Approximate number of distinct records.
+     * @return The distinct records.
+     */
+    static Record[] distinctRecords(int distinctKeys) {
+        int referrers = Math.max(1, distinctKeys / RESOURCES);
+        Record[] records = new Record[RESOURCES * referrers];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new Record("/resource/" + (i % RESOURCES) + ".html",
+                    "http://www.referrer" + (i / RESOURCES) + ".com");
+        }
+        return records;
+    }
+
+    /**
+     * Serialize random records the same way {@link RecordKinesisPutter} does.
+     *
+     * @param distinctKeys Approximate number of distinct records.
+     * @param n Number of payloads to create.
+     * @param direct Whether to place each payload in a direct buffer.
+     * @return The payloads.
+     */
+    static ByteBuffer[] payloads(int distinctKeys, int n, boolean direct) throws IOException {
+        RecordFactory recordFactory = recordFactory(distinctKeys);
+        ObjectMapper json = new ObjectMapper();
+        ByteBuffer[] payloads = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            byte[] bytes = json.writeValueAsBytes(recordFactory.create());
+            if (direct) {
+                payloads[i] = ByteBuffer.allocateDirect(bytes.length);
+                payloads[i].put(bytes).flip();
+            } else {
+                payloads[i] = ByteBuffer.wrap(bytes);
+            }
+        }
+        return payloads;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the single threaded cost of incrementing a {@link BucketCounter} and of the work done on it every
+ * interval: reading counts, pruning and clearing the oldest bucket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BucketCounterBenchmark {
+
+    /**
+     * The {@link BucketCounter} implementations to compare.
+     */
+    public enum Storage {
+        HASH_MAP,
+        OPEN_ADDRESSING,
+        COUNT_MIN_SKETCH
+    }
+
+    @Param({"HASH_MAP", "OPEN_ADDRESSING", "COUNT_MIN_SKETCH"})
+    public Storage storage;
+
+    @Param({"1000", "100000"})
+    public int distinctKeys;
+
+    @Param({"10", "100"})
+    public int windowSize;
+
+    private BucketCounter<Record> counter;
+    private Record[] keys;
+    private int next;
+    private int bucket;
+
+    @Setup
+    public void setUp() {
+        switch (storage) {
+            case HASH_MAP:
+                counter = new BucketBasedCounter<>(windowSize);
+                break;
+            case OPEN_ADDRESSING:
+                counter = new OpenAddressingBucketCounter<>(windowSize);
+                break;
+            case COUNT_MIN_SKETCH:
+                // Track every key so the interval reports the same objects as the exact counters
+                RecordProcessorConfig config = new RecordProcessorConfig();
+                counter = new CountMinSketchBucketCounter<>(windowSize,
+                        config.getSketchError(),
+                        config.getSketchConfidence(),
+                        distinctKeys);
+                break;
+            default:
+                throw new IllegalStateException("Unknown storage: " + storage);
+        }
+
+        keys = BenchmarkData.distinctRecords(distinctKeys);
+        // Start with every key present in every bucket
+        for (int b = 0; b < windowSize; b++) {
+            for (Record key : keys) {
+                counter.increment(key, b);
+            }
+        }
+    }
+
+    @Benchmark
+    public long increment() {
+        long count = counter.increment(keys[next], bucket);
+        if (++next == keys.length) {
+            next = 0;
+            bucket = (bucket + 1) % windowSize;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public Map<Record, Long> interval() {
+        // Mirrors the work SlidingWindowCounter and RecordProcessor do on every interval. Clearing one bucket per
+        // call leaves the other buckets populated so pruning has objects to examine.
+        Map<Record, Long> counts = counter.getCounts();
+        counter.pruneEmptyObjects();
+        counter.clearBucket(bucket);
+        for (Record key : keys) {
+            counter.increment(key, bucket);
+        }
+        bucket = (bucket + 1) % windowSize;
+        return counts;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long {@link DynamoDBPersister} takes to persist and checkpoint one interval of counts against a local
+ * stand-in for Amazon DynamoDB with a fixed request latency and a share of items returned as unprocessed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DynamoDBBatchWriterBenchmark {
+    private static final String TABLE_NAME = "counts";
+
+    @Param({"1", "4", "16"})
+    public int maxBatchesInFlight;
+
+    @Param({"10"})
+    public long latencyInMillis;
+
+    @Param({"0.0", "0.2"})
+    public double unprocessedRate;
+
+    // Every resource becomes one item per interval
+    @Param({"500"})
+    public int resources;
+
+    private LocalDynamoDB dynamoDB;
+    private DynamoDBPersister<Record> persister;
+    private Map<Record, Long> counts;
+    // Each invocation persists a window of its own, so every count persisted becomes a distinct item
+    private long windowEndInMillis;
+    private int countsPersisted;
+
+    @Setup
+    public void setUp() {
+        dynamoDB = new LocalDynamoDB(latencyInMillis, unprocessedRate);
+        persister = new DynamoDBPersister<>(dynamoDB.client(), TABLE_NAME, maxBatchesInFlight);
+        persister.initialize();
+
+        counts = new HashMap<>();
+        for (int i = 0; i < resources; i++) {
+            counts.put(new Record("/resource/" + i, "http://www.example.com/"), (long) i);
+        }
+    }
+
+    @TearDown
+    public void checkAllWritten() {
+        // Counts that were dropped after too many attempts or because persist() timed out are not pending either
+        if (dynamoDB.itemCount(TABLE_NAME) != countsPersisted) {
+            throw new IllegalStateException((countsPersisted - dynamoDB.itemCount(TABLE_NAME)) + " of "
+                    + countsPersisted + " counts were never written");
+        }
+    }
+
+    @Benchmark
+    public int persistAndCheckpoint() throws InterruptedException {
+        persister.persist(counts, Collections.<String, Long> emptyMap(), new Date(++windowEndInMillis));
+        countsPersisted += counts.size();
+        persister.checkpoint();
+        return dynamoDB.itemCount(TABLE_NAME);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+
+/**
+ * Measures the work {@link DynamoDBPersister#persist(Map)} does on the interval thread: grouping the counts by
+ * resource and selecting each resource's top field counts, either all of them or a bounded top K. Nothing is sent to
+ * Amazon DynamoDB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DynamoDBPersisterBenchmark {
+
+    @Param({"1000", "100000"})
+    public int distinctKeys;
+
+    // 2147483647 keeps every field count
+    @Param({"2147483647", "10"})
+    public int topK;
+
+    private DynamoDBPersister<Record> persister;
+    private Map<Record, Long> counts;
+
+    @Setup
+    public void setUp() {
+        // The persister is never initialized so the client is never called.
+        persister = new DynamoDBPersister<>(new AmazonDynamoDBClient(), "counts", 1, topK);
+
+        counts = new HashMap<>();
+        long count = 1;
+        for (Record record : BenchmarkData.distinctRecords(distinctKeys)) {
+            counts.put(record, count++ % 997);
+        }
+    }
+
+    @Benchmark
+    public Collection<RecordCount> createRecordCounts() {
+        return persister.createRecordCounts(counts);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alertlogic.aws.analytics.poc.RecordProcessorConfig.DecoderType;
+
+/**
+ * Compares decoding Amazon Kinesis record data with data binding against the streaming decoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordDecodeBenchmark {
+    private static final int PAYLOADS = 4096;
+
+    @Param({"DATABIND", "STREAMING"})
+    public DecoderType decoderType;
+
+    @Param({"1000"})
+    public int distinctKeys;
+
+    // Kinesis hands records to the processor in heap buffers; direct buffers exercise the copying path.
+    @Param({"false"})
+    public boolean directBuffers;
+
+    private RecordDecoder<Record> decoder;
+    private ByteBuffer[] payloads;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        switch (decoderType) {
+            case DATABIND:
+                decoder = new JsonRecordDecoder<>(Record.class);
+                break;
+            case STREAMING:
+                decoder = new StreamingRecordDecoder(new RecordProcessorConfig().getMaxInternedValues());
+                break;
+            default:
+                throw new IllegalStateException("Unknown decoder type: " + decoderType);
+        }
+        payloads = BenchmarkData.payloads(distinctKeys, PAYLOADS, directBuffers);
+    }
+
+    @Benchmark
+    public Record decode() throws IOException {
+        ByteBuffer payload = payloads[next];
+        next = (next + 1) % PAYLOADS;
+        return decoder.decode(payload);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+
+import com.alertlogic.aws.analytics.poc.RecordProcessorConfig.CounterType;
+import com.alertlogic.aws.analytics.poc.RecordProcessorConfig.DecoderType;
+
+/**
+ * Measures {@link RecordProcessor#processRecords(List, com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer)}
+ * for one batch of records as handed over by the Amazon Kinesis Client Library: decoding and counting each record.
+ * The interval thread is held off for the duration of the benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordProcessorBenchmark {
+
+    @Param({"DATABIND", "STREAMING"})
+    public DecoderType decoderType;
+
+    @Param({"SYNCHRONIZED", "CONCURRENT"})
+    public CounterType counterType;
+
+    @Param({"1000"})
+    public int distinctKeys;
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private RecordProcessor<Record> processor;
+    private List<com.amazonaws.services.kinesis.model.Record> batch;
+
+    @Setup
+    public void setUp() throws IOException {
+        RecordProcessorConfig config = new RecordProcessorConfig();
+        config.setDecoderType(decoderType);
+        config.setCounterType(counterType);
+        // Keep the interval thread and checkpoints out of the measurement
+        config.setInitialWindowAdvanceDelayInSeconds(TimeUnit.DAYS.toSeconds(1));
+        config.setCheckpointIntervalInSeconds(TimeUnit.DAYS.toSeconds(1));
+
+        processor = new RecordProcessor<>(config, Record.class, new DiscardingPersister(), 10000, 1000);
+        processor.initialize("shardId-000000000000");
+
+        ByteBuffer[] payloads = BenchmarkData.payloads(distinctKeys, batchSize, false);
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new com.amazonaws.services.kinesis.model.Record()
+                    .withPartitionKey("partitionKey")
+                    .withSequenceNumber(String.valueOf(i))
+                    .withData(payloads[i]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.shutdown(null, ShutdownReason.ZOMBIE);
+    }
+
+    @Benchmark
+    public void processRecords() {
+        processor.processRecords(batch, null);
+    }
+
+    /**
+     * A persister that does nothing with the counts it receives.
+     */
+    private static class DiscardingPersister implements Persister<Record> {
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public FlushTicket persist(Map<Record, Long> objectCounts) {
+            return FlushTicket.COMPLETE;
+        }
+
+        @Override
+        public FlushTicket persist(Map<Record, Long> objectCounts, Map<String, Long> distinctCounts, Date windowEnd) {
+            return FlushTicket.COMPLETE;
+        }
+
+        @Override
+        public void checkpoint() {
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alertlogic.aws.analytics.poc.RecordProcessorConfig.CounterType;
+
+/**
+ * Measures one interval of a full {@link WindowCounter} the way {@link RecordProcessor#advanceOneInterval()} runs it:
+ * read the counts, prune and advance the window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlidingWindowCounterBenchmark {
+
+    @Param({"SYNCHRONIZED", "COMPACT", "CONCURRENT"})
+    public CounterType counterType;
+
+    @Param({"1000", "100000"})
+    public int distinctKeys;
+
+    @Param({"10", "100"})
+    public int windowSize;
+
+    private WindowCounter<Record> counter;
+    private Record[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (counterType) {
+            case SYNCHRONIZED:
+                counter = new SynchronizedWindowCounter<>(new SlidingWindowCounter<Record>(windowSize));
+                break;
+            case COMPACT:
+                counter = new SynchronizedWindowCounter<>(
+                        new SlidingWindowCounter<>(new OpenAddressingBucketCounter<Record>(windowSize)));
+                break;
+            case CONCURRENT:
+                counter = new ConcurrentSlidingWindowCounter<>(windowSize);
+                break;
+            default:
+                throw new IllegalStateException("Unknown counter type: " + counterType);
+        }
+        keys = BenchmarkData.distinctRecords(distinctKeys);
+    }
+
+    /**
+     * Refill the bucket about to become the head so every interval sees the full key set.
+     */
+    @Setup(Level.Invocation)
+    public void fillHead() {
+        for (Record key : keys) {
+            counter.increment(key);
+        }
+    }
+
+    @Benchmark
+    public Map<Record, Long> advanceWindow() {
+        Map<Record, Long> counts = counter.getCounts();
+        counter.pruneEmptyObjects();
+        counter.advanceWindow();
+        return counts;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+/**
+ * Returns a canonical {@link String} for a run of characters so repeated values share one instance and can be looked
+ * up without allocating. At most a fixed number of distinct values are kept; once full, values not already interned
+ * are returned as new strings.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class BoundedStringInterner {
+    private String[] values;
+    private int[] hashes;
+    private int size;
+    private int maxSize;
+
+    /**
+     * @param maxSize The maximum number of distinct values to keep.
+     */
+    public BoundedStringInterner(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be >= 1");
+        }
+        this.maxSize = maxSize;
+        // Keep the table at most half full so probe runs stay short
+        int capacity = Integer.highestOneBit(maxSize) << 2;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("maxSize is too large: " + maxSize);
+        }
+        values = new String[capacity];
+        hashes = new int[capacity];
+    }
+
+    /**
+     * Get the canonical string for a range of characters.
+     *
+     * @param chars Buffer holding the characters.
+     * @param offset Offset of the first character.
+     * @param length Number of characters.
+     * @return A string equal to the characters given.
+     */
+    public String intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+
+        int mask = values.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (values[slot] != null) {
+            if (hashes[slot] == hash && matches(values[slot], chars, offset, length)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String value = new String(chars, offset, length);
+        if (size < maxSize) {
+            values[slot] = value;
+            hashes[slot] = hash;
+            size++;
+        }
+        return value;
+    }
+
+    /**
+     * @return The number of distinct values currently interned.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(String value, char[] chars, int offset, int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -15,18 +15,23 @@
 
 package com.alertlogic.aws.analytics.poc;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
  * Provides a way to count the occurrences of objects across a number of discrete "buckets". These buckets usually
  * represent a time period such as 1 second.
+ * <p/>
+ * Each object's running total is kept alongside its buckets so reading totals and pruning do not need to sum every
+ * bucket.
  */
-public class BucketBasedCounter<ObjectType> {
+public class BucketBasedCounter<ObjectType> implements BucketCounter<ObjectType> {
     private Map<ObjectType, long[]> objectCounts;
     private int maxBuckets;
+    // Each object's counts are stored as [bucket 0, ..., bucket maxBuckets - 1, total, last reported total]
+    private int totalIndex;
+    private int reportedIndex;
 
     /**
      * Create a new counter with a fixed number of buckets.
@@ -39,6 +44,13 @@ public class BucketBasedCounter<ObjectType> {
         }
         objectCounts = new HashMap<>();
         this.maxBuckets = maxBuckets;
+        totalIndex = maxBuckets;
+        reportedIndex = maxBuckets + 1;
+    }
+
+    @Override
+    public int getMaxBuckets() {
+        return maxBuckets;
     }
 
     /**
@@ -48,58 +60,97 @@ public class BucketBasedCounter<ObjectType> {
      * @param bucket Index of bucket to increment.
      * @return The new count for that object at the bucket index provided.
      */
+    @Override
     public long increment(ObjectType obj, int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
         long[] counts = objectCounts.get(obj);
         if (counts == null) {
-            counts = new long[maxBuckets];
+            counts = new long[maxBuckets + 2];
             objectCounts.put(obj, counts);
         }
+        counts[totalIndex]++;
         return ++counts[bucket];
     }
 
+    @Override
+    public void add(ObjectType obj, int bucket, long count) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("count must be >= 0");
+        }
+        long[] counts = objectCounts.get(obj);
+        if (counts == null) {
+            counts = new long[maxBuckets + 2];
+            objectCounts.put(obj, counts);
+        }
+        counts[totalIndex] += count;
+        counts[bucket] += count;
+    }
+
+    @Override
+    public Map<ObjectType, Long> getBucketCounts(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (Map.Entry<ObjectType, long[]> entry : objectCounts.entrySet()) {
+            long bucketCount = entry.getValue()[bucket];
+            if (bucketCount != 0) {
+                count.put(entry.getKey(), bucketCount);
+            }
+        }
+
+        return count;
+    }
+
     /**
      * Computes the total count for all objects across all buckets.
      * 
      * @return A mapping of object to total count across all buckets.
      */
+    @Override
     public Map<ObjectType, Long> getCounts() {
         Map<ObjectType, Long> count = new HashMap<>();
 
         for (Map.Entry<ObjectType, long[]> entry : objectCounts.entrySet()) {
-            count.put(entry.getKey(), calculateTotal(entry.getValue()));
+            count.put(entry.getKey(), entry.getValue()[totalIndex]);
         }
 
         return count;
     }
 
-    /**
-     * Calculates the sum total of occurrences across all bucket counts.
-     * 
-     * @param counts A set of count buckets from the same object.
-     * @return The sum of all counts in the buckets.
-     */
-    private long calculateTotal(long[] counts) {
-        long total = 0;
-        for (long count : counts) {
-            total += count;
+    @Override
+    public Map<ObjectType, Long> getChangedCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (Map.Entry<ObjectType, long[]> entry : objectCounts.entrySet()) {
+            long[] counts = entry.getValue();
+            if (counts[totalIndex] != counts[reportedIndex]) {
+                counts[reportedIndex] = counts[totalIndex];
+                count.put(entry.getKey(), counts[totalIndex]);
+            }
         }
-        return total;
+
+        return count;
     }
 
     /**
      * Remove any objects whose buckets total 0.
      */
+    @Override
     public void pruneEmptyObjects() {
-        List<ObjectType> toBePruned = new ArrayList<>();
-        for (Map.Entry<ObjectType, long[]> entry : objectCounts.entrySet()) {
+        Iterator<long[]> it = objectCounts.values().iterator();
+        while (it.hasNext()) {
             // Remove objects whose total counts are 0
-            if (calculateTotal(entry.getValue()) == 0) {
-                toBePruned.add(entry.getKey());
+            if (it.next()[totalIndex] == 0) {
+                it.remove();
             }
         }
-        for (ObjectType prune : toBePruned) {
-            objectCounts.remove(prune);
-        }
     }
 
     /**
@@ -108,8 +159,13 @@ public class BucketBasedCounter<ObjectType> {
      * 
      * @param bucket The index of the bucket to clear.
      */
+    @Override
     public void clearBucket(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
         for (long[] counts : objectCounts.values()) {
+            counts[totalIndex] -= counts[bucket];
             counts[bucket] = 0;
         }
     }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Map;
+
+/**
+ * Counts the occurrences of objects across a fixed number of discrete "buckets". These buckets usually represent a
+ * time period such as 1 second.
+ *
+ * @param <ObjectType> Type of objects this counter counts.
+ */
+public interface BucketCounter<ObjectType> {
+
+    /**
+     * @return Total buckets this counter uses.
+     */
+    public int getMaxBuckets();
+
+    /**
+     * Increment the count of the object for a specific bucket index.
+     *
+     * @param obj Object whose count should be updated.
+     * @param bucket Index of bucket to increment.
+     * @return The new count for that object at the bucket index provided.
+     */
+    public long increment(ObjectType obj, int bucket);
+
+    /**
+     * Add a count to an object in a specific bucket at once, e.g. to restore counts saved with
+     * {@link #getBucketCounts(int)}.
+     *
+     * @param obj Object whose count should be updated.
+     * @param bucket Index of bucket to add to.
+     * @param count Count to add. Must be >= 0.
+     */
+    public void add(ObjectType obj, int bucket, long count);
+
+    /**
+     * Computes the count of every object in a single bucket.
+     *
+     * @param bucket Index of the bucket.
+     * @return A mapping of object to its count in the bucket. Objects not counted in the bucket are omitted.
+     */
+    public Map<ObjectType, Long> getBucketCounts(int bucket);
+
+    /**
+     * Computes the total count for all objects across all buckets.
+     *
+     * @return A mapping of object to total count across all buckets.
+     */
+    public Map<ObjectType, Long> getCounts();
+
+    /**
+     * Computes the total count for the objects whose total changed since the last call to this method. Objects whose
+     * total dropped to 0 are included with a count of 0, so call this before {@link #pruneEmptyObjects()} to observe
+     * them.
+     *
+     * @return A mapping of object to total count across all buckets for every object whose total changed.
+     */
+    public Map<ObjectType, Long> getChangedCounts();
+
+    /**
+     * Remove any objects whose buckets total 0.
+     */
+    public void pruneEmptyObjects();
+
+    /**
+     * Clears all object counts for the given bucket. If you wish to remove objects that no longer have any counts in
+     * any bucket use {@link #pruneEmptyObjects()}.
+     *
+     * @param bucket The index of the bucket to clear.
+     */
+    public void clearBucket(int bucket);
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Passes on only the counts of resources whose stored counts changed since they were last persisted. The top N field
+ * counts of a resource and the sum of the rest are compared, which should match what the delegate stores. A resource
+ * is persisted when a field enters or leaves its top N, or when any of its top N counts or the sum of the rest moved
+ * by more than a relative threshold from the count last persisted. The same threshold applies to the resource's
+ * distinct count, if one is given. Small changes therefore accumulate until they cross the threshold.
+ * <p/>
+ * A resource that was persisted with counts and then leaves the window is persisted once more with a single count of
+ * 0 for a {@code null} field, so readers looking at its latest counts see that it has none.
+ * <p/>
+ * What was persisted for a resource is only remembered once the delegate's ticket for it completes. Until then the
+ * resource is compared with what was persisted before, so a change is sent again rather than lost if it is still in
+ * flight when the resource changes again.
+ * <p/>
+ * Every resource is also persisted in full at least once per snapshot interval, even if nothing changed, so readers
+ * looking at the latest counts for a resource never see data older than that interval. Read counts written this way
+ * with {@link CountsReader.Aggregation#LATEST}.
+ * <p/>
+ * A single instance may be shared by the record processors of all shards.
+ */
+public class ChangeDetectingPersister implements Persister<Record> {
+    private static final Log LOG = LogFactory.getLog(ChangeDetectingPersister.class);
+
+    private static final String RESOURCE = "resource";
+    private static final String REFERRER = "referrer";
+
+    // Orders field counts by count in descending order, then by field so ties are stable between intervals
+    private static final Comparator<Map.Entry<String, Long>> DESCENDING_COUNT =
+            new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                    int result = e2.getValue().compareTo(e1.getValue());
+                    if (result == 0 && e1.getKey() != e2.getKey()) {
+                        if (e1.getKey() == null) {
+                            return -1;
+                        } else if (e2.getKey() == null) {
+                            return 1;
+                        }
+                        result = e1.getKey().compareTo(e2.getKey());
+                    }
+                    return result;
+                }
+            };
+
+    private Persister<Record> delegate;
+    private int topN;
+    private double threshold;
+    private long snapshotInterval;
+    private Clock clock;
+
+    // What was last persisted for each resource. Guarded by this persister's monitor.
+    private Map<String, ResourceState> persisted = new HashMap<>();
+    // Resources not seen for a whole snapshot interval are forgotten when this goes off
+    private Timer evictionTimer;
+
+    /**
+     * Create a persister that filters out unchanged resources before handing counts to another persister.
+     *
+     * @param delegate Persister to pass changed counts on to.
+     * @param topN Number of highest field counts per resource to compare between intervals. This should be the
+     *        number of field counts the delegate stores per resource.
+     * @param threshold Relative change, e.g. 0.05 for 5%, a top N count must exceed to be persisted. Use 0 to persist
+     *        any change.
+     * @param snapshotInterval Maximum time between persisting every resource regardless of changes.
+     * @param unit Unit of the snapshot interval.
+     */
+    public ChangeDetectingPersister(Persister<Record> delegate,
+            int topN,
+            double threshold,
+            long snapshotInterval,
+            TimeUnit unit) {
+        this(delegate, topN, threshold, snapshotInterval, unit, new NanoClock());
+    }
+
+    /**
+     * Create a persister that filters out unchanged resources before handing counts to another persister.
+     *
+     * @param delegate Persister to pass changed counts on to.
+     * @param topN Number of highest field counts per resource to compare between intervals. This should be the
+     *        number of field counts the delegate stores per resource.
+     * @param threshold Relative change, e.g. 0.05 for 5%, a top N count must exceed to be persisted. Use 0 to persist
+     *        any change.
+     * @param snapshotInterval Maximum time between persisting every resource regardless of changes.
+     * @param unit Unit of the snapshot interval.
+     * @param clock Clock to measure the snapshot interval with.
+     */
+    public ChangeDetectingPersister(Persister<Record> delegate,
+            int topN,
+            double threshold,
+            long snapshotInterval,
+            TimeUnit unit,
+            Clock clock) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate must not be null");
+        }
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        if (topN < 1) {
+            throw new IllegalArgumentException("topN must be >= 1");
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must be >= 0");
+        }
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("snapshotInterval must be > 0");
+        }
+        this.delegate = delegate;
+        this.topN = topN;
+        this.threshold = threshold;
+        this.snapshotInterval = clock.getTimeUnit().convert(snapshotInterval, unit);
+        this.clock = clock;
+
+        evictionTimer = new Timer(clock);
+        evictionTimer.alarmIn(this.snapshotInterval, clock.getTimeUnit());
+    }
+
+    @Override
+    public void initialize() {
+        delegate.initialize();
+    }
+
+    @Override
+    public FlushTicket persist(Map<Record, Long> objectCounts) {
+        return persist(objectCounts, Collections.<String, Long> emptyMap(), new Date());
+    }
+
+    /**
+     * Pass on the counts of changed resources along with their distinct counts. A distinct count that moved by more
+     * than the threshold also counts as a change.
+     */
+    @Override
+    public FlushTicket persist(Map<Record, Long> objectCounts, Map<String, Long> distinctCounts, Date windowEnd) {
+        Map<String, Long> changedDistinctCounts = new HashMap<>();
+        List<StoredCounts> sent = new ArrayList<>();
+        Map<Record, Long> changed = selectChangedCounts(objectCounts, distinctCounts, changedDistinctCounts, sent);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Persisting %d of %d counts", changed.size(), objectCounts.size()));
+        }
+        FlushTicket ticket = delegate.persist(changed, changedDistinctCounts, windowEnd);
+        synchronized (this) {
+            for (StoredCounts stored : sent) {
+                stored.ticket = ticket;
+            }
+        }
+        return ticket;
+    }
+
+    @Override
+    public void checkpoint() throws InterruptedException {
+        delegate.checkpoint();
+    }
+
+    /**
+     * Find the resources that should be persisted this interval, including resources that left the window since they
+     * were persisted.
+     *
+     * @param objectCounts Counts for this interval.
+     * @param distinctCounts Distinct counts for this interval by resource.
+     * @param changedDistinctCounts Receives the distinct counts of the resources returned.
+     * @param sent Receives what is about to be persisted for each resource returned, to be remembered once the
+     *        delegate's ticket completes.
+     * @return The counts of every resource that changed or is due for a snapshot. These are ranked if the counts given
+     *         were.
+     */
+    private synchronized Map<Record, Long> selectChangedCounts(Map<Record, Long> objectCounts,
+            Map<String, Long> distinctCounts,
+            Map<String, Long> changedDistinctCounts,
+            List<StoredCounts> sent) {
+        long now = clock.getTime();
+        boolean ranked = objectCounts instanceof RankedCounts;
+
+        // Group the counts by resource, keeping the order of ranked counts
+        Map<String, Map<Record, Long>> countsByResource = new HashMap<>();
+        for (Map.Entry<Record, Long> count : objectCounts.entrySet()) {
+            String resource = count.getKey().getField(RESOURCE);
+            Map<Record, Long> counts = countsByResource.get(resource);
+            if (counts == null) {
+                counts = ranked ? new LinkedHashMap<Record, Long>() : new HashMap<Record, Long>();
+                countsByResource.put(resource, counts);
+            }
+            counts.put(count.getKey(), count.getValue());
+        }
+
+        Map<Record, Long> changed = ranked ? new RankedCounts<Record>() : new HashMap<Record, Long>();
+        for (Map.Entry<String, Map<Record, Long>> resource : countsByResource.entrySet()) {
+            ResourceState state = persisted.get(resource.getKey());
+            if (state == null) {
+                state = new ResourceState();
+                persisted.put(resource.getKey(), state);
+            }
+            state.seenAt = now;
+            state.confirmIfWritten();
+
+            StoredCounts current = selectTopN(resource.getValue(), ranked);
+            current.distinctCount = distinctCounts.get(resource.getKey());
+            StoredCounts previous = state.stored;
+            if (previous == null || now - previous.persistedAt >= snapshotInterval || hasChanged(previous, current)) {
+                current.persistedAt = now;
+                state.pending = current;
+                sent.add(current);
+                changed.putAll(resource.getValue());
+                if (current.distinctCount != null) {
+                    changedDistinctCounts.put(resource.getKey(), current.distinctCount);
+                }
+            }
+        }
+
+        // Resources that had counts and are no longer in the window are persisted with a single count of 0
+        for (Map.Entry<String, ResourceState> resource : persisted.entrySet()) {
+            if (countsByResource.containsKey(resource.getKey())) {
+                continue;
+            }
+            ResourceState state = resource.getValue();
+            state.confirmIfWritten();
+            StoredCounts previous = state.stored;
+            StoredCounts current = new StoredCounts(Collections.<String, Long> emptyMap(), null);
+            if (previous != null && hasChanged(previous, current)) {
+                current.persistedAt = now;
+                state.pending = current;
+                sent.add(current);
+                changed.put(new Record(resource.getKey(), null), 0L);
+            }
+        }
+
+        if (evictionTimer.isTimeUp()) {
+            evictUnseenResources(now);
+            evictionTimer.alarmIn(snapshotInterval, clock.getTimeUnit());
+        }
+
+        return changed;
+    }
+
+    /**
+     * @param counts Counts of a single resource.
+     * @param ranked Whether the counts are already ordered from highest to lowest.
+     * @return The top N field counts of the resource, highest first, and the sum of the rest. Counts of 0 are left out.
+     */
+    private StoredCounts selectTopN(Map<Record, Long> counts, boolean ranked) {
+        List<Map.Entry<String, Long>> fieldCounts = new ArrayList<>(counts.size());
+        for (Map.Entry<Record, Long> count : counts.entrySet()) {
+            if (count.getValue() > 0) {
+                fieldCounts.add(new AbstractMap.SimpleImmutableEntry<>(count.getKey().getField(REFERRER),
+                        count.getValue()));
+            }
+        }
+        if (!ranked) {
+            Collections.sort(fieldCounts, DESCENDING_COUNT);
+        }
+
+        Map<String, Long> top = new LinkedHashMap<>();
+        long other = 0;
+        for (Map.Entry<String, Long> fieldCount : fieldCounts) {
+            if (top.size() < topN) {
+                top.put(fieldCount.getKey(), fieldCount.getValue());
+            } else {
+                other += fieldCount.getValue();
+            }
+        }
+        return new StoredCounts(top, other > 0 ? other : null);
+    }
+
+    /**
+     * Determine if the stored counts of a resource changed enough to persist them.
+     *
+     * @param previous The counts last persisted.
+     * @param current The counts this interval.
+     * @return {@code true} if the top N fields differ or any count, the sum of the rest or the distinct count changed
+     *         by more than the threshold.
+     */
+    private boolean hasChanged(StoredCounts previous, StoredCounts current) {
+        if (!previous.topCounts.keySet().equals(current.topCounts.keySet())) {
+            return true;
+        }
+        for (Map.Entry<String, Long> count : current.topCounts.entrySet()) {
+            if (hasChanged(previous.topCounts.get(count.getKey()), count.getValue())) {
+                return true;
+            }
+        }
+        return hasChanged(previous.otherCount, current.otherCount)
+                || hasChanged(previous.distinctCount, current.distinctCount);
+    }
+
+    /**
+     * Determine if a count changed by more than the threshold.
+     *
+     * @param previous The count last persisted, or {@code null} if there was none.
+     * @param current The count this interval, or {@code null} if there is none.
+     * @return {@code true} if only one of the counts is present or they differ by more than the threshold.
+     */
+    private boolean hasChanged(Long previous, Long current) {
+        if (previous == null || current == null) {
+            return previous != current;
+        }
+        long delta = Math.abs(current - previous);
+        return delta > threshold * Math.max(previous, 1);
+    }
+
+    /**
+     * Forget resources that have not been counted for a full snapshot interval, once it is known they were persisted
+     * without counts. They will be treated as new if they are counted again.
+     */
+    private void evictUnseenResources(long now) {
+        Iterator<ResourceState> states = persisted.values().iterator();
+        while (states.hasNext()) {
+            ResourceState state = states.next();
+            if (now - state.seenAt >= snapshotInterval && state.pending == null
+                    && (state.stored == null || state.stored.isEmpty())) {
+                states.remove();
+            }
+        }
+    }
+
+    /**
+     * What was persisted for a resource and what is being persisted for it.
+     */
+    private static class ResourceState {
+        // Persisted and written by the delegate
+        private StoredCounts stored;
+        // Handed to the delegate but not known to be written yet
+        private StoredCounts pending;
+        private long seenAt;
+
+        /**
+         * Remember the pending counts as persisted if the delegate is done with them.
+         */
+        void confirmIfWritten() {
+            if (pending != null && pending.ticket != null && pending.ticket.isComplete()) {
+                stored = pending;
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * The top N field counts, the sum of the rest and the distinct count of a resource, when they were persisted and
+     * the delegate's ticket for them.
+     */
+    private static class StoredCounts {
+        private Map<String, Long> topCounts;
+        private Long otherCount;
+        private Long distinctCount;
+        private long persistedAt;
+        private FlushTicket ticket;
+
+        StoredCounts(Map<String, Long> topCounts, Long otherCount) {
+            this.topCounts = topCounts;
+            this.otherCount = otherCount;
+        }
+
+        boolean isEmpty() {
+            return topCounts.isEmpty() && otherCount == null && distinctCount == null;
+        }
+    }
+}
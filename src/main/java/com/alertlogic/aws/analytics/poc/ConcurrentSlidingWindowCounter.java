@@ -0,0 +1,286 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link WindowCounter} that is safe to increment from one thread while another thread reads counts and advances
+ * the window. No monitor is taken on the increment path: each object owns an array of atomic bucket cells and
+ * increments are applied with compare-and-set on the current bucket.
+ * <p/>
+ * {@link #getCounts()}, {@link #getChangedCounts()}, {@link #advanceWindow()} and {@link #pruneEmptyObjects()} are
+ * expected to be called from a single thread, usually the one advancing the window every interval.
+ */
+public class ConcurrentSlidingWindowCounter<ObjectType> implements WindowCounter<ObjectType> {
+
+    // Marks every bucket of an object being pruned. Increments that observe this value retry with a fresh set of
+    // cells.
+    private static final long PRUNED = Long.MIN_VALUE;
+
+    // Each object's cells are [bucket 0, ..., bucket windowSize - 1, total, last reported total]
+    private ConcurrentMap<ObjectType, AtomicLongArray> objectCounts;
+
+    private int windowSize;
+    private int totalIndex;
+    private int reportedIndex;
+    // The head bucket is read by incrementing threads and only written by the thread advancing the window.
+    private volatile int headBucket;
+    private int tailBucket;
+    // Keep track of the total window advances so we can answer the question: Is this window full?
+    private volatile int totalAdvances;
+
+    public ConcurrentSlidingWindowCounter(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be >= 1");
+        }
+        this.windowSize = windowSize;
+        totalIndex = windowSize;
+        reportedIndex = windowSize + 1;
+
+        objectCounts = new ConcurrentHashMap<>();
+        headBucket = 0;
+        tailBucket = getNextBucket(headBucket);
+    }
+
+    /**
+     * Determine which bucket comes "after" a given bucket. This handles the edge case where the bucket provided is at
+     * the end of the list of buckets.
+     *
+     * @param bucket The index of the bucket to start at.
+     * @return The bucket that is logically after the given bucket.
+     */
+    private int getNextBucket(int bucket) {
+        return (bucket + 1) % windowSize;
+    }
+
+    @Override
+    public void increment(ObjectType obj) {
+        while (true) {
+            AtomicLongArray counts = objectCounts.get(obj);
+            if (counts == null) {
+                AtomicLongArray newCounts = new AtomicLongArray(windowSize + 2);
+                counts = objectCounts.putIfAbsent(obj, newCounts);
+                if (counts == null) {
+                    counts = newCounts;
+                }
+            }
+
+            int bucket = headBucket;
+            long current = counts.get(bucket);
+            while (current != PRUNED) {
+                if (counts.compareAndSet(bucket, current, current + 1)) {
+                    counts.incrementAndGet(totalIndex);
+                    return;
+                }
+                current = counts.get(bucket);
+            }
+
+            // These cells are being pruned. Once every bucket is marked they are dead and may be removed by anyone,
+            // otherwise the pruner is rolling back and we can retry with the same cells.
+            if (isPruned(counts)) {
+                objectCounts.remove(obj, counts);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Get the counts for all objects across all buckets. Each object's buckets are read atomically but increments
+     * continue while the counts are being collected; an increment that is not included will be seen on the next call.
+     *
+     * @return A mapping of ObjectType -> total count across all buckets.
+     */
+    @Override
+    public Map<ObjectType, Long> getCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (Map.Entry<ObjectType, AtomicLongArray> entry : objectCounts.entrySet()) {
+            AtomicLongArray counts = entry.getValue();
+            if (counts.get(0) != PRUNED) {
+                count.put(entry.getKey(), counts.get(totalIndex));
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public Map<ObjectType, Long> getChangedCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (Map.Entry<ObjectType, AtomicLongArray> entry : objectCounts.entrySet()) {
+            AtomicLongArray counts = entry.getValue();
+            long total = counts.get(totalIndex);
+            // The last reported total is only accessed by the thread reading counts
+            if (counts.get(0) != PRUNED && total != counts.get(reportedIndex)) {
+                counts.set(reportedIndex, total);
+                count.put(entry.getKey(), total);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public void advanceWindow() {
+        clearBucket(tailBucket);
+
+        headBucket = tailBucket;
+        tailBucket = getNextBucket(headBucket);
+
+        if (!isWindowFull()) {
+            // Only increment if our window has not yet filled up.
+            totalAdvances++;
+        }
+    }
+
+    /**
+     * Increments only land in the head bucket, so the counts returned are final unless the window holds a single
+     * bucket.
+     */
+    @Override
+    public Map<ObjectType, Long> getExpiringBucketCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (Map.Entry<ObjectType, AtomicLongArray> entry : objectCounts.entrySet()) {
+            long bucketCount = entry.getValue().get(tailBucket);
+            if (bucketCount != PRUNED && bucketCount != 0) {
+                count.put(entry.getKey(), bucketCount);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public boolean isWindowFull() {
+        return windowSize <= totalAdvances;
+    }
+
+    /**
+     * Remove any objects whose buckets total 0. Every bucket of an empty object is swapped from 0 to a marker so a
+     * concurrent increment either lands before the object is pruned, which aborts the prune, or observes the marker
+     * and retries with a new set of cells.
+     */
+    @Override
+    public void pruneEmptyObjects() {
+        for (Map.Entry<ObjectType, AtomicLongArray> entry : objectCounts.entrySet()) {
+            AtomicLongArray counts = entry.getValue();
+            if (counts.get(totalIndex) == 0 && markPruned(counts)) {
+                objectCounts.remove(entry.getKey(), counts);
+            }
+        }
+    }
+
+    @Override
+    public List<Map<ObjectType, Long>> getBucketCounts() {
+        int buckets = Math.min(totalAdvances + 1, windowSize);
+        List<Map<ObjectType, Long>> bucketCounts = new ArrayList<>(buckets);
+        int bucket = (headBucket - buckets + 1 + windowSize) % windowSize;
+        for (int i = 0; i < buckets; i++) {
+            Map<ObjectType, Long> count = new HashMap<>();
+            for (Map.Entry<ObjectType, AtomicLongArray> entry : objectCounts.entrySet()) {
+                long bucketCount = entry.getValue().get(bucket);
+                if (bucketCount != PRUNED && bucketCount != 0) {
+                    count.put(entry.getKey(), bucketCount);
+                }
+            }
+            bucketCounts.add(count);
+            bucket = getNextBucket(bucket);
+        }
+        return bucketCounts;
+    }
+
+    /**
+     * Load bucket counts into an empty window. This must not be called while other threads use the counter.
+     */
+    @Override
+    public void restore(List<Map<ObjectType, Long>> bucketCounts, boolean windowFull) {
+        if (bucketCounts.size() > windowSize) {
+            throw new IllegalArgumentException("bucketCounts must not hold more than windowSize buckets");
+        }
+        int bucket = (headBucket - bucketCounts.size() + 1 + windowSize) % windowSize;
+        for (Map<ObjectType, Long> counts : bucketCounts) {
+            for (Map.Entry<ObjectType, Long> count : counts.entrySet()) {
+                AtomicLongArray cells = objectCounts.get(count.getKey());
+                if (cells == null) {
+                    cells = new AtomicLongArray(windowSize + 2);
+                    objectCounts.put(count.getKey(), cells);
+                }
+                cells.addAndGet(bucket, count.getValue());
+                cells.addAndGet(totalIndex, count.getValue());
+            }
+            bucket = getNextBucket(bucket);
+        }
+        totalAdvances = windowFull ? windowSize : Math.max(bucketCounts.size() - 1, 0);
+    }
+
+    /**
+     * Clears all object counts for the given bucket.
+     *
+     * @param bucket The index of the bucket to clear.
+     */
+    private void clearBucket(int bucket) {
+        for (AtomicLongArray counts : objectCounts.values()) {
+            long current = counts.get(bucket);
+            while (current != PRUNED && !counts.compareAndSet(bucket, current, 0)) {
+                current = counts.get(bucket);
+            }
+            if (current != PRUNED && current != 0) {
+                counts.addAndGet(totalIndex, -current);
+            }
+        }
+    }
+
+    /**
+     * Attempt to mark every bucket as pruned. If any bucket is non-zero the buckets already marked are restored.
+     *
+     * @param counts Bucket cells of a single object.
+     * @return {@code true} if all buckets were marked and the cells may be discarded.
+     */
+    private boolean markPruned(AtomicLongArray counts) {
+        for (int i = 0; i < windowSize; i++) {
+            if (!counts.compareAndSet(i, 0, PRUNED)) {
+                for (int j = 0; j < i; j++) {
+                    counts.set(j, 0);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param counts Bucket cells of a single object.
+     * @return {@code true} if every bucket has been marked as pruned.
+     */
+    private boolean isPruned(AtomicLongArray counts) {
+        for (int i = 0; i < windowSize; i++) {
+            if (counts.get(i) != PRUNED) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
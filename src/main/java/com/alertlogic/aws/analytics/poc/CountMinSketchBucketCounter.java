@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A {@link BucketCounter} that estimates counts with a Count-Min Sketch per bucket, so the memory used for counts is
+ * fixed no matter how many distinct objects are counted. A running sketch holds the sum of every bucket's sketch and
+ * answers estimates for the whole window; clearing a bucket subtracts its sketch from the running sketch.
+ * <p/>
+ * With a sketch {@code ceil(e / error)} counters wide and {@code ceil(ln(1 / (1 - confidence)))} rows deep, an
+ * estimate never undercounts and, with probability {@code confidence}, overcounts by at most {@code error} times the
+ * total of all counts in the window.
+ * <p/>
+ * A sketch cannot list the objects it has counted, so the objects to report are tracked separately. At most
+ * {@code maxTrackedObjects} objects are kept, preferring those with the highest estimates; objects beyond that are
+ * still counted but not reported until their estimates are among the highest.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class CountMinSketchBucketCounter<ObjectType> implements BucketCounter<ObjectType> {
+
+    private int maxBuckets;
+    private int width;
+    private int depth;
+    // One sketch per bucket, each depth rows of width counters laid out row after row
+    private long[][] buckets;
+    // The sum of all bucket sketches
+    private long[] total;
+
+    private int maxTrackedObjects;
+    // Objects that may be reported and the estimate last returned for them by getChangedCounts()
+    private Map<ObjectType, Long> tracked;
+
+    /**
+     * Create a new sketch backed counter with a fixed number of buckets.
+     *
+     * @param maxBuckets Total buckets this counter will use.
+     * @param error Maximum overcount of an estimate as a fraction of the total count in the window, e.g. 0.001.
+     * @param confidence Probability an estimate is within the error bound, e.g. 0.99.
+     * @param maxTrackedObjects Maximum number of distinct objects to report counts for.
+     */
+    public CountMinSketchBucketCounter(int maxBuckets, double error, double confidence, int maxTrackedObjects) {
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("maxBuckets must be >= 1");
+        }
+        if (error <= 0 || error >= 1) {
+            throw new IllegalArgumentException("error must be > 0 and < 1");
+        }
+        if (confidence <= 0 || confidence >= 1) {
+            throw new IllegalArgumentException("confidence must be > 0 and < 1");
+        }
+        if (maxTrackedObjects < 1) {
+            throw new IllegalArgumentException("maxTrackedObjects must be >= 1");
+        }
+        this.maxBuckets = maxBuckets;
+        this.maxTrackedObjects = maxTrackedObjects;
+        width = (int) Math.ceil(Math.E / error);
+        depth = (int) Math.ceil(Math.log(1 / (1 - confidence)));
+
+        if ((long) width * depth > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("error is too small for a sketch of this size");
+        }
+        buckets = new long[maxBuckets][width * depth];
+        total = new long[width * depth];
+        tracked = new HashMap<>();
+    }
+
+    @Override
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    /**
+     * @return The estimated count of the object in the bucket after incrementing it.
+     */
+    @Override
+    public long increment(ObjectType obj, int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        long[] sketch = buckets[bucket];
+        int h1 = hash(obj);
+        int h2 = rehash(h1);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int cell = cell(row, h1, h2);
+            total[cell]++;
+            estimate = Math.min(estimate, ++sketch[cell]);
+        }
+
+        if (!tracked.containsKey(obj)) {
+            tracked.put(obj, 0L);
+            // Let the tracked objects grow past the limit before trimming so trimming is amortized across many
+            // new objects
+            if (tracked.size() >= maxTrackedObjects << 1) {
+                trimTrackedObjects();
+            }
+        }
+        return estimate;
+    }
+
+    @Override
+    public void add(ObjectType obj, int bucket, long count) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("count must be >= 0");
+        }
+        long[] sketch = buckets[bucket];
+        int h1 = hash(obj);
+        int h2 = rehash(h1);
+        for (int row = 0; row < depth; row++) {
+            int cell = cell(row, h1, h2);
+            total[cell] += count;
+            sketch[cell] += count;
+        }
+
+        if (!tracked.containsKey(obj)) {
+            tracked.put(obj, 0L);
+            if (tracked.size() >= maxTrackedObjects << 1) {
+                trimTrackedObjects();
+            }
+        }
+    }
+
+    /**
+     * @return The estimated counts of the tracked objects in the bucket. Objects no longer tracked are omitted even if
+     *         they were counted in the bucket.
+     */
+    @Override
+    public Map<ObjectType, Long> getBucketCounts(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        long[] sketch = buckets[bucket];
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (ObjectType obj : tracked.keySet()) {
+            int h1 = hash(obj);
+            int h2 = rehash(h1);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, sketch[cell(row, h1, h2)]);
+            }
+            if (estimate > 0) {
+                count.put(obj, estimate);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public Map<ObjectType, Long> getCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (ObjectType obj : tracked.keySet()) {
+            long estimate = estimate(obj);
+            if (estimate > 0) {
+                count.put(obj, estimate);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public Map<ObjectType, Long> getChangedCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (Map.Entry<ObjectType, Long> entry : tracked.entrySet()) {
+            long estimate = estimate(entry.getKey());
+            if (estimate != entry.getValue()) {
+                entry.setValue(estimate);
+                count.put(entry.getKey(), estimate);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Stop tracking objects whose estimated total is 0.
+     */
+    @Override
+    public void pruneEmptyObjects() {
+        Iterator<ObjectType> objects = tracked.keySet().iterator();
+        while (objects.hasNext()) {
+            if (estimate(objects.next()) == 0) {
+                objects.remove();
+            }
+        }
+    }
+
+    @Override
+    public void clearBucket(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        long[] sketch = buckets[bucket];
+        for (int cell = 0; cell < sketch.length; cell++) {
+            total[cell] -= sketch[cell];
+        }
+        Arrays.fill(sketch, 0);
+    }
+
+    /**
+     * @return The estimated total count of the object across all buckets.
+     */
+    private long estimate(Object obj) {
+        int h1 = hash(obj);
+        int h2 = rehash(h1);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, total[cell(row, h1, h2)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Keep only the tracked objects with the highest estimates.
+     */
+    private void trimTrackedObjects() {
+        long[] estimates = new long[tracked.size()];
+        int i = 0;
+        for (ObjectType obj : tracked.keySet()) {
+            estimates[i++] = estimate(obj);
+        }
+        long[] sorted = estimates.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[sorted.length - maxTrackedObjects];
+
+        // Objects tied with the threshold are kept only while there is room for them. The map is iterated in the
+        // same order as above so the estimates line up.
+        int tiesToKeep = 0;
+        for (int j = sorted.length - maxTrackedObjects; j < sorted.length && sorted[j] == threshold; j++) {
+            tiesToKeep++;
+        }
+        i = 0;
+        Iterator<ObjectType> objects = tracked.keySet().iterator();
+        while (objects.hasNext()) {
+            objects.next();
+            long estimate = estimates[i++];
+            if (estimate < threshold) {
+                objects.remove();
+            } else if (estimate == threshold) {
+                if (tiesToKeep > 0) {
+                    tiesToKeep--;
+                } else {
+                    objects.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Locate an object's counter in a row. Each row uses a different hash derived from two base hashes.
+     */
+    private int cell(int row, int h1, int h2) {
+        int h = h1 + row * h2;
+        return row * width + ((h & Integer.MAX_VALUE) % width);
+    }
+
+    private static int hash(Object obj) {
+        // Spread the bits of the hash code so poorly distributed hash codes still reach every counter of a row
+        int h = obj.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int rehash(int h) {
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 12;
+        // An odd step so rows never collapse onto the same hash
+        return h | 1;
+    }
+}
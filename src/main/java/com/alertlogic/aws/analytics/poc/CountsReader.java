@@ -0,0 +1,396 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.util.DateUtils;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads the counts a {@link DynamoDBPersister} wrote to a table created by
+ * {@link DynamoDBUtils#createCountTableIfNotExists(String)} and answers "top N referrers of resources R over a time
+ * range".
+ * <p/>
+ * The time range is split into chunks aligned to {@link #CHUNK_IN_MILLIS}, and every resource and chunk is queried in
+ * parallel, following the pages of each query. How the items of a chunk are combined depends on how they were written,
+ * see {@link Aggregation}. The counts of every chunk in the range are then summed by field. Items hold the counts of a
+ * window ending at their timestamp, so when windows are longer than the interval they are written at the sums weigh
+ * each record by the number of windows it was counted in. They rank fields over the range but are not record counts,
+ * except for tables of non-overlapping windows.
+ * <p/>
+ * Chunks that ended long enough ago are not written to anymore, so their sums are kept in a least recently used cache
+ * and repeated reads of them, e.g. by dashboards refreshing, cost no read capacity. Chunks the range only covers part
+ * of, and recent chunks, are always queried.
+ * <p/>
+ * This class is thread safe.
+ */
+public class CountsReader {
+
+    /**
+     * How the items of a chunk are combined into the chunk's counts.
+     */
+    public enum Aggregation {
+        /**
+         * Sum the field counts of every item in the chunk. Suits tables every window of every resource is written to,
+         * such as those of a {@link DynamoDBPersister} used on its own.
+         */
+        SUM,
+        /**
+         * Take the field counts of the latest item written at or before the end of the chunk, even if it was written
+         * before the chunk started. Suits tables a {@link ChangeDetectingPersister} writes to, which only hold an item
+         * when a resource's counts changed, so summing them would weigh resources by how often they changed. Reads a
+         * single item per chunk.
+         */
+        LATEST
+    }
+
+    private static final String ATTRIBUTE_RESOURCE = "resource";
+    private static final String ATTRIBUTE_TIMESTAMP = "timestamp";
+    private static final String ATTRIBUTE_FIELD_COUNTS = "fieldCounts";
+
+    // Length of the chunks queries are split into and results are cached by
+    public static final int CHUNK_IN_MILLIS = 60000;
+    // How long after a chunk ends counts may still be written into it, e.g. by a worker catching up
+    private static final int SETTLE_IN_MILLIS = 60000;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final TypeReference<List<FieldCount>> FIELD_COUNTS_TYPE = new TypeReference<List<FieldCount>>() {
+    };
+
+    private static final AtomicLong CACHE_HITS = Metrics.counter("counts_reader_cache_hits_total");
+    private static final AtomicLong CACHE_MISSES = Metrics.counter("counts_reader_cache_misses_total");
+    private static final Histogram QUERY_LATENCY = Metrics.histogram("counts_reader_query_latency_micros");
+
+    private AmazonDynamoDB dynamoDB;
+    private String tableName;
+    private Aggregation aggregation;
+    private ExecutorService executor;
+    // Summed field counts of settled chunks by resource and chunk start, guarded by itself
+    private Map<ChunkKey, List<FieldCount>> cache;
+
+    /**
+     * Create a reader that sums every item of a chunk.
+     *
+     * @param dynamoDB The DynamoDB client to query with.
+     * @param tableName The table counts are stored in.
+     * @param maxParallelQueries Maximum number of queries to have in flight at once.
+     * @param maxCachedChunks Maximum number of resource chunks to cache.
+     */
+    public CountsReader(AmazonDynamoDB dynamoDB, String tableName, int maxParallelQueries, int maxCachedChunks) {
+        this(dynamoDB, tableName, maxParallelQueries, maxCachedChunks, Aggregation.SUM);
+    }
+
+    /**
+     * @param dynamoDB The DynamoDB client to query with.
+     * @param tableName The table counts are stored in.
+     * @param maxParallelQueries Maximum number of queries to have in flight at once.
+     * @param maxCachedChunks Maximum number of resource chunks to cache.
+     * @param aggregation How the items of a chunk are combined, which must match how the table was written.
+     */
+    public CountsReader(AmazonDynamoDB dynamoDB,
+            String tableName,
+            int maxParallelQueries,
+            final int maxCachedChunks,
+            Aggregation aggregation) {
+        if (dynamoDB == null) {
+            throw new NullPointerException("dynamoDB must not be null");
+        }
+        if (tableName == null) {
+            throw new NullPointerException("tableName must not be null");
+        }
+        if (aggregation == null) {
+            throw new NullPointerException("aggregation must not be null");
+        }
+        if (maxParallelQueries <= 0) {
+            throw new IllegalArgumentException("maxParallelQueries must be > 0");
+        }
+        if (maxCachedChunks < 0) {
+            throw new IllegalArgumentException("maxCachedChunks must be >= 0");
+        }
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+        this.aggregation = aggregation;
+        executor = Executors.newFixedThreadPool(maxParallelQueries, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "counts-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        cache = new LinkedHashMap<ChunkKey, List<FieldCount>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChunkKey, List<FieldCount>> eldest) {
+                return size() > maxCachedChunks;
+            }
+        };
+    }
+
+    /**
+     * Get the top fields of resources over a time range.
+     *
+     * @param resources The resources.
+     * @param start Start of the range. Items with this timestamp are included.
+     * @param end End of the range. Items with this timestamp are not included.
+     * @param n Maximum number of field counts to return per resource.
+     * @return The field counts of each resource summed over the chunks of the range, highest first. Resources without counts in the range have an
+     *         empty list.
+     * @throws AmazonClientException if a query failed.
+     * @throws InterruptedException if interrupted while waiting for the queries.
+     */
+    public Map<String, List<FieldCount>> getTopCounts(Collection<String> resources, Date start, Date end, int n)
+            throws InterruptedException {
+        if (resources == null) {
+            throw new NullPointerException("resources must not be null");
+        }
+        if (start == null) {
+            throw new NullPointerException("start must not be null");
+        }
+        if (end == null) {
+            throw new NullPointerException("end must not be null");
+        }
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be > 0");
+        }
+        long startInMillis = start.getTime();
+        long endInMillis = end.getTime();
+        long settledInMillis = System.currentTimeMillis() - SETTLE_IN_MILLIS;
+
+        Map<String, List<Future<List<FieldCount>>>> pending = new LinkedHashMap<>();
+        Map<String, List<List<FieldCount>>> chunkCounts = new HashMap<>();
+        for (String resource : resources) {
+            pending.put(resource, new ArrayList<Future<List<FieldCount>>>());
+            chunkCounts.put(resource, new ArrayList<List<FieldCount>>());
+            long firstChunkStart = startInMillis - ((startInMillis % CHUNK_IN_MILLIS) + CHUNK_IN_MILLIS) % CHUNK_IN_MILLIS;
+            for (long chunkStart = firstChunkStart; chunkStart < endInMillis; chunkStart += CHUNK_IN_MILLIS) {
+                long chunkEnd = chunkStart + CHUNK_IN_MILLIS;
+                final String queryResource = resource;
+                final long queryStart = Math.max(chunkStart, startInMillis);
+                final long queryEnd = Math.min(chunkEnd, endInMillis);
+                // Only whole chunks that can no longer change are cached
+                final ChunkKey key = queryStart == chunkStart && queryEnd == chunkEnd && chunkEnd <= settledInMillis
+                        ? new ChunkKey(resource, chunkStart)
+                        : null;
+                if (key != null) {
+                    List<FieldCount> cached;
+                    synchronized (cache) {
+                        cached = cache.get(key);
+                    }
+                    if (cached != null) {
+                        CACHE_HITS.incrementAndGet();
+                        chunkCounts.get(resource).add(cached);
+                        continue;
+                    }
+                    CACHE_MISSES.incrementAndGet();
+                }
+                pending.get(resource).add(executor.submit(new Callable<List<FieldCount>>() {
+                    @Override
+                    public List<FieldCount> call() throws IOException {
+                        List<FieldCount> counts = query(queryResource, queryStart, queryEnd);
+                        // Only reached once every page was read, so the sums are complete
+                        if (key != null) {
+                            synchronized (cache) {
+                                cache.put(key, counts);
+                            }
+                        }
+                        return counts;
+                    }
+                }));
+            }
+        }
+
+        Map<String, List<FieldCount>> topCounts = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, List<Future<List<FieldCount>>>> resource : pending.entrySet()) {
+                List<List<FieldCount>> lists = chunkCounts.get(resource.getKey());
+                for (Future<List<FieldCount>> future : resource.getValue()) {
+                    lists.add(future.get());
+                }
+                topCounts.put(resource.getKey(), LiveCounts.merge(lists, n));
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AmazonClientException) {
+                throw (AmazonClientException) e.getCause();
+            }
+            throw new AmazonClientException("Unable to query counts from " + tableName, e.getCause());
+        } finally {
+            // Don't keep querying for an answer no one will read
+            for (List<Future<List<FieldCount>>> futures : pending.values()) {
+                for (Future<List<FieldCount>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return topCounts;
+    }
+
+    /**
+     * Stop the query threads. Reads in progress fail.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Query a resource's counts in a time range.
+     *
+     * @return The counts of the chunk, highest first.
+     * @throws InterruptedIOException if interrupted before the last page was read.
+     */
+    private List<FieldCount> query(String resource, long startInMillis, long endInMillis) throws IOException {
+        if (aggregation == Aggregation.LATEST) {
+            return queryLatest(resource, endInMillis);
+        }
+        return querySum(resource, startInMillis, endInMillis);
+    }
+
+    /**
+     * Query the latest item of a resource written before a time.
+     *
+     * @return The field counts of the item, highest first, or an empty list if there is none. Never modified once
+     *         returned, since it may be cached.
+     */
+    private List<FieldCount> queryLatest(String resource, long endInMillis) throws IOException {
+        Map<String, Condition> keyConditions = new HashMap<>();
+        keyConditions.put(ATTRIBUTE_RESOURCE,
+                new Condition().withComparisonOperator(ComparisonOperator.EQ)
+                        .withAttributeValueList(new AttributeValue(resource)));
+        keyConditions.put(ATTRIBUTE_TIMESTAMP,
+                new Condition().withComparisonOperator(ComparisonOperator.LE)
+                        .withAttributeValueList(
+                                new AttributeValue(DateUtils.formatISO8601Date(new Date(endInMillis - 1)))));
+        QueryRequest request = new QueryRequest().withTableName(tableName)
+                .withKeyConditions(keyConditions)
+                .withAttributesToGet(ATTRIBUTE_FIELD_COUNTS)
+                .withScanIndexForward(false)
+                .withLimit(1);
+
+        List<List<FieldCount>> lists = new ArrayList<>();
+        readFieldCounts(queryPage(request), lists);
+        return Collections.unmodifiableList(LiveCounts.merge(lists, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Query every page of a resource's items in a time range and sum their field counts.
+     *
+     * @return The summed field counts, highest first. Never modified once returned, since it may be cached.
+     * @throws InterruptedIOException if interrupted before the last page was read.
+     */
+    private List<FieldCount> querySum(String resource, long startInMillis, long endInMillis) throws IOException {
+        Map<String, Condition> keyConditions = new HashMap<>();
+        keyConditions.put(ATTRIBUTE_RESOURCE,
+                new Condition().withComparisonOperator(ComparisonOperator.EQ)
+                        .withAttributeValueList(new AttributeValue(resource)));
+        // Timestamps are ISO 8601 strings with milliseconds, which sort by time. BETWEEN includes both bounds.
+        keyConditions.put(ATTRIBUTE_TIMESTAMP,
+                new Condition().withComparisonOperator(ComparisonOperator.BETWEEN)
+                        .withAttributeValueList(
+                                new AttributeValue(DateUtils.formatISO8601Date(new Date(startInMillis))),
+                                new AttributeValue(DateUtils.formatISO8601Date(new Date(endInMillis - 1)))));
+        QueryRequest request = new QueryRequest().withTableName(tableName)
+                .withKeyConditions(keyConditions)
+                .withAttributesToGet(ATTRIBUTE_FIELD_COUNTS);
+
+        List<List<FieldCount>> lists = new ArrayList<>();
+        do {
+            QueryResult result = queryPage(request);
+            readFieldCounts(result, lists);
+            request.setExclusiveStartKey(result.getLastEvaluatedKey());
+            // Partial sums must never be returned, since they may be cached
+            if (request.getExclusiveStartKey() != null && Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while querying counts of " + resource);
+            }
+        } while (request.getExclusiveStartKey() != null);
+        return Collections.unmodifiableList(LiveCounts.merge(lists, Integer.MAX_VALUE));
+    }
+
+    private QueryResult queryPage(QueryRequest request) {
+        long startTime = System.nanoTime();
+        QueryResult result = dynamoDB.query(request);
+        QUERY_LATENCY.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        return result;
+    }
+
+    /**
+     * Add the field counts of every item of a query result to a list.
+     */
+    private static void readFieldCounts(QueryResult result, List<List<FieldCount>> lists) throws IOException {
+        for (Map<String, AttributeValue> item : result.getItems()) {
+            AttributeValue fieldCounts = item.get(ATTRIBUTE_FIELD_COUNTS);
+            if (fieldCounts != null && fieldCounts.getS() != null) {
+                lists.add(JSON.<List<FieldCount>> readValue(fieldCounts.getS(), FIELD_COUNTS_TYPE));
+            }
+        }
+    }
+
+    /**
+     * A chunk of a resource's counts.
+     */
+    private static class ChunkKey {
+        private String resource;
+        private long chunkStart;
+
+        ChunkKey(String resource, long chunkStart) {
+            this.resource = resource;
+            this.chunkStart = chunkStart;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * resource.hashCode() + (int) (chunkStart ^ (chunkStart >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) obj;
+            return chunkStart == other.chunkStart && resource.equals(other.resource);
+        }
+    }
+}
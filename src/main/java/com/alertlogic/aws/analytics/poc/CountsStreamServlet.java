@@ -0,0 +1,377 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Pushes the counts of every interval to clients as server-sent events, as the record processors compute them:
+ *
+ * <pre>
+ * GET /stream?resource=/index.html&amp;resource=/about.html
+ * event: counts
+ * data: {"shardId":"shardId-000000000000","windowEnd":1400000000000,"counts":{"/index.html":[{"field":"http://www.amazon.com","count":42},...]}}
+ * </pre>
+ *
+ * Each event holds one shard's {@link LiveCounts} snapshot, limited to the requested resources, or every resource if
+ * none are requested. Shards with none of the requested resources send no event.
+ * <p/>
+ * The record processors only hand snapshots to each client and never wait for one. Every client keeps the latest
+ * unsent snapshot of each shard, which is sent by a thread of its own while it has events to send, so a slow client
+ * only delays itself and skips snapshots it had no time for. A client that has not caught up for longer than an
+ * interval is dropped. Snapshots of every resource are serialized once and the bytes shared by all clients.
+ */
+public class CountsStreamServlet extends HttpServlet implements LiveCounts.Listener {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = LogFactory.getLog(CountsStreamServlet.class);
+
+    private static final byte[] EVENT_PREFIX = "event: counts\ndata: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EVENT_SUFFIX = "\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final AtomicLong CLIENTS_DROPPED = Metrics.counter("counts_stream_clients_dropped_total");
+
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private long maxLagInNanos;
+    private transient Set<Client> clients;
+    private transient ExecutorService executor;
+
+    /**
+     * @param intervalInMillis How often the record processors publish snapshots. A client that has not caught up for
+     *        longer than this is dropped.
+     */
+    public CountsStreamServlet(int intervalInMillis) {
+        if (intervalInMillis <= 0) {
+            throw new IllegalArgumentException("intervalInMillis must be > 0");
+        }
+        maxLagInNanos = TimeUnit.MILLISECONDS.toNanos(intervalInMillis);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        clients = new CopyOnWriteArraySet<>();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "counts-stream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Metrics.registerGauge("counts_stream_clients", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return clients.size();
+            }
+        });
+        LiveCounts.addListener(this);
+    }
+
+    @Override
+    public void destroy() {
+        LiveCounts.removeListener(this);
+        Metrics.removeGauge("counts_stream_clients");
+        for (Client client : clients) {
+            client.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * One event sent to clients.
+     */
+    public static class CountsEvent {
+        private String shardId;
+        private Date windowEnd;
+        private Map<String, List<FieldCount>> counts;
+
+        public String getShardId() {
+            return shardId;
+        }
+
+        public void setShardId(String shardId) {
+            this.shardId = shardId;
+        }
+
+        public Date getWindowEnd() {
+            return windowEnd;
+        }
+
+        public void setWindowEnd(Date windowEnd) {
+            this.windowEnd = windowEnd;
+        }
+
+        public Map<String, List<FieldCount>> getCounts() {
+            return counts;
+        }
+
+        public void setCounts(Map<String, List<FieldCount>> counts) {
+            this.counts = counts;
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String[] resources = request.getParameterValues("resource");
+        Set<String> filter = resources == null ? null : new HashSet<>(Arrays.asList(resources));
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.flushBuffer();
+
+        AsyncContext context = request.startAsync();
+        // Stream until the client goes away
+        context.setTimeout(0);
+        final Client client = new Client(context, filter);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                clients.remove(client);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                client.close();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                client.close();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        clients.add(client);
+    }
+
+    @Override
+    public void published(String shardId, LiveCounts.Snapshot snapshot) {
+        // Shared by every client so an unfiltered snapshot is only serialized once
+        PendingSnapshot pending = new PendingSnapshot(shardId, snapshot);
+        for (Client client : clients) {
+            client.offer(pending);
+        }
+    }
+
+    /**
+     * A shard's snapshot waiting to be sent.
+     */
+    private static class PendingSnapshot {
+        private String shardId;
+        private LiveCounts.Snapshot snapshot;
+        // The event with every resource, serialized by the first client to send it
+        private byte[] allCounts;
+
+        PendingSnapshot(String shardId, LiveCounts.Snapshot snapshot) {
+            this.shardId = shardId;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return The serialized event with the counts of every resource.
+         */
+        synchronized byte[] getAllCounts() throws IOException {
+            if (allCounts == null) {
+                Map<String, List<FieldCount>> counts = new LinkedHashMap<>();
+                for (String resource : snapshot.getResources()) {
+                    counts.put(resource, snapshot.getTopCounts(resource));
+                }
+                allCounts = serialize(counts);
+            }
+            return allCounts;
+        }
+
+        /**
+         * @return The serialized event with the counts of the resources in the filter, or {@code null} if the
+         *         snapshot has none of them.
+         */
+        byte[] getCounts(Set<String> filter) throws IOException {
+            Map<String, List<FieldCount>> counts = new LinkedHashMap<>();
+            for (String resource : filter) {
+                List<FieldCount> resourceCounts = snapshot.getTopCounts(resource);
+                if (!resourceCounts.isEmpty()) {
+                    counts.put(resource, resourceCounts);
+                }
+            }
+            return counts.isEmpty() ? null : serialize(counts);
+        }
+
+        private byte[] serialize(Map<String, List<FieldCount>> counts) throws IOException {
+            CountsEvent event = new CountsEvent();
+            event.setShardId(shardId);
+            event.setWindowEnd(snapshot.getWindowEnd());
+            event.setCounts(counts);
+            return JSON.writeValueAsBytes(event);
+        }
+    }
+
+    /**
+     * A connected client and the latest snapshot of each shard it has yet to be sent.
+     */
+    private class Client implements Runnable {
+        private AsyncContext context;
+        // Resources the client wants, or null for all of them
+        private Set<String> filter;
+        // Latest unsent snapshot by shard. A newer snapshot replaces one the client had no time to send.
+        private ConcurrentMap<String, PendingSnapshot> pending = new ConcurrentHashMap<>();
+        // Whether a thread is draining the pending snapshots
+        private AtomicBoolean draining = new AtomicBoolean();
+        // When the draining thread started since the client last had nothing to send, or 0 while idle
+        private AtomicLong busySinceNanos = new AtomicLong();
+        private AtomicBoolean closed = new AtomicBoolean();
+
+        Client(AsyncContext context, Set<String> filter) {
+            this.context = context;
+            this.filter = filter;
+        }
+
+        /**
+         * Queue a snapshot to be sent, without blocking. Drops the client if it has not caught up for longer than an
+         * interval.
+         */
+        void offer(PendingSnapshot snapshot) {
+            if (closed.get()) {
+                return;
+            }
+            pending.put(snapshot.shardId, snapshot);
+            if (draining.compareAndSet(false, true)) {
+                busySinceNanos.set(System.nanoTime());
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The servlet is being destroyed
+                    busySinceNanos.set(0);
+                    draining.set(false);
+                }
+                return;
+            }
+            long busySince = busySinceNanos.get();
+            if (busySince != 0 && System.nanoTime() - busySince > maxLagInNanos) {
+                CLIENTS_DROPPED.incrementAndGet();
+                LOG.info("Dropping a counts stream client that has not caught up in "
+                        + TimeUnit.NANOSECONDS.toMillis(maxLagInNanos) + " ms");
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    while (!closed.get() && !pending.isEmpty()) {
+                        for (String shardId : pending.keySet()) {
+                            PendingSnapshot next = pending.remove(shardId);
+                            if (next != null && !closed.get()) {
+                                send(next);
+                            }
+                        }
+                    }
+                    busySinceNanos.set(0);
+                    draining.set(false);
+                    // Drain again if a snapshot was queued after the client looked caught up
+                    if (closed.get() || pending.isEmpty() || !draining.compareAndSet(false, true)) {
+                        break;
+                    }
+                    busySinceNanos.set(System.nanoTime());
+                }
+            } catch (IOException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Counts stream client went away", e);
+                }
+                close();
+            }
+            if (closed.get()) {
+                complete();
+            }
+        }
+
+        private void send(PendingSnapshot next) throws IOException {
+            byte[] event = filter == null ? next.getAllCounts() : next.getCounts(filter);
+            if (event == null) {
+                return;
+            }
+            OutputStream out = context.getResponse().getOutputStream();
+            out.write(EVENT_PREFIX);
+            // JSON has no raw newlines, so the event stays on one data line
+            out.write(event);
+            out.write(EVENT_SUFFIX);
+            out.flush();
+        }
+
+        /**
+         * Stop sending to the client. The draining thread, if any, finishes the response once its current write
+         * returns.
+         */
+        private void drop() {
+            if (closed.compareAndSet(false, true)) {
+                clients.remove(this);
+                pending.clear();
+            }
+        }
+
+        void close() {
+            drop();
+            if (draining.compareAndSet(false, true)) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // Already completed
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Encodes the values of one dimension to dense int IDs, so records can be compared and hashed by a few ints instead
+ * of their strings. IDs are assigned in the order values are first seen and never change.
+ * <p/>
+ * At most a fixed number of distinct values are encoded. Once full, every new value is encoded as {@link #OTHER}, so
+ * a high cardinality dimension is counted as one bucket of other values instead of growing without bound. IDs are
+ * never reclaimed, since counts held in a window or snapshot may still refer to them, so a full dictionary stays full
+ * for the life of the process. This is logged when it happens, and the values encoded as {@link #OTHER} are counted in
+ * {@code dimension_dictionary_overflow_total}.
+ * <p/>
+ * This class is thread safe. Looking up a value that is already encoded does not lock.
+ */
+public class DimensionDictionary {
+    private static final Log LOG = LogFactory.getLog(DimensionDictionary.class);
+
+    /**
+     * The ID of a missing value.
+     */
+    public static final int MISSING = -1;
+    /**
+     * The ID of every value seen after the dictionary is full.
+     */
+    public static final int OTHER = 0;
+    /**
+     * What {@link #OTHER} decodes to.
+     */
+    public static final String OTHER_VALUE = "(other)";
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // Values by ID. Grown and filled before the ID is published in ids, so decoding an ID never locks.
+    private volatile String[] values = new String[INITIAL_CAPACITY];
+    private int size;
+    private int maxValues;
+    private String dimension;
+    // Set once the dictionary is full, so new values skip the lock from then on
+    private volatile boolean full;
+    // Values encoded as OTHER because the dictionary was full
+    private AtomicLong overflow;
+
+    /**
+     * @param dimension The name of the dimension whose values are encoded, used to label metrics.
+     * @param maxValues The maximum number of distinct values to encode.
+     */
+    public DimensionDictionary(String dimension, int maxValues) {
+        if (dimension == null) {
+            throw new NullPointerException("dimension must not be null");
+        }
+        if (maxValues < 1) {
+            throw new IllegalArgumentException("maxValues must be >= 1");
+        }
+        this.dimension = dimension;
+        this.maxValues = maxValues;
+        this.overflow = Metrics.counter(Metrics.name("dimension_dictionary_overflow_total", "dimension", dimension));
+        values[OTHER] = OTHER_VALUE;
+        size = 1;
+    }
+
+    /**
+     * @param value The value to encode.
+     * @return The ID of the value, {@link #MISSING} for {@code null}, or {@link #OTHER} if the value is new and the
+     *         dictionary is full.
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return MISSING;
+        }
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        if (full) {
+            overflow.incrementAndGet();
+            return OTHER;
+        }
+        synchronized (this) {
+            id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            if (size > maxValues) {
+                if (!full) {
+                    full = true;
+                    LOG.warn(String.format("The dictionary of dimension %s is full with %d values. New values of %s "
+                            + "will be counted as %s.", dimension, maxValues, dimension, OTHER_VALUE));
+                }
+                overflow.incrementAndGet();
+                return OTHER;
+            }
+            String[] current = values;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, current.length << 1);
+            }
+            current[size] = value;
+            values = current;
+            ids.put(value, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @param id An ID returned by {@link #encode(String)}.
+     * @return The value of the ID, or {@code null} for {@link #MISSING}.
+     * @throws IllegalArgumentException if the ID was never assigned.
+     */
+    public String decode(int id) {
+        if (id == MISSING) {
+            return null;
+        }
+        String[] current = values;
+        if (id < 0 || id >= current.length || current[id] == null) {
+            throw new IllegalArgumentException("Unknown id: " + id);
+        }
+        return current[id];
+    }
+
+    /**
+     * @return {@code true} if the dictionary holds its maximum number of values and encodes new ones as {@link #OTHER}.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return The number of distinct values encoded, not counting {@link #OTHER}.
+     */
+    public synchronized int size() {
+        return size - 1;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Arrays;
+
+/**
+ * A record of a {@link RecordSchema}, holding the dictionary encoded ID of each dimension of a {@link GroupBy}.
+ * Records are compared and hashed by their IDs alone, so counting them never touches the values' strings.
+ * <p/>
+ * Records of different group-bys are never equal, even if they hold the same values.
+ */
+public class DimensionRecord implements FieldRecord {
+    private GroupBy groupBy;
+    private int[] ids;
+    private int hash;
+
+    /**
+     * @param groupBy The group-by the record belongs to.
+     * @param ids The ID of each dimension of the group-by, in order. The array is not copied.
+     */
+    public DimensionRecord(GroupBy groupBy, int[] ids) {
+        if (groupBy == null) {
+            throw new NullPointerException("groupBy must not be null");
+        }
+        if (ids == null) {
+            throw new NullPointerException("ids must not be null");
+        }
+        if (ids.length != groupBy.getDimensions().size()) {
+            throw new IllegalArgumentException("Expected " + groupBy.getDimensions().size() + " ids but got "
+                    + ids.length);
+        }
+        this.groupBy = groupBy;
+        this.ids = ids;
+        hash = 31 * groupBy.hashCode() + Arrays.hashCode(ids);
+    }
+
+    public GroupBy getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * @param position Position of a dimension in the group-by.
+     * @return The ID of the dimension's value.
+     */
+    public int getId(int position) {
+        return ids[position];
+    }
+
+    /**
+     * @return The decoded value of the dimension, or {@code null} if the record has no value for it or the dimension
+     *         is not part of its group-by.
+     */
+    @Override
+    public String getField(String name) {
+        int position = groupBy.positionOf(name);
+        if (position < 0) {
+            return null;
+        }
+        return groupBy.getDictionary(position).decode(ids[position]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DimensionRecord that = (DimensionRecord) o;
+
+        return hash == that.hash && groupBy == that.groupBy && Arrays.equals(ids, that.ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("DimensionRecord{");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(groupBy.getDimensions().get(i))
+                    .append("='")
+                    .append(groupBy.getDictionary(i).decode(ids[i]))
+                    .append('\'');
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Writes items to a single Amazon DynamoDB table with several BatchWriteItem requests in flight at once.
+ * <p/>
+ * Items are queued by {@link #write(List, long, TimeUnit)} and a dispatcher thread groups them into batches of up to
+ * 25 items. At most {@code maxBatchesInFlight} batches are outstanding at any time. Items DynamoDB reports as
+ * unprocessed, and the items of batches that fail with a retryable error, are put back on the queue after a jittered
+ * exponential backoff and go out again with the next batch.
+ * <p/>
+ * DynamoDB rejects a whole batch that holds two items with the same key, so only the most recently written item for
+ * each key goes into a batch. Older items for that key are treated as written, including ones that come back for a
+ * retry after a newer item was accepted, so a retry never overwrites newer data.
+ * <p/>
+ * The number of items queued or in flight is bounded. Callers of {@link #write(List, long, TimeUnit)} wait for room
+ * and are told when items could not be accepted.
+ */
+public class DynamoDBBatchWriter {
+    private static final Log LOG = LogFactory.getLog(DynamoDBBatchWriter.class);
+
+    // BatchWriteItem accepts at most 25 items per request
+    private static final int MAX_ITEMS_PER_BATCH = 25;
+
+    // Unprocessed items are requeued with full jitter backoff: a random delay up to min(cap, base * 2^attempt)
+    private static final int MAX_ATTEMPTS_PER_ITEM = 10;
+    private static final long BASE_BACKOFF_IN_MILLIS = 50;
+    private static final long MAX_BACKOFF_IN_MILLIS = 5000;
+
+    // Time each BatchWriteItem request takes, shared by every writer
+    private static final Histogram BATCH_WRITE_LATENCY = Metrics.histogram("dynamodb_batch_write_latency_micros");
+
+    private AmazonDynamoDB dynamoDB;
+    private String tableName;
+    private int maxBatchesInFlight;
+    private int maxPendingItems;
+    private long baseBackoffInMillis;
+    private long maxBackoffInMillis;
+
+    // Items waiting to be put into a batch
+    private BlockingQueue<PendingWrite> queue;
+    // Items waiting out their backoff before they are queued again
+    private Set<Requeue> retrying = Collections.newSetFromMap(new ConcurrentHashMap<Requeue, Boolean>());
+    // One permit per batch that may be in flight
+    private Semaphore batchesInFlight;
+
+    // Items accepted but not yet written or dropped. Guarded by this writer's monitor.
+    private int pendingItems;
+    // Order in which items were accepted, to tell which of two items with the same key is newer. Guarded by this
+    // writer's monitor.
+    private long nextSequenceNumber;
+    // The newest item accepted for each key with items pending. Guarded by this writer's monitor.
+    private Map<List<AttributeValue>, NewestWrite> newestWrites = new HashMap<>();
+
+    // Set once the first call to start() creates the threads
+    private AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread dispatcher;
+    private ScheduledThreadPoolExecutor senders;
+    private volatile boolean shutdown;
+
+    /**
+     * Create a writer for a table. Call {@link #start()} before writing.
+     *
+     * @param dynamoDB Amazon DynamoDB client to send requests with.
+     * @param tableName The table to write items to.
+     * @param maxBatchesInFlight Maximum number of BatchWriteItem requests to have outstanding at once.
+     * @param maxPendingItems Maximum number of items to hold that have not been written yet.
+     */
+    public DynamoDBBatchWriter(AmazonDynamoDB dynamoDB, String tableName, int maxBatchesInFlight,
+            int maxPendingItems) {
+        this(dynamoDB, tableName, maxBatchesInFlight, maxPendingItems, BASE_BACKOFF_IN_MILLIS, MAX_BACKOFF_IN_MILLIS);
+    }
+
+    /**
+     * Create a writer with its own retry backoff, e.g. for tests that retry many times.
+     *
+     * @param baseBackoffInMillis Longest backoff before the first retry of an item.
+     * @param maxBackoffInMillis Longest backoff before any retry.
+     * @see #DynamoDBBatchWriter(AmazonDynamoDB, String, int, int)
+     */
+    DynamoDBBatchWriter(AmazonDynamoDB dynamoDB, String tableName, int maxBatchesInFlight, int maxPendingItems,
+            long baseBackoffInMillis, long maxBackoffInMillis) {
+        if (dynamoDB == null) {
+            throw new NullPointerException("dynamoDB must not be null");
+        }
+        if (tableName == null || tableName.isEmpty()) {
+            throw new IllegalArgumentException("tableName must not be null or empty");
+        }
+        if (maxBatchesInFlight < 1) {
+            throw new IllegalArgumentException("maxBatchesInFlight must be >= 1");
+        }
+        if (maxPendingItems < 1) {
+            throw new IllegalArgumentException("maxPendingItems must be >= 1");
+        }
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+        this.maxBatchesInFlight = maxBatchesInFlight;
+        this.maxPendingItems = maxPendingItems;
+        this.baseBackoffInMillis = baseBackoffInMillis;
+        this.maxBackoffInMillis = maxBackoffInMillis;
+
+        queue = new LinkedBlockingQueue<>();
+        batchesInFlight = new Semaphore(maxBatchesInFlight);
+    }
+
+    /**
+     * Start the threads that send batches to DynamoDB. The threads are only started once, so a writer shared by
+     * several callers that each start it still has at most {@code maxBatchesInFlight} batches in flight.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        senders = new ScheduledThreadPoolExecutor(maxBatchesInFlight, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dynamodb-batch-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // This thread is responsible for draining the queue of items into batches and handing them to the senders
+        dispatcher = new Thread("dynamodb-batch-dispatcher") {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        dispatchBatch();
+                    } catch (InterruptedException e) {
+                        if (shutdown) {
+                            return;
+                        }
+                        LOG.error("Thread that dispatches batches to DynamoDB was interrupted. Items will no longer be written!",
+                                e);
+                        return;
+                    }
+                }
+            }
+        };
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stop sending batches. Items that have not been written yet are dropped, which completes their tickets.
+     *
+     * @throws InterruptedException Interrupted while waiting for the dispatcher thread to stop.
+     */
+    public void shutdown() throws InterruptedException {
+        if (!started.get() || shutdown) {
+            return;
+        }
+        shutdown = true;
+        dispatcher.interrupt();
+        dispatcher.join();
+
+        // Let batches already sent finish. Anything still queued or waiting to be requeued is dropped.
+        senders.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        senders.shutdown();
+        while (!senders.awaitTermination(1, TimeUnit.SECONDS)) {
+            LOG.info("Waiting for batches in flight to DynamoDB to finish.");
+        }
+        List<PendingWrite> dropped = new ArrayList<>();
+        for (Requeue requeue : retrying) {
+            dropped.add(requeue.write);
+        }
+        retrying.clear();
+        queue.drainTo(dropped);
+        if (!dropped.isEmpty()) {
+            LOG.warn(String.format("Dropping %d items not yet written to DynamoDB at shutdown.", dropped.size()));
+            itemsCompleted(dropped);
+        }
+    }
+
+    /**
+     * @return {@code true} if this writer has been started and is still dispatching batches.
+     */
+    public boolean isRunning() {
+        return dispatcher != null && dispatcher.isAlive();
+    }
+
+    /**
+     * Queue items to be written. This blocks while the writer holds its maximum number of pending items, which pushes
+     * back on the caller when DynamoDB cannot keep up.
+     *
+     * @param items Items to put into the table.
+     * @param timeout Maximum time to wait for room for all of the items.
+     * @param unit Unit of the timeout.
+     * @param ticket Ticket to track the items accepted with. It completes once each of them is written or dropped.
+     * @return The number of items accepted. Items beyond this were not queued because the timeout elapsed.
+     * @throws InterruptedException Interrupted while waiting for room.
+     */
+    public synchronized int write(List<Map<String, AttributeValue>> items,
+            long timeout,
+            TimeUnit unit,
+            WriteTicket ticket) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int accepted = 0;
+        for (Map<String, AttributeValue> item : items) {
+            while (pendingItems >= maxPendingItems) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return accepted;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            pendingItems++;
+            ticket.itemAccepted();
+            PendingWrite write = new PendingWrite(new WriteRequest().withPutRequest(new PutRequest().withItem(item)),
+                    nextSequenceNumber++,
+                    0,
+                    ticket);
+            NewestWrite newest = newestWrites.get(write.key);
+            if (newest == null) {
+                newest = new NewestWrite();
+                newestWrites.put(write.key, newest);
+            }
+            newest.sequenceNumber = write.sequenceNumber;
+            newest.pendingItems++;
+            queue.add(write);
+            accepted++;
+        }
+        return accepted;
+    }
+
+    /**
+     * Block until every item accepted so far has been written or dropped.
+     *
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (pendingItems > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * @return The table items are written to.
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return The number of items accepted that have not been written or dropped yet.
+     */
+    public synchronized int getPendingItems() {
+        return pendingItems;
+    }
+
+    /**
+     * Wait for an in-flight slot and the next items in the queue, then hand them to a sender as one batch. Items
+     * superseded by a newer item with the same key are completed without being sent.
+     *
+     * @throws InterruptedException Interrupted while waiting for a slot or items.
+     */
+    private void dispatchBatch() throws InterruptedException {
+        batchesInFlight.acquire();
+        Map<List<AttributeValue>, PendingWrite> batch = new LinkedHashMap<>();
+        List<PendingWrite> superseded = new ArrayList<>();
+        PendingWrite write;
+        try {
+            write = queue.take();
+        } catch (InterruptedException e) {
+            batchesInFlight.release();
+            throw e;
+        }
+        while (write != null) {
+            if (isSuperseded(write)) {
+                superseded.add(write);
+            } else {
+                PendingWrite previous = batch.put(write.key, write);
+                if (previous != null) {
+                    superseded.add(previous);
+                }
+            }
+            write = batch.size() < MAX_ITEMS_PER_BATCH ? queue.poll() : null;
+        }
+        if (!superseded.isEmpty()) {
+            itemsCompleted(superseded);
+        }
+        if (batch.isEmpty()) {
+            batchesInFlight.release();
+        } else {
+            senders.execute(new BatchWrite(new ArrayList<>(batch.values())));
+        }
+    }
+
+    /**
+     * @return {@code true} if a newer item with the same key has been accepted since this one.
+     */
+    private synchronized boolean isSuperseded(PendingWrite write) {
+        return newestWrites.get(write.key).sequenceNumber > write.sequenceNumber;
+    }
+
+    /**
+     * Record that items have left this writer, either written or given up on, and wake anyone waiting for room, for
+     * the writer to drain or for the items' tickets.
+     */
+    private void itemsCompleted(List<PendingWrite> writes) {
+        synchronized (this) {
+            pendingItems -= writes.size();
+            for (PendingWrite write : writes) {
+                NewestWrite newest = newestWrites.get(write.key);
+                if (--newest.pendingItems == 0) {
+                    newestWrites.remove(write.key);
+                }
+            }
+            notifyAll();
+        }
+        for (PendingWrite write : writes) {
+            write.ticket.itemCompleted();
+        }
+    }
+
+    /**
+     * An item waiting to be written, the order it was accepted in, the number of times it has been sent already and
+     * the ticket it counts towards.
+     */
+    private static class PendingWrite {
+        private WriteRequest request;
+        // Hash and range key of the item
+        private List<AttributeValue> key;
+        private long sequenceNumber;
+        private int attempts;
+        private WriteTicket ticket;
+
+        PendingWrite(WriteRequest request, long sequenceNumber, int attempts, WriteTicket ticket) {
+            this.request = request;
+            Map<String, AttributeValue> item = request.getPutRequest().getItem();
+            this.key = Arrays.asList(item.get(DynamoDBUtils.ATTRIBUTE_NAME_HASH_KEY),
+                    item.get(DynamoDBUtils.ATTRIBUTE_NAME_RANGE_KEY));
+            this.sequenceNumber = sequenceNumber;
+            this.attempts = attempts;
+            this.ticket = ticket;
+        }
+    }
+
+    /**
+     * The sequence number of the newest item accepted for a key and the number of items pending for it.
+     */
+    private static class NewestWrite {
+        private long sequenceNumber;
+        private int pendingItems;
+    }
+
+    /**
+     * Tracks the items accepted by one or more calls to {@link DynamoDBBatchWriter#write}. Completes once every item
+     * accepted has been written or dropped.
+     */
+    public static class WriteTicket implements FlushTicket {
+        // Items accepted but not yet written or dropped. Guarded by this ticket's monitor.
+        private int pendingItems;
+
+        private synchronized void itemAccepted() {
+            pendingItems++;
+        }
+
+        private synchronized void itemCompleted() {
+            if (--pendingItems == 0) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized boolean isComplete() {
+            return pendingItems == 0;
+        }
+
+        @Override
+        public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (pendingItems > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends one batch and puts any items DynamoDB did not process back on the queue after a backoff.
+     */
+    private class BatchWrite implements Runnable {
+        private List<PendingWrite> batch;
+
+        BatchWrite(List<PendingWrite> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            List<WriteRequest> items = new ArrayList<>(batch.size());
+            for (PendingWrite write : batch) {
+                items.add(write.request);
+            }
+
+            List<WriteRequest> unprocessed;
+            try {
+                unprocessed = send(items);
+            } catch (RuntimeException ex) {
+                LOG.error(String.format("Unexpected error writing %d items to DynamoDB. These will not be retried!",
+                        items.size()), ex);
+                unprocessed = Collections.emptyList();
+            } finally {
+                batchesInFlight.release();
+            }
+
+            if (unprocessed.isEmpty()) {
+                itemsCompleted(batch);
+                return;
+            }
+
+            // Unprocessed items are returned as copies of the requests sent, so match them back up by value. Whatever
+            // is left unmatched was written.
+            Map<WriteRequest, List<PendingWrite>> sent = new HashMap<>();
+            for (PendingWrite write : batch) {
+                List<PendingWrite> writes = sent.get(write.request);
+                if (writes == null) {
+                    writes = new ArrayList<>(1);
+                    sent.put(write.request, writes);
+                }
+                writes.add(write);
+            }
+            List<PendingWrite> completed = new ArrayList<>();
+            int dropped = 0;
+            for (WriteRequest item : unprocessed) {
+                List<PendingWrite> writes = sent.get(item);
+                if (writes == null || writes.isEmpty()) {
+                    LOG.warn("DynamoDB returned an unprocessed item that was not sent. Ignoring it.");
+                    continue;
+                }
+                PendingWrite write = writes.remove(writes.size() - 1);
+                int attempts = write.attempts + 1;
+                if (attempts >= MAX_ATTEMPTS_PER_ITEM) {
+                    dropped++;
+                    completed.add(write);
+                    continue;
+                }
+                long backoff = Math.min(maxBackoffInMillis, baseBackoffInMillis << (attempts - 1));
+                Requeue requeue = new Requeue(new PendingWrite(item, write.sequenceNumber, attempts, write.ticket));
+                retrying.add(requeue);
+                try {
+                    senders.schedule(requeue,
+                            ThreadLocalRandom.current().nextLong(backoff + 1),
+                            TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    // The writer is shutting down
+                    retrying.remove(requeue);
+                    dropped++;
+                    completed.add(write);
+                }
+            }
+            for (List<PendingWrite> written : sent.values()) {
+                completed.addAll(written);
+            }
+            if (dropped > 0) {
+                LOG.warn(String.format("Dropping %d items that could not be written to DynamoDB.", dropped));
+            }
+            itemsCompleted(completed);
+        }
+
+        /**
+         * Send the items once.
+         *
+         * @return Items that should be sent again.
+         */
+        private List<WriteRequest> send(List<WriteRequest> items) {
+            try {
+                long start = System.nanoTime();
+                BatchWriteItemResult result = dynamoDB.batchWriteItem(new BatchWriteItemRequest()
+                        .withRequestItems(Collections.singletonMap(tableName, items)));
+                BATCH_WRITE_LATENCY.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                List<WriteRequest> unprocessed = result.getUnprocessedItems() == null
+                        ? null
+                        : result.getUnprocessedItems().get(tableName);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(String.format("%d items sent to DynamoDB in %dms, %d unprocessed",
+                            items.size(),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                            unprocessed == null ? 0 : unprocessed.size()));
+                }
+                return unprocessed == null ? Collections.<WriteRequest> emptyList() : unprocessed;
+            } catch (ProvisionedThroughputExceededException ex) {
+                return items;
+            } catch (AmazonServiceException ex) {
+                if (ex.getErrorType() == AmazonServiceException.ErrorType.Service) {
+                    return items;
+                }
+                LOG.error(String.format("Error writing %d items to DynamoDB. These will not be retried!",
+                        items.size()), ex);
+                return Collections.emptyList();
+            } catch (AmazonClientException ex) {
+                if (ex.isRetryable()) {
+                    return items;
+                }
+                LOG.error(String.format("Error writing %d items to DynamoDB. These will not be retried!",
+                        items.size()), ex);
+                return Collections.emptyList();
+            }
+        }
+    }
+
+    /**
+     * Puts an item that was not written back on the queue so it is batched with new items.
+     */
+    private class Requeue implements Runnable {
+        private PendingWrite write;
+
+        Requeue(PendingWrite write) {
+            this.write = write;
+        }
+
+        @Override
+        public void run() {
+            retrying.remove(this);
+            queue.add(write);
+        }
+    }
+}
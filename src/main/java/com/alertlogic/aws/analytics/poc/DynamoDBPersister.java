@@ -19,42 +19,48 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TimeZone;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshaller;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.util.DateUtils;
 
 import com.alertlogic.aws.analytics.poc.Persister;
-import com.alertlogic.aws.analytics.poc.Record;
 import com.alertlogic.aws.analytics.poc.RecordCount;
 import com.alertlogic.aws.analytics.poc.FieldCount;
 
 /**
  * Persists counts to DynamoDB.
- * This uses a separate thread to send counts to DynamoDB to decouple any network latency
- * from affecting the thread we use to update counts.
+ * This hands counts to a {@link DynamoDBBatchWriter} that sends them from separate threads to decouple any network
+ * latency from affecting the thread we use to update counts.
+ * <p/>
+ * Counts are grouped by the value of a key field, resource by default, into one item per key holding the top counts
+ * of a value field, referrer by default. The key is stored as the item's resource.
+ *
+ * @param <T> Type of records counted.
  */
-public class DynamoDBPersister implements Persister<Record> {
+public class DynamoDBPersister<T extends FieldRecord> implements Persister<T> {
     private static final Log LOG = LogFactory.getLog(DynamoDBPersister.class);
 
     // Generate UTC timestamps
     private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
 
-    private DynamoDBMapper mapper;
-
     /**
-     * This is used to limit the in memory queue.
+     * This is used to limit the counts held in memory waiting to be written.
      * This number is the total counts we could generate for 10 unique
      * resources in 10 minutes if our update interval is 100ms.
      *
@@ -62,12 +68,57 @@ public class DynamoDBPersister implements Persister<Record> {
      */
     private static final int MAX_COUNTS_IN_MEMORY = 60000;
 
-    // The queue holds all pending counts to be sent to DynamoDB.
-    private BlockingQueue<RecordCount> counts =
-                new LinkedBlockingQueue<>(MAX_COUNTS_IN_MEMORY);
+    private static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 4;
+
+    // Counts of records without a value for the key field. Their resource would be the table's hash key, which
+    // DynamoDB requires, so they are not written.
+    private static final AtomicLong COUNTS_WITHOUT_KEY = Metrics.counter("dynamodb_counts_without_key_total");
+
+    // How long persist() waits for the writer to make room before dropping counts
+    private static final long MAX_PERSIST_WAIT_IN_MILLIS = 10000;
+
+    // Attribute names match those the DynamoDBMapper uses for RecordCount
+    private static final String ATTRIBUTE_RESOURCE = "resource";
+    private static final String ATTRIBUTE_TIMESTAMP = "timestamp";
+    private static final String ATTRIBUTE_HOST = "host";
+    private static final String ATTRIBUTE_FIELD_COUNTS = "fieldCounts";
+    private static final String ATTRIBUTE_OTHER_COUNT = "otherCount";
+    private static final String ATTRIBUTE_DISTINCT_FIELD_COUNT = "distinctFieldCount";
+
+    // Keep every field count of a resource unless told otherwise
+    private static final int UNBOUNDED_TOP_K = Integer.MAX_VALUE;
+
+    private static final String DEFAULT_KEY_FIELD = "resource";
+    private static final String DEFAULT_VALUE_FIELD = "referrer";
+
+    private static final Comparator<FieldCount> ASCENDING_COUNT = new Comparator<FieldCount>() {
+        @Override
+        public int compare(FieldCount c1, FieldCount c2) {
+            if (c1.getCount() > c2.getCount()) {
+                return 1;
+            } else if (c1.getCount() == c2.getCount()) {
+                return 0;
+            } else {
+                return -1;
+            }
+        }
+    };
+    private static final Comparator<FieldCount> DESCENDING_COUNT = Collections.reverseOrder(ASCENDING_COUNT);
+
+    @SuppressWarnings("rawtypes")
+    private static final DynamoDBMarshaller FIELD_COUNT_MARSHALLER = new FieldCountMarshaller();
+
+    // Sends counts to DynamoDB
+    private DynamoDBBatchWriter writer;
+    // How long persist() waits for the writer to make room before dropping counts
+    private long maxPersistWaitInMillis;
 
-    // The thread to use for sending counts to DynamoDB.
-    private Thread dynamoDBSender;
+    // Maximum number of field counts to store per resource
+    private int topK;
+
+    // The record fields to group counts by and to count within each group
+    private String keyField;
+    private String valueField;
 
     /**
      * The hostname of this machine. Used to indicate which host updated a set of counts.
@@ -75,15 +126,108 @@ public class DynamoDBPersister implements Persister<Record> {
     private String hostname;
 
     /**
-     * Create a new persister with a DynamoDBMapper to translate counts to items and send to Amazon DynamoDB.
+     * Create a new persister that writes counts as items to an Amazon DynamoDB table.
+     *
+     * @param dynamoDB Amazon DynamoDB client to use.
+     * @param tableName The table to write counts to.
+     */
+    public DynamoDBPersister(AmazonDynamoDB dynamoDB, String tableName) {
+        this(dynamoDB, tableName, DEFAULT_MAX_BATCHES_IN_FLIGHT);
+    }
+
+    /**
+     * Create a new persister that writes counts as items to an Amazon DynamoDB table.
+     *
+     * @param dynamoDB Amazon DynamoDB client to use.
+     * @param tableName The table to write counts to.
+     * @param maxBatchesInFlight Maximum number of batch write requests to have outstanding at once.
+     */
+    public DynamoDBPersister(AmazonDynamoDB dynamoDB, String tableName, int maxBatchesInFlight) {
+        this(dynamoDB, tableName, maxBatchesInFlight, UNBOUNDED_TOP_K);
+    }
+
+    /**
+     * Create a new persister that writes only the highest field counts of each resource to an Amazon DynamoDB table.
+     * Storing a bounded number of field counts keeps items well under DynamoDB's item size limit no matter how many
+     * distinct fields a resource has.
+     *
+     * @param dynamoDB Amazon DynamoDB client to use.
+     * @param tableName The table to write counts to.
+     * @param maxBatchesInFlight Maximum number of batch write requests to have outstanding at once.
+     * @param topK Maximum number of field counts to store per resource. The remaining counts are summed into
+     *        {@link RecordCount#getOtherCount()}.
+     */
+    public DynamoDBPersister(AmazonDynamoDB dynamoDB, String tableName, int maxBatchesInFlight, int topK) {
+        this(dynamoDB, tableName, maxBatchesInFlight, topK, DEFAULT_KEY_FIELD, DEFAULT_VALUE_FIELD);
+    }
+
+    /**
+     * Create a new persister that groups counts by any two fields of the records, such as source and port.
      *
-     * @param mapper Amazon DynamoDB Mapper to use.
+     * @param dynamoDB Amazon DynamoDB client to use.
+     * @param tableName The table to write counts to.
+     * @param maxBatchesInFlight Maximum number of batch write requests to have outstanding at once.
+     * @param topK Maximum number of field counts to store per key.
+     * @param keyField The field to write one item per value of.
+     * @param valueField The field whose counts are stored in each item.
      */
-    public DynamoDBPersister(DynamoDBMapper mapper) {
-        if (mapper == null) {
-            throw new NullPointerException("mapper must not be null");
+    public DynamoDBPersister(AmazonDynamoDB dynamoDB,
+            String tableName,
+            int maxBatchesInFlight,
+            int topK,
+            String keyField,
+            String valueField) {
+        this(new DynamoDBBatchWriter(dynamoDB, tableName, maxBatchesInFlight, MAX_COUNTS_IN_MEMORY),
+                MAX_PERSIST_WAIT_IN_MILLIS,
+                topK,
+                keyField,
+                valueField);
+    }
+
+    /**
+     * Create a persister that writes counts with a writer of its own, e.g. one that retries quickly in tests.
+     *
+     * @param writer The writer to send counts with.
+     * @param maxPersistWaitInMillis How long {@link #persist(Map)} waits for the writer to make room before dropping
+     *        counts.
+     * @param topK Maximum number of field counts to store per key.
+     * @param keyField The field to write one item per value of.
+     * @param valueField The field whose counts are stored in each item.
+     */
+    DynamoDBPersister(DynamoDBBatchWriter writer,
+            long maxPersistWaitInMillis,
+            int topK,
+            String keyField,
+            String valueField) {
+        if (writer == null) {
+            throw new NullPointerException("writer must not be null");
+        }
+        if (keyField == null) {
+            throw new NullPointerException("keyField must not be null");
+        }
+        if (valueField == null) {
+            throw new NullPointerException("valueField must not be null");
+        }
+        if (topK < 1) {
+            throw new IllegalArgumentException("topK must be >= 1");
         }
-        this.mapper = mapper;
+        if (maxPersistWaitInMillis < 0) {
+            throw new IllegalArgumentException("maxPersistWaitInMillis must be >= 0");
+        }
+        this.writer = writer;
+        this.maxPersistWaitInMillis = maxPersistWaitInMillis;
+        this.topK = topK;
+        this.keyField = keyField;
+        this.valueField = valueField;
+
+        // Report how far behind DynamoDB writes are
+        Metrics.registerGauge(Metrics.name("dynamodb_pending_items", "table", writer.getTableName()),
+                new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return getPendingCounts();
+                    }
+                });
     }
 
     @Override
@@ -91,142 +235,283 @@ public class DynamoDBPersister implements Persister<Record> {
         // Resolve our hostname so we can tag the counts this persister produces.
         hostname = resolveHostname();
 
-        // This thread is responsible for draining the queue of new counts and sending them in batches to DynamoDB
-        dynamoDBSender = new Thread() {
-
-            @Override
-            public void run() {
-                // Create a reusable buffer to drain our queue into.
-                List<RecordCount> buffer = new ArrayList<>(MAX_COUNTS_IN_MEMORY);
-
-                // Continuously attempt to drain the queue and send counts to DynamoDB until this thread is interrupted
-                while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                        // Drain anything that's in the queue to the buffer and write the items to DynamoDB
-                        sendQueueToDynamoDB(buffer);
-                        // We wait for an empty queue before checkpointing. Notify that thread when we're empty in
-                        // case it is waiting.
-                        synchronized(counts) {
-                            if (counts.isEmpty()) {
-                                counts.notify();
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        LOG.error("Thread that handles persisting counts to DynamoDB was interrupted. Counts will no longer be persisted!",
-                                e);
-                        return;
-                    } finally {
-                        // Clear the temporary buffer to release references to persisted counts
-                        buffer.clear();
-                    }
-                }
-            }
-        };
-        dynamoDBSender.setDaemon(true);
-        dynamoDBSender.start();
+        writer.start();
     }
 
+    /**
+     * Queue the counts to be written. If DynamoDB is not keeping up this blocks the caller until there is room for
+     * the counts, and drops any that still do not fit after a while.
+     */
     @Override
-    public void persist(Map<Record, Long> objectCounts) {
+    public FlushTicket persist(Map<T, Long> objectCounts) {
+        return persist(objectCounts, Collections.<String, Long> emptyMap(), Calendar.getInstance(UTC).getTime());
+    }
+
+    /**
+     * Queue the counts to be written, storing the distinct count of each resource with its field counts. The counts
+     * are timestamped with the end of their window.
+     *
+     * @see #persist(Map)
+     */
+    @Override
+    public FlushTicket persist(Map<T, Long> objectCounts, Map<String, Long> distinctCounts, Date windowEnd) {
         if (objectCounts.isEmpty()) {
             // short circuit to avoid creating a map when we have no objects to persist
-            return;
+            return FlushTicket.COMPLETE;
+        }
+
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (RecordCount count : createRecordCounts(objectCounts, windowEnd)) {
+            count.setDistinctFieldCount(distinctCounts.get(count.getResource()));
+            items.add(createItem(count));
+        }
+
+        // The ticket tracks only the items accepted, so dropped counts never hold up the caller's checkpoint
+        DynamoDBBatchWriter.WriteTicket ticket = new DynamoDBBatchWriter.WriteTicket();
+        int accepted = 0;
+        try {
+            accepted = writer.write(items, maxPersistWaitInMillis, TimeUnit.MILLISECONDS, ticket);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (accepted < items.size()) {
+            LOG.error(String.format("DynamoDB writes are falling behind. Dropping %d of %d new counts!",
+                    items.size() - accepted,
+                    items.size()));
         }
+        return ticket;
+    }
+
+    /**
+     * @return The number of counts waiting to be written to DynamoDB.
+     */
+    public int getPendingCounts() {
+        return writer.getPendingItems();
+    }
+
+    /**
+     * Group the counts by resource into one {@link RecordCount} per resource holding its top K field counts in
+     * descending order. Once a resource has more than K field counts the top K are kept in a min-heap of size K, and
+     * the counts of every field that did not make the top K are summed into the resource's other count. Counts that
+     * are already {@link RankedCounts} are taken in order without ranking them again.
+     *
+     * @param objectCounts A mapping of records to their counts.
+     * @return The counts for each resource, timestamped with the current time.
+     */
+    protected Collection<RecordCount> createRecordCounts(Map<T, Long> objectCounts) {
+        return createRecordCounts(objectCounts, Calendar.getInstance(UTC).getTime());
+    }
 
-        // Use a local collection to batch writing the new counts into the queue. This will allow the queue drainer
-        // to remain simple as it doesn't have to account for less than full batches.
+    /**
+     * @param objectCounts A mapping of records to their counts.
+     * @param timestamp The timestamp of every count.
+     * @return The counts for each resource.
+     * @see #createRecordCounts(Map)
+     */
+    protected Collection<RecordCount> createRecordCounts(Map<T, Long> objectCounts, Date timestamp) {
+        if (objectCounts instanceof RankedCounts) {
+            return createRankedRecordCounts(objectCounts, timestamp);
+        }
 
         // We map resource to counts so we can easily look up a resource and add counts to it
-        Map<String, RecordCount> countMap = new HashMap<>();
+        Map<String, TopFieldCounts> countMap = new HashMap<>();
+        int withoutKey = 0;
 
-        for (Map.Entry<Record, Long> count : objectCounts.entrySet()) {
+        for (Map.Entry<T, Long> count : objectCounts.entrySet()) {
             // Check for an existing counts for this resource
-            Record record = count.getKey();
-            RecordCount recordCount = countMap.get(record.getField("resource"));
+            T record = count.getKey();
+            String resource = record.getField(keyField);
+            if (resource == null) {
+                withoutKey++;
+                continue;
+            }
+            TopFieldCounts topCounts = countMap.get(resource);
+            if (topCounts == null) {
+                topCounts = new TopFieldCounts(resource);
+                countMap.put(resource, topCounts);
+            }
+
+            // Add count to the top counts for this resource and time
+            topCounts.add(record.getField(valueField), count.getValue());
+        }
+
+        // Top N calculation for this interval
+        // By sorting the top K counts in descending order the consumer of the count data can choose their own
+        // N up to K.
+        List<RecordCount> recordCounts = new ArrayList<>(countMap.size());
+        for (TopFieldCounts topCounts : countMap.values()) {
+            recordCounts.add(topCounts.toRecordCount(timestamp));
+        }
+        countsWithoutKey(withoutKey);
+        return recordCounts;
+    }
+
+    /**
+     * Group counts that are already ranked by resource, keeping the first K field counts of each resource.
+     *
+     * @param objectCounts Ranked counts.
+     * @param timestamp The timestamp of every count.
+     * @return The counts for each resource.
+     */
+    private Collection<RecordCount> createRankedRecordCounts(Map<T, Long> objectCounts, Date timestamp) {
+        Map<String, RecordCount> countMap = new HashMap<>();
+        int withoutKey = 0;
+
+        for (Map.Entry<T, Long> count : objectCounts.entrySet()) {
+            T record = count.getKey();
+            String resource = record.getField(keyField);
+            if (resource == null) {
+                withoutKey++;
+                continue;
+            }
+            RecordCount recordCount = countMap.get(resource);
             if (recordCount == null) {
-                // Create a new record if this resource hasn't been seen yet in this batch
                 recordCount = new RecordCount();
-                recordCount.setResource(record.getField("resource"));
-                recordCount.setTimestamp(Calendar.getInstance(UTC).getTime());
+                recordCount.setResource(resource);
+                recordCount.setTimestamp(timestamp);
                 recordCount.setFieldCounts(new ArrayList<FieldCount>());
                 recordCount.setHost(hostname);
-                countMap.put(record.getField("resource"), recordCount);
+                countMap.put(resource, recordCount);
             }
 
-            // Add count to list of counts for this resource and time
-            FieldCount refCount = new FieldCount();
-            refCount.setField(record.getField("referrer"));
-            refCount.setCount(count.getValue());
-            recordCount.getFieldCounts().add(refCount);
+            if (count.getValue() <= 0) {
+                // A resource with only counts of 0 is still stored, with no field counts
+                continue;
+            } else if (recordCount.getFieldCounts().size() < topK) {
+                FieldCount refCount = new FieldCount();
+                refCount.setField(record.getField(valueField));
+                refCount.setCount(count.getValue());
+                recordCount.getFieldCounts().add(refCount);
+            } else {
+                Long other = recordCount.getOtherCount();
+                recordCount.setOtherCount(other == null ? count.getValue() : other + count.getValue());
+            }
         }
+        countsWithoutKey(withoutKey);
+        return countMap.values();
+    }
 
-        // Top N calculation for this interval
-        // By sorting the counts list in descending order the consumer of the count data can choose their own
-        // N.
-        for (RecordCount count : countMap.values()) {
-            Collections.sort(count.getFieldCounts(), new Comparator<FieldCount>() {
-                @Override
-                public int compare(FieldCount c1, FieldCount c2) {
-                    if (c2.getCount() > c1.getCount()) {
-                        return 1;
-                    } else if (c1.getCount() == c2.getCount()) {
-                        return 0;
-                    } else {
-                        return -1;
-                    }
-                }
-            });
+    /**
+     * Record that counts were skipped because their record has no value for the key field.
+     */
+    private void countsWithoutKey(int skipped) {
+        if (skipped > 0) {
+            COUNTS_WITHOUT_KEY.addAndGet(skipped);
+            LOG.warn(String.format("Skipping %d counts of records without a %s. DynamoDB requires it as the hash key.",
+                    skipped,
+                    keyField));
         }
-        counts.addAll(countMap.values());
     }
 
     /**
-     * We will block until the entire queue of counts has been drained.
+     * Accumulates the top K field counts of a single resource.
      */
-    @Override
-    public void checkpoint() throws InterruptedException {
-        // We need to make sure all counts are flushed to DynamoDB before we return successfully.
-        if (dynamoDBSender.isAlive()) {
-            // If the DynamoDB thread is running wait until our counts queue is empty
-            synchronized(counts) {
-                while (!counts.isEmpty()) {
-                    counts.wait();
+    private class TopFieldCounts {
+        private String resource;
+        // Every field count until there are more than K of them
+        private List<FieldCount> fieldCounts = new ArrayList<>();
+        // From then on the K highest counts, lowest at the head so it can be replaced cheaply
+        private PriorityQueue<FieldCount> heap;
+        private long total;
+
+        TopFieldCounts(String resource) {
+            this.resource = resource;
+        }
+
+        void add(String field, long count) {
+            // A resource with only counts of 0 is still stored, with no field counts
+            if (count <= 0) {
+                return;
+            }
+            total += count;
+            if (heap == null) {
+                if (fieldCounts.size() < topK) {
+                    fieldCounts.add(newFieldCount(field, count));
+                    return;
                 }
-                // All the counts we currently know about have been persisted. It is now safe to return from this blocking call.
+                heap = new PriorityQueue<>(topK, ASCENDING_COUNT);
+                heap.addAll(fieldCounts);
+                fieldCounts = null;
             }
-        } else {
-            throw new IllegalStateException("DynamoDB persister thread is not running. Counts are not persisted and we should not checkpoint!");
+            if (count > heap.peek().getCount()) {
+                // Reuse the evicted field count rather than allocating a new one
+                FieldCount evicted = heap.poll();
+                evicted.setField(field);
+                evicted.setCount(count);
+                heap.add(evicted);
+            }
+        }
+
+        RecordCount toRecordCount(Date timestamp) {
+            List<FieldCount> fieldCounts = heap == null ? this.fieldCounts : new ArrayList<>(heap);
+            Collections.sort(fieldCounts, DESCENDING_COUNT);
+
+            long kept = 0;
+            for (FieldCount fieldCount : fieldCounts) {
+                kept += fieldCount.getCount();
+            }
+
+            RecordCount recordCount = new RecordCount();
+            recordCount.setResource(resource);
+            recordCount.setTimestamp(timestamp);
+            recordCount.setFieldCounts(fieldCounts);
+            recordCount.setHost(hostname);
+            // Leave the other count out entirely unless something was left out of the top K
+            if (total > kept) {
+                recordCount.setOtherCount(total - kept);
+            }
+            return recordCount;
+        }
+
+        private FieldCount newFieldCount(String field, long count) {
+            FieldCount fieldCount = new FieldCount();
+            fieldCount.setField(field);
+            fieldCount.setCount(count);
+            return fieldCount;
         }
     }
 
     /**
-     * Drain the queue of pending counts into the provided buffer and write those counts to DynamoDB. This blocks until
-     * data is available in the queue.
+     * Translate a count into the item the DynamoDBMapper would write for it, so counts written here can be read back
+     * with the mapper.
      *
-     * @param buffer A reusable buffer with sufficient space to drain the entire queue if necessary. This is provided as
-     *        an optimization to avoid allocating a new buffer every interval.
-     * @throws InterruptedException Thread interrupted while waiting for new data to arrive in the queue.
-     */
-    protected void sendQueueToDynamoDB(List<RecordCount> buffer) throws InterruptedException {
-        // Block while waiting for data
-        buffer.add(counts.take());
-        // Drain as much of the queue as we can.
-        // DynamoDBMapper will handle splitting the batch sizes for us.
-        counts.drainTo(buffer);
-        try {
-            long start = System.nanoTime();
-            // Write the contents of the buffer as items to our table
-            List<FailedBatch> failures = mapper.batchWrite(buffer, Collections.emptyList());
-            long end = System.nanoTime();
-            LOG.info(String.format("%d new counts sent to DynamoDB in %dms",
-                    buffer.size(),
-                    TimeUnit.NANOSECONDS.toMillis(end - start)));
-
-            for (FailedBatch failure : failures) {
-                LOG.warn("Error sending count batch to DynamoDB. This will not be retried!", failure.getException());
-            }
-        } catch (Exception ex) {
-            LOG.error("Error sending new counts to DynamoDB. The some counts may not be persisted.", ex);
+     * @param count The count to translate.
+     * @return The item's attributes.
+     */
+    @SuppressWarnings("unchecked")
+    protected Map<String, AttributeValue> createItem(RecordCount count) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(ATTRIBUTE_RESOURCE, new AttributeValue(count.getResource()));
+        item.put(ATTRIBUTE_TIMESTAMP, new AttributeValue(DateUtils.formatISO8601Date(count.getTimestamp())));
+        if (count.getOtherCount() != null) {
+            item.put(ATTRIBUTE_OTHER_COUNT, new AttributeValue().withN(count.getOtherCount().toString()));
+        }
+        if (count.getDistinctFieldCount() != null) {
+            item.put(ATTRIBUTE_DISTINCT_FIELD_COUNT,
+                    new AttributeValue().withN(count.getDistinctFieldCount().toString()));
+        }
+        // The mapper leaves out null attributes
+        if (count.getHost() != null) {
+            item.put(ATTRIBUTE_HOST, new AttributeValue(count.getHost()));
+        }
+        if (count.getFieldCounts() != null) {
+            item.put(ATTRIBUTE_FIELD_COUNTS,
+                    new AttributeValue(FIELD_COUNT_MARSHALLER.marshall(count.getFieldCounts())));
+        }
+        return item;
+    }
+
+    /**
+     * We will block until every count persisted so far has been written to DynamoDB.
+     */
+    @Override
+    public void checkpoint() throws InterruptedException {
+        // We need to make sure all counts are flushed to DynamoDB before we return successfully.
+        if (writer.isRunning()) {
+            writer.flush();
+            // All the counts we currently know about have been persisted. It is now safe to return from this blocking call.
+        } else {
+            throw new IllegalStateException("DynamoDB persister thread is not running. Counts are not persisted and we should not checkpoint!");
         }
     }
 
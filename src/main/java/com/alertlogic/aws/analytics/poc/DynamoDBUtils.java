@@ -42,8 +42,8 @@ import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 public class DynamoDBUtils {
     private static final Log LOG = LogFactory.getLog(DynamoDBUtils.class);
 
-    private static final String ATTRIBUTE_NAME_HASH_KEY = "resource";
-    private static final String ATTRIBUTE_NAME_RANGE_KEY = "timestamp";
+    static final String ATTRIBUTE_NAME_HASH_KEY = "resource";
+    static final String ATTRIBUTE_NAME_RANGE_KEY = "timestamp";
 
     private AmazonDynamoDB dynamoDB;
 
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts objects in fixed intervals of event time, the time each object happened, instead of the time it is counted.
+ * Intervals are aligned to the epoch, so interval {@code i} covers {@code [i * interval, (i + 1) * interval)}. A window
+ * is a run of consecutive intervals and is identified by the end of its last interval.
+ * <p/>
+ * A window is reported once the watermark passes its end. The watermark trails the latest event time seen by the
+ * maximum expected out-of-orderness, so objects that arrive slightly out of order still land in their window before it
+ * is reported. If nothing is counted for the idle timeout the watermark keeps advancing with the clock, so the last
+ * windows are still reported when events stop.
+ * <p/>
+ * Event times further ahead of the wall clock than the maximum future skew are counted as if they happened at the
+ * wall clock plus that skew. A single record from a producer with a bad clock would otherwise push the watermark far
+ * into the future and every record after it would be dropped as late.
+ * <p/>
+ * Objects that arrive after their window was reported but within the allowed lateness of the watermark are still
+ * counted, and every window they belong to is reported again with its updated counts. Objects later than that are
+ * dropped. Intervals are kept only as long as a late object could still update them.
+ * <p/>
+ * A caller can mark its position in its input with a sequence number after counting objects. Once every interval
+ * counted before the mark is part of a reported window, the mark is reported by {@link #getReportedSequenceNumber()}.
+ * <p/>
+ * This class is thread safe. Every method is guarded by this counter's monitor.
+ *
+ * @param <ObjectType> Type of objects counted.
+ */
+public class EventTimeWindowCounter<ObjectType> {
+    // Marks the watermark and interval indexes before anything has been counted
+    private static final long NONE = Long.MIN_VALUE;
+
+    private long intervalInMillis;
+    private int windowSize;
+    private long maxOutOfOrdernessInMillis;
+    private long allowedLatenessInMillis;
+    private long idleTimeout;
+    private long maxFutureSkewInMillis;
+    private Clock clock;
+    private Clock wallClock;
+
+    // The counts of each interval by interval index
+    private NavigableMap<Long, Map<ObjectType, long[]>> intervals = new TreeMap<>();
+    private long maxEventTime = NONE;
+    private long watermark = NONE;
+    // When, in clock time, anything was last counted
+    private long lastCountedAt;
+
+    // The last interval of the first window to report. Windows ending earlier would only be partially counted.
+    private long firstWindowEnd = NONE;
+    // The last interval of the last window reported
+    private long lastReportedWindowEnd = NONE;
+    // Intervals counted into after windows holding them were reported
+    private NavigableSet<Long> lateIntervals = new TreeSet<>();
+    private long droppedCount;
+    private long clampedCount;
+
+    // The latest interval counted into
+    private long maxIntervalCounted = NONE;
+    // Sequence numbers marked but not yet covered by reported windows, oldest first
+    private Queue<SequenceMark> sequenceMarks = new ArrayDeque<>();
+    private String reportedSequenceNumber;
+
+    /**
+     * Create a new counter.
+     *
+     * @param intervalInMillis Length of each interval.
+     * @param windowSize Number of intervals in each window.
+     * @param maxOutOfOrdernessInMillis How far behind the latest event time the watermark trails.
+     * @param allowedLatenessInMillis How far behind the watermark an object may be and still update reported windows.
+     * @param idleTimeoutInMillis How long nothing may be counted before the watermark advances with the clock.
+     * @param maxFutureSkewInMillis How far ahead of the wall clock an event time may be before it is clamped.
+     * @param clock Clock to measure idle time with.
+     * @param wallClock Clock that tells the time since the epoch, to clamp event times with.
+     */
+    public EventTimeWindowCounter(long intervalInMillis,
+            int windowSize,
+            long maxOutOfOrdernessInMillis,
+            long allowedLatenessInMillis,
+            long idleTimeoutInMillis,
+            long maxFutureSkewInMillis,
+            Clock clock,
+            Clock wallClock) {
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        if (wallClock == null) {
+            throw new NullPointerException("wallClock must not be null");
+        }
+        if (intervalInMillis <= 0) {
+            throw new IllegalArgumentException("intervalInMillis must be > 0");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be >= 1");
+        }
+        if (maxOutOfOrdernessInMillis < 0) {
+            throw new IllegalArgumentException("maxOutOfOrdernessInMillis must be >= 0");
+        }
+        if (allowedLatenessInMillis < 0) {
+            throw new IllegalArgumentException("allowedLatenessInMillis must be >= 0");
+        }
+        if (idleTimeoutInMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutInMillis must be > 0");
+        }
+        if (maxFutureSkewInMillis < 0) {
+            throw new IllegalArgumentException("maxFutureSkewInMillis must be >= 0");
+        }
+        this.intervalInMillis = intervalInMillis;
+        this.windowSize = windowSize;
+        this.maxOutOfOrdernessInMillis = maxOutOfOrdernessInMillis;
+        this.allowedLatenessInMillis = allowedLatenessInMillis;
+        this.idleTimeout = clock.getTimeUnit().convert(idleTimeoutInMillis, TimeUnit.MILLISECONDS);
+        this.maxFutureSkewInMillis = maxFutureSkewInMillis;
+        this.clock = clock;
+        this.wallClock = wallClock;
+    }
+
+    /**
+     * Count an object in the interval its event time falls in, or at the wall clock plus the maximum future skew if
+     * its event time is later than that.
+     *
+     * @param obj Object to count.
+     * @param eventTime When the object happened in milliseconds since the epoch.
+     * @return {@code false} if the object was dropped because it is later than the allowed lateness.
+     */
+    public synchronized boolean increment(ObjectType obj, long eventTime) {
+        long latestAllowed = TimeUnit.MILLISECONDS.convert(wallClock.getTime(), wallClock.getTimeUnit())
+                + maxFutureSkewInMillis;
+        if (eventTime > latestAllowed) {
+            eventTime = latestAllowed;
+            clampedCount++;
+        }
+        lastCountedAt = clock.getTime();
+        if (eventTime > maxEventTime) {
+            maxEventTime = eventTime;
+            advanceWatermark(eventTime - maxOutOfOrdernessInMillis);
+        }
+        if (watermark != NONE && eventTime < watermark - allowedLatenessInMillis) {
+            droppedCount++;
+            return false;
+        }
+
+        long interval = intervalOf(eventTime);
+        if (firstWindowEnd == NONE) {
+            firstWindowEnd = interval + windowSize - 1;
+        }
+        Map<ObjectType, long[]> counts = intervals.get(interval);
+        if (counts == null) {
+            counts = new HashMap<>();
+            intervals.put(interval, counts);
+        }
+        long[] count = counts.get(obj);
+        if (count == null) {
+            count = new long[1];
+            counts.put(obj, count);
+        }
+        count[0]++;
+        maxIntervalCounted = Math.max(maxIntervalCounted, interval);
+
+        if (lastReportedWindowEnd != NONE && interval <= lastReportedWindowEnd) {
+            lateIntervals.add(interval);
+        }
+        return true;
+    }
+
+    /**
+     * Collect the windows that are ready to report: windows updated by late objects since they were last reported,
+     * then every window the watermark has passed, oldest first. Windows with nothing counted in them are skipped.
+     *
+     * @return The windows to report.
+     */
+    public synchronized List<Window<ObjectType>> advance() {
+        if (maxEventTime != NONE) {
+            long idle = clock.getTime() - lastCountedAt;
+            if (idle >= idleTimeout) {
+                advanceWatermark(maxEventTime - maxOutOfOrdernessInMillis
+                        + TimeUnit.MILLISECONDS.convert(idle, clock.getTimeUnit()));
+            }
+        }
+
+        List<Window<ObjectType>> windows = new ArrayList<>();
+        for (long end : windowsToReportAgain()) {
+            windows.add(createWindow(end));
+        }
+        lateIntervals.clear();
+
+        if (firstWindowEnd != NONE && watermark != NONE) {
+            // The last interval that ends at or before the watermark
+            long lastComplete = intervalOf(watermark) - 1;
+            long first = lastReportedWindowEnd == NONE ? firstWindowEnd : lastReportedWindowEnd + 1;
+            long end = first;
+            while (end <= lastComplete) {
+                if (intervals.subMap(end - windowSize + 1, true, end, true).isEmpty()) {
+                    // Every window before the one ending with the next counted interval is empty too
+                    Long next = intervals.ceilingKey(end + 1);
+                    if (next == null) {
+                        break;
+                    }
+                    end = next;
+                    continue;
+                }
+                windows.add(createWindow(end));
+                end++;
+            }
+            if (lastComplete >= first) {
+                lastReportedWindowEnd = lastComplete;
+            }
+        }
+
+        while (!sequenceMarks.isEmpty() && isReported(sequenceMarks.peek().interval)) {
+            reportedSequenceNumber = sequenceMarks.poll().sequenceNumber;
+        }
+
+        evictExpiredIntervals();
+        return windows;
+    }
+
+    /**
+     * Mark everything counted so far with a sequence number.
+     *
+     * @param sequenceNumber Position of the caller in its input.
+     */
+    public synchronized void markSequenceNumber(String sequenceNumber) {
+        if (sequenceNumber == null) {
+            throw new NullPointerException("sequenceNumber must not be null");
+        }
+        sequenceMarks.add(new SequenceMark(sequenceNumber, maxIntervalCounted));
+    }
+
+    /**
+     * @return The latest sequence number marked whose counts are all part of windows returned by {@link #advance()},
+     *         or {@code null} if there is none yet.
+     */
+    public synchronized String getReportedSequenceNumber() {
+        return reportedSequenceNumber;
+    }
+
+    /**
+     * @return The number of objects dropped for being later than the allowed lateness.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return The number of objects whose event time was clamped for being too far ahead of the wall clock.
+     */
+    public synchronized long getClampedCount() {
+        return clampedCount;
+    }
+
+    /**
+     * @return The current watermark in milliseconds since the epoch, or {@link Long#MIN_VALUE} if nothing has been
+     *         counted yet.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * @return {@code true} if the interval is part of a reported window, or nothing had been counted.
+     */
+    private boolean isReported(long interval) {
+        return interval == NONE || (lastReportedWindowEnd != NONE && interval <= lastReportedWindowEnd);
+    }
+
+    private void advanceWatermark(long time) {
+        if (time > watermark) {
+            watermark = time;
+        }
+    }
+
+    /**
+     * @return The ends of every reported window that holds an interval counted into late.
+     */
+    private List<Long> windowsToReportAgain() {
+        List<Long> ends = new ArrayList<>();
+        if (lateIntervals.isEmpty()) {
+            return ends;
+        }
+        long end = Math.max(lateIntervals.first(), firstWindowEnd);
+        long last = Math.min(lateIntervals.last() + windowSize - 1, lastReportedWindowEnd);
+        for (; end <= last; end++) {
+            if (!lateIntervals.subSet(end - windowSize + 1, true, end, true).isEmpty()) {
+                ends.add(end);
+            }
+        }
+        return ends;
+    }
+
+    /**
+     * Sum the counts of the intervals in a window.
+     *
+     * @param end The last interval of the window.
+     */
+    private Window<ObjectType> createWindow(long end) {
+        Map<ObjectType, Long> counts = new HashMap<>();
+        for (Map<ObjectType, long[]> interval : intervals.subMap(end - windowSize + 1, true, end, true).values()) {
+            for (Map.Entry<ObjectType, long[]> count : interval.entrySet()) {
+                Long total = counts.get(count.getKey());
+                counts.put(count.getKey(), total == null ? count.getValue()[0] : total + count.getValue()[0]);
+            }
+        }
+        return new Window<>((end + 1) * intervalInMillis, counts);
+    }
+
+    /**
+     * Forget intervals that no longer belong to a window that is still to be reported or could be updated by a late
+     * object.
+     */
+    private void evictExpiredIntervals() {
+        if (lastReportedWindowEnd == NONE) {
+            return;
+        }
+        long oldestLateInterval = intervalOf(watermark - allowedLatenessInMillis);
+        long keepFrom = Math.min(lastReportedWindowEnd + 1, oldestLateInterval) - windowSize + 1;
+        intervals.headMap(keepFrom, false).clear();
+    }
+
+    /**
+     * @return The index of the interval a time falls in. Rounds down for times before the epoch too.
+     */
+    private long intervalOf(long timeInMillis) {
+        long interval = timeInMillis / intervalInMillis;
+        if (timeInMillis % intervalInMillis < 0) {
+            interval--;
+        }
+        return interval;
+    }
+
+    /**
+     * A sequence number and the latest interval counted when it was marked.
+     */
+    private static class SequenceMark {
+        private String sequenceNumber;
+        private long interval;
+
+        SequenceMark(String sequenceNumber, long interval) {
+            this.sequenceNumber = sequenceNumber;
+            this.interval = interval;
+        }
+    }
+
+    /**
+     * The counts of one window.
+     *
+     * @param <ObjectType> Type of objects counted.
+     */
+    public static class Window<ObjectType> {
+        private long endInMillis;
+        private Map<ObjectType, Long> counts;
+
+        Window(long endInMillis, Map<ObjectType, Long> counts) {
+            this.endInMillis = endInMillis;
+            this.counts = counts;
+        }
+
+        /**
+         * @return The end of the window, exclusive, in milliseconds since the epoch. Always a multiple of the interval.
+         */
+        public long getEndInMillis() {
+            return endInMillis;
+        }
+
+        public Map<ObjectType, Long> getCounts() {
+            return counts;
+        }
+    }
+}
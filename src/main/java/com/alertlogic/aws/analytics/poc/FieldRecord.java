@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+/**
+ * A counted record whose fields can be looked up by name, so persisters can group and label counts without knowing
+ * the record's type.
+ */
+public interface FieldRecord {
+
+    /**
+     * @param name Name of the field.
+     * @return The value of the field, or {@code null} if the record has no value for it.
+     */
+    public String getField(String name);
+}
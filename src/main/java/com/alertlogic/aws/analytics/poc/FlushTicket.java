@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the counts handed to a {@link Persister} in a single call. The ticket completes once those counts have been
+ * completely handled, without waiting for counts persisted by anyone else.
+ */
+public interface FlushTicket {
+
+    /**
+     * A ticket for counts that were completely handled before the call returned.
+     */
+    public static final FlushTicket COMPLETE = new FlushTicket() {
+        @Override
+        public boolean isComplete() {
+            return true;
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) {
+            return true;
+        }
+    };
+
+    /**
+     * @return {@code true} if the counts have been completely handled.
+     */
+    public boolean isComplete();
+
+    /**
+     * Wait for the counts to be completely handled.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return {@code true} if the counts were completely handled, {@code false} if the timeout elapsed first.
+     * @throws InterruptedException if any thread interrupted the current thread while waiting.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of dimensions of a {@link RecordSchema} to count records by. Records are projected onto the group-by's
+ * dimensions before they are counted, so records that only differ in other dimensions are counted together.
+ * <p/>
+ * Group-bys are created by their schema and compared by identity. This class is thread safe.
+ */
+public class GroupBy {
+    private RecordSchema schema;
+    // Position in the schema's group-bys, or -1 for the group-by of every dimension
+    private int index;
+    private List<String> dimensionNames;
+    // Index in the schema of each dimension
+    private int[] dimensions;
+
+    GroupBy(RecordSchema schema, int index, List<String> dimensionNames) {
+        if (dimensionNames.isEmpty()) {
+            throw new IllegalArgumentException("A group-by must have at least one dimension");
+        }
+        this.schema = schema;
+        this.index = index;
+        this.dimensionNames = Collections.unmodifiableList(new ArrayList<>(dimensionNames));
+        dimensions = new int[dimensionNames.size()];
+        for (int i = 0; i < dimensions.length; i++) {
+            dimensions[i] = schema.indexOf(dimensionNames.get(i));
+            if (dimensions[i] < 0) {
+                throw new IllegalArgumentException("Unknown dimension: " + dimensionNames.get(i));
+            }
+            for (int j = 0; j < i; j++) {
+                if (dimensions[j] == dimensions[i]) {
+                    throw new IllegalArgumentException("Duplicate dimension: " + dimensionNames.get(i));
+                }
+            }
+        }
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return The position of this group-by in {@link RecordSchema#getGroupBys()}, or -1 for
+     *         {@link RecordSchema#getAllDimensions()}.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Names of the dimensions of this group-by.
+     */
+    public List<String> getDimensions() {
+        return dimensionNames;
+    }
+
+    /**
+     * @param name Name of a dimension.
+     * @return The position of the dimension in this group-by's records, or -1 if it is not one of its dimensions.
+     */
+    public int positionOf(String name) {
+        int index = schema.indexOf(name);
+        for (int i = 0; i < dimensions.length; i++) {
+            if (dimensions[i] == index) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param position Position of a dimension in this group-by's records.
+     * @return The dictionary encoding the dimension's values.
+     */
+    DimensionDictionary getDictionary(int position) {
+        return schema.getDictionary(dimensions[position]);
+    }
+
+    /**
+     * Keep only the dimensions of this group-by.
+     *
+     * @param record A decoded record, holding every dimension of the schema.
+     * @return The record to count for this group-by.
+     */
+    public DimensionRecord project(DimensionRecord record) {
+        if (record.getGroupBy() != schema.getAllDimensions()) {
+            throw new IllegalArgumentException("Only decoded records of this group-by's schema can be projected");
+        }
+        int[] ids = new int[dimensions.length];
+        for (int i = 0; i < dimensions.length; i++) {
+            ids[i] = record.getId(dimensions[i]);
+        }
+        return new DimensionRecord(this, ids);
+    }
+
+    @Override
+    public String toString() {
+        return dimensionNames.toString();
+    }
+}
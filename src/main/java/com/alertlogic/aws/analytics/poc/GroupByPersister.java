@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the counts of {@link DimensionRecord}s by their {@link GroupBy} and hands each group-by's counts to a
+ * persister of its own, so for example (resource, referrer) and (source, port) can be written to separate tables.
+ * Counts of group-bys without a persister are dropped. {@link GroupedCounts} are handed on as they are grouped.
+ */
+public class GroupByPersister implements Persister<DimensionRecord> {
+    private Map<GroupBy, Persister<DimensionRecord>> persisters;
+
+    /**
+     * @param persisters The persister of each group-by.
+     */
+    public GroupByPersister(Map<GroupBy, Persister<DimensionRecord>> persisters) {
+        if (persisters == null) {
+            throw new NullPointerException("persisters must not be null");
+        }
+        this.persisters = new IdentityHashMap<>(persisters);
+    }
+
+    @Override
+    public void initialize() {
+        for (Persister<DimensionRecord> persister : persisters.values()) {
+            persister.initialize();
+        }
+    }
+
+    @Override
+    public FlushTicket persist(Map<DimensionRecord, Long> objectCounts) {
+        return persist(objectCounts, Collections.<String, Long> emptyMap(), new Date());
+    }
+
+    /**
+     * Hand each group-by's counts to its persister. Every persister receives the distinct counts.
+     *
+     * @return A ticket that completes once every persister's ticket does.
+     */
+    @Override
+    public FlushTicket persist(Map<DimensionRecord, Long> objectCounts, Map<String, Long> distinctCounts,
+            Date windowEnd) {
+        Map<GroupBy, Map<DimensionRecord, Long>> groups = new IdentityHashMap<>();
+        if (objectCounts instanceof GroupedCounts) {
+            GroupedCounts grouped = (GroupedCounts) objectCounts;
+            for (GroupBy groupBy : grouped.getGroupBys()) {
+                Map<DimensionRecord, Long> group = grouped.getGroup(groupBy);
+                if (persisters.containsKey(groupBy) && !group.isEmpty()) {
+                    groups.put(groupBy, group);
+                }
+            }
+            return persistGroups(groups, distinctCounts, windowEnd);
+        }
+        for (Map.Entry<DimensionRecord, Long> count : objectCounts.entrySet()) {
+            GroupBy groupBy = count.getKey().getGroupBy();
+            if (!persisters.containsKey(groupBy)) {
+                continue;
+            }
+            Map<DimensionRecord, Long> group = groups.get(groupBy);
+            if (group == null) {
+                // Keep ranked counts in order
+                group = objectCounts instanceof RankedCounts
+                        ? new RankedCounts<DimensionRecord>()
+                        : new HashMap<DimensionRecord, Long>();
+                groups.put(groupBy, group);
+            }
+            group.put(count.getKey(), count.getValue());
+        }
+        return persistGroups(groups, distinctCounts, windowEnd);
+    }
+
+    /**
+     * @return A ticket that completes once the ticket of every group-by's persister does.
+     */
+    private FlushTicket persistGroups(Map<GroupBy, Map<DimensionRecord, Long>> groups,
+            Map<String, Long> distinctCounts,
+            Date windowEnd) {
+        List<FlushTicket> tickets = new ArrayList<>(groups.size());
+        for (Map.Entry<GroupBy, Map<DimensionRecord, Long>> group : groups.entrySet()) {
+            FlushTicket ticket = persisters.get(group.getKey()).persist(group.getValue(), distinctCounts, windowEnd);
+            if (!ticket.isComplete()) {
+                tickets.add(ticket);
+            }
+        }
+        return tickets.isEmpty() ? FlushTicket.COMPLETE : new AllTickets(tickets);
+    }
+
+    @Override
+    public void checkpoint() throws InterruptedException {
+        for (Persister<DimensionRecord> persister : persisters.values()) {
+            persister.checkpoint();
+        }
+    }
+
+    /**
+     * Completes once each of a number of tickets has.
+     */
+    private static class AllTickets implements FlushTicket {
+        private List<FlushTicket> tickets;
+
+        AllTickets(List<FlushTicket> tickets) {
+            this.tickets = tickets;
+        }
+
+        @Override
+        public boolean isComplete() {
+            for (FlushTicket ticket : tickets) {
+                if (!ticket.isComplete()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (FlushTicket ticket : tickets) {
+                if (!ticket.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
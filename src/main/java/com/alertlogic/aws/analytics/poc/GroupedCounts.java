@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Counts of {@link DimensionRecord}s kept apart by {@link GroupBy}, one map per group-by of a schema. Iterating the
+ * counts visits the records of one group-by after another. {@link Persister}s that receive grouped counts can take
+ * each group-by's counts with {@link #getGroup(GroupBy)} instead of grouping them again.
+ */
+public class GroupedCounts extends AbstractMap<DimensionRecord, Long> {
+    private List<GroupBy> groupBys;
+    // Counts of each group-by, by index
+    private List<Map<DimensionRecord, Long>> groups;
+
+    /**
+     * Create empty counts.
+     *
+     * @param schema The schema of the records counted.
+     */
+    public GroupedCounts(RecordSchema schema) {
+        this(schema, null);
+    }
+
+    /**
+     * Create counts from the counts of each group-by.
+     *
+     * @param schema The schema of the records counted.
+     * @param groups The counts of each group-by, in the order of {@link RecordSchema#getGroupBys()}, or {@code null}
+     *        to start empty. The maps are not copied.
+     */
+    public GroupedCounts(RecordSchema schema, List<Map<DimensionRecord, Long>> groups) {
+        groupBys = schema.getGroupBys();
+        if (groups != null && groups.size() != groupBys.size()) {
+            throw new IllegalArgumentException("Expected counts of " + groupBys.size() + " group-bys but got "
+                    + groups.size());
+        }
+        this.groups = new ArrayList<>(groupBys.size());
+        for (int i = 0; i < groupBys.size(); i++) {
+            this.groups.add(groups == null ? new HashMap<DimensionRecord, Long>() : groups.get(i));
+        }
+    }
+
+    public List<GroupBy> getGroupBys() {
+        return groupBys;
+    }
+
+    /**
+     * @param groupBy A group-by of the schema.
+     * @return The counts of the group-by's records.
+     */
+    public Map<DimensionRecord, Long> getGroup(GroupBy groupBy) {
+        return Collections.unmodifiableMap(groups.get(indexOf(groupBy)));
+    }
+
+    @Override
+    public Long get(Object key) {
+        if (!(key instanceof DimensionRecord)) {
+            return null;
+        }
+        GroupBy groupBy = ((DimensionRecord) key).getGroupBy();
+        int index = groupBy.getIndex();
+        if (index < 0 || index >= groups.size() || groupBys.get(index) != groupBy) {
+            return null;
+        }
+        return groups.get(index).get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Long put(DimensionRecord key, Long value) {
+        return groups.get(indexOf(key.getGroupBy())).put(key, value);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Map<DimensionRecord, Long> group : groups) {
+            size += group.size();
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<DimensionRecord, Long>> entrySet() {
+        return new AbstractSet<Map.Entry<DimensionRecord, Long>>() {
+            @Override
+            public Iterator<Map.Entry<DimensionRecord, Long>> iterator() {
+                return new Iterator<Map.Entry<DimensionRecord, Long>>() {
+                    private int group = 0;
+                    private Iterator<Map.Entry<DimensionRecord, Long>> entries = groups.get(0).entrySet().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!entries.hasNext() && group < groups.size() - 1) {
+                            entries = groups.get(++group).entrySet().iterator();
+                        }
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<DimensionRecord, Long> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return entries.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        entries.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return GroupedCounts.this.size();
+            }
+        };
+    }
+
+    private int indexOf(GroupBy groupBy) {
+        int index = groupBy.getIndex();
+        if (index < 0 || index >= groups.size() || groupBys.get(index) != groupBy) {
+            throw new IllegalArgumentException("Not a group-by of these counts: " + groupBy);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the records of each {@link GroupBy} of a schema in a window counter of its own, so every grouping set is
+ * kept up to date as records are counted and the counts come out already grouped as {@link GroupedCounts}.
+ * <p/>
+ * Every group-by's counter advances together. This class is as thread safe as the counters it holds, but reading the
+ * counts is not atomic across group-bys: a record counted while they are read may be included in the counts of some
+ * group-bys and not others until the next read.
+ */
+public class GroupedWindowCounter implements WindowCounter<DimensionRecord> {
+    private RecordSchema schema;
+    // The counter of each group-by, by index
+    private List<WindowCounter<DimensionRecord>> counters;
+
+    /**
+     * @param schema The schema of the records counted.
+     * @param counters A counter for each group-by, in the order of {@link RecordSchema#getGroupBys()}. They must all
+     *        hold the same number of buckets and be empty.
+     */
+    public GroupedWindowCounter(RecordSchema schema, List<WindowCounter<DimensionRecord>> counters) {
+        if (schema == null) {
+            throw new NullPointerException("schema must not be null");
+        }
+        if (counters == null) {
+            throw new NullPointerException("counters must not be null");
+        }
+        if (counters.size() != schema.getGroupBys().size()) {
+            throw new IllegalArgumentException("Expected " + schema.getGroupBys().size() + " counters but got "
+                    + counters.size());
+        }
+        this.schema = schema;
+        this.counters = new ArrayList<>(counters);
+    }
+
+    /**
+     * Count a record in the counter of its group-by.
+     *
+     * @throws IllegalArgumentException if the record is not of one of the schema's group-bys.
+     */
+    @Override
+    public void increment(DimensionRecord obj) {
+        GroupBy groupBy = obj.getGroupBy();
+        int index = groupBy.getIndex();
+        if (index < 0 || index >= counters.size() || schema.getGroupBys().get(index) != groupBy) {
+            throw new IllegalArgumentException("Not a group-by of this counter: " + groupBy);
+        }
+        counters.get(index).increment(obj);
+    }
+
+    /**
+     * @return The counts of every group-by, as {@link GroupedCounts}.
+     */
+    @Override
+    public Map<DimensionRecord, Long> getCounts() {
+        List<Map<DimensionRecord, Long>> groups = new ArrayList<>(counters.size());
+        for (WindowCounter<DimensionRecord> counter : counters) {
+            groups.add(counter.getCounts());
+        }
+        return new GroupedCounts(schema, groups);
+    }
+
+    /**
+     * @return The changed counts of every group-by, as {@link GroupedCounts}.
+     */
+    @Override
+    public Map<DimensionRecord, Long> getChangedCounts() {
+        List<Map<DimensionRecord, Long>> groups = new ArrayList<>(counters.size());
+        for (WindowCounter<DimensionRecord> counter : counters) {
+            groups.add(counter.getChangedCounts());
+        }
+        return new GroupedCounts(schema, groups);
+    }
+
+    @Override
+    public void advanceWindow() {
+        for (WindowCounter<DimensionRecord> counter : counters) {
+            counter.advanceWindow();
+        }
+    }
+
+    @Override
+    public Map<DimensionRecord, Long> getExpiringBucketCounts() {
+        List<Map<DimensionRecord, Long>> groups = new ArrayList<>(counters.size());
+        for (WindowCounter<DimensionRecord> counter : counters) {
+            groups.add(counter.getExpiringBucketCounts());
+        }
+        return new GroupedCounts(schema, groups);
+    }
+
+    @Override
+    public boolean isWindowFull() {
+        // Every counter advances together, so they fill together
+        return counters.get(0).isWindowFull();
+    }
+
+    @Override
+    public void pruneEmptyObjects() {
+        for (WindowCounter<DimensionRecord> counter : counters) {
+            counter.pruneEmptyObjects();
+        }
+    }
+
+    @Override
+    public List<Map<DimensionRecord, Long>> getBucketCounts() {
+        List<List<Map<DimensionRecord, Long>>> groupBuckets = new ArrayList<>(counters.size());
+        for (WindowCounter<DimensionRecord> counter : counters) {
+            groupBuckets.add(counter.getBucketCounts());
+        }
+        int buckets = groupBuckets.get(0).size();
+        List<Map<DimensionRecord, Long>> bucketCounts = new ArrayList<>(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            List<Map<DimensionRecord, Long>> groups = new ArrayList<>(counters.size());
+            for (List<Map<DimensionRecord, Long>> counts : groupBuckets) {
+                groups.add(counts.get(bucket));
+            }
+            bucketCounts.add(new GroupedCounts(schema, groups));
+        }
+        return bucketCounts;
+    }
+
+    @Override
+    public void restore(List<Map<DimensionRecord, Long>> bucketCounts, boolean windowFull) {
+        List<List<Map<DimensionRecord, Long>>> groupBuckets = new ArrayList<>(counters.size());
+        for (int i = 0; i < counters.size(); i++) {
+            List<Map<DimensionRecord, Long>> buckets = new ArrayList<>(bucketCounts.size());
+            for (int bucket = 0; bucket < bucketCounts.size(); bucket++) {
+                buckets.add(new HashMap<DimensionRecord, Long>());
+            }
+            groupBuckets.add(buckets);
+        }
+        for (int bucket = 0; bucket < bucketCounts.size(); bucket++) {
+            for (Map.Entry<DimensionRecord, Long> count : bucketCounts.get(bucket).entrySet()) {
+                int index = count.getKey().getGroupBy().getIndex();
+                if (index < 0 || index >= counters.size()
+                        || schema.getGroupBys().get(index) != count.getKey().getGroupBy()) {
+                    throw new IllegalArgumentException("Not a group-by of this counter: "
+                            + count.getKey().getGroupBy());
+                }
+                groupBuckets.get(index).get(bucket).put(count.getKey(), count.getValue());
+            }
+        }
+        for (int i = 0; i < counters.size(); i++) {
+            counters.get(i).restore(groupBuckets.get(i), windowFull);
+        }
+    }
+}
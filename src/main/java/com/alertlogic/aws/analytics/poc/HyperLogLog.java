@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct values added to it in a fixed number of bytes. Values are hashed to one of
+ * {@code 2^precision} registers, and each register remembers the longest run of leading zeros seen in the rest of
+ * the hashes sent to it. The standard error of an estimate is about {@code 1.04 / sqrt(2^precision)}, e.g. 3.25% with
+ * a precision of 10 in 1 KB.
+ * <p/>
+ * Two estimators of the same precision can be merged by taking the maximum of each register, which gives the same
+ * estimate as adding every value to a single estimator.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class HyperLogLog {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+
+    private int precision;
+    private byte[] registers;
+    // Number of registers that are not 0, so empty estimators are cheap to detect
+    private int usedRegisters;
+
+    /**
+     * Create an empty estimator.
+     *
+     * @param precision Number of bits of each hash used to pick a register. Uses {@code 2^precision} bytes.
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be >= " + MIN_PRECISION + " and <= " + MAX_PRECISION);
+        }
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Add a value. Adding the same value again does not change the estimate.
+     *
+     * @param value Value to add. {@code null} is counted as a value of its own.
+     */
+    public void add(String value) {
+        addHash(hash(value));
+    }
+
+    /**
+     * Add a value by its 64 bit hash. The hash must be evenly distributed across all 64 bits.
+     *
+     * @param hash Hash of the value to add.
+     */
+    public void addHash(long hash) {
+        mergeRegister(registerOf(hash, precision), rankOf(hash, precision));
+    }
+
+    /**
+     * Raise a register to a rank if it is lower, e.g. to merge registers kept elsewhere.
+     *
+     * @param register Index of the register.
+     * @param rank Rank to raise it to.
+     */
+    void mergeRegister(int register, int rank) {
+        if (rank > registers[register]) {
+            if (registers[register] == 0) {
+                usedRegisters++;
+            }
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * @return The register a hash goes to in an estimator of a precision.
+     */
+    static int registerOf(long hash, int precision) {
+        return (int) (hash >>> (Long.SIZE - precision));
+    }
+
+    /**
+     * @return The rank of a hash in an estimator of a precision: one more than its run of leading zeros after the bits
+     *         that pick the register. Always between 1 and {@code 65 - precision}.
+     */
+    static int rankOf(long hash, int precision) {
+        // Shift in a 1 bit so the run of leading zeros never runs past the end of the hash
+        long rest = (hash << precision) | (1L << (precision - 1));
+        return Long.numberOfLeadingZeros(rest) + 1;
+    }
+
+    /**
+     * Merge another estimator into this one.
+     *
+     * @param other An estimator of the same precision.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge estimators of different precision");
+        }
+        if (other.usedRegisters == 0) {
+            return;
+        }
+        byte[] theirs = other.registers;
+        for (int i = 0; i < registers.length; i++) {
+            if (theirs[i] > registers[i]) {
+                if (registers[i] == 0) {
+                    usedRegisters++;
+                }
+                registers[i] = theirs[i];
+            }
+        }
+    }
+
+    /**
+     * @return The estimated number of distinct values added.
+     */
+    public long cardinality() {
+        if (usedRegisters == 0) {
+            return 0;
+        }
+        int m = registers.length;
+        double sum = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+        }
+        double estimate = alpha(m) * m * m / sum;
+
+        int emptyRegisters = m - usedRegisters;
+        if (estimate <= 2.5 * m && emptyRegisters > 0) {
+            // Linear counting is more accurate while many registers are still empty
+            estimate = m * Math.log((double) m / emptyRegisters);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return {@code true} if no values have been added since this estimator was created or cleared.
+     */
+    public boolean isEmpty() {
+        return usedRegisters == 0;
+    }
+
+    /**
+     * Forget every value added.
+     */
+    public void clear() {
+        if (usedRegisters > 0) {
+            Arrays.fill(registers, (byte) 0);
+            usedRegisters = 0;
+        }
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * Hash a string to 64 bits. {@link String#hashCode()} is only 32 bits and poorly distributed, so the characters
+     * are hashed with FNV-1a and the result is mixed to spread every input bit across the hash.
+     */
+    static long hash(String value) {
+        if (value == null) {
+            return mix(0L);
+        }
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Decodes records from UTF-8 JSON with a Jackson {@link ObjectMapper}. Unknown properties are ignored.
+ *
+ * @param <T> The type of records this decoder produces.
+ */
+public class JsonRecordDecoder<T> implements RecordDecoder<T> {
+
+    // Our JSON object mapper for deserializing records
+    private final ObjectMapper JSON;
+
+    // The type of record we expect to receive as JSON
+    private Class<T> recordType;
+
+    /**
+     * @param recordType The type of record we expect to receive as a UTF-8 JSON string.
+     */
+    public JsonRecordDecoder(Class<T> recordType) {
+        if (recordType == null) {
+            throw new NullPointerException("recordType must not be null");
+        }
+        this.recordType = recordType;
+
+        // Create an object mapper to deserialize records that ignores unknown properties
+        JSON = new ObjectMapper();
+        JSON.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Override
+    public T decode(ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            return JSON.readValue(data.array(), data.arrayOffset() + data.position(), data.remaining(), recordType);
+        }
+        // Direct or read-only buffers do not expose their contents as an array
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return JSON.readValue(bytes, recordType);
+    }
+}
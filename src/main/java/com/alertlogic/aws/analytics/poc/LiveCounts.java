@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The latest window counts of every shard processed in this process, kept in memory so queries such as "top N
+ * referrers of a resource" can be answered without waiting for the counts to reach DynamoDB.
+ * <p/>
+ * Each record processor publishes an immutable {@link Snapshot} of its window every interval, replacing the previous
+ * one. Queries read the snapshots without locking and never block the processors. {@link Listener}s are told of
+ * every snapshot as it is published, e.g. to push it to clients.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class LiveCounts {
+    private static final Log LOG = LogFactory.getLog(LiveCounts.class);
+
+    private static final String RESOURCE = "resource";
+    private static final String REFERRER = "referrer";
+
+    private static final Comparator<FieldCount> DESCENDING_COUNT = new Comparator<FieldCount>() {
+        @Override
+        public int compare(FieldCount c1, FieldCount c2) {
+            return Long.compare(c2.getCount(), c1.getCount());
+        }
+    };
+
+    private static final ConcurrentMap<String, Snapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    private LiveCounts() {
+    }
+
+    /**
+     * Told of every snapshot published. Listeners are called from the record processors' tick threads, so they must
+     * hand the snapshot off and return without blocking.
+     */
+    public interface Listener {
+        /**
+         * @param shardId The shard the snapshot was taken from.
+         * @param snapshot The snapshot.
+         */
+        public void published(String shardId, Snapshot snapshot);
+    }
+
+    /**
+     * The top referrer counts of each resource in a shard's window.
+     */
+    public static class Snapshot {
+        private Date windowEnd;
+        // Referrer counts of each resource, highest first. Never modified once published.
+        private Map<String, List<FieldCount>> topCounts;
+
+        Snapshot(Date windowEnd, Map<String, List<FieldCount>> topCounts) {
+            this.windowEnd = windowEnd;
+            this.topCounts = topCounts;
+        }
+
+        public Date getWindowEnd() {
+            return windowEnd;
+        }
+
+        /**
+         * @return Every resource counted in the window.
+         */
+        public Set<String> getResources() {
+            return Collections.unmodifiableSet(topCounts.keySet());
+        }
+
+        /**
+         * @param resource A resource.
+         * @return The resource's referrer counts, highest first, or an empty list if it was not counted.
+         */
+        public List<FieldCount> getTopCounts(String resource) {
+            List<FieldCount> counts = topCounts.get(resource);
+            return counts == null ? Collections.<FieldCount> emptyList() : counts;
+        }
+    }
+
+    /**
+     * Build a snapshot of a window's counts, keeping the top K referrers of each resource.
+     *
+     * @param counts Counts of the window.
+     * @param topK Maximum number of referrers to keep per resource.
+     * @param windowEnd When the window ends.
+     * @return The snapshot.
+     */
+    public static Snapshot snapshot(Map<? extends FieldRecord, Long> counts, int topK, Date windowEnd) {
+        Map<String, List<FieldCount>> topCounts = new HashMap<>();
+        for (Map.Entry<? extends FieldRecord, Long> count : counts.entrySet()) {
+            String resource = count.getKey().getField(RESOURCE);
+            String referrer = count.getKey().getField(REFERRER);
+            // Skip records of group-bys that are not (resource, referrer) pairs, and empty counts waiting to be pruned
+            if (resource == null || referrer == null || count.getValue() <= 0) {
+                continue;
+            }
+            List<FieldCount> fieldCounts = topCounts.get(resource);
+            if (fieldCounts == null) {
+                fieldCounts = new ArrayList<>();
+                topCounts.put(resource, fieldCounts);
+            }
+            FieldCount fieldCount = new FieldCount();
+            fieldCount.setField(referrer);
+            fieldCount.setCount(count.getValue());
+            fieldCounts.add(fieldCount);
+        }
+        for (Map.Entry<String, List<FieldCount>> resource : topCounts.entrySet()) {
+            List<FieldCount> fieldCounts = resource.getValue();
+            Collections.sort(fieldCounts, DESCENDING_COUNT);
+            if (fieldCounts.size() > topK) {
+                resource.setValue(new ArrayList<>(fieldCounts.subList(0, topK)));
+            }
+            resource.setValue(Collections.unmodifiableList(resource.getValue()));
+        }
+        return new Snapshot(windowEnd, topCounts);
+    }
+
+    /**
+     * Replace the snapshot of a shard.
+     *
+     * @param shardId The shard.
+     * @param snapshot Its latest snapshot.
+     */
+    public static void publish(String shardId, Snapshot snapshot) {
+        SNAPSHOTS.put(shardId, snapshot);
+        for (Listener listener : LISTENERS) {
+            try {
+                listener.published(shardId, snapshot);
+            } catch (RuntimeException e) {
+                LOG.warn("Listener failed to take a snapshot of shard " + shardId, e);
+            }
+        }
+    }
+
+    /**
+     * Tell a listener of every snapshot published from now on.
+     *
+     * @param listener The listener.
+     */
+    public static void addListener(Listener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener must not be null");
+        }
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * @param listener A listener added with {@link #addListener(Listener)}.
+     */
+    public static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Stop answering queries from a shard, e.g. once it is no longer processed here.
+     *
+     * @param shardId The shard.
+     */
+    public static void remove(String shardId) {
+        SNAPSHOTS.remove(shardId);
+    }
+
+    /**
+     * @return The number of shards with a snapshot.
+     */
+    public static int getShards() {
+        return SNAPSHOTS.size();
+    }
+
+    /**
+     * Get the top referrers of a resource across the shards processed here. A resource is normally counted by a
+     * single shard, but its counts are summed in case it moved between shards.
+     *
+     * @param resource The resource.
+     * @param n Maximum number of referrers to return.
+     * @return The referrer counts, highest first.
+     */
+    public static List<FieldCount> top(String resource, int n) {
+        List<List<FieldCount>> shardCounts = new ArrayList<>();
+        for (Snapshot snapshot : SNAPSHOTS.values()) {
+            List<FieldCount> counts = snapshot.getTopCounts(resource);
+            if (!counts.isEmpty()) {
+                shardCounts.add(counts);
+            }
+        }
+        return merge(shardCounts, n);
+    }
+
+    /**
+     * Sum lists of field counts by field and keep the top N.
+     *
+     * @param lists The lists to merge.
+     * @param n Maximum number of field counts to return.
+     * @return New field counts, highest first.
+     */
+    public static List<FieldCount> merge(List<List<FieldCount>> lists, int n) {
+        Map<String, FieldCount> merged = new HashMap<>();
+        for (List<FieldCount> list : lists) {
+            for (FieldCount count : list) {
+                FieldCount total = merged.get(count.getField());
+                if (total == null) {
+                    total = new FieldCount();
+                    total.setField(count.getField());
+                    merged.put(count.getField(), total);
+                }
+                total.setCount(total.getCount() + count.getCount());
+            }
+        }
+        List<FieldCount> top = new ArrayList<>(merged.values());
+        Collections.sort(top, DESCENDING_COUNT);
+        return top.size() > n ? new ArrayList<>(top.subList(0, n)) : top;
+    }
+}
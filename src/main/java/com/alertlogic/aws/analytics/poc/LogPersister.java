@@ -18,6 +18,8 @@ package com.alertlogic.aws.analytics.poc;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.Collections;
+import java.util.Date;
 import java.util.Map;
 
 /**
@@ -33,15 +35,28 @@ public class LogPersister<T> implements Persister<T> {
     }
 
     @Override
-    public void persist(Map<T, Long> objectCounts) {
+    public FlushTicket persist(Map<T, Long> objectCounts) {
+        return persist(objectCounts, Collections.<String, Long> emptyMap(), new Date());
+    }
+
+    @Override
+    public FlushTicket persist(Map<T, Long> objectCounts, Map<String, Long> distinctCounts, Date windowEnd) {
         if (!objectCounts.isEmpty()) {
-            LOG.info("Current totals:");
+            LOG.info("Totals for the window ending " + windowEnd + ":");
             LOG.info("----------------------------------------");
             for (Map.Entry<T, Long> entry : objectCounts.entrySet()) {
                 LOG.info(String.format("%s\t%s", entry.getKey(), entry.getValue()));
             }
+            if (!distinctCounts.isEmpty()) {
+                LOG.info("Distinct fields:");
+                for (Map.Entry<String, Long> entry : distinctCounts.entrySet()) {
+                    LOG.info(String.format("%s\t%s", entry.getKey(), entry.getValue()));
+                }
+            }
             LOG.info("----------------------------------------");
         }
+        // Logging is done as soon as we return
+        return FlushTicket.COMPLETE;
     }
 
     @Override
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events and their rate over the last minute, e.g. records processed per second. Events are counted in one
+ * slot per second, so the rate covers the last 60 complete seconds.
+ * <p/>
+ * This class is thread safe. Marking events never blocks; events marked by other threads just as a slot is reused for
+ * a new second may be lost from the rate, but never from the total.
+ */
+public class Meter {
+    private static final int SLOTS = 60;
+
+    private Clock clock;
+    private long startSecond;
+    private AtomicLong count = new AtomicLong();
+    private AtomicLongArray slotCounts = new AtomicLongArray(SLOTS);
+    // The second each slot is counting
+    private AtomicLongArray slotSeconds = new AtomicLongArray(SLOTS);
+
+    public Meter() {
+        this(new NanoClock());
+    }
+
+    /**
+     * @param clock Clock to measure seconds with.
+     */
+    public Meter(Clock clock) {
+        if (clock == null) {
+            throw new NullPointerException("clock must not be null");
+        }
+        this.clock = clock;
+        startSecond = currentSecond();
+        for (int i = 0; i < SLOTS; i++) {
+            slotSeconds.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Count a number of events.
+     *
+     * @param events Number of events.
+     */
+    public void mark(long events) {
+        count.addAndGet(events);
+        long second = currentSecond();
+        // The clock may count from any origin, even a negative one
+        int slot = (int) (((second % SLOTS) + SLOTS) % SLOTS);
+        long slotSecond = slotSeconds.get(slot);
+        if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second)) {
+            slotCounts.set(slot, 0);
+        }
+        slotCounts.addAndGet(slot, events);
+    }
+
+    /**
+     * @return The number of events counted.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return Events per second over the last minute, or since this meter was created if that is less than a minute
+     *         ago.
+     */
+    public double getRate() {
+        long second = currentSecond();
+        long total = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long slotSecond = slotSeconds.get(i);
+            if (slotSecond < second && slotSecond >= second - SLOTS) {
+                total += slotCounts.get(i);
+            }
+        }
+        long seconds = Math.min(SLOTS, second - startSecond);
+        return seconds <= 0 ? 0 : (double) total / seconds;
+    }
+
+    private long currentSecond() {
+        return clock.getTimeUnit().toSeconds(clock.getTime());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of this process, by name: {@link Histogram}s of latencies and sizes, counters, {@link Meter}s of rates
+ * and gauges read when the metrics are written. Metrics are created the first time they are asked for and live as
+ * long as the process, except gauges, which are removed by whoever registered them.
+ * <p/>
+ * Names may carry labels in the Prometheus style, e.g. {@code counter_objects{shard="shardId-000"}}, see
+ * {@link #name(String, String, String)}. {@link #write(PrintWriter)} writes every metric in the Prometheus text format.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class Metrics {
+    /**
+     * Latencies are recorded in microseconds, up to an hour.
+     */
+    public static final long HIGHEST_LATENCY_IN_MICROS = 3600L * 1000 * 1000;
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Meter> METERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+
+    /**
+     * A value read each time the metrics are written.
+     */
+    public interface Gauge {
+        public long getValue();
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name Name of the histogram.
+     * @return The histogram, recording values up to {@link #HIGHEST_LATENCY_IN_MICROS}.
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = HISTOGRAMS.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(HIGHEST_LATENCY_IN_MICROS, SIGNIFICANT_DIGITS);
+            histogram = HISTOGRAMS.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @param name Name of the counter.
+     * @return The counter.
+     */
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = COUNTERS.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = COUNTERS.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @param name Name of the meter.
+     * @return The meter.
+     */
+    public static Meter meter(String name) {
+        Meter meter = METERS.get(name);
+        if (meter == null) {
+            Meter created = new Meter();
+            meter = METERS.putIfAbsent(name, created);
+            if (meter == null) {
+                meter = created;
+            }
+        }
+        return meter;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     *
+     * @param name Name of the gauge.
+     * @param gauge The gauge.
+     */
+    public static void registerGauge(String name, Gauge gauge) {
+        if (gauge == null) {
+            throw new NullPointerException("gauge must not be null");
+        }
+        GAUGES.put(name, gauge);
+    }
+
+    /**
+     * @param name Name of a gauge to stop reporting.
+     */
+    public static void removeGauge(String name) {
+        GAUGES.remove(name);
+    }
+
+    /**
+     * @param name Name of a metric.
+     * @param label Name of a label.
+     * @param value Value of the label.
+     * @return The name of the metric with the label added.
+     */
+    public static String name(String name, String label, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        String pair = label + "=\"" + escaped + '"';
+        if (name.endsWith("}")) {
+            return name.substring(0, name.length() - 1) + "," + pair + "}";
+        }
+        return name + "{" + pair + "}";
+    }
+
+    /**
+     * Write every metric in the Prometheus text format, sorted by name. Histograms are written as summaries of their
+     * quantiles, with their sum, count and max, meters as their total and their rate over the last minute.
+     *
+     * @param out Where to write the metrics.
+     */
+    public static void write(PrintWriter out) {
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            out.println(counter.getKey() + " " + counter.getValue().get());
+        }
+        for (Map.Entry<String, Meter> meter : new TreeMap<>(METERS).entrySet()) {
+            out.println(suffix(meter.getKey(), "_total") + " " + meter.getValue().getCount());
+            out.println(suffix(meter.getKey(), "_per_second") + " " + meter.getValue().getRate());
+        }
+        for (Map.Entry<String, Gauge> gauge : new TreeMap<>(GAUGES).entrySet()) {
+            out.println(gauge.getKey() + " " + gauge.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                out.println(name(name, "quantile", String.valueOf(quantile)) + " "
+                        + histogram.getValueAtPercentile(quantile * 100));
+            }
+            out.println(suffix(name, "_max") + " " + histogram.getMax());
+            out.println(suffix(name, "_sum") + " " + histogram.getSum());
+            out.println(suffix(name, "_count") + " " + histogram.getTotalCount());
+        }
+    }
+
+    /**
+     * @return The name of a metric with a suffix added before its labels.
+     */
+    private static String suffix(String name, String suffix) {
+        int labels = name.indexOf('{');
+        if (labels < 0) {
+            return name + suffix;
+        }
+        return name.substring(0, labels) + suffix + name.substring(labels);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Serves the {@link Metrics} of this process at {@code /metrics} from an embedded Jetty server. Other servlets, such
+ * as live queries, can be served alongside them.
+ */
+public class MetricsServer {
+    private static final Log LOG = LogFactory.getLog(MetricsServer.class);
+
+    private Server server;
+    private ServletContextHandler context;
+
+    /**
+     * @param port The port to listen on.
+     */
+    public MetricsServer(int port) {
+        server = new Server(port);
+        context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+        server.setHandler(context);
+    }
+
+    /**
+     * Serve another servlet. Servlets must be added before the server is started.
+     *
+     * @param path The path to serve the servlet at, e.g. {@code /top}.
+     * @param servlet The servlet.
+     */
+    public void addServlet(String path, HttpServlet servlet) {
+        ServletHolder holder = new ServletHolder(servlet);
+        // Allow servlets that stream to clients to release the request thread
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, path);
+    }
+
+    /**
+     * Start serving the metrics. A server that cannot start is logged and otherwise ignored, since metrics are not
+     * worth stopping the application for.
+     */
+    public void start() {
+        try {
+            server.start();
+            LOG.info("Serving metrics on port " + server.getConnectors()[0].getPort());
+        } catch (Exception e) {
+            LOG.error("Unable to start the metrics server", e);
+        }
+    }
+
+    /**
+     * Stop serving the metrics.
+     */
+    public void stop() {
+        try {
+            server.stop();
+        } catch (Exception e) {
+            LOG.warn("Unable to stop the metrics server", e);
+        }
+    }
+
+    /**
+     * Writes every metric as plain text.
+     */
+    private static class MetricsServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setContentType("text/plain; version=0.0.4");
+            response.setCharacterEncoding("UTF-8");
+            PrintWriter out = response.getWriter();
+            Metrics.write(out);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link BucketCounter} designed for a large number of distinct objects. Objects are kept in a linear probing hash
+ * table and the bucket counts of every object live in one contiguous {@code long[]}: the object in slot {@code s}
+ * owns the row starting at {@code s * rowWidth}, holding its buckets followed by its running total and the total last
+ * returned by {@link #getChangedCounts()}. There are no per-object entries or arrays for the garbage collector to
+ * trace.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class OpenAddressingBucketCounter<ObjectType> implements BucketCounter<ObjectType> {
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    // Grow the table once it is this full. Linear probing degrades quickly beyond this.
+    private static final float MAX_LOAD_FACTOR = 0.7f;
+
+    private Object[] keys;
+    private long[] counts;
+    private int size;
+    // Resize when size reaches this threshold
+    private int resizeAt;
+    private int maxBuckets;
+    // Width of each object's row in the counts slab and the offsets of the columns following the buckets
+    private int rowWidth;
+    private int totalColumn;
+    private int reportedColumn;
+
+    /**
+     * Create a new counter with a fixed number of buckets.
+     *
+     * @param maxBuckets Total buckets this counter will use.
+     */
+    public OpenAddressingBucketCounter(int maxBuckets) {
+        this(maxBuckets, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create a new counter with a fixed number of buckets sized for an expected number of distinct objects.
+     *
+     * @param maxBuckets Total buckets this counter will use.
+     * @param expectedObjects Number of distinct objects to size the table for. The table grows as needed.
+     */
+    public OpenAddressingBucketCounter(int maxBuckets, int expectedObjects) {
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("maxBuckets must be >= 1");
+        }
+        if (expectedObjects < 1) {
+            throw new IllegalArgumentException("expectedObjects must be >= 1");
+        }
+        this.maxBuckets = maxBuckets;
+        totalColumn = maxBuckets;
+        reportedColumn = maxBuckets + 1;
+        rowWidth = maxBuckets + 2;
+        allocate(tableSizeFor((int) Math.ceil(expectedObjects / MAX_LOAD_FACTOR)));
+    }
+
+    @Override
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    @Override
+    public long increment(ObjectType obj, int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        int slot = findSlot(obj);
+        if (keys[slot] == null) {
+            if (size >= resizeAt) {
+                allocate(keys.length << 1);
+                slot = findSlot(obj);
+            }
+            keys[slot] = obj;
+            size++;
+        }
+        int offset = slot * rowWidth;
+        counts[offset + totalColumn]++;
+        return ++counts[offset + bucket];
+    }
+
+    @Override
+    public void add(ObjectType obj, int bucket, long count) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("count must be >= 0");
+        }
+        int slot = findSlot(obj);
+        if (keys[slot] == null) {
+            if (size >= resizeAt) {
+                allocate(keys.length << 1);
+                slot = findSlot(obj);
+            }
+            keys[slot] = obj;
+            size++;
+        }
+        int offset = slot * rowWidth;
+        counts[offset + totalColumn] += count;
+        counts[offset + bucket] += count;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<ObjectType, Long> getBucketCounts(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            long bucketCount = counts[slot * rowWidth + bucket];
+            if (keys[slot] != null && bucketCount != 0) {
+                count.put((ObjectType) keys[slot], bucketCount);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<ObjectType, Long> getCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                count.put((ObjectType) keys[slot], counts[slot * rowWidth + totalColumn]);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<ObjectType, Long> getChangedCounts() {
+        Map<ObjectType, Long> count = new HashMap<>();
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            int offset = slot * rowWidth;
+            if (keys[slot] != null && counts[offset + totalColumn] != counts[offset + reportedColumn]) {
+                counts[offset + reportedColumn] = counts[offset + totalColumn];
+                count.put((ObjectType) keys[slot], counts[offset + totalColumn]);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Remove any objects whose buckets total 0. Entries are removed with backward shift deletion so no tombstones
+     * are left behind in the table.
+     */
+    @Override
+    public void pruneEmptyObjects() {
+        int slot = 0;
+        while (slot < keys.length) {
+            if (keys[slot] != null && counts[slot * rowWidth + totalColumn] == 0) {
+                // Removing may shift a later entry into this slot, so examine it again.
+                removeSlot(slot);
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    @Override
+    public void clearBucket(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            int offset = slot * rowWidth;
+            counts[offset + totalColumn] -= counts[offset + bucket];
+            counts[offset + bucket] = 0;
+        }
+    }
+
+    /**
+     * @return The number of distinct objects currently counted.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the slot holding the object or the empty slot it should be inserted at.
+     */
+    private int findSlot(Object obj) {
+        int mask = keys.length - 1;
+        int slot = hash(obj) & mask;
+        while (keys[slot] != null && !keys[slot].equals(obj)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Remove the entry in a slot and shift back any following entries of the same probe run that would otherwise
+     * become unreachable.
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != null) {
+            int home = hash(keys[next]) & mask;
+            // Move the entry into the hole unless its home slot lies cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                System.arraycopy(counts, next * rowWidth, counts, hole * rowWidth, rowWidth);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = null;
+        int offset = hole * rowWidth;
+        for (int i = offset; i < offset + rowWidth; i++) {
+            counts[i] = 0;
+        }
+        size--;
+    }
+
+    /**
+     * Replace the table with an empty one of the given capacity and rehash any existing entries into it.
+     */
+    private void allocate(int capacity) {
+        Object[] oldKeys = keys;
+        long[] oldCounts = counts;
+
+        if ((long) capacity * rowWidth > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many distinct objects to count with " + maxBuckets + " buckets");
+        }
+        keys = new Object[capacity];
+        counts = new long[capacity * rowWidth];
+        resizeAt = (int) (capacity * MAX_LOAD_FACTOR);
+
+        if (oldKeys != null) {
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] != null) {
+                    int newSlot = findSlot(oldKeys[slot]);
+                    keys[newSlot] = oldKeys[slot];
+                    System.arraycopy(oldCounts, slot * rowWidth, counts, newSlot * rowWidth, rowWidth);
+                }
+            }
+        }
+    }
+
+    private static int hash(Object obj) {
+        // Spread the bits of the hash code so poorly distributed hash codes do not form long probe runs
+        int h = obj.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        return n < 0 ? 1 << 30 : n;
+    }
+}
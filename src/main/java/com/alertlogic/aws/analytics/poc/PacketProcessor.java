@@ -6,7 +6,10 @@
 package com.alertlogic.aws.analytics.poc;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,6 +47,22 @@ public class PacketProcessor {
     // Update the counts every 1 second
     private static final int COMPUTE_INTERVAL_IN_MILLIS = 1000;
 
+    // Only persist a resource when one of its stored referrer counts moves by more than 5%
+    private static final double CHANGE_THRESHOLD = 0.05;
+    // Persist every resource at least once a minute so readers can catch up
+    private static final int SNAPSHOT_INTERVAL_IN_MILLIS = 60000;
+
+    private static final int DYNAMODB_BATCHES_IN_FLIGHT = 4;
+    // Store the top 100 referrers of each resource, which keeps items far below DynamoDB's item size limit
+    private static final int TOP_K_TO_STORE = 100;
+    // Estimate the distinct referrers of each resource to within about 3% in 1 KB per resource per interval
+    private static final int DISTINCT_COUNT_PRECISION = 10;
+
+    // Serve metrics at http://localhost:8080/metrics unless -Dmetrics.port says otherwise
+    private static final int DEFAULT_METRICS_PORT = 8080;
+    // Other workers to ask for top referrers, e.g. -Dquery.peers=http://10.0.0.2:8080,http://10.0.0.3:8080
+    private static final String QUERY_PEERS_PROPERTY = "query.peers";
+
     /**
      * Start the Kinesis Client application.
      * 
@@ -98,20 +117,39 @@ public class PacketProcessor {
         kclConfig.withRegionName(region.getName());
         kclConfig.withInitialPositionInStream(InitialPositionInStream.LATEST);
 
-        // Persist counts to DynamoDB
-        DynamoDBPersister persister =
-                new DynamoDBPersister(
-                        dynamoDBUtils.createMapperForTable(countsTableName));
+        // Persist counts to DynamoDB, skipping resources whose counts have not changed
+        Persister<Record> persister =
+                new ChangeDetectingPersister(
+                        new DynamoDBPersister<Record>(dynamoDB,
+                                countsTableName,
+                                DYNAMODB_BATCHES_IN_FLIGHT,
+                                TOP_K_TO_STORE),
+                        TOP_K_TO_STORE,
+                        CHANGE_THRESHOLD,
+                        SNAPSHOT_INTERVAL_IN_MILLIS,
+                        TimeUnit.MILLISECONDS);
+
+        RecordProcessorConfig config = new RecordProcessorConfig();
+        config.setCountDistinctFields(true);
+        config.setDistinctCountPrecision(DISTINCT_COUNT_PRECISION);
+        config.setPublishLiveCounts(true);
+        config.setLiveCountsTopK(TOP_K_TO_STORE);
 
         IRecordProcessorFactory recordProcessor =
                 new RecordProcessorFactory<Record>(
                         Record.class,
                         persister,
                         COMPUTE_RANGE_FOR_COUNTS_IN_MILLIS,
-                        COMPUTE_INTERVAL_IN_MILLIS);
+                        COMPUTE_INTERVAL_IN_MILLIS,
+                        config);
 
         Worker worker = new Worker(recordProcessor, kclConfig);
 
+        MetricsServer metricsServer = new MetricsServer(Integer.getInteger("metrics.port", DEFAULT_METRICS_PORT));
+        metricsServer.addServlet("/top", new TopCountsServlet(parsePeers(System.getProperty(QUERY_PEERS_PROPERTY))));
+        metricsServer.addServlet("/stream", new CountsStreamServlet(COMPUTE_INTERVAL_IN_MILLIS));
+        metricsServer.start();
+
         int exitCode = 0;
         try {
             worker.run();
@@ -121,4 +159,20 @@ public class PacketProcessor {
         }
         System.exit(exitCode);
     }
+
+    /**
+     * @param peers Comma separated base URLs of other workers, or {@code null}.
+     * @return The base URLs.
+     */
+    private static List<String> parsePeers(String peers) {
+        List<String> urls = new ArrayList<>();
+        if (peers != null) {
+            for (String peer : peers.split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    urls.add(peer.trim());
+                }
+            }
+        }
+        return urls;
+    }
 }
@@ -29,32 +29,51 @@ public class PacketStreamer {
     private static final Log LOG = LogFactory.getLog(PacketStreamer.class);
 
     /**
-     * The amount of time to wait between records.
+     * The number of records to send per second for each sender thread when no target rate is given.
      *
      * This is a way to control usage costs.
      */
-    private static final long DELAY_BETWEEN_RECORDS_IN_MILLIS = 100;
+    private static final double DEFAULT_RECORDS_PER_SECOND_PER_THREAD = 10;
 
     /**
-     * Start a number of threads that read packets and sends them to
-     * a Kinesis Stream.
+     * The longest time a record waits for its batch to fill before the batch is sent.
+     */
+    private static final long BATCH_LINGER_TIME_IN_MILLIS = 100;
+
+    /**
+     * Pack the records of each batch that share a partition key into a single Amazon Kinesis record.
+     */
+    private static final boolean AGGREGATE_RECORDS = true;
+
+    /**
+     * Serve metrics at http://localhost:8081/metrics unless -Dmetrics.port says otherwise. This leaves the default
+     * port of the {@link PacketProcessor} free for it to run on the same host.
+     */
+    private static final int DEFAULT_METRICS_PORT = 8081;
+
+    /**
+     * Read packets and send them to a Kinesis Stream in batches at a target rate using a number of sender threads.
      *
-     * @param args the number of threads to use,
+     * @param args the number of threads to send records with,
      *        the name of the Kinesis stream to send to,
-     *        the AWS region for the resources that exist or should be created.
+     *        the AWS region for the resources that exist or should be created,
+     *        and optionally the target number of records to send per second.
      *
      * @throws InterruptedException If this application is interrupted
      */
     public static void main(String[] args) throws InterruptedException {
-        if (args.length != 3) {
+        if (args.length != 3 && args.length != 4) {
             System.err.println("Usage: " + PacketStreamer.class.getSimpleName()
-                    + " <number of threads> <stream name> <region>");
+                    + " <number of threads> <stream name> <region> [records per second]");
             System.exit(1);
         }
 
         int numberOfThreads = Integer.parseInt(args[0]);
         String streamName = args[1];
         Region region = Utils.parseRegion(args[2]);
+        double recordsPerSecond = args.length == 4
+                ? Double.parseDouble(args[3])
+                : DEFAULT_RECORDS_PER_SECOND_PER_THREAD * numberOfThreads;
 
         AWSCredentialsProvider credentialsProvider =
             new DefaultAWSCredentialsProviderChain();
@@ -86,31 +105,24 @@ public class PacketStreamer {
         streamUtils.createStreamIfNotExists(streamName, 2);
         LOG.info(String.format("%s stream is ready for use", streamName));
 
-        final RecordKinesisPutter putter = new RecordKinesisPutter(recordFactory, kinesis, streamName);
+        RecordKinesisPutter putter = new RecordKinesisPutter(recordFactory, kinesis, streamName, AGGREGATE_RECORDS);
 
-        ExecutorService es = Executors.newCachedThreadPool();
+        // The sender threads bound the number of PutRecord requests in flight
+        ExecutorService es = Executors.newFixedThreadPool(numberOfThreads);
 
-        Runnable recordSender = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    putter.sendRecordsIndefinitely(DELAY_BETWEEN_RECORDS_IN_MILLIS, TimeUnit.MILLISECONDS);
-                } catch (Exception ex) {
-                    LOG.warn("Thread encountered an error while sending records. Records will no longer be put by this thread.",
-                            ex);
-                }
-            }
-        };
-
-        for (int i = 0; i < numberOfThreads; i++) {
-            es.submit(recordSender);
-        }
-
-        LOG.info(String.format("Sending records with a %dms delay between records with %d thread(s).",
-                DELAY_BETWEEN_RECORDS_IN_MILLIS,
+        LOG.info(String.format("Sending %.1f records per second in batches with %d thread(s).",
+                recordsPerSecond,
                 numberOfThreads));
 
-        es.shutdown();
-        es.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        MetricsServer metricsServer = new MetricsServer(Integer.getInteger("metrics.port", DEFAULT_METRICS_PORT));
+        metricsServer.start();
+
+        try {
+            putter.sendRecordsInBatches(recordsPerSecond, BATCH_LINGER_TIME_IN_MILLIS, TimeUnit.MILLISECONDS, es);
+        } finally {
+            es.shutdown();
+            es.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            metricsServer.stop();
+        }
     }
 }
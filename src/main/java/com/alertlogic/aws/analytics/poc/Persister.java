@@ -17,6 +17,7 @@ package com.alertlogic.aws.analytics.poc;
 
 import com.alertlogic.aws.analytics.poc.RecordProcessor;
 
+import java.util.Date;
 import java.util.Map;
 
 /**
@@ -35,12 +36,27 @@ public interface Persister<T> {
      * Persist the map of objects to counts.
      *
      * @param objectCounts
+     * @return A ticket that completes once these counts have been completely handled.
      */
-    public void persist(Map<T, Long> objectCounts);
+    public FlushTicket persist(Map<T, Long> objectCounts);
+
+    /**
+     * Persist the map of objects to counts of a window along with the estimated number of distinct fields counted for
+     * each resource over the same window.
+     *
+     * @param objectCounts
+     * @param distinctCounts A mapping of resource to its estimated number of distinct fields.
+     * @param windowEnd The end of the window the counts were computed over.
+     * @return A ticket that completes once these counts have been completely handled. It does not wait for counts
+     *         persisted by other calls, so a persister shared by many shards can tell each shard when its own counts
+     *         are durable.
+     */
+    public FlushTicket persist(Map<T, Long> objectCounts, Map<String, Long> distinctCounts, Date windowEnd);
 
     /**
      * Indicates this persister should flush its internal state and guarantee all records received from calls to
-     * {@link #persist(Map)} are completely handled.
+     * {@link #persist(Map)} are completely handled. Unlike the tickets returned by {@code persist}, this waits for
+     * the counts of every caller.
      *
      * @throws InterruptedException if any thread interrupted the current thread while performing a checkpoint.
      */
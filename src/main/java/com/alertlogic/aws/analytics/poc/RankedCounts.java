@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Counts that are already ranked. Iterating the counts visits the records of one resource after another, and the
+ * records of each resource from highest count to lowest. {@link Persister}s that receive ranked counts can take the
+ * top counts of a resource in order instead of ranking them again.
+ *
+ * @param <T> Type of objects counted.
+ */
+public class RankedCounts<T> extends LinkedHashMap<T, Long> {
+    private static final long serialVersionUID = 1L;
+}
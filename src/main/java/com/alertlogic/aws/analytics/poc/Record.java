@@ -15,12 +15,20 @@
 
 package com.alertlogic.aws.analytics.poc;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+
 /**
  * Standin for a general record.
  */
-public class Record {
+// Records have no bean accessors so (de)serialize their fields directly.
+@JsonAutoDetect(fieldVisibility = Visibility.ANY)
+public class Record implements FieldRecord {
     private String resource;
     private String referrer;
+    // When the record happened in milliseconds since the epoch, or 0 if unknown. Records are counted as the same
+    // record no matter when they happened, so this is not part of equals() or hashCode().
+    private long timestamp;
 
     public Record() {
     }
@@ -30,6 +38,21 @@ public class Record {
         this.referrer = referrer;
     }
 
+    public Record(String resource, String referrer, long timestamp) {
+        this.resource = resource;
+        this.referrer = referrer;
+        this.timestamp = timestamp;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
     public String getField(String name) {
         switch (name)
         {
@@ -42,8 +65,8 @@ public class Record {
     public void setField(String name, String value) {
         switch (name)
         {
-            case "resource": this.resource = value;
-            case "referrer": this.referrer = referrer;
+            case "resource": this.resource = value; break;
+            case "referrer": this.referrer = value; break;
         }
     }
 
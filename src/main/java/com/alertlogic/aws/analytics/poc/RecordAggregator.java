@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Packs many serialized records into the data of a single Amazon Kinesis record so tiny records do not each pay the
+ * per-record overhead of a PUT. The layout is:
+ *
+ * <pre>
+ * magic (4 bytes) | version (1 byte) | record count (4 bytes)
+ * record length (4 bytes) | record bytes ... (repeated record count times)
+ * CRC32 of all preceding bytes (4 bytes)
+ * </pre>
+ *
+ * All integers are big endian. The magic number's first byte is not valid at the start of a UTF-8 JSON document so
+ * aggregated and plain records can share a stream. Use {@link RecordDeaggregator} to read aggregated records.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class RecordAggregator {
+    static final int MAGIC = 0xA1A6A991;
+    static final byte VERSION = 1;
+    // magic + version + record count
+    static final int HEADER_SIZE = 4 + 1 + 4;
+    static final int LENGTH_PREFIX_SIZE = 4;
+    static final int CHECKSUM_SIZE = 4;
+
+    private ByteBuffer buffer;
+    private int recordCount;
+
+    /**
+     * @param maxAggregateSize The largest aggregate, in bytes, this aggregator will build.
+     */
+    public RecordAggregator(int maxAggregateSize) {
+        if (maxAggregateSize < HEADER_SIZE + LENGTH_PREFIX_SIZE + CHECKSUM_SIZE) {
+            throw new IllegalArgumentException("maxAggregateSize is too small to hold a record");
+        }
+        buffer = ByteBuffer.allocate(maxAggregateSize);
+        clear();
+    }
+
+    /**
+     * Add a serialized record to the aggregate.
+     *
+     * @param record The serialized record.
+     * @return {@code true} if the record was added, {@code false} if it does not fit in the remaining space.
+     */
+    public boolean add(byte[] record) {
+        if (buffer.remaining() < LENGTH_PREFIX_SIZE + record.length + CHECKSUM_SIZE) {
+            return false;
+        }
+        buffer.putInt(record.length);
+        buffer.put(record);
+        recordCount++;
+        return true;
+    }
+
+    /**
+     * @return The number of records added since the last {@link #clear()}.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Build the aggregate of every record added since the last {@link #clear()}.
+     *
+     * @return A new buffer holding the aggregate.
+     */
+    public ByteBuffer build() {
+        int length = buffer.position();
+        byte[] aggregate = new byte[length + CHECKSUM_SIZE];
+        System.arraycopy(buffer.array(), 0, aggregate, 0, length);
+
+        ByteBuffer result = ByteBuffer.wrap(aggregate);
+        result.putInt(HEADER_SIZE - 4, recordCount);
+
+        CRC32 crc = new CRC32();
+        crc.update(aggregate, 0, length);
+        result.putInt(length, (int) crc.getValue());
+        return result;
+    }
+
+    /**
+     * Remove every record from the aggregate.
+     */
+    public void clear() {
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        // The record count is filled in when the aggregate is built
+        buffer.putInt(0);
+        recordCount = 0;
+    }
+}
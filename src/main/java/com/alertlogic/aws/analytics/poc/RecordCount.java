@@ -31,13 +31,19 @@ import com.alertlogic.aws.analytics.poc.FieldCountMarshaller;
 @DynamoDBTable(tableName = "ALAnalyticsPOC-NameToBeReplacedByDynamoDBMapper")
 public class RecordCount {
     private String resource;
-    // The timestamp when the counts were calculated
+    // The end of the window the counts were calculated over. Aligned to an interval boundary when counted by a
+    // RecordProcessor.
     private Date timestamp;
     // Store the hostname of the worker that updated the count
     private String host;
     // Ordered list of field counts in descending order. Top N can be simply obtained by inspecting the first N
     // counts.
     private List<FieldCount> fieldCounts;
+    // Sum of the counts left out of fieldCounts when only the top counts are stored. Not set if nothing was left out.
+    private Long otherCount;
+    // Estimated number of distinct fields counted for the resource, including those left out of fieldCounts. Not set
+    // if distinct fields were not counted.
+    private Long distinctFieldCount;
 
     @DynamoDBHashKey
     public String getResource() {
@@ -75,4 +81,22 @@ public class RecordCount {
     public void setFieldCounts(List<FieldCount> fieldCounts) {
         this.fieldCounts = fieldCounts;
     }
+
+    @DynamoDBAttribute
+    public Long getOtherCount() {
+        return otherCount;
+    }
+
+    public void setOtherCount(Long otherCount) {
+        this.otherCount = otherCount;
+    }
+
+    @DynamoDBAttribute
+    public Long getDistinctFieldCount() {
+        return distinctFieldCount;
+    }
+
+    public void setDistinctFieldCount(Long distinctFieldCount) {
+        this.distinctFieldCount = distinctFieldCount;
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads Amazon Kinesis records built by a {@link RecordAggregator}.
+ */
+public class RecordDeaggregator {
+
+    private RecordDeaggregator() {
+    }
+
+    /**
+     * Determine if the data of a record is an aggregate.
+     *
+     * @param data The record data, from the buffer's position to its limit.
+     * @return {@code true} if the data starts with the aggregate magic number.
+     */
+    public static boolean isAggregated(ByteBuffer data) {
+        return data.remaining() >= RecordAggregator.HEADER_SIZE + RecordAggregator.CHECKSUM_SIZE
+                && data.getInt(data.position()) == RecordAggregator.MAGIC;
+    }
+
+    /**
+     * Split record data into the records it holds. Data that is not an aggregate is returned as the only record.
+     * The buffers returned share content with the data provided and the data's position and limit are unchanged.
+     *
+     * @param data The record data, from the buffer's position to its limit.
+     * @return The records held in the data.
+     * @throws IOException if the data is an aggregate that is truncated, of an unknown version, fails its checksum or
+     *         holds an invalid record count.
+     */
+    public static List<ByteBuffer> deaggregate(ByteBuffer data) throws IOException {
+        if (!isAggregated(data)) {
+            return Collections.singletonList(data);
+        }
+
+        int start = data.position();
+        int checksumAt = data.limit() - RecordAggregator.CHECKSUM_SIZE;
+        if (data.get(start + 4) != RecordAggregator.VERSION) {
+            throw new IOException("Unknown aggregate version: " + data.get(start + 4));
+        }
+        if (checksum(data, start, checksumAt) != data.getInt(checksumAt)) {
+            throw new IOException("Aggregate checksum mismatch");
+        }
+
+        int recordCount = data.getInt(start + RecordAggregator.HEADER_SIZE - 4);
+        int offset = start + RecordAggregator.HEADER_SIZE;
+        // Every record takes at least its length prefix, so a larger count cannot be right
+        if (recordCount < 0 || recordCount > (checksumAt - offset) / RecordAggregator.LENGTH_PREFIX_SIZE) {
+            throw new IOException("Invalid aggregate record count: " + recordCount);
+        }
+        List<ByteBuffer> records = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            if (offset + RecordAggregator.LENGTH_PREFIX_SIZE > checksumAt) {
+                throw new IOException("Aggregate is truncated");
+            }
+            int length = data.getInt(offset);
+            offset += RecordAggregator.LENGTH_PREFIX_SIZE;
+            if (length < 0 || offset + length > checksumAt) {
+                throw new IOException("Aggregate is truncated");
+            }
+            ByteBuffer record = data.duplicate();
+            record.limit(offset + length);
+            record.position(offset);
+            records.add(record);
+            offset += length;
+        }
+        return records;
+    }
+
+    private static int checksum(ByteBuffer data, int from, int to) {
+        CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), data.arrayOffset() + from, to - from);
+        } else {
+            byte[] bytes = new byte[to - from];
+            ByteBuffer copy = data.duplicate();
+            copy.position(from);
+            copy.get(bytes);
+            crc.update(bytes, 0, bytes.length);
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the data of an Amazon Kinesis record into the type of record a {@link RecordProcessor} counts.
+ *
+ * @param <T> The type of records this decoder produces.
+ */
+public interface RecordDecoder<T> {
+
+    /**
+     * Decode a single record. The buffer's position and limit are left unchanged.
+     *
+     * @param data The record data, from the buffer's position to its limit.
+     * @return The decoded record.
+     * @throws IOException if the data cannot be decoded into a record.
+     */
+    public T decode(ByteBuffer data) throws IOException;
+}
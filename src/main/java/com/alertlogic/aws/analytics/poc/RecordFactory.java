@@ -48,13 +48,13 @@ public class RecordFactory {
      * Creates a new record record using random resources and records from the collections provided when this
      * factory was created.
      *
-     * @return A new record with random resource and record values.
+     * @return A new record with random resource and record values, timestamped with the current time.
      */
     public Record create() {
         String resource = getRandomResource();
         String field = getRandomField();
 
-        Record record = new Record(resource, field);
+        Record record = new Record(resource, field, System.currentTimeMillis());
 
         return record;
     }
@@ -17,12 +17,24 @@ package com.alertlogic.aws.analytics.poc;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.kinesis.model.PutRecordRequest;
@@ -36,13 +48,55 @@ import com.alertlogic.aws.analytics.poc.Record;
 public class RecordKinesisPutter {
     private static final Log LOG = LogFactory.getLog(RecordKinesisPutter.class);
 
+    // Batches are limited to what a single PutRecords request accepts
+    private static final int MAX_RECORDS_PER_BATCH = 500;
+    private static final long MAX_BYTES_PER_BATCH = 5L * 1024 * 1024;
+
+    // Failed records are retried with full jitter backoff: a random delay up to min(cap, base * 2^attempt)
+    private static final int MAX_ATTEMPTS_PER_RECORD = 5;
+    private static final long BASE_BACKOFF_IN_MILLIS = 50;
+    private static final long MAX_BACKOFF_IN_MILLIS = 2000;
+
+    // Batches sent but not yet finished, unless told otherwise
+    private static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 4;
+
+    // Never try to catch up on more than this much time after falling behind the target rate
+    private static final long MAX_CATCH_UP_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Aggregates are kept well below the 1 MB Amazon Kinesis accepts for a single record's data, which keeps each put
+    // small and limits how many records a failed put has to resend
+    private static final int MAX_AGGREGATE_SIZE = 50 * 1024;
+    // Aggregators are kept for the next batch unless more partition keys than this were seen, so a producer with
+    // many partition keys does not hold a buffer for every one of them
+    private static final int MAX_REUSED_AGGREGATORS = 64;
+
+    // Metrics shared by every putter in this process
+    private static final Histogram PUT_RECORD_LATENCY = Metrics.histogram("kinesis_put_record_latency_micros");
+    private static final Meter RECORDS_SENT = Metrics.meter("kinesis_records_sent");
+    private static final AtomicLong RECORDS_DROPPED = Metrics.counter("kinesis_records_dropped_total");
+
     private RecordFactory recordFactory;
     private AmazonKinesis kinesis;
     private String streamName;
+    // Pack the records of each batch into aggregates, see RecordAggregator
+    private boolean aggregate;
 
     private final ObjectMapper JSON = new ObjectMapper();
 
     public RecordKinesisPutter(RecordFactory recordFactory, AmazonKinesis kinesis, String streamName) {
+        this(recordFactory, kinesis, streamName, false);
+    }
+
+    /**
+     * @param recordFactory Factory to create the records to send.
+     * @param kinesis Amazon Kinesis client to send records with.
+     * @param streamName The stream to send records to.
+     * @param aggregate Whether {@link #sendRecordsInBatches(double, long, TimeUnit, ExecutorService)} packs the records
+     *        of each batch that share a partition key into as few Amazon Kinesis records as possible. Consumers must
+     *        read them with a {@link RecordDeaggregator}.
+     */
+    public RecordKinesisPutter(RecordFactory recordFactory, AmazonKinesis kinesis, String streamName,
+            boolean aggregate) {
         if (recordFactory == null) {
             throw new IllegalArgumentException("recordFactory must not be null");
         }
@@ -55,6 +109,7 @@ public class RecordKinesisPutter {
         this.recordFactory = recordFactory;
         this.kinesis = kinesis;
         this.streamName = streamName;
+        this.aggregate = aggregate;
     }
 
     /**
@@ -95,16 +150,301 @@ public class RecordKinesisPutter {
     }
 
     /**
-     * Send a single record to Amazon Kinesis using PutRecord.
+     * Continuously sends records to Amazon Kinesis at a target rate, in batches, with up to 4 batches in flight.
+     *
+     * @see #sendRecordsInBatches(double, long, TimeUnit, ExecutorService, int)
      */
-    private void sendRecord() {
+    public void sendRecordsInBatches(double recordsPerSecond, long lingerTime, TimeUnit unitForLinger,
+            ExecutorService executor) throws InterruptedException {
+        sendRecordsInBatches(recordsPerSecond, lingerTime, unitForLinger, executor, DEFAULT_MAX_BATCHES_IN_FLIGHT);
+    }
+
+    /**
+     * Continuously sends records to Amazon Kinesis at a target rate, in batches. Records are collected into a batch
+     * until it holds 500 records or 5 MB, or the first record in it has waited for the
+     * linger time. The records of each batch are sent concurrently on the executor provided and only the records that
+     * failed are retried, with jittered exponential backoff. If this putter aggregates, the records of a batch are packed
+     * into aggregates before they are sent. This will only stop if interrupted.
+     * <p/>
+     * Batches are handed to the executor without waiting for them to finish, so the next batch is collected while
+     * earlier ones are still being sent. Once {@code maxBatchesInFlight} batches are unfinished this waits for one of
+     * them before sending another.
+     *
+     * @param recordsPerSecond The target number of records to send per second.
+     * @param lingerTime The longest time a record may wait for its batch to fill.
+     * @param unitForLinger The unit of time to interpret the linger time as.
+     * @param executor Executor to send the records of a batch with. Its thread count bounds the requests in flight.
+     * @param maxBatchesInFlight Maximum number of batches to have sent but not finished at once.
+     *
+     * @throws InterruptedException Interrupted while waiting to send the next record or batch.
+     */
+    public void sendRecordsInBatches(double recordsPerSecond, long lingerTime, TimeUnit unitForLinger,
+            ExecutorService executor, int maxBatchesInFlight) throws InterruptedException {
+        if (recordsPerSecond <= 0) {
+            throw new IllegalArgumentException("recordsPerSecond must be > 0");
+        }
+        if (executor == null) {
+            throw new NullPointerException("executor must not be null");
+        }
+        if (maxBatchesInFlight < 1) {
+            throw new IllegalArgumentException("maxBatchesInFlight must be >= 1");
+        }
+        Semaphore batchesInFlight = new Semaphore(maxBatchesInFlight);
+        long nanosBetweenRecords = (long) (TimeUnit.SECONDS.toNanos(1) / recordsPerSecond);
+        long lingerNanos = unitForLinger.toNanos(lingerTime);
+
+        List<PutRecordRequest> batch = new ArrayList<>(MAX_RECORDS_PER_BATCH);
+        Map<String, RecordAggregator> aggregators = new HashMap<>();
+        long batchBytes = 0;
+        long batchStartedAt = 0;
+        long nextRecordAt = System.nanoTime();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.nanoTime();
+            if (!batch.isEmpty() && now - batchStartedAt >= lingerNanos) {
+                sendBatch(aggregate ? aggregate(batch, aggregators) : batch, executor, batchesInFlight);
+                batch.clear();
+                batchBytes = 0;
+                continue;
+            }
+
+            if (now - nextRecordAt < 0) {
+                // Nothing to do until the next record is due or the current batch has lingered long enough
+                long wakeAt = batch.isEmpty() ? nextRecordAt : Math.min(nextRecordAt, batchStartedAt + lingerNanos);
+                TimeUnit.NANOSECONDS.sleep(wakeAt - now);
+                continue;
+            }
+            if (now - nextRecordAt > MAX_CATCH_UP_IN_NANOS) {
+                nextRecordAt = now - MAX_CATCH_UP_IN_NANOS;
+            }
+            nextRecordAt += nanosBetweenRecords;
+
+            PutRecordRequest putRecord = createPutRecordRequest();
+            if (putRecord == null) {
+                continue;
+            }
+            long size = putRecord.getData().remaining()
+                    + putRecord.getPartitionKey().getBytes(StandardCharsets.UTF_8).length;
+            if (batchBytes + size > MAX_BYTES_PER_BATCH) {
+                sendBatch(aggregate ? aggregate(batch, aggregators) : batch, executor, batchesInFlight);
+                batch.clear();
+                batchBytes = 0;
+            }
+            if (batch.isEmpty()) {
+                batchStartedAt = now;
+            }
+            batch.add(putRecord);
+            batchBytes += size;
+
+            if (batch.size() >= MAX_RECORDS_PER_BATCH) {
+                sendBatch(aggregate ? aggregate(batch, aggregators) : batch, executor, batchesInFlight);
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Pack the records of a batch into aggregates, one or more per partition key. A record too large to be aggregated
+     * is sent on its own.
+     *
+     * @param batch The records to aggregate.
+     * @param aggregators Reusable aggregators by partition key. Cleared if it holds too many.
+     * @return The aggregated records to send.
+     */
+    private List<PutRecordRequest> aggregate(List<PutRecordRequest> batch, Map<String, RecordAggregator> aggregators) {
+        List<PutRecordRequest> aggregated = new ArrayList<>();
+        for (PutRecordRequest putRecord : batch) {
+            RecordAggregator aggregator = aggregators.get(putRecord.getPartitionKey());
+            if (aggregator == null) {
+                aggregator = new RecordAggregator(MAX_AGGREGATE_SIZE);
+                aggregators.put(putRecord.getPartitionKey(), aggregator);
+            }
+            byte[] bytes = putRecord.getData().array();
+            if (!aggregator.add(bytes)) {
+                if (aggregator.getRecordCount() > 0) {
+                    aggregated.add(createAggregateRequest(putRecord.getPartitionKey(), aggregator));
+                }
+                if (!aggregator.add(bytes)) {
+                    aggregated.add(putRecord);
+                }
+            }
+        }
+        for (Map.Entry<String, RecordAggregator> entry : aggregators.entrySet()) {
+            if (entry.getValue().getRecordCount() > 0) {
+                aggregated.add(createAggregateRequest(entry.getKey(), entry.getValue()));
+            }
+        }
+        if (aggregators.size() > MAX_REUSED_AGGREGATORS) {
+            aggregators.clear();
+        }
+        return aggregated;
+    }
+
+    /**
+     * Create a PutRecord request holding an aggregate and clear the aggregator.
+     */
+    private PutRecordRequest createAggregateRequest(String partitionKey, RecordAggregator aggregator) {
+        PutRecordRequest putRecord = new PutRecordRequest();
+        putRecord.setStreamName(streamName);
+        putRecord.setPartitionKey(partitionKey);
+        putRecord.setData(aggregator.build());
+        aggregator.clear();
+        return putRecord;
+    }
+
+    /**
+     * Send a batch of records concurrently without waiting for them. Each record is put on the executor and retried
+     * there with backoff if it fails with a retryable error. The batch holds one of the permits until every record has
+     * either been sent or exhausted its attempts.
+     * <p/>
+     * The Amazon Kinesis client this application is built with predates PutRecords so each record is its own
+     * PutRecord request.
+     *
+     * @param batch The records to send. Copied, so the caller may reuse it.
+     * @param executor Executor to send the records with.
+     * @param batchesInFlight Permits for batches in flight.
+     *
+     * @throws InterruptedException Interrupted while waiting for a permit.
+     */
+    private void sendBatch(List<PutRecordRequest> batch, ExecutorService executor, Semaphore batchesInFlight)
+            throws InterruptedException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        batchesInFlight.acquire();
+        final BatchSend send = new BatchSend(batch.size(), batchesInFlight);
+        List<PutRecordRequest> records = new ArrayList<>(batch);
+        for (int i = 0; i < records.size(); i++) {
+            final PutRecordRequest putRecord = records.get(i);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send.recordFinished(putRecordWithRetries(putRecord));
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                LOG.warn(String.format("Unable to send %d records to Amazon Kinesis. The executor is shut down.",
+                        records.size() - i));
+                for (; i < records.size(); i++) {
+                    send.recordFinished(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a single record, backing off and trying again while it fails with a retryable error.
+     *
+     * @param putRecord The record to put.
+     * @return {@code true} if the record was sent or failed permanently, {@code false} if it was dropped after
+     *         exhausting its attempts.
+     */
+    private boolean putRecordWithRetries(PutRecordRequest putRecord) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS_PER_RECORD; attempt++) {
+            if (attempt > 0) {
+                long backoff = Math.min(MAX_BACKOFF_IN_MILLIS, BASE_BACKOFF_IN_MILLIS << attempt);
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            try {
+                if (tryPutRecord(putRecord)) {
+                    return true;
+                }
+            } catch (RuntimeException ex) {
+                LOG.warn("Error sending record to Amazon Kinesis.", ex);
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tracks the records of one batch in flight. Releases the batch's permit and records how many were sent once the
+     * last of them finishes.
+     */
+    private static class BatchSend {
+        private int size;
+        private Semaphore batchesInFlight;
+        private AtomicInteger remaining;
+        private AtomicInteger dropped = new AtomicInteger();
+
+        BatchSend(int size, Semaphore batchesInFlight) {
+            this.size = size;
+            this.batchesInFlight = batchesInFlight;
+            this.remaining = new AtomicInteger(size);
+        }
+
+        void recordFinished(boolean sent) {
+            if (!sent) {
+                dropped.incrementAndGet();
+            }
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+            batchesInFlight.release();
+            int dropped = this.dropped.get();
+            RECORDS_SENT.mark(size - dropped);
+            if (dropped > 0) {
+                RECORDS_DROPPED.addAndGet(dropped);
+                LOG.warn(String.format("Dropping %d of %d records after %d attempts.",
+                        dropped,
+                        size,
+                        MAX_ATTEMPTS_PER_RECORD));
+            }
+        }
+    }
+
+    /**
+     * Put a single record.
+     *
+     * @param putRecord The record to put.
+     * @return {@code true} if the record was sent or failed permanently, {@code false} if it should be retried.
+     */
+    private boolean tryPutRecord(PutRecordRequest putRecord) {
+        try {
+            long start = System.nanoTime();
+            kinesis.putRecord(putRecord);
+            PUT_RECORD_LATENCY.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            return true;
+        } catch (ProvisionedThroughputExceededException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Thread %s's Throughput exceeded.", Thread.currentThread().getName()));
+            }
+            return false;
+        } catch (AmazonServiceException ex) {
+            if (ex.getErrorType() == AmazonServiceException.ErrorType.Service) {
+                return false;
+            }
+            LOG.warn("Error sending record to Amazon Kinesis. This will not be retried!", ex);
+            return true;
+        } catch (AmazonClientException ex) {
+            if (ex.isRetryable()) {
+                return false;
+            }
+            LOG.warn("Error sending record to Amazon Kinesis. This will not be retried!", ex);
+            return true;
+        }
+    }
+
+    /**
+     * Create a PutRecord request for a new random record.
+     *
+     * @return The request, or {@code null} if the record could not be serialized.
+     */
+    private PutRecordRequest createPutRecordRequest() {
         Record record = recordFactory.create();
         byte[] bytes;
         try {
             bytes = JSON.writeValueAsBytes(record);
         } catch (IOException e) {
             LOG.warn("Skipping record. Unable to serialize: '" + record + "'", e);
-            return;
+            return null;
         }
 
         PutRecordRequest putRecord = new PutRecordRequest();
@@ -114,6 +454,17 @@ public class RecordKinesisPutter {
         putRecord.setData(ByteBuffer.wrap(bytes));
         // Order is not important for this application so we do not send a SequenceNumberForOrdering
         putRecord.setSequenceNumberForOrdering(null);
+        return putRecord;
+    }
+
+    /**
+     * Send a single record to Amazon Kinesis using PutRecord.
+     */
+    private void sendRecord() {
+        PutRecordRequest putRecord = createPutRecordRequest();
+        if (putRecord == null) {
+            return;
+        }
 
         try {
             kinesis.putRecord(putRecord);
@@ -15,12 +15,25 @@
 
 package com.alertlogic.aws.analytics.poc;
 
+import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,8 +45,6 @@ import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
 import com.amazonaws.services.kinesis.model.Record;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import com.alertlogic.aws.analytics.poc.SlidingWindowCounter;
 import com.alertlogic.aws.analytics.poc.Persister;
@@ -51,11 +62,34 @@ public class RecordProcessor<T> implements IRecordProcessor {
 
     // Lock to use for our timer
     private static final Clock NANO_CLOCK = new NanoClock();
+    private static final Clock SYSTEM_CLOCK = new SystemClock();
+    // Writes window snapshots so ingestion does not wait on the disk. Shared by every processor.
+    private static final ExecutorService SNAPSHOT_WRITES = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "window-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // Rough memory held per counted object on top of one count per bucket: the object, its map entry and array headers
+    private static final int ESTIMATED_OBJECT_OVERHEAD_IN_BYTES = 96;
+
+    // Metrics shared by every processor in this process
+    private static final Histogram PROCESS_RECORDS_LATENCY = Metrics.histogram("process_records_latency_micros");
+    private static final Meter RECORDS_PROCESSED = Metrics.meter("records_processed");
+    private static final AtomicLong DECODE_FAILURES = Metrics.counter("record_decode_failures_total");
+    private static final AtomicLong EVENT_TIMES_CLAMPED = Metrics.counter("event_times_clamped_total");
+    private static final Histogram TICK_DURATION = Metrics.histogram("tick_duration_micros");
+    private static final Histogram CHECKPOINT_WAIT = Metrics.histogram("checkpoint_wait_micros");
+
     // The timer to schedule checkpoints with
     private Timer checkpointTimer = new Timer(NANO_CLOCK);
 
-    // Our JSON object mapper for deserializing records
-    private final ObjectMapper JSON;
+    // Decodes the data of each record
+    private RecordDecoder<T> decoder;
+    // The group-bys each decoded record is counted by, or null to count records as they are decoded
+    private List<GroupBy> groupBys;
 
     // Interval to calculate distinct counts across
     private int computeIntervalInMillis;
@@ -63,16 +97,68 @@ public class RecordProcessor<T> implements IRecordProcessor {
     private int computeRangeInMillis;
 
     // Counter for keeping track of counts per interval.
-    private SlidingWindowCounter<T> counter;
+    private WindowCounter<T> counter;
+    // Estimates distinct referrers per resource over the same window as the counter. Null unless configured.
+    private SlidingWindowDistinctCounter distinctCounter;
+    // Counts records by their timestamps instead. Null unless configured, in which case there is no counter.
+    private EventTimeWindowCounter<T> eventTimeCounter;
+    // The counter in use. Holding its monitor stops the interval thread and the final checkpoint from running
+    // concurrently.
+    private Object countLock;
+    // Records dropped for being too late, and records whose timestamps were clamped for being too far in the future,
+    // as of the last interval
+    private long droppedCount;
+    private long clampedCount;
+    // When the interval the counter's current bucket counts started. Guarded by countLock.
+    private long currentIntervalStartInMillis;
+    // Intervals to advance before the distinct counter covers the whole window again. It is not snapshotted, so it
+    // starts empty even when the counter is restored. Guarded by countLock.
+    private int distinctIntervalsUntilFull;
+    // Set when the window is restored from a snapshot, so the first interval also advances past every interval that
+    // ended while the window was not ticking. Guarded by countLock.
+    private boolean catchUpOnNextInterval;
+
+    // Where the window is snapshotted to, or null if it is not
+    private File snapshotFile;
+    private Timer snapshotTimer = new Timer(NANO_CLOCK);
+    // The snapshot being written, if any
+    private Future<?> snapshotWrite;
+    // Records up to this sequence number are already counted in the restored window, so the records re-delivered
+    // after the last checkpoint are skipped until a later one arrives. Only used by the ingestion thread.
+    private BigInteger restoredSequenceNumber;
+
+    // Checkpoints only cover records whose counts are durable. Ingestion publishes the last sequence number it counted,
+    // and the interval thread queues the tickets of the counts it persists along with the sequence numbers they cover.
+    // The persister may be shared by every shard, so its tickets let this shard wait for its own counts only.
+    private volatile String countedSequenceNumber;
+    private Queue<PersistedCounts> persistedCounts = new ConcurrentLinkedQueue<>();
+    // The last sequence number whose counts are durable and the last one checkpointed. Only used by the ingestion
+    // thread.
+    private String durableSequenceNumber;
+    private String checkpointedSequenceNumber;
 
     // The shard this processor is processing
     private String kinesisShardId;
+    // End of the window last published to LiveCounts. Only used by the tick thread.
+    private long liveCountsWindowEndInMillis = Long.MIN_VALUE;
+
+    // Objects in the window and a rough estimate of the memory they take, as of the last interval. Reported as gauges
+    // labelled with the shard.
+    private AtomicLong counterObjects = new AtomicLong();
+    private AtomicLong counterEstimatedBytes = new AtomicLong();
 
-    // We schedule count updates at a fixed rate (computeIntervalInMillis) on a separate thread
-    private ScheduledExecutorService scheduledExecutor = Executors.newScheduledThreadPool(1);
+    // Runs our count updates every computeIntervalInMillis, usually shared by every processor in the worker
+    private TickScheduler tickScheduler;
+    // Whether we created the scheduler and must shut it down
+    private boolean ownsTickScheduler;
+    private TickScheduler.Registration tickRegistration;
 
     // This is responsible for persisting our counts every interval
     private Persister<T> persister;
+    // Longer ranges computed by rolling up the buckets that leave the window, shortest first, and the levels holding
+    // them. The levels are null unless there are rollups. Guarded by countLock.
+    private List<Rollup<T>> rollups;
+    private RollupWindowCounter<T> rollupCounter;
 
     private RecordProcessorConfig config;
 
@@ -80,7 +166,7 @@ public class RecordProcessor<T> implements IRecordProcessor {
     private Class<T> recordType;
 
     /**
-     * Create a new processor.
+     * Create a new processor that runs its count updates on a scheduler of its own.
      *
      * @param config Configuration for this record processor.
      * @param recordType The type of record we expect to receive as a UTF-8 JSON string.
@@ -93,6 +179,50 @@ public class RecordProcessor<T> implements IRecordProcessor {
             Persister<T> persister,
             int computeRangeInMillis,
             int computeIntervalInMillis) {
+        this(config, recordType, persister, computeRangeInMillis, computeIntervalInMillis, null);
+    }
+
+    /**
+     * Create a new processor without rollups.
+     *
+     * @see #RecordProcessor(RecordProcessorConfig, Class, Persister, int, int, TickScheduler, List)
+     */
+    public RecordProcessor(RecordProcessorConfig config,
+            Class<T> recordType,
+            Persister<T> persister,
+            int computeRangeInMillis,
+            int computeIntervalInMillis,
+            TickScheduler tickScheduler) {
+        this(config,
+                recordType,
+                persister,
+                computeRangeInMillis,
+                computeIntervalInMillis,
+                tickScheduler,
+                Collections.<Rollup<T>> emptyList());
+    }
+
+    /**
+     * Create a new processor.
+     *
+     * @param config Configuration for this record processor.
+     * @param recordType The type of record we expect to receive as a UTF-8 JSON string.
+     * @param persister Counts will be persisted with this persister.
+     * @param computeRangeInMillis Range to compute distinct counts across
+     * @param computeIntervalInMillis Interval between computing total count for the overall time range.
+     * @param tickScheduler Scheduler to run count updates on, ticking every computeIntervalInMillis. If {@code null}
+     *        this processor creates a scheduler of its own.
+     * @param rollups Longer ranges to also compute counts across, shortest first. The first must be longer than
+     *        computeRangeInMillis. Each resolution must be a multiple of the previous resolution, starting with
+     *        computeIntervalInMillis, and evenly divide the difference between its range and the previous range.
+     */
+    public RecordProcessor(RecordProcessorConfig config,
+            Class<T> recordType,
+            Persister<T> persister,
+            int computeRangeInMillis,
+            int computeIntervalInMillis,
+            TickScheduler tickScheduler,
+            List<Rollup<T>> rollups) {
         if (config == null) {
             throw new NullPointerException("config must not be null");
         }
@@ -112,35 +242,158 @@ public class RecordProcessor<T> implements IRecordProcessor {
             throw new IllegalArgumentException("compute range must be evenly divisible by compute interval to support "
                     + "accurate intervals");
         }
+        if (tickScheduler != null && tickScheduler.getIntervalInMillis() != computeIntervalInMillis) {
+            throw new IllegalArgumentException("tickScheduler must tick every computeIntervalInMillis");
+        }
+        if (rollups == null) {
+            throw new NullPointerException("rollups must not be null");
+        }
+        int previousRange = computeRangeInMillis;
+        int previousResolution = computeIntervalInMillis;
+        for (Rollup<T> rollup : rollups) {
+            if (rollup.getRangeInMillis() <= previousRange) {
+                throw new IllegalArgumentException("Each rollup must be longer than the range before it");
+            }
+            if (rollup.getResolutionInMillis() % previousResolution != 0) {
+                throw new IllegalArgumentException("Each rollup resolution must be a multiple of the one before it");
+            }
+            if ((rollup.getRangeInMillis() - previousRange) % rollup.getResolutionInMillis() != 0) {
+                throw new IllegalArgumentException("Each rollup resolution must evenly divide the part of its range "
+                        + "beyond the range before it");
+            }
+            previousRange = rollup.getRangeInMillis();
+            previousResolution = rollup.getResolutionInMillis();
+        }
+        if (!rollups.isEmpty() && config.getWindowTime() == RecordProcessorConfig.WindowTime.EVENT_TIME) {
+            throw new IllegalArgumentException("Event time windows cannot be rolled up");
+        }
+        if (config.getCounterType() == RecordProcessorConfig.CounterType.HEAVY_HITTERS
+                && recordType != com.alertlogic.aws.analytics.poc.Record.class) {
+            throw new IllegalArgumentException("The heavy hitters counter can only count "
+                    + com.alertlogic.aws.analytics.poc.Record.class.getName());
+        }
+        if (config.isCountDistinctFields() && recordType != com.alertlogic.aws.analytics.poc.Record.class) {
+            throw new IllegalArgumentException("Distinct fields can only be counted for "
+                    + com.alertlogic.aws.analytics.poc.Record.class.getName());
+        }
+        if (config.isPublishLiveCounts() && !FieldRecord.class.isAssignableFrom(recordType)) {
+            throw new IllegalArgumentException("Live counts can only be published for "
+                    + FieldRecord.class.getName() + "s");
+        }
+        if (config.getSchema() != null) {
+            if (recordType != DimensionRecord.class) {
+                throw new IllegalArgumentException("Records with a schema are counted as "
+                        + DimensionRecord.class.getName());
+            }
+            // The IDs of dimension values are only meaningful to the process that encoded them
+            if (config.getSnapshotDirectory() != null) {
+                throw new IllegalArgumentException("Records with a schema cannot be snapshotted");
+            }
+        }
+        if (config.getWindowTime() == RecordProcessorConfig.WindowTime.EVENT_TIME) {
+            if (recordType != com.alertlogic.aws.analytics.poc.Record.class) {
+                throw new IllegalArgumentException("Event time windows can only count "
+                        + com.alertlogic.aws.analytics.poc.Record.class.getName());
+            }
+            if (config.isCountDistinctFields()) {
+                throw new IllegalArgumentException("Distinct fields cannot be counted in event time windows");
+            }
+            if (config.isPersistChangedCountsOnly()) {
+                throw new IllegalArgumentException("Event time windows cannot persist changed counts only");
+            }
+            if (config.getSnapshotDirectory() != null) {
+                throw new IllegalArgumentException("Event time windows cannot be snapshotted");
+            }
+        }
 
         this.config = config;
         this.recordType = recordType;
         this.persister = persister;
+        this.rollups = new ArrayList<>(rollups);
         this.computeRangeInMillis = computeRangeInMillis;
         this.computeIntervalInMillis = computeIntervalInMillis;
+        if (tickScheduler == null) {
+            this.tickScheduler = new TickScheduler(computeIntervalInMillis, 1);
+            ownsTickScheduler = true;
+        } else {
+            this.tickScheduler = tickScheduler;
+        }
 
-        // Create an object mapper to deserialize records that ignores unknown properties
-        JSON = new ObjectMapper();
-        JSON.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        decoder = createDecoder();
+        if (config.getSchema() != null) {
+            groupBys = config.getSchema().getGroupBys();
+        }
+    }
+
+    /**
+     * Create the decoder configured for this processor. Records with a schema are decoded into their dimensions.
+     * Streaming decoding is only available for {@link com.alertlogic.aws.analytics.poc.Record}s, any other record
+     * type is data bound.
+     *
+     * @return A decoder for the record type this processor counts.
+     */
+    @SuppressWarnings("unchecked")
+    private RecordDecoder<T> createDecoder() {
+        if (config.getSchema() != null) {
+            return (RecordDecoder<T>) new SchemaRecordDecoder(config.getSchema(), config.getMaxInternedValues());
+        }
+        if (config.getDecoderType() == RecordProcessorConfig.DecoderType.STREAMING
+                && recordType == com.alertlogic.aws.analytics.poc.Record.class) {
+            return (RecordDecoder<T>) new StreamingRecordDecoder(config.getMaxInternedValues());
+        }
+        return new JsonRecordDecoder<>(recordType);
     }
 
     @Override
     public void initialize(String shardId) {
         kinesisShardId = shardId;
         resetCheckpointAlarm();
+        registerGauges();
 
         persister.initialize();
+        for (Rollup<T> rollup : rollups) {
+            rollup.getPersister().initialize();
+        }
 
         // Create a sliding window whose size is large enough to hold an entire range of individual interval counts.
-        counter = new SlidingWindowCounter<>((int) (computeRangeInMillis / computeIntervalInMillis));
+        int windowSize = computeRangeInMillis / computeIntervalInMillis;
+        if (config.getWindowTime() == RecordProcessorConfig.WindowTime.EVENT_TIME) {
+            eventTimeCounter = new EventTimeWindowCounter<>(computeIntervalInMillis,
+                    windowSize,
+                    config.getMaxOutOfOrdernessInMillis(),
+                    config.getAllowedLatenessInMillis(),
+                    config.getIdleTimeoutInMillis(),
+                    config.getMaxFutureSkewInMillis(),
+                    NANO_CLOCK,
+                    SYSTEM_CLOCK);
+            countLock = eventTimeCounter;
+        } else {
+            counter = config.getSchema() == null ? createCounter(windowSize) : createGroupedCounter(windowSize);
+            if (config.isCountDistinctFields()) {
+                distinctCounter = new SlidingWindowDistinctCounter(windowSize, config.getDistinctCountPrecision());
+            }
+            countLock = counter;
+            if (!rollups.isEmpty()) {
+                rollupCounter = createRollupCounter();
+            }
+            currentIntervalStartInMillis = intervalStart(System.currentTimeMillis());
+            if (config.getSnapshotDirectory() != null) {
+                snapshotFile = new File(config.getSnapshotDirectory(), shardId + ".snapshot");
+                catchUpOnNextInterval = restoreSnapshot(windowSize);
+                resetSnapshotAlarm();
+            }
+        }
 
-        // Create a scheduled task that runs every computeIntervalInMillis to compute and
-        // persist the counts.
-        scheduledExecutor.scheduleAtFixedRate(new Runnable() {
+        // Register a task that runs every computeIntervalInMillis to compute and persist the counts. Ticks are aligned
+        // to interval boundaries, so every shard in the worker advances its window at the same time. A restored window
+        // is already full, so it starts ticking right away rather than after the usual warm up delay.
+        long initialDelayInSeconds = catchUpOnNextInterval ? 0 : config.getInitialWindowAdvanceDelayInSeconds();
+        tickRegistration = tickScheduler.register(new Runnable() {
             @Override
             public void run() {
-                // Synchronize on the counter so we stop advancing the interval while we're checkpointing
-                synchronized (counter) {
+                // Synchronize on the counter so we stop advancing the interval while we're checkpointing at shutdown
+                long start = System.nanoTime();
+                synchronized (countLock) {
                     try {
                         advanceOneInterval();
                     } catch (Exception ex) {
@@ -148,25 +401,183 @@ public class RecordProcessor<T> implements IRecordProcessor {
                                 + "ms). Skipping this interval.", ex);
                     }
                 }
+                TICK_DURATION.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
             }
         },
-                TimeUnit.SECONDS.toMillis(config.getInitialWindowAdvanceDelayInSeconds()),
-                computeIntervalInMillis,
-                TimeUnit.MILLISECONDS);
+                initialDelayInSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Report the size of this processor's window as gauges labelled with its shard.
+     */
+    private void registerGauges() {
+        Metrics.registerGauge(Metrics.name("counter_objects", "shard", kinesisShardId), new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return counterObjects.get();
+            }
+        });
+        Metrics.registerGauge(Metrics.name("counter_estimated_bytes", "shard", kinesisShardId), new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return counterEstimatedBytes.get();
+            }
+        });
+    }
+
+    /**
+     * Create the counter configured for this processor. Every counter returned is safe to increment while the
+     * interval thread advances the window.
+     *
+     * @param windowSize Number of intervals the counter's window holds.
+     * @return A new, empty counter.
+     */
+    private WindowCounter<T> createCounter(int windowSize) {
+        switch (config.getCounterType()) {
+            case SYNCHRONIZED:
+                return new SynchronizedWindowCounter<>(new SlidingWindowCounter<T>(windowSize));
+            case COMPACT:
+                return new SynchronizedWindowCounter<>(
+                        new SlidingWindowCounter<>(new OpenAddressingBucketCounter<T>(windowSize)));
+            case CONCURRENT:
+                return new ConcurrentSlidingWindowCounter<>(windowSize);
+            case SKETCH:
+                return new SynchronizedWindowCounter<>(
+                        new SlidingWindowCounter<>(new CountMinSketchBucketCounter<T>(windowSize,
+                                config.getSketchError(),
+                                config.getSketchConfidence(),
+                                config.getSketchMaxTrackedObjects())));
+            case HEAVY_HITTERS:
+                // The record type is checked when this processor is created
+                @SuppressWarnings("unchecked")
+                BucketCounter<T> heavyHitters = (BucketCounter<T>) new SpaceSavingBucketCounter(windowSize,
+                        config.getHeavyHitterCountersPerResource(),
+                        Math.min(config.getHeavyHitterTopN(), config.getHeavyHitterCountersPerResource()));
+                return new SynchronizedWindowCounter<>(new SlidingWindowCounter<>(heavyHitters));
+            default:
+                throw new IllegalStateException("Unknown counter type: " + config.getCounterType());
+        }
+    }
+
+    /**
+     * Create a counter that keeps the records of each group-by of the schema apart, each in a counter of the
+     * configured kind, so every grouping set is counted as records arrive.
+     *
+     * @param windowSize Number of intervals the counter's window holds.
+     * @return A new, empty counter.
+     */
+    @SuppressWarnings("unchecked")
+    private WindowCounter<T> createGroupedCounter(int windowSize) {
+        List<WindowCounter<DimensionRecord>> counters = new ArrayList<>();
+        for (int i = 0; i < groupBys.size(); i++) {
+            // The record type is checked when this processor is created
+            counters.add((WindowCounter<DimensionRecord>) createCounter(windowSize));
+        }
+        return (WindowCounter<T>) new GroupedWindowCounter(config.getSchema(), counters);
+    }
+
+    /**
+     * Create the levels of the rollups. Each level holds the part of a rollup's range beyond the previous range, plus
+     * a bucket to roll up into, and counts with the same kind of counter as the window.
+     *
+     * @return A new, empty rollup.
+     */
+    private RollupWindowCounter<T> createRollupCounter() {
+        List<BucketCounter<T>> levelCounters = new ArrayList<>(rollups.size());
+        int[] intervalsPerBucket = new int[rollups.size()];
+        int previousRange = computeRangeInMillis;
+        for (int l = 0; l < rollups.size(); l++) {
+            Rollup<T> rollup = rollups.get(l);
+            int buckets = (rollup.getRangeInMillis() - previousRange) / rollup.getResolutionInMillis();
+            levelCounters.add(createBucketCounter(buckets + 1));
+            intervalsPerBucket[l] = rollup.getResolutionInMillis() / computeIntervalInMillis;
+            previousRange = rollup.getRangeInMillis();
+        }
+        return new RollupWindowCounter<>(levelCounters, intervalsPerBucket);
+    }
+
+    /**
+     * Create a bucket counter of the configured kind. Rollups are only touched by the interval thread, so no
+     * concurrent counter is needed.
+     *
+     * @param buckets Number of buckets the counter holds.
+     * @return A new, empty counter.
+     */
+    private BucketCounter<T> createBucketCounter(int buckets) {
+        switch (config.getCounterType()) {
+            case SYNCHRONIZED:
+            case CONCURRENT:
+                return new BucketBasedCounter<>(buckets);
+            case COMPACT:
+                return new OpenAddressingBucketCounter<>(buckets);
+            case SKETCH:
+                return new CountMinSketchBucketCounter<>(buckets,
+                        config.getSketchError(),
+                        config.getSketchConfidence(),
+                        config.getSketchMaxTrackedObjects());
+            case HEAVY_HITTERS:
+                // The record type is checked when this processor is created
+                @SuppressWarnings("unchecked")
+                BucketCounter<T> heavyHitters = (BucketCounter<T>) new SpaceSavingBucketCounter(buckets,
+                        config.getHeavyHitterCountersPerResource(),
+                        Math.min(config.getHeavyHitterTopN(), config.getHeavyHitterCountersPerResource()));
+                return heavyHitters;
+            default:
+                throw new IllegalStateException("Unknown counter type: " + config.getCounterType());
+        }
     }
 
     /**
      * Advance the internal sliding window counter one interval. This will invoke our count persister if the window is
-     * full.
+     * full. With event time windows, persist every window the watermark has passed instead.
      */
     protected void advanceOneInterval() {
+        if (eventTimeCounter != null) {
+            persistEventTimeWindows();
+            return;
+        }
+
         Map<T, Long> counts = null;
+        // The counts to persist when only changed counts are persisted
+        Map<T, Long> changedCounts = null;
+        Map<String, Long> distinctCounts = Collections.emptyMap();
+        // The counts of each rollup due this interval, by rollup
+        Map<Rollup<T>, Map<T, Long>> rollupCounts = new HashMap<>();
+        // Every record up to this sequence number has been counted, so it is covered by the counts read below
+        String sequenceNumber = countedSequenceNumber;
         synchronized (counter) {
+            if (catchUpOnNextInterval) {
+                catchUpOnNextInterval = false;
+                catchUpToCurrentInterval();
+            }
+            Map<T, Long> expired = null;
             // Only persist the counts if we have a full range of data to report. We don't want partial
             // counts each time the process starts.
             if (shouldPersistCounts()) {
                 counts = counter.getCounts();
+                // Read the changes before pruning so counts that dropped to 0 are persisted
+                if (config.isPersistChangedCountsOnly()) {
+                    changedCounts = counter.getChangedCounts();
+                }
                 counter.pruneEmptyObjects();
+                counterObjects.set(counts.size());
+                counterEstimatedBytes.set(counts.size()
+                        * (8L * computeRangeInMillis / computeIntervalInMillis + ESTIMATED_OBJECT_OVERHEAD_IN_BYTES));
+                if (distinctCounter != null && distinctIntervalsUntilFull == 0) {
+                    distinctCounts = distinctCounter.getDistinctCounts();
+                }
+                if (rollupCounter != null) {
+                    // A rollup covers the window's counts plus the levels up to its own
+                    for (int l = 0; l < rollups.size(); l++) {
+                        if (rollupCounter.isDue(l)) {
+                            Map<T, Long> rollup = new HashMap<>(counts);
+                            addCounts(rollup, rollupCounter.getCounts(l));
+                            rollupCounts.put(rollups.get(l), rollup);
+                        }
+                    }
+                    expired = counter.getExpiringBucketCounts();
+                }
             } else {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug(String.format("We have not collected enough interval samples to calculate across the "
@@ -175,43 +586,413 @@ public class RecordProcessor<T> implements IRecordProcessor {
             }
             // Advance the window "1 tick"
             counter.advanceWindow();
+            if (distinctCounter != null) {
+                distinctCounter.advanceWindow();
+                if (distinctIntervalsUntilFull > 0) {
+                    distinctIntervalsUntilFull--;
+                }
+            }
+            currentIntervalStartInMillis = intervalStart(System.currentTimeMillis() + computeIntervalInMillis / 2);
+            // Rolling up starts once the window is full, so the levels only ever hold complete intervals
+            if (expired != null) {
+                rollupCounter.advance(expired);
+            }
+        }
+        // Persist the counts if we have a full range. Rollups are queued first, so the sequence number only becomes
+        // durable once they are too.
+        Date windowEnd = alignToInterval(System.currentTimeMillis());
+        for (Map.Entry<Rollup<T>, Map<T, Long>> rollup : rollupCounts.entrySet()) {
+            FlushTicket ticket = rollup.getKey().getPersister().persist(rollup.getValue(),
+                    Collections.<String, Long> emptyMap(),
+                    windowEnd);
+            persistedCounts.add(new PersistedCounts(null, ticket));
         }
-        // Persist the counts if we have a full range
         if (counts != null) {
-            persister.persist(counts);
+            FlushTicket ticket =
+                    persister.persist(changedCounts != null ? changedCounts : counts, distinctCounts, windowEnd);
+            persistedCounts.add(new PersistedCounts(sequenceNumber, ticket));
+            if (config.isPublishLiveCounts()) {
+                publishLiveCounts(counts, windowEnd);
+            }
         }
     }
 
+    /**
+     * Replace this shard's live counts with a window's counts, so queries see them without reading them back from
+     * the persister. Windows that do not end after the window already published, such as late windows reported
+     * again, are ignored so the live counts never go back in time.
+     *
+     * @param counts Counts of the window.
+     * @param windowEnd When the window ends.
+     */
+    @SuppressWarnings("unchecked")
+    private void publishLiveCounts(Map<T, Long> counts, Date windowEnd) {
+        if (windowEnd.getTime() <= liveCountsWindowEndInMillis) {
+            return;
+        }
+        liveCountsWindowEndInMillis = windowEnd.getTime();
+        // The record type is checked when this processor is created
+        LiveCounts.publish(kinesisShardId,
+                LiveCounts.snapshot((Map<? extends FieldRecord, Long>) counts, config.getLiveCountsTopK(), windowEnd));
+    }
+
+    /**
+     * Add counts to a running total.
+     *
+     * @param totals Totals to add to.
+     * @param counts Counts to add.
+     */
+    private static <T> void addCounts(Map<T, Long> totals, Map<T, Long> counts) {
+        for (Map.Entry<T, Long> count : counts.entrySet()) {
+            Long total = totals.get(count.getKey());
+            totals.put(count.getKey(), total == null ? count.getValue() : total + count.getValue());
+        }
+    }
+
+    /**
+     * Persist the event time windows that are complete or were updated by late records.
+     */
+    private void persistEventTimeWindows() {
+        List<EventTimeWindowCounter.Window<T>> windows = eventTimeCounter.advance();
+        for (EventTimeWindowCounter.Window<T> window : windows) {
+            FlushTicket ticket = persister.persist(window.getCounts(),
+                    Collections.<String, Long> emptyMap(),
+                    new Date(window.getEndInMillis()));
+            persistedCounts.add(new PersistedCounts(null, ticket));
+        }
+        if (config.isPublishLiveCounts() && !windows.isEmpty()) {
+            // Late windows are reported first, but don't rely on the order
+            EventTimeWindowCounter.Window<T> latest = windows.get(0);
+            for (EventTimeWindowCounter.Window<T> window : windows) {
+                if (window.getEndInMillis() > latest.getEndInMillis()) {
+                    latest = window;
+                }
+            }
+            publishLiveCounts(latest.getCounts(), new Date(latest.getEndInMillis()));
+        }
+        // Queued after the windows above, so the sequence number only becomes durable once they are
+        String sequenceNumber = eventTimeCounter.getReportedSequenceNumber();
+        if (sequenceNumber != null) {
+            persistedCounts.add(new PersistedCounts(sequenceNumber, FlushTicket.COMPLETE));
+        }
+
+        long dropped = eventTimeCounter.getDroppedCount();
+        if (dropped > droppedCount) {
+            LOG.warn(String.format("Dropped %d records from shard %s that arrived more than %dms after the watermark",
+                    dropped - droppedCount,
+                    kinesisShardId,
+                    config.getAllowedLatenessInMillis()));
+            droppedCount = dropped;
+        }
+        long clamped = eventTimeCounter.getClampedCount();
+        if (clamped > clampedCount) {
+            LOG.warn(String.format("Clamped the timestamps of %d records from shard %s that were more than %dms ahead "
+                    + "of the clock",
+                    clamped - clampedCount,
+                    kinesisShardId,
+                    config.getMaxFutureSkewInMillis()));
+            EVENT_TIMES_CLAMPED.addAndGet(clamped - clampedCount);
+            clampedCount = clamped;
+        }
+    }
+
+    /**
+     * Round a time to the nearest interval boundary. The interval thread runs on a fixed schedule, so this gives the
+     * windows it computes the same timestamps no matter how far into an interval the schedule started.
+     *
+     * @param timeInMillis Time in milliseconds since the epoch.
+     * @return The nearest interval boundary.
+     */
+    private Date alignToInterval(long timeInMillis) {
+        long aligned = (timeInMillis + computeIntervalInMillis / 2) / computeIntervalInMillis;
+        return new Date(aligned * computeIntervalInMillis);
+    }
+
+    /**
+     * @return The start of the interval a time falls in.
+     */
+    private long intervalStart(long timeInMillis) {
+        return timeInMillis - timeInMillis % computeIntervalInMillis;
+    }
+
+    /**
+     * Load the window from the shard's snapshot if there is a usable one. Buckets for the intervals that passed since
+     * the snapshot was taken are advanced out of the window, so the window ends up where it would be had this
+     * processor kept running, less the records counted since.
+     *
+     * @param windowSize Number of intervals in the window.
+     * @return {@code true} if the window was restored.
+     */
+    private boolean restoreSnapshot(int windowSize) {
+        WindowSnapshot<T> snapshot;
+        try {
+            snapshot = WindowSnapshot.read(snapshotFile, recordType);
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable window snapshot " + snapshotFile, e);
+            return false;
+        }
+        if (snapshot == null) {
+            return false;
+        }
+        if (!kinesisShardId.equals(snapshot.getShardId())
+                || snapshot.getIntervalInMillis() != computeIntervalInMillis
+                || snapshot.getBucketCounts().size() > windowSize) {
+            LOG.info("Ignoring window snapshot " + snapshotFile + " taken from shard " + snapshot.getShardId()
+                    + " with a different window");
+            return false;
+        }
+        long elapsedIntervals = (currentIntervalStartInMillis - snapshot.getCurrentIntervalStartInMillis())
+                / computeIntervalInMillis;
+        if (elapsedIntervals < 0 || elapsedIntervals >= windowSize) {
+            LOG.info("Ignoring window snapshot " + snapshotFile + " taken " + elapsedIntervals
+                    + " intervals ago");
+            return false;
+        }
+
+        counter.restore(snapshot.getBucketCounts(), snapshot.isWindowFull());
+        for (long i = 0; i < elapsedIntervals; i++) {
+            counter.advanceWindow();
+        }
+        counter.pruneEmptyObjects();
+        if (distinctCounter != null) {
+            distinctIntervalsUntilFull = windowSize;
+        }
+        if (snapshot.getSequenceNumber() != null) {
+            restoredSequenceNumber = new BigInteger(snapshot.getSequenceNumber());
+            countedSequenceNumber = snapshot.getSequenceNumber();
+        }
+        LOG.info(String.format("Restored the window of shard %s from %s, %d intervals old, up to sequence number %s",
+                kinesisShardId,
+                snapshotFile,
+                elapsedIntervals,
+                snapshot.getSequenceNumber()));
+        return true;
+    }
+
+    /**
+     * Advance the window past the intervals that ended since its current bucket started, other than the one this tick
+     * ends, so the counts read next cover the last range rather than stale buckets plus everything counted since.
+     * Buckets advanced out here are not rolled up, since the rollups are not restored either.
+     */
+    private void catchUpToCurrentInterval() {
+        // The interval this tick ends, allowing for the tick running a little early or late
+        long endingIntervalStart = intervalStart(System.currentTimeMillis() + computeIntervalInMillis / 2)
+                - computeIntervalInMillis;
+        long missedIntervals = (endingIntervalStart - currentIntervalStartInMillis) / computeIntervalInMillis;
+        int windowSize = computeRangeInMillis / computeIntervalInMillis;
+        for (long i = 0; i < Math.min(missedIntervals, windowSize); i++) {
+            counter.advanceWindow();
+            if (distinctCounter != null) {
+                distinctCounter.advanceWindow();
+                if (distinctIntervalsUntilFull > 0) {
+                    distinctIntervalsUntilFull--;
+                }
+            }
+        }
+        if (missedIntervals > 0) {
+            currentIntervalStartInMillis = endingIntervalStart;
+            LOG.info(String.format("Advanced the restored window of shard %s past %d intervals that ended before it"
+                    + " started ticking", kinesisShardId, missedIntervals));
+        }
+    }
+
+    /**
+     * Snapshot the window in the background. Does nothing if the last snapshot is still being written.
+     */
+    private void snapshotWindow() {
+        if (snapshotWrite != null && !snapshotWrite.isDone()) {
+            return;
+        }
+        final WindowSnapshot<T> snapshot = takeSnapshot();
+        snapshotWrite = SNAPSHOT_WRITES.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(snapshot);
+            }
+        });
+    }
+
+    /**
+     * @return The window's current bucket counts, tagged with the last sequence number counted into them.
+     */
+    private WindowSnapshot<T> takeSnapshot() {
+        // Hold the lock so the window does not advance while it is copied
+        synchronized (countLock) {
+            return new WindowSnapshot<>(kinesisShardId,
+                    countedSequenceNumber,
+                    computeIntervalInMillis,
+                    currentIntervalStartInMillis,
+                    counter.isWindowFull(),
+                    counter.getBucketCounts());
+        }
+    }
+
+    private void writeSnapshot(WindowSnapshot<T> snapshot) {
+        try {
+            snapshot.write(snapshotFile);
+        } catch (IOException e) {
+            LOG.warn("Error writing window snapshot " + snapshotFile + ". Will retry at the next snapshot.", e);
+        }
+    }
+
+    /**
+     * Leave a final snapshot for whoever processes this shard on this host next. A shard that ended will never be
+     * processed again, so its snapshot is removed instead.
+     *
+     * @throws InterruptedException if interrupted while waiting for the last snapshot to be written.
+     */
+    private void finishSnapshots(ShutdownReason reason) throws InterruptedException {
+        if (snapshotWrite != null) {
+            try {
+                snapshotWrite.get();
+            } catch (ExecutionException e) {
+                LOG.warn("Error writing window snapshot " + snapshotFile, e.getCause());
+            }
+        }
+        if (reason == ShutdownReason.TERMINATE) {
+            if (snapshotFile.exists() && !snapshotFile.delete()) {
+                LOG.warn("Unable to delete the window snapshot of ended shard " + kinesisShardId + ": " + snapshotFile);
+            }
+        } else {
+            writeSnapshot(takeSnapshot());
+        }
+    }
+
+    /**
+     * Set the timer for the next snapshot.
+     */
+    private void resetSnapshotAlarm() {
+        snapshotTimer.alarmIn(config.getSnapshotIntervalInSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return When a record happened: its timestamp, or now if it has none.
+     */
+    private static long eventTimeOf(Object record) {
+        long timestamp = ((com.alertlogic.aws.analytics.poc.Record) record).getTimestamp();
+        return timestamp > 0 ? timestamp : System.currentTimeMillis();
+    }
+
     @Override
     public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
+        long start = System.nanoTime();
+        long processed = 0;
         for (Record r : records) {
-            // Deserialize each record as an UTF-8 encoded JSON String of the type provided
-            T record;
+            if (restoredSequenceNumber != null) {
+                if (new BigInteger(r.getSequenceNumber()).compareTo(restoredSequenceNumber) <= 0) {
+                    continue;
+                }
+                restoredSequenceNumber = null;
+            }
+            // A record may be an aggregate of many records, see RecordAggregator
+            List<ByteBuffer> datas;
             try {
-                record = JSON.readValue(r.getData().array(), recordType);
+                datas = RecordDeaggregator.deaggregate(r.getData());
             } catch (IOException e) {
-                LOG.warn("Skipping record. Unable to parse record into Record. Partition Key: "
+                DECODE_FAILURES.incrementAndGet();
+                LOG.warn("Skipping record. Unable to read aggregated records. Partition Key: "
                         + r.getPartitionKey() + ". Sequence Number: " + r.getSequenceNumber(),
                         e);
                 continue;
             }
-            // Increment the counter for the new record. This is synchronized because there is another thread reading from
-            // the counter to compute running totals every interval.
-            synchronized (counter) {
+            for (ByteBuffer data : datas) {
+                // Deserialize each record as an UTF-8 encoded JSON String of the type provided
+                T record;
+                try {
+                    record = decoder.decode(data);
+                } catch (IOException e) {
+                    DECODE_FAILURES.incrementAndGet();
+                    LOG.warn("Skipping record. Unable to parse record into Record. Partition Key: "
+                            + r.getPartitionKey() + ". Sequence Number: " + r.getSequenceNumber(),
+                            e);
+                    continue;
+                }
+                processed++;
+                // Increment the counter for the new record. The counter is safe to update while another thread reads
+                // from it to compute running totals every interval.
+                if (eventTimeCounter != null) {
+                    eventTimeCounter.increment(record, eventTimeOf(record));
+                    continue;
+                }
+                if (groupBys != null) {
+                    countGroups(record);
+                    continue;
+                }
                 counter.increment(record);
+                if (distinctCounter != null) {
+                    distinctCounter.add((com.alertlogic.aws.analytics.poc.Record) record);
+                }
+            }
+        }
+
+        if (!records.isEmpty()) {
+            String sequenceNumber = records.get(records.size() - 1).getSequenceNumber();
+            if (eventTimeCounter != null) {
+                eventTimeCounter.markSequenceNumber(sequenceNumber);
             }
+            countedSequenceNumber = sequenceNumber;
         }
 
-        // Checkpoint if it's time to!
+        if (snapshotFile != null && snapshotTimer.isTimeUp()) {
+            snapshotWindow();
+            resetSnapshotAlarm();
+        }
+
+        // Checkpoint at the last sequence number whose counts are durable. This never waits for the persister, and
+        // never for counts from other shards.
+        advanceDurableSequenceNumber();
         if (checkpointTimer.isTimeUp()) {
-            // Obtain a lock on the counter to prevent additional counts from being calculated while checkpointing.
-            synchronized (counter) {
-                checkpoint(checkpointer);
-                resetCheckpointAlarm();
+            if (durableSequenceNumber != null && !durableSequenceNumber.equals(checkpointedSequenceNumber)) {
+                checkpoint(checkpointer, durableSequenceNumber);
+                checkpointedSequenceNumber = durableSequenceNumber;
+            }
+            resetCheckpointAlarm();
+        }
+
+        RECORDS_PROCESSED.mark(processed);
+        PROCESS_RECORDS_LATENCY.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * Count a decoded record once for each group-by, as the record holding only the group-by's dimensions. The
+     * counter keeps each group-by's counts apart.
+     *
+     * @param record A record decoded with the schema.
+     */
+    @SuppressWarnings("unchecked")
+    private void countGroups(T record) {
+        DimensionRecord decoded = (DimensionRecord) record;
+        for (GroupBy groupBy : groupBys) {
+            counter.increment((T) groupBy.project(decoded));
+        }
+    }
+
+    /**
+     * Move the durable sequence number past every persisted count whose ticket has completed, in the order they were
+     * persisted.
+     */
+    private void advanceDurableSequenceNumber() {
+        PersistedCounts head;
+        while ((head = persistedCounts.peek()) != null && head.ticket.isComplete()) {
+            persistedCounts.poll();
+            if (head.sequenceNumber != null) {
+                durableSequenceNumber = head.sequenceNumber;
             }
         }
     }
 
+    /**
+     * Wait for every count this processor has persisted to be completely handled.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void awaitPersistedCounts() throws InterruptedException {
+        PersistedCounts head;
+        while ((head = persistedCounts.poll()) != null) {
+            head.ticket.await(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
     /**
      * We must have collected a full range window worth of samples before we should persist any counts.
      *
@@ -224,25 +1005,36 @@ public class RecordProcessor<T> implements IRecordProcessor {
     @Override
     public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
         LOG.info("Shutting down record processor for shard: " + kinesisShardId);
+        Metrics.removeGauge(Metrics.name("counter_objects", "shard", kinesisShardId));
+        Metrics.removeGauge(Metrics.name("counter_estimated_bytes", "shard", kinesisShardId));
+        LiveCounts.remove(kinesisShardId);
 
-        scheduledExecutor.shutdown();
         try {
-            // Wait for at most 30 seconds for the executor service's tasks to complete
-            if (!scheduledExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
-                LOG.warn("Failed to properly shut down interval thread pool for calculating interval counts and persisting them. Some counts may not have been persisted.");
+            // Stop our interval task and wait for at most 30 seconds for it to complete
+            boolean stopped = tickRegistration == null || tickRegistration.cancel(30, TimeUnit.SECONDS);
+            if (ownsTickScheduler) {
+                tickScheduler.shutdown();
+            }
+            if (!stopped) {
+                LOG.warn("Failed to properly stop the interval task for calculating interval counts and persisting them. Some counts may not have been persisted.");
             } else {
-                // Only checkpoint if we successfully shut down the thread pool
+                // Only checkpoint if we successfully stopped the interval task
                 // Important to checkpoint after reaching end of shard, so we can start processing data from child
                 // shards.
                 if (reason == ShutdownReason.TERMINATE) {
-                    synchronized (counter) {
-                        checkpoint(checkpointer);
+                    synchronized (countLock) {
+                        checkpoint(checkpointer, null);
                     }
                 }
+                if (snapshotFile != null) {
+                    finishSnapshots(reason);
+                }
             }
         } catch (InterruptedException ie) {
             // We failed to shutdown cleanly, do not checkpoint.
-            scheduledExecutor.shutdownNow();
+            if (ownsTickScheduler) {
+                tickScheduler.shutdown();
+            }
             // Handle this similar to a host or process crashing and abort the JVM.
             LOG.fatal("Couldn't successfully persist data within the max wait time. Aborting the JVM to mimic a crash.");
             System.exit(1);
@@ -257,17 +1049,35 @@ public class RecordProcessor<T> implements IRecordProcessor {
     }
 
     /**
-     * Checkpoint with retries.
+     * Checkpoint with retries, recording how long the checkpoint took, including any wait for persisted counts.
      *
      * @param checkpointer
+     * @param sequenceNumber Sequence number whose counts are durable, or {@code null} to wait for every count persisted
+     *        and checkpoint every record received.
+     */
+    private void checkpoint(IRecordProcessorCheckpointer checkpointer, String sequenceNumber) {
+        LOG.info("Checkpointing shard " + kinesisShardId + (sequenceNumber == null ? "" : " at " + sequenceNumber));
+        long start = System.nanoTime();
+        try {
+            checkpointWithRetries(checkpointer, sequenceNumber);
+        } finally {
+            CHECKPOINT_WAIT.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * @see #checkpoint(IRecordProcessorCheckpointer, String)
      */
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Checkpointing shard " + kinesisShardId);
+    private void checkpointWithRetries(IRecordProcessorCheckpointer checkpointer, String sequenceNumber) {
         for (int i = 0; i < config.getCheckpointRetries(); i++) {
             try {
-                // First checkpoint our persister to guarantee all calculated counts have been persisted
-                persister.checkpoint();
-                checkpointer.checkpoint();
+                if (sequenceNumber == null) {
+                    // First wait for our counts to be persisted to guarantee all calculated counts are durable
+                    awaitPersistedCounts();
+                    checkpointer.checkpoint();
+                } else {
+                    checkpointer.checkpoint(sequenceNumber);
+                }
                 return;
             } catch (ShutdownException se) {
                 // Ignore checkpoint if the processor instance has been shutdown (fail over).
@@ -301,4 +1111,18 @@ public class RecordProcessor<T> implements IRecordProcessor {
         LOG.fatal("Couldn't successfully persist data within max retry limit. Aborting the JVM to mimic a crash.");
         System.exit(1);
     }
+
+    /**
+     * Counts handed to the persister, the ticket that completes once they are durable and the last sequence number
+     * they cover, if any.
+     */
+    private static class PersistedCounts {
+        private String sequenceNumber;
+        private FlushTicket ticket;
+
+        PersistedCounts(String sequenceNumber, FlushTicket ticket) {
+            this.sequenceNumber = sequenceNumber;
+            this.ticket = ticket;
+        }
+    }
 }
@@ -19,6 +19,70 @@ package com.alertlogic.aws.analytics.poc;
  * The configuration settings for a {@link RecordProcessor}.
  */
 public class RecordProcessorConfig {
+
+    /**
+     * The counter implementations a {@link RecordProcessor} can count records with.
+     */
+    public enum CounterType {
+        /**
+         * A {@link SlidingWindowCounter} guarded by a single monitor shared by ingestion and the interval thread.
+         */
+        SYNCHRONIZED,
+        /**
+         * A {@link SlidingWindowCounter} backed by an {@link OpenAddressingBucketCounter} and guarded by a single
+         * monitor. Suited to a large number of distinct records.
+         */
+        COMPACT,
+        /**
+         * A {@link ConcurrentSlidingWindowCounter}. Ingestion never blocks on the interval thread.
+         */
+        CONCURRENT,
+        /**
+         * A {@link SlidingWindowCounter} backed by a {@link CountMinSketchBucketCounter} and guarded by a single
+         * monitor. Counts are approximate but memory is fixed no matter how many distinct records arrive.
+         */
+        SKETCH,
+        /**
+         * A {@link SlidingWindowCounter} backed by a {@link SpaceSavingBucketCounter} and guarded by a single
+         * monitor. Only the heavy hitters of each resource are counted, in fixed memory per resource, and the top N
+         * of each resource are handed to the persister already ranked. Only applies when counting {@link Record}s.
+         */
+        HEAVY_HITTERS
+    }
+
+    /**
+     * The ways a {@link RecordProcessor} can decode the JSON data of each Amazon Kinesis record.
+     */
+    public enum DecoderType {
+        /**
+         * Bind the whole record with a {@link JsonRecordDecoder}.
+         */
+        DATABIND,
+        /**
+         * Read only the counted fields with a {@link StreamingRecordDecoder}, falling back to data binding for
+         * records it does not understand. Only applies when counting {@link Record}s.
+         */
+        STREAMING
+    }
+
+    /**
+     * The clocks a {@link RecordProcessor} can assign records to intervals by.
+     */
+    public enum WindowTime {
+        /**
+         * Count each record in the interval that is current when it is processed, and advance the window on a fixed
+         * schedule.
+         */
+        PROCESSING_TIME,
+        /**
+         * Count each record in the interval its timestamp falls in with an {@link EventTimeWindowCounter}, and report
+         * windows as the watermark passes them. Counts are exact; the counter type and distinct counting do not apply.
+         * Records without a timestamp are counted at the time they are processed. Only applies when counting
+         * {@link Record}s.
+         */
+        EVENT_TIME
+    }
+
     // How often to checkpoint
     private long checkpointIntervalInSeconds = 60L;
     // Backoff and retry settings for checkpointing
@@ -26,6 +90,46 @@ public class RecordProcessorConfig {
     private long checkpointRetries = 10;
     // The initial amount of time to wait after initialize() is called before advancing the interval window.
     private long initialWindowAdvanceDelayInSeconds = 10L;
+    // The counter used to compute counts over the sliding window.
+    private CounterType counterType = CounterType.CONCURRENT;
+    // How to decode each record, and how many distinct field values the streaming decoder may intern.
+    private DecoderType decoderType = DecoderType.STREAMING;
+    private int maxInternedValues = 65536;
+    // Error and confidence bounds of the sketch counter, and how many distinct records it reports counts for.
+    private double sketchError = 0.001;
+    private double sketchConfidence = 0.99;
+    private int sketchMaxTrackedObjects = 10000;
+    // Records counted per resource in each interval by the heavy hitters counter, and how many it reports.
+    private int heavyHitterCountersPerResource = 1000;
+    private int heavyHitterTopN = 100;
+    // Whether to estimate the number of distinct referrers of each resource, and the precision of the estimates.
+    private boolean countDistinctFields = false;
+    private int distinctCountPrecision = 10;
+    // Which clock assigns records to intervals. With event time, how far behind the latest event time the watermark
+    // trails, how late records may still be counted, how long to wait for records before advancing the watermark
+    // with the wall clock, and how far ahead of the wall clock a record's timestamp may be before it is clamped.
+    private WindowTime windowTime = WindowTime.PROCESSING_TIME;
+    private long maxOutOfOrdernessInMillis = 1000L;
+    private long allowedLatenessInMillis = 10000L;
+    private long idleTimeoutInMillis = 10000L;
+    private long maxFutureSkewInMillis = 60000L;
+    // Threads a RecordProcessorFactory shares between its processors to compute and persist counts every interval.
+    private int tickThreads = 4;
+    // Local directory to snapshot each shard's window to so a restarted processor can resume with a full window, or
+    // null to not snapshot, and how often to snapshot.
+    private String snapshotDirectory = null;
+    private long snapshotIntervalInSeconds = 10L;
+    // Dimensions to decode records into and the group-bys to count them by, or null to count records of the record
+    // type as they are.
+    private RecordSchema schema = null;
+    // Whether to publish each window to LiveCounts so it can be queried, and how many referrers to keep per resource.
+    private boolean publishLiveCounts = false;
+    private int liveCountsTopK = 100;
+    // Whether to persist only the counts that changed since the last interval instead of every count in the window.
+    // Counts that dropped to 0 are persisted as 0. This only suits persisters that update each record's count on its
+    // own; persisters that replace all counts of a resource at once, such as the DynamoDBPersister, would lose the
+    // counts left out. Does not apply to event time windows.
+    private boolean persistChangedCountsOnly = false;
 
     public long getCheckpointIntervalInSeconds() {
         return checkpointIntervalInSeconds;
@@ -59,6 +163,238 @@ public class RecordProcessorConfig {
         this.initialWindowAdvanceDelayInSeconds = initialWindowAdvanceDelayInSeconds;
     }
 
+    public CounterType getCounterType() {
+        return counterType;
+    }
+
+    public void setCounterType(CounterType counterType) {
+        if (counterType == null) {
+            throw new NullPointerException("counterType must not be null");
+        }
+        this.counterType = counterType;
+    }
+
+    public DecoderType getDecoderType() {
+        return decoderType;
+    }
+
+    public void setDecoderType(DecoderType decoderType) {
+        if (decoderType == null) {
+            throw new NullPointerException("decoderType must not be null");
+        }
+        this.decoderType = decoderType;
+    }
+
+    public int getMaxInternedValues() {
+        return maxInternedValues;
+    }
+
+    public void setMaxInternedValues(int maxInternedValues) {
+        if (maxInternedValues < 1) {
+            throw new IllegalArgumentException("maxInternedValues must be >= 1");
+        }
+        this.maxInternedValues = maxInternedValues;
+    }
+
+    public double getSketchError() {
+        return sketchError;
+    }
+
+    public void setSketchError(double sketchError) {
+        if (sketchError <= 0 || sketchError >= 1) {
+            throw new IllegalArgumentException("sketchError must be > 0 and < 1");
+        }
+        this.sketchError = sketchError;
+    }
+
+    public double getSketchConfidence() {
+        return sketchConfidence;
+    }
+
+    public void setSketchConfidence(double sketchConfidence) {
+        if (sketchConfidence <= 0 || sketchConfidence >= 1) {
+            throw new IllegalArgumentException("sketchConfidence must be > 0 and < 1");
+        }
+        this.sketchConfidence = sketchConfidence;
+    }
+
+    public int getSketchMaxTrackedObjects() {
+        return sketchMaxTrackedObjects;
+    }
+
+    public void setSketchMaxTrackedObjects(int sketchMaxTrackedObjects) {
+        if (sketchMaxTrackedObjects < 1) {
+            throw new IllegalArgumentException("sketchMaxTrackedObjects must be >= 1");
+        }
+        this.sketchMaxTrackedObjects = sketchMaxTrackedObjects;
+    }
+
+    public int getHeavyHitterCountersPerResource() {
+        return heavyHitterCountersPerResource;
+    }
+
+    public void setHeavyHitterCountersPerResource(int heavyHitterCountersPerResource) {
+        if (heavyHitterCountersPerResource < 1) {
+            throw new IllegalArgumentException("heavyHitterCountersPerResource must be >= 1");
+        }
+        this.heavyHitterCountersPerResource = heavyHitterCountersPerResource;
+    }
+
+    public int getHeavyHitterTopN() {
+        return heavyHitterTopN;
+    }
+
+    public void setHeavyHitterTopN(int heavyHitterTopN) {
+        if (heavyHitterTopN < 1) {
+            throw new IllegalArgumentException("heavyHitterTopN must be >= 1");
+        }
+        this.heavyHitterTopN = heavyHitterTopN;
+    }
+
+    public boolean isCountDistinctFields() {
+        return countDistinctFields;
+    }
+
+    /**
+     * @param countDistinctFields {@code true} to estimate the number of distinct referrers of each resource with a
+     *        {@link SlidingWindowDistinctCounter}. Only applies when counting {@link Record}s.
+     */
+    public void setCountDistinctFields(boolean countDistinctFields) {
+        this.countDistinctFields = countDistinctFields;
+    }
+
+    public int getDistinctCountPrecision() {
+        return distinctCountPrecision;
+    }
+
+    public void setDistinctCountPrecision(int distinctCountPrecision) {
+        if (distinctCountPrecision < HyperLogLog.MIN_PRECISION || distinctCountPrecision > HyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException("distinctCountPrecision must be >= " + HyperLogLog.MIN_PRECISION
+                    + " and <= " + HyperLogLog.MAX_PRECISION);
+        }
+        this.distinctCountPrecision = distinctCountPrecision;
+    }
+
+    public WindowTime getWindowTime() {
+        return windowTime;
+    }
+
+    public void setWindowTime(WindowTime windowTime) {
+        if (windowTime == null) {
+            throw new NullPointerException("windowTime must not be null");
+        }
+        this.windowTime = windowTime;
+    }
+
+    public long getMaxOutOfOrdernessInMillis() {
+        return maxOutOfOrdernessInMillis;
+    }
+
+    public void setMaxOutOfOrdernessInMillis(long maxOutOfOrdernessInMillis) {
+        if (maxOutOfOrdernessInMillis < 0) {
+            throw new IllegalArgumentException("maxOutOfOrdernessInMillis must be >= 0");
+        }
+        this.maxOutOfOrdernessInMillis = maxOutOfOrdernessInMillis;
+    }
+
+    public long getAllowedLatenessInMillis() {
+        return allowedLatenessInMillis;
+    }
+
+    public void setAllowedLatenessInMillis(long allowedLatenessInMillis) {
+        if (allowedLatenessInMillis < 0) {
+            throw new IllegalArgumentException("allowedLatenessInMillis must be >= 0");
+        }
+        this.allowedLatenessInMillis = allowedLatenessInMillis;
+    }
+
+    public long getIdleTimeoutInMillis() {
+        return idleTimeoutInMillis;
+    }
+
+    public void setIdleTimeoutInMillis(long idleTimeoutInMillis) {
+        if (idleTimeoutInMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutInMillis must be > 0");
+        }
+        this.idleTimeoutInMillis = idleTimeoutInMillis;
+    }
+
+    public long getMaxFutureSkewInMillis() {
+        return maxFutureSkewInMillis;
+    }
+
+    public void setMaxFutureSkewInMillis(long maxFutureSkewInMillis) {
+        if (maxFutureSkewInMillis < 0) {
+            throw new IllegalArgumentException("maxFutureSkewInMillis must be >= 0");
+        }
+        this.maxFutureSkewInMillis = maxFutureSkewInMillis;
+    }
+
+    public int getTickThreads() {
+        return tickThreads;
+    }
+
+    public void setTickThreads(int tickThreads) {
+        if (tickThreads < 1) {
+            throw new IllegalArgumentException("tickThreads must be >= 1");
+        }
+        this.tickThreads = tickThreads;
+    }
+
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    public long getSnapshotIntervalInSeconds() {
+        return snapshotIntervalInSeconds;
+    }
+
+    public void setSnapshotIntervalInSeconds(long snapshotIntervalInSeconds) {
+        if (snapshotIntervalInSeconds <= 0) {
+            throw new IllegalArgumentException("snapshotIntervalInSeconds must be > 0");
+        }
+        this.snapshotIntervalInSeconds = snapshotIntervalInSeconds;
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    public void setSchema(RecordSchema schema) {
+        this.schema = schema;
+    }
+
+    public boolean isPublishLiveCounts() {
+        return publishLiveCounts;
+    }
+
+    public void setPublishLiveCounts(boolean publishLiveCounts) {
+        this.publishLiveCounts = publishLiveCounts;
+    }
+
+    public int getLiveCountsTopK() {
+        return liveCountsTopK;
+    }
+
+    public void setLiveCountsTopK(int liveCountsTopK) {
+        if (liveCountsTopK < 1) {
+            throw new IllegalArgumentException("liveCountsTopK must be >= 1");
+        }
+        this.liveCountsTopK = liveCountsTopK;
+    }
+
+    public boolean isPersistChangedCountsOnly() {
+        return persistChangedCountsOnly;
+    }
+
+    public void setPersistChangedCountsOnly(boolean persistChangedCountsOnly) {
+        this.persistChangedCountsOnly = persistChangedCountsOnly;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -69,6 +405,30 @@ public class RecordProcessorConfig {
         result =
                 prime * result
                         + (int) (initialWindowAdvanceDelayInSeconds ^ (initialWindowAdvanceDelayInSeconds >>> 32));
+        result = prime * result + counterType.hashCode();
+        result = prime * result + decoderType.hashCode();
+        result = prime * result + maxInternedValues;
+        long temp = Double.doubleToLongBits(sketchError);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(sketchConfidence);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        result = prime * result + sketchMaxTrackedObjects;
+        result = prime * result + heavyHitterCountersPerResource;
+        result = prime * result + heavyHitterTopN;
+        result = prime * result + (countDistinctFields ? 1231 : 1237);
+        result = prime * result + distinctCountPrecision;
+        result = prime * result + windowTime.hashCode();
+        result = prime * result + (int) (maxOutOfOrdernessInMillis ^ (maxOutOfOrdernessInMillis >>> 32));
+        result = prime * result + (int) (allowedLatenessInMillis ^ (allowedLatenessInMillis >>> 32));
+        result = prime * result + (int) (idleTimeoutInMillis ^ (idleTimeoutInMillis >>> 32));
+        result = prime * result + (int) (maxFutureSkewInMillis ^ (maxFutureSkewInMillis >>> 32));
+        result = prime * result + tickThreads;
+        result = prime * result + (snapshotDirectory == null ? 0 : snapshotDirectory.hashCode());
+        result = prime * result + (int) (snapshotIntervalInSeconds ^ (snapshotIntervalInSeconds >>> 32));
+        result = prime * result + (schema == null ? 0 : schema.hashCode());
+        result = prime * result + (publishLiveCounts ? 1231 : 1237);
+        result = prime * result + liveCountsTopK;
+        result = prime * result + (persistChangedCountsOnly ? 1231 : 1237);
         return result;
     }
 
@@ -96,6 +456,73 @@ public class RecordProcessorConfig {
         if (initialWindowAdvanceDelayInSeconds != other.initialWindowAdvanceDelayInSeconds) {
             return false;
         }
+        if (counterType != other.counterType) {
+            return false;
+        }
+        if (decoderType != other.decoderType) {
+            return false;
+        }
+        if (maxInternedValues != other.maxInternedValues) {
+            return false;
+        }
+        if (Double.doubleToLongBits(sketchError) != Double.doubleToLongBits(other.sketchError)) {
+            return false;
+        }
+        if (Double.doubleToLongBits(sketchConfidence) != Double.doubleToLongBits(other.sketchConfidence)) {
+            return false;
+        }
+        if (sketchMaxTrackedObjects != other.sketchMaxTrackedObjects) {
+            return false;
+        }
+        if (heavyHitterCountersPerResource != other.heavyHitterCountersPerResource) {
+            return false;
+        }
+        if (heavyHitterTopN != other.heavyHitterTopN) {
+            return false;
+        }
+        if (countDistinctFields != other.countDistinctFields) {
+            return false;
+        }
+        if (distinctCountPrecision != other.distinctCountPrecision) {
+            return false;
+        }
+        if (windowTime != other.windowTime) {
+            return false;
+        }
+        if (maxOutOfOrdernessInMillis != other.maxOutOfOrdernessInMillis) {
+            return false;
+        }
+        if (allowedLatenessInMillis != other.allowedLatenessInMillis) {
+            return false;
+        }
+        if (idleTimeoutInMillis != other.idleTimeoutInMillis) {
+            return false;
+        }
+        if (maxFutureSkewInMillis != other.maxFutureSkewInMillis) {
+            return false;
+        }
+        if (tickThreads != other.tickThreads) {
+            return false;
+        }
+        if (snapshotDirectory == null ? other.snapshotDirectory != null
+                : !snapshotDirectory.equals(other.snapshotDirectory)) {
+            return false;
+        }
+        if (snapshotIntervalInSeconds != other.snapshotIntervalInSeconds) {
+            return false;
+        }
+        if (schema == null ? other.schema != null : !schema.equals(other.schema)) {
+            return false;
+        }
+        if (publishLiveCounts != other.publishLiveCounts) {
+            return false;
+        }
+        if (liveCountsTopK != other.liveCountsTopK) {
+            return false;
+        }
+        if (persistChangedCountsOnly != other.persistChangedCountsOnly) {
+            return false;
+        }
         return true;
     }
 
@@ -15,6 +15,10 @@
 
 package com.alertlogic.aws.analytics.poc;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
 
@@ -32,6 +36,9 @@ public class RecordProcessorFactory<T> implements IRecordProcessorFactory {
     private int computeRangeInMillis;
     private int computeIntervalInMillis;
     private RecordProcessorConfig config;
+    private List<Rollup<T>> rollups;
+    // Runs the interval tasks of every processor this factory creates
+    private TickScheduler tickScheduler;
 
     /**
      * Creates a new factory that uses the default configuration values for each
@@ -65,6 +72,36 @@ public class RecordProcessorFactory<T> implements IRecordProcessorFactory {
             int computeRangeInMillis,
             int computeIntervalInMillis,
             RecordProcessorConfig config) {
+        this(recordType,
+                persister,
+                computeRangeInMillis,
+                computeIntervalInMillis,
+                config,
+                Collections.<Rollup<T>> emptyList());
+    }
+
+    /**
+     * Create a new factory that produces counting record processors that also roll their counts up into longer
+     * ranges at coarser resolutions, from the same records.
+     *
+     * @param recordType The type of records the processors this factory creates are capable of counting.
+     * @param persister Persister to use for storing the counts.
+     * @param computeRangeInMillis Range, in milliseconds, to compute the count across.
+     * @param computeIntervalInMillis Milliseconds between count updates. This is the frequency at which the persister
+     *        will be called.
+     * @param config The configuration to use for each created counting record processor.
+     * @param rollups Longer ranges to compute counts across, shortest first.
+     *
+     * @throws IllegalArgumentException if computeRangeInMillis or computeIntervalInMillis are not greater than 0 or
+     *         computeRangeInMillis is not evenly divisible by computeIntervalInMillis.
+     * @see RecordProcessor#RecordProcessor(RecordProcessorConfig, Class, Persister, int, int, TickScheduler, List)
+     */
+    public RecordProcessorFactory(Class<T> recordType,
+            Persister<T> persister,
+            int computeRangeInMillis,
+            int computeIntervalInMillis,
+            RecordProcessorConfig config,
+            List<Rollup<T>> rollups) {
         if (recordType == null) {
             throw new NullPointerException("recordType must not be null");
         }
@@ -74,6 +111,9 @@ public class RecordProcessorFactory<T> implements IRecordProcessorFactory {
         if (config == null) {
             throw new NullPointerException("config must not be null");
         }
+        if (rollups == null) {
+            throw new NullPointerException("rollups must not be null");
+        }
         if (computeRangeInMillis <= 0) {
             throw new IllegalArgumentException("computeRangeInMillis must be > 0");
         }
@@ -90,11 +130,14 @@ public class RecordProcessorFactory<T> implements IRecordProcessorFactory {
         this.computeRangeInMillis = computeRangeInMillis;
         this.computeIntervalInMillis = computeIntervalInMillis;
         this.config = config;
+        this.rollups = new ArrayList<>(rollups);
+        tickScheduler = new TickScheduler(computeIntervalInMillis, config.getTickThreads());
     }
 
     /**
      * Creates a counting record processor that sums counts over the provided compute range and updates those counts
-     * every interval.
+     * every interval. Every processor shares one scheduler, so all shards update their counts on the same interval
+     * boundaries using a bounded number of threads.
      */
     @Override
     public IRecordProcessor createProcessor() {
@@ -102,6 +145,8 @@ public class RecordProcessorFactory<T> implements IRecordProcessorFactory {
                 recordType,
                 persister,
                 computeRangeInMillis,
-                computeIntervalInMillis);
+                computeIntervalInMillis,
+                tickScheduler,
+                rollups);
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes records as a set of named dimensions, such as resource, referrer, source and port, and the group-bys to
+ * count them by. Each dimension's values are encoded to int IDs by a {@link DimensionDictionary} when records are
+ * decoded, see {@link SchemaRecordDecoder}.
+ * <p/>
+ * Every record is counted once for each group-by, as a {@link DimensionRecord} holding only the dimensions of that
+ * group-by. Counting (resource, referrer) and (resource) from one stream costs one decode per record.
+ * <p/>
+ * A schema's dictionaries are shared by every record processor it is given to, so the same value has the same ID on
+ * every shard. This class is thread safe.
+ */
+public class RecordSchema {
+    public static final int DEFAULT_MAX_VALUES_PER_DIMENSION = 100000;
+
+    private List<String> dimensions;
+    private Map<String, Integer> indexes = new HashMap<>();
+    private DimensionDictionary[] dictionaries;
+    private int maxValuesPerDimension;
+    // Holds every dimension, as decoded
+    private GroupBy allDimensions;
+    private List<GroupBy> groupBys;
+
+    /**
+     * @see #RecordSchema(List, List, int)
+     */
+    public RecordSchema(List<String> dimensions, List<List<String>> groupBys) {
+        this(dimensions, groupBys, DEFAULT_MAX_VALUES_PER_DIMENSION);
+    }
+
+    /**
+     * @param dimensions Names of the dimensions, which are the JSON fields read from each record.
+     * @param groupBys The dimensions of each group-by to count records by.
+     * @param maxValuesPerDimension The maximum number of distinct values to encode for each dimension. Values seen
+     *        after that are counted as {@link DimensionDictionary#OTHER_VALUE}.
+     */
+    public RecordSchema(List<String> dimensions, List<List<String>> groupBys, int maxValuesPerDimension) {
+        if (dimensions == null) {
+            throw new NullPointerException("dimensions must not be null");
+        }
+        if (groupBys == null) {
+            throw new NullPointerException("groupBys must not be null");
+        }
+        if (dimensions.isEmpty()) {
+            throw new IllegalArgumentException("A schema must have at least one dimension");
+        }
+        if (groupBys.isEmpty()) {
+            throw new IllegalArgumentException("A schema must have at least one group-by");
+        }
+        for (String dimension : dimensions) {
+            if (dimension == null) {
+                throw new NullPointerException("dimensions must not contain null");
+            }
+            if (indexes.put(dimension, indexes.size()) != null) {
+                throw new IllegalArgumentException("Duplicate dimension: " + dimension);
+            }
+        }
+        this.dimensions = Collections.unmodifiableList(new ArrayList<>(dimensions));
+        this.maxValuesPerDimension = maxValuesPerDimension;
+        dictionaries = new DimensionDictionary[dimensions.size()];
+        for (int i = 0; i < dictionaries.length; i++) {
+            dictionaries[i] = new DimensionDictionary(dimensions.get(i), maxValuesPerDimension);
+        }
+
+        allDimensions = new GroupBy(this, -1, this.dimensions);
+        List<GroupBy> groups = new ArrayList<>(groupBys.size());
+        for (List<String> groupBy : groupBys) {
+            if (groupBy == null) {
+                throw new NullPointerException("groupBys must not contain null");
+            }
+            GroupBy group = new GroupBy(this, groups.size(), groupBy);
+            for (GroupBy other : groups) {
+                if (other.getDimensions().equals(group.getDimensions())) {
+                    throw new IllegalArgumentException("Duplicate group-by: " + group);
+                }
+            }
+            groups.add(group);
+        }
+        this.groupBys = Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Every grouping set of some dimensions, as for a SQL {@code CUBE}: each combination of one or more of them, in
+     * their original order, with the finest group-by first. For (resource, referrer) that is (resource, referrer),
+     * (resource) and (referrer).
+     *
+     * @param dimensions The dimensions to combine. At most 16.
+     * @return The group-bys.
+     */
+    public static List<List<String>> cube(List<String> dimensions) {
+        if (dimensions.size() > 16) {
+            throw new IllegalArgumentException("Too many dimensions to cube: " + dimensions.size());
+        }
+        List<List<String>> groupBys = new ArrayList<>();
+        for (int size = dimensions.size(); size > 0; size--) {
+            for (int set = 1; set < 1 << dimensions.size(); set++) {
+                if (Integer.bitCount(set) != size) {
+                    continue;
+                }
+                List<String> groupBy = new ArrayList<>(size);
+                for (int i = 0; i < dimensions.size(); i++) {
+                    if ((set & (1 << i)) != 0) {
+                        groupBy.add(dimensions.get(i));
+                    }
+                }
+                groupBys.add(groupBy);
+            }
+        }
+        return groupBys;
+    }
+
+    public List<String> getDimensions() {
+        return dimensions;
+    }
+
+    public List<GroupBy> getGroupBys() {
+        return groupBys;
+    }
+
+    public int getMaxValuesPerDimension() {
+        return maxValuesPerDimension;
+    }
+
+    /**
+     * @return The group-by holding every dimension, which decoded records belong to.
+     */
+    public GroupBy getAllDimensions() {
+        return allDimensions;
+    }
+
+    /**
+     * @param dimensions Dimensions of the group-by, in the order it was created with.
+     * @return The group-by, or {@code null} if there is none with those dimensions.
+     */
+    public GroupBy getGroupBy(List<String> dimensions) {
+        for (GroupBy groupBy : groupBys) {
+            if (groupBy.getDimensions().equals(dimensions)) {
+                return groupBy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name Name of a dimension.
+     * @return The index of the dimension, or -1 if there is no such dimension.
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @param index Index of a dimension.
+     * @return The dictionary encoding the dimension's values.
+     */
+    public DimensionDictionary getDictionary(int index) {
+        return dictionaries[index];
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + dimensions.hashCode();
+        for (GroupBy groupBy : groupBys) {
+            result = prime * result + groupBy.getDimensions().hashCode();
+        }
+        result = prime * result + maxValuesPerDimension;
+        return result;
+    }
+
+    /**
+     * Schemas are equal if they have the same dimensions and group-bys. Their records are never equal, as each schema
+     * encodes values with dictionaries of its own.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        RecordSchema other = (RecordSchema) obj;
+        if (!dimensions.equals(other.dimensions)) {
+            return false;
+        }
+        if (groupBys.size() != other.groupBys.size()) {
+            return false;
+        }
+        for (int i = 0; i < groupBys.size(); i++) {
+            if (!groupBys.get(i).getDimensions().equals(other.groupBys.get(i).getDimensions())) {
+                return false;
+            }
+        }
+        if (maxValuesPerDimension != other.maxValuesPerDimension) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSchema{" +
+                "dimensions=" + dimensions +
+                ", groupBys=" + groupBys +
+                '}';
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+/**
+ * A longer range a {@link RecordProcessor} computes counts across in addition to its own range, at a coarser
+ * resolution. Counts for the range are persisted with their own persister once every resolution.
+ *
+ * @param <T> The type of records counted.
+ */
+public class Rollup<T> {
+    private int rangeInMillis;
+    private int resolutionInMillis;
+    private Persister<T> persister;
+
+    /**
+     * @param rangeInMillis Range to compute counts across.
+     * @param resolutionInMillis Length of the buckets the part of the range beyond the next shorter range is counted
+     *        in. This is also how often counts for the range are persisted.
+     * @param persister Counts for the range will be persisted with this persister.
+     */
+    public Rollup(int rangeInMillis, int resolutionInMillis, Persister<T> persister) {
+        if (persister == null) {
+            throw new NullPointerException("persister must not be null");
+        }
+        if (resolutionInMillis <= 0) {
+            throw new IllegalArgumentException("resolutionInMillis must be > 0");
+        }
+        if (rangeInMillis <= resolutionInMillis) {
+            throw new IllegalArgumentException("rangeInMillis must be > resolutionInMillis");
+        }
+        this.rangeInMillis = rangeInMillis;
+        this.resolutionInMillis = resolutionInMillis;
+        this.persister = persister;
+    }
+
+    public int getRangeInMillis() {
+        return rangeInMillis;
+    }
+
+    public int getResolutionInMillis() {
+        return resolutionInMillis;
+    }
+
+    public Persister<T> getPersister() {
+        return persister;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extends a fine grained {@link WindowCounter} with a hierarchy of coarser levels, so counts over several longer
+ * ranges are computed from a single window. Each interval the bucket leaving the fine window is rolled up into the
+ * first level, and each level's buckets roll up into the next level as they expire. Level {@code l} holds buckets of
+ * {@code intervalsPerBucket[l]} intervals, so memory grows with the number of buckets rather than the length of the
+ * longest range: one hour of one second intervals can be kept as 10 one second, 5 ten second, 4 one minute and 11 five
+ * minute buckets.
+ * <p/>
+ * The levels cover consecutive, non-overlapping stretches of time before the fine window. Every level has one bucket
+ * more than it covers, which fills with the buckets rolled up from the finer levels while the others are reported. The
+ * counts for the range ending at level {@code l} are the fine window's counts plus those of levels 0 through
+ * {@code l}. They cover exactly the range whenever the level is due, see {@link #isDue(int)}.
+ * <p/>
+ * Rolling up should start once the fine window is full, so the first bucket rolled up is a complete interval.
+ * <p/>
+ * This class is not thread safe.
+ *
+ * @param <ObjectType> Type of objects counted.
+ */
+public class RollupWindowCounter<ObjectType> {
+
+    private List<Level> levels;
+    // Intervals rolled up so far
+    private long intervals;
+
+    /**
+     * Create the levels of a rollup.
+     *
+     * @param levelCounters An empty counter per level, finest first. Each level covers one bucket less than its counter
+     *        holds, so every counter needs at least 2 buckets.
+     * @param intervalsPerBucket The number of fine intervals in each bucket of each level. Each must be a multiple of
+     *        the one before.
+     */
+    public RollupWindowCounter(List<BucketCounter<ObjectType>> levelCounters, int[] intervalsPerBucket) {
+        if (levelCounters == null) {
+            throw new NullPointerException("levelCounters must not be null");
+        }
+        if (intervalsPerBucket == null) {
+            throw new NullPointerException("intervalsPerBucket must not be null");
+        }
+        if (levelCounters.isEmpty() || levelCounters.size() != intervalsPerBucket.length) {
+            throw new IllegalArgumentException("levelCounters and intervalsPerBucket must have one entry per level");
+        }
+        levels = new ArrayList<>(levelCounters.size());
+        for (int l = 0; l < levelCounters.size(); l++) {
+            if (levelCounters.get(l).getMaxBuckets() < 2) {
+                throw new IllegalArgumentException("Every level counter must hold at least 2 buckets");
+            }
+            if (intervalsPerBucket[l] < 1) {
+                throw new IllegalArgumentException("intervalsPerBucket must be >= 1");
+            }
+            if (l > 0 && intervalsPerBucket[l] % intervalsPerBucket[l - 1] != 0) {
+                throw new IllegalArgumentException("intervalsPerBucket of each level must be a multiple of the last");
+            }
+            long finerIntervals = l == 0 ? 0 : levels.get(l - 1).coveredIntervals;
+            levels.add(new Level(levelCounters.get(l), intervalsPerBucket[l], finerIntervals));
+        }
+    }
+
+    /**
+     * @return The number of levels.
+     */
+    public int getLevels() {
+        return levels.size();
+    }
+
+    /**
+     * Determine if the counts of the range ending at a level should be read before the next call to
+     * {@link #advance(Map)}. A level is due once per bucket, right after it advanced, and only once enough intervals
+     * have been rolled up to fill it and every finer level.
+     *
+     * @param level Index of the level, finest first.
+     * @return {@code true} if the range's counts are complete and cover exactly the range.
+     */
+    public boolean isDue(int level) {
+        Level l = levels.get(level);
+        return intervals % l.intervalsPerBucket == 0 && intervals >= l.coveredIntervals;
+    }
+
+    /**
+     * Get the counts of levels 0 through the given level. Add the fine window's counts to get the counts of the range
+     * ending at the level.
+     *
+     * @param level Index of the last level to include, finest first.
+     * @return A mapping of ObjectType -> total count across the levels.
+     */
+    public Map<ObjectType, Long> getCounts(int level) {
+        Map<ObjectType, Long> counts = new HashMap<>();
+        for (int l = 0; l <= level; l++) {
+            for (Map.Entry<ObjectType, Long> count : levels.get(l).counter.getCounts().entrySet()) {
+                Long total = counts.get(count.getKey());
+                counts.put(count.getKey(), total == null ? count.getValue() : total + count.getValue());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Roll up the bucket leaving the fine window, then advance every level whose current bucket is complete. The
+     * buckets they drop roll up into the next level, and the coarsest level's are discarded.
+     *
+     * @param expired Counts of the bucket leaving the fine window, see {@link WindowCounter#getExpiringBucketCounts()}.
+     */
+    public void advance(Map<ObjectType, Long> expired) {
+        intervals++;
+        Map<ObjectType, Long> rolledUp = expired;
+        for (Level level : levels) {
+            level.add(rolledUp);
+            if (intervals % level.intervalsPerBucket != 0) {
+                break;
+            }
+            rolledUp = level.advance();
+        }
+    }
+
+    /**
+     * A ring of buckets like {@link SlidingWindowCounter}'s, whose dropped buckets are returned rather than discarded.
+     */
+    private class Level {
+        private BucketCounter<ObjectType> counter;
+        private int intervalsPerBucket;
+        private int headBucket;
+        private int tailBucket;
+        // Intervals covered by this level and every finer level
+        private long coveredIntervals;
+
+        Level(BucketCounter<ObjectType> counter, int intervalsPerBucket, long finerIntervals) {
+            this.counter = counter;
+            this.intervalsPerBucket = intervalsPerBucket;
+            coveredIntervals = finerIntervals + (long) (counter.getMaxBuckets() - 1) * intervalsPerBucket;
+            headBucket = 0;
+            tailBucket = 1 % counter.getMaxBuckets();
+        }
+
+        void add(Map<ObjectType, Long> counts) {
+            for (Map.Entry<ObjectType, Long> count : counts.entrySet()) {
+                counter.add(count.getKey(), headBucket, count.getValue());
+            }
+        }
+
+        /**
+         * @return The counts of the bucket dropped.
+         */
+        Map<ObjectType, Long> advance() {
+            Map<ObjectType, Long> dropped = counter.getBucketCounts(tailBucket);
+            counter.clearBucket(tailBucket);
+            counter.pruneEmptyObjects();
+            headBucket = tailBucket;
+            tailBucket = (headBucket + 1) % counter.getMaxBuckets();
+            return dropped;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes flat UTF-8 JSON objects into {@link DimensionRecord}s holding every dimension of a {@link RecordSchema}.
+ * The records are read with a streaming {@link JsonParser}: fields that are not dimensions are skipped, and dimension
+ * values are interned through a {@link BoundedStringInterner} before they are encoded, so repeated values neither
+ * allocate new strings nor hash new ones.
+ * <p/>
+ * String, number and boolean values are encoded by their text, so a port of {@code 443} and {@code "443"} are the
+ * same value. Missing and {@code null} dimensions are encoded as {@link DimensionDictionary#MISSING}.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class SchemaRecordDecoder implements RecordDecoder<DimensionRecord> {
+    private static final int INITIAL_SCRATCH_SIZE = 1024;
+
+    private final JsonFactory factory = new JsonFactory();
+    private RecordSchema schema;
+    private BoundedStringInterner interner;
+    // Holds the contents of buffers that are not backed by an accessible array
+    private byte[] scratch = new byte[INITIAL_SCRATCH_SIZE];
+
+    /**
+     * @param schema The schema of the records.
+     * @param maxInternedValues The maximum number of distinct dimension values to intern.
+     */
+    public SchemaRecordDecoder(RecordSchema schema, int maxInternedValues) {
+        if (schema == null) {
+            throw new NullPointerException("schema must not be null");
+        }
+        this.schema = schema;
+        this.interner = new BoundedStringInterner(maxInternedValues);
+    }
+
+    @Override
+    public DimensionRecord decode(ByteBuffer data) throws IOException {
+        byte[] bytes;
+        int offset;
+        int length = data.remaining();
+        if (data.hasArray()) {
+            bytes = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length << 1)];
+            }
+            data.duplicate().get(scratch, 0, length);
+            bytes = scratch;
+            offset = 0;
+        }
+
+        int[] ids = new int[schema.getDimensions().size()];
+        Arrays.fill(ids, DimensionDictionary.MISSING);
+        try (JsonParser parser = factory.createParser(bytes, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                // Field names are canonicalized by the parser's symbol table and do not allocate
+                int dimension = schema.indexOf(parser.getCurrentName());
+                JsonToken value = parser.nextToken();
+                if (dimension < 0 || value == JsonToken.VALUE_NULL) {
+                    parser.skipChildren();
+                } else if (value.isScalarValue()) {
+                    String text = interner.intern(parser.getTextCharacters(),
+                            parser.getTextOffset(),
+                            parser.getTextLength());
+                    ids[dimension] = schema.getDictionary(dimension).encode(text);
+                } else {
+                    throw new IOException("Dimension " + parser.getCurrentName() + " must have a scalar value");
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+                throw new IOException("Expected the end of the JSON object");
+            }
+        }
+        return new DimensionRecord(schema.getAllDimensions(), ids);
+    }
+}
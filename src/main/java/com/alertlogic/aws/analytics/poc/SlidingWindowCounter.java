@@ -15,15 +15,17 @@
 
 package com.alertlogic.aws.analytics.poc;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Computes a total count of occurrences over a moving window. All calls to increment will be added to the current
  * internal bucket. As the window advances the last bucket in the window will be removed.
  */
-public class SlidingWindowCounter<ObjectType> {
+public class SlidingWindowCounter<ObjectType> implements WindowCounter<ObjectType> {
 
-    private BucketBasedCounter<ObjectType> counter;
+    private BucketCounter<ObjectType> counter;
 
     private int windowSize;
     private int headBucket;
@@ -35,9 +37,25 @@ public class SlidingWindowCounter<ObjectType> {
         if (windowSize < 1) {
             throw new IllegalArgumentException("windowSize must be >= 1");
         }
-        this.windowSize = windowSize;
+        initialize(new BucketBasedCounter<ObjectType>(windowSize));
+    }
+
+    /**
+     * Create a window backed by the provided counter. The window holds one interval per bucket of the counter.
+     *
+     * @param counter An empty counter this window will own.
+     */
+    public SlidingWindowCounter(BucketCounter<ObjectType> counter) {
+        if (counter == null) {
+            throw new NullPointerException("counter must not be null");
+        }
+        initialize(counter);
+    }
+
+    private void initialize(BucketCounter<ObjectType> counter) {
+        this.counter = counter;
+        this.windowSize = counter.getMaxBuckets();
 
-        counter = new BucketBasedCounter<>(windowSize);
         headBucket = 0;
         tailBucket = getNextBucket(headBucket);
     }
@@ -58,6 +76,7 @@ public class SlidingWindowCounter<ObjectType> {
      * 
      * @param obj Object whose count should be incremented.
      */
+    @Override
     public void increment(ObjectType obj) {
         counter.increment(obj, headBucket);
     }
@@ -67,13 +86,20 @@ public class SlidingWindowCounter<ObjectType> {
      * 
      * @return A mapping of ObjectType -> total count across all buckets.
      */
+    @Override
     public Map<ObjectType, Long> getCounts() {
         return counter.getCounts();
     }
 
+    @Override
+    public Map<ObjectType, Long> getChangedCounts() {
+        return counter.getChangedCounts();
+    }
+
     /**
      * Advance the window "one bucket". This will remove the oldest bucket and any count stored in it.
      */
+    @Override
     public void advanceWindow() {
         counter.clearBucket(tailBucket);
 
@@ -86,19 +112,53 @@ public class SlidingWindowCounter<ObjectType> {
         }
     }
 
+    @Override
+    public Map<ObjectType, Long> getExpiringBucketCounts() {
+        return counter.getBucketCounts(tailBucket);
+    }
+
     /**
      * Check if we've advanced our window enough times to have completely filled all buckets.
      * 
      * @return {@code true} if the window is full.
      */
+    @Override
     public boolean isWindowFull() {
         return windowSize <= totalAdvances;
     }
 
     /**
-     * @see BucketBasedCounter#pruneEmptyObjects()
+     * @see BucketCounter#pruneEmptyObjects()
      */
+    @Override
     public void pruneEmptyObjects() {
         counter.pruneEmptyObjects();
     }
+
+    @Override
+    public List<Map<ObjectType, Long>> getBucketCounts() {
+        int buckets = Math.min(totalAdvances + 1, windowSize);
+        List<Map<ObjectType, Long>> bucketCounts = new ArrayList<>(buckets);
+        int bucket = (headBucket - buckets + 1 + windowSize) % windowSize;
+        for (int i = 0; i < buckets; i++) {
+            bucketCounts.add(counter.getBucketCounts(bucket));
+            bucket = getNextBucket(bucket);
+        }
+        return bucketCounts;
+    }
+
+    @Override
+    public void restore(List<Map<ObjectType, Long>> bucketCounts, boolean windowFull) {
+        if (bucketCounts.size() > windowSize) {
+            throw new IllegalArgumentException("bucketCounts must not hold more than windowSize buckets");
+        }
+        int bucket = (headBucket - bucketCounts.size() + 1 + windowSize) % windowSize;
+        for (Map<ObjectType, Long> counts : bucketCounts) {
+            for (Map.Entry<ObjectType, Long> count : counts.entrySet()) {
+                counter.add(count.getKey(), bucket, count.getValue());
+            }
+            bucket = getNextBucket(bucket);
+        }
+        totalAdvances = windowFull ? windowSize : Math.max(bucketCounts.size() - 1, 0);
+    }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates how many distinct referrers each resource had over a moving window. Every resource has the registers of a
+ * {@link HyperLogLog} per bucket, and the estimate for the window merges them by taking the maximum of each register.
+ * Memory per resource is fixed by the precision and window size no matter how many distinct referrers arrive.
+ * <p/>
+ * Buckets are advanced the same way as a {@link SlidingWindowCounter}, so a window advanced in step with a counter
+ * covers the same intervals as the counter.
+ * <p/>
+ * {@link #add(Record)} is safe to call from one thread while another thread reads estimates and advances the window,
+ * and takes no monitor. Registers are packed four to an int in an {@link AtomicIntegerArray} per resource and raised
+ * with compare-and-set. {@link #getDistinctCounts()} and {@link #advanceWindow()} are expected to be called from a
+ * single thread, usually the one advancing the window every interval.
+ */
+public class SlidingWindowDistinctCounter {
+    private static final String RESOURCE = "resource";
+    private static final String REFERRER = "referrer";
+
+    // Marks every word of a resource being pruned. Ranks never set the top bit of a register, so no word of registers
+    // has this value. Adds that observe it retry with a fresh set of registers.
+    private static final int PRUNED = Integer.MIN_VALUE;
+
+    private int windowSize;
+    private int precision;
+    // Ints holding the registers of one bucket
+    private int wordsPerBucket;
+    // Each resource's ints are [registers of bucket 0, ..., registers of bucket windowSize - 1, bucket 0 used, ...,
+    // bucket windowSize - 1 used]. A used flag is set once anything is added to its bucket.
+    private int usedIndex;
+    // The head bucket is read by adding threads and only written by the thread advancing the window.
+    private volatile int headBucket;
+
+    // The registers of each resource
+    private ConcurrentMap<String, AtomicIntegerArray> estimators;
+    // Reused to merge the buckets of each resource
+    private HyperLogLog merged;
+
+    /**
+     * Create a new window.
+     *
+     * @param windowSize Number of buckets in the window.
+     * @param precision Precision of each estimator. Each resource uses {@code windowSize * 2^precision} bytes.
+     */
+    public SlidingWindowDistinctCounter(int windowSize, int precision) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be >= 1");
+        }
+        this.windowSize = windowSize;
+        this.precision = precision;
+        merged = new HyperLogLog(precision);
+        wordsPerBucket = (1 << precision) / 4;
+        usedIndex = windowSize * wordsPerBucket;
+        estimators = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Add a record's referrer to the current bucket of its resource.
+     *
+     * @param record Record to count.
+     */
+    public void add(Record record) {
+        String resource = record.getField(RESOURCE);
+        long hash = HyperLogLog.hash(record.getField(REFERRER));
+        int register = HyperLogLog.registerOf(hash, precision);
+        int rank = HyperLogLog.rankOf(hash, precision);
+        int shift = (register & 3) * 8;
+
+        while (true) {
+            AtomicIntegerArray registers = estimators.get(resource);
+            if (registers == null) {
+                AtomicIntegerArray newRegisters = new AtomicIntegerArray(usedIndex + windowSize);
+                registers = estimators.putIfAbsent(resource, newRegisters);
+                if (registers == null) {
+                    registers = newRegisters;
+                }
+            }
+
+            int bucket = headBucket;
+            int index = bucket * wordsPerBucket + (register >>> 2);
+            int word = registers.get(index);
+            while (word != PRUNED) {
+                if (((word >>> shift) & 0xFF) >= rank) {
+                    return;
+                }
+                if (registers.compareAndSet(index, word, (word & ~(0xFF << shift)) | (rank << shift))) {
+                    if (registers.get(usedIndex + bucket) == 0) {
+                        registers.set(usedIndex + bucket, 1);
+                    }
+                    return;
+                }
+                word = registers.get(index);
+            }
+
+            // These registers are being pruned. Once every word is marked they are dead and may be removed by
+            // anyone, otherwise the pruner is rolling back and we can retry with the same registers.
+            if (isPruned(registers)) {
+                estimators.remove(resource, registers);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return The estimated number of distinct referrers of each resource across all buckets. Referrers added while
+     *         the estimates are being read may or may not be included.
+     */
+    public Map<String, Long> getDistinctCounts() {
+        Map<String, Long> counts = new HashMap<>();
+
+        for (Map.Entry<String, AtomicIntegerArray> resource : estimators.entrySet()) {
+            AtomicIntegerArray registers = resource.getValue();
+            merged.clear();
+            for (int bucket = 0; bucket < windowSize; bucket++) {
+                if (registers.get(usedIndex + bucket) != 0) {
+                    mergeBucket(registers, bucket);
+                }
+            }
+            if (!merged.isEmpty() && registers.get(0) != PRUNED) {
+                counts.put(resource.getKey(), merged.cardinality());
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Advance the window one bucket, forgetting the referrers in the oldest bucket. Resources with nothing left in any
+     * bucket are removed.
+     */
+    public void advanceWindow() {
+        int tailBucket = (headBucket + 1) % windowSize;
+
+        for (Map.Entry<String, AtomicIntegerArray> resource : estimators.entrySet()) {
+            AtomicIntegerArray registers = resource.getValue();
+            if (registers.get(usedIndex + tailBucket) != 0) {
+                registers.set(usedIndex + tailBucket, 0);
+                int from = tailBucket * wordsPerBucket;
+                for (int i = from; i < from + wordsPerBucket; i++) {
+                    registers.set(i, 0);
+                }
+            }
+            if (isUnused(registers) && markPruned(registers)) {
+                estimators.remove(resource.getKey(), registers);
+            }
+        }
+
+        headBucket = tailBucket;
+    }
+
+    /**
+     * Merge the registers of one bucket into {@link #merged}.
+     */
+    private void mergeBucket(AtomicIntegerArray registers, int bucket) {
+        int from = bucket * wordsPerBucket;
+        for (int i = 0; i < wordsPerBucket; i++) {
+            int word = registers.get(from + i);
+            if (word == 0 || word == PRUNED) {
+                continue;
+            }
+            for (int b = 0; b < 4; b++) {
+                merged.mergeRegister(i * 4 + b, (word >>> (b * 8)) & 0xFF);
+            }
+        }
+    }
+
+    private boolean isUnused(AtomicIntegerArray registers) {
+        for (int bucket = 0; bucket < windowSize; bucket++) {
+            if (registers.get(usedIndex + bucket) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Swap every word of registers from 0 to {@link #PRUNED}. If a concurrent add lands first, the words already
+     * marked are restored and the registers are kept.
+     *
+     * @return {@code true} if every word was marked.
+     */
+    private boolean markPruned(AtomicIntegerArray registers) {
+        for (int i = 0; i < usedIndex; i++) {
+            if (!registers.compareAndSet(i, 0, PRUNED)) {
+                for (int j = 0; j < i; j++) {
+                    registers.set(j, 0);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isPruned(AtomicIntegerArray registers) {
+        for (int i = 0; i < usedIndex; i++) {
+            if (registers.get(i) != PRUNED) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link BucketCounter} that only tracks the heavy hitters of each resource using the Space-Saving algorithm. Every
+ * bucket of every resource has a fixed number of counters, so memory per resource is fixed no matter how many
+ * distinct records of that resource arrive.
+ * <p/>
+ * Within a bucket, a record that arrives when all counters are taken replaces the record with the lowest count and
+ * inherits that count as its error. Clearing a bucket simply empties its counters. When counts are read, the buckets
+ * of a resource are merged: a record's estimate is the sum of its counts in the buckets that count it plus the lowest
+ * count of each full bucket that does not. An estimate never undercounts, and overcounts by at most the resource's
+ * total count in the window divided by the number of counters per bucket. {@link #getGuaranteedCounts()} reports the
+ * counts with their error removed, which never overcount.
+ * <p/>
+ * Only the top N records of each resource are reported. They are selected with a bounded heap and returned as
+ * {@link RankedCounts}, so nothing is sorted. {@link #getChangedCounts()} reports records whose count changed while
+ * they are in their resource's top N.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class SpaceSavingBucketCounter implements BucketCounter<Record> {
+    private static final String RESOURCE = "resource";
+
+    private static final Comparator<Estimate> ASCENDING_ESTIMATE = new Comparator<Estimate>() {
+        @Override
+        public int compare(Estimate e1, Estimate e2) {
+            if (e1.count > e2.count) {
+                return 1;
+            } else if (e1.count == e2.count) {
+                return 0;
+            } else {
+                return -1;
+            }
+        }
+    };
+
+    private int maxBuckets;
+    private int countersPerBucket;
+    private int topN;
+
+    // The heavy hitters of each resource
+    private Map<String, ResourceSummary> summaries;
+
+    /**
+     * Create a new counter with a fixed number of buckets.
+     *
+     * @param maxBuckets Total buckets this counter will use.
+     * @param countersPerBucket Number of records to count per resource in each bucket. More counters give tighter
+     *        error bounds.
+     * @param topN Number of records with the highest counts to report per resource. Must not be greater than
+     *        countersPerBucket.
+     */
+    public SpaceSavingBucketCounter(int maxBuckets, int countersPerBucket, int topN) {
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("maxBuckets must be >= 1");
+        }
+        if (countersPerBucket < 1) {
+            throw new IllegalArgumentException("countersPerBucket must be >= 1");
+        }
+        if (topN < 1 || topN > countersPerBucket) {
+            throw new IllegalArgumentException("topN must be >= 1 and <= countersPerBucket");
+        }
+        this.maxBuckets = maxBuckets;
+        this.countersPerBucket = countersPerBucket;
+        this.topN = topN;
+        summaries = new HashMap<>();
+    }
+
+    @Override
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    /**
+     * @return The count of the record in the bucket after incrementing it, including any count inherited from the
+     *         record that previously held its counter.
+     */
+    @Override
+    public long increment(Record obj, int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        String resource = obj.getField(RESOURCE);
+        ResourceSummary summary = summaries.get(resource);
+        if (summary == null) {
+            summary = new ResourceSummary();
+            summaries.put(resource, summary);
+        }
+        BucketSummary bucketSummary = summary.buckets[bucket];
+        if (bucketSummary == null) {
+            bucketSummary = new BucketSummary();
+            summary.buckets[bucket] = bucketSummary;
+        }
+        return bucketSummary.increment(obj);
+    }
+
+    /**
+     * Add a count to a record in a bucket. The count is treated as exact: none of it is considered inherited.
+     */
+    @Override
+    public void add(Record obj, int bucket, long count) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("count must be >= 0");
+        }
+        String resource = obj.getField(RESOURCE);
+        ResourceSummary summary = summaries.get(resource);
+        if (summary == null) {
+            summary = new ResourceSummary();
+            summaries.put(resource, summary);
+        }
+        BucketSummary bucketSummary = summary.buckets[bucket];
+        if (bucketSummary == null) {
+            bucketSummary = new BucketSummary();
+            summary.buckets[bucket] = bucketSummary;
+        }
+        bucketSummary.add(obj, count);
+    }
+
+    /**
+     * @return The counts of the records holding a counter in the bucket of each resource, including any count they
+     *         inherited.
+     */
+    @Override
+    public Map<Record, Long> getBucketCounts(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        Map<Record, Long> count = new HashMap<>();
+
+        for (ResourceSummary summary : summaries.values()) {
+            BucketSummary bucketSummary = summary.buckets[bucket];
+            if (bucketSummary != null) {
+                for (int i = 0; i < bucketSummary.size; i++) {
+                    count.put(bucketSummary.counters[i].record, bucketSummary.counters[i].count);
+                }
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public Map<Record, Long> getCounts() {
+        RankedCounts<Record> count = new RankedCounts<>();
+
+        for (ResourceSummary summary : summaries.values()) {
+            for (Estimate estimate : summary.selectTopN()) {
+                count.put(estimate.record, estimate.count);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Computes the guaranteed counts of the top N records of each resource: their estimates less the counts they
+     * inherited. These may be lower than the true counts, but are never higher.
+     *
+     * @return A mapping of record to guaranteed count across all buckets.
+     */
+    public Map<Record, Long> getGuaranteedCounts() {
+        Map<Record, Long> count = new HashMap<>();
+
+        for (ResourceSummary summary : summaries.values()) {
+            for (Estimate estimate : summary.selectTopN()) {
+                count.put(estimate.record, estimate.guaranteed);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public Map<Record, Long> getChangedCounts() {
+        RankedCounts<Record> count = new RankedCounts<>();
+
+        for (ResourceSummary summary : summaries.values()) {
+            Map<Record, Long> reported = new HashMap<>();
+            for (Estimate estimate : summary.selectTopN()) {
+                Long previous = summary.reported.get(estimate.record);
+                if (previous == null || previous != estimate.count) {
+                    count.put(estimate.record, estimate.count);
+                }
+                reported.put(estimate.record, estimate.count);
+            }
+            summary.reported = reported;
+        }
+
+        return count;
+    }
+
+    /**
+     * Remove any resources that have no counts left in any bucket.
+     */
+    @Override
+    public void pruneEmptyObjects() {
+        Iterator<ResourceSummary> resources = summaries.values().iterator();
+        while (resources.hasNext()) {
+            if (resources.next().isEmpty()) {
+                resources.remove();
+            }
+        }
+    }
+
+    @Override
+    public void clearBucket(int bucket) {
+        if (bucket < 0 || bucket >= maxBuckets) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        for (ResourceSummary summary : summaries.values()) {
+            if (summary.buckets[bucket] != null) {
+                summary.buckets[bucket].clear();
+            }
+        }
+    }
+
+    /**
+     * A record's merged count across all buckets.
+     */
+    private static class Estimate {
+        private Record record;
+        // Never lower than the true count
+        private long count;
+        // Never higher than the true count
+        private long guaranteed;
+
+        Estimate(Record record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * The count of one record in one bucket.
+     */
+    private static class Counter {
+        private Record record;
+        // Position of this counter in its bucket
+        private int index;
+        private long count;
+        // The part of the count inherited from the record previously counted here
+        private long error;
+    }
+
+    /**
+     * The bucket summaries of one resource.
+     */
+    private class ResourceSummary {
+        private BucketSummary[] buckets = new BucketSummary[maxBuckets];
+        // The counts last returned by getChangedCounts()
+        private Map<Record, Long> reported = new HashMap<>();
+
+        /**
+         * Merge the buckets and select the records with the highest estimates.
+         *
+         * @return Up to N estimates, highest first.
+         */
+        Estimate[] selectTopN() {
+            // A record missing from a full bucket may have been counted there up to that bucket's lowest count
+            long missingFromAll = 0;
+            for (BucketSummary bucket : buckets) {
+                if (bucket != null) {
+                    missingFromAll += bucket.lowestUncountedCount();
+                }
+            }
+
+            Map<Record, Estimate> estimates = new HashMap<>();
+            for (BucketSummary bucket : buckets) {
+                if (bucket == null) {
+                    continue;
+                }
+                long lowest = bucket.lowestUncountedCount();
+                for (int i = 0; i < bucket.size; i++) {
+                    Counter counter = bucket.counters[i];
+                    Estimate estimate = estimates.get(counter.record);
+                    if (estimate == null) {
+                        estimate = new Estimate(counter.record);
+                        estimate.count = missingFromAll;
+                        estimates.put(counter.record, estimate);
+                    }
+                    estimate.count += counter.count - lowest;
+                    estimate.guaranteed += counter.count - counter.error;
+                }
+            }
+
+            // Keep the N highest estimates in a min-heap, then empty it from the back to rank them
+            PriorityQueue<Estimate> heap = new PriorityQueue<>(topN, ASCENDING_ESTIMATE);
+            for (Estimate estimate : estimates.values()) {
+                if (heap.size() < topN) {
+                    heap.add(estimate);
+                } else if (estimate.count > heap.peek().count) {
+                    heap.poll();
+                    heap.add(estimate);
+                }
+            }
+            Estimate[] top = new Estimate[heap.size()];
+            for (int i = top.length - 1; i >= 0; i--) {
+                top[i] = heap.poll();
+            }
+            return top;
+        }
+
+        boolean isEmpty() {
+            for (BucketSummary bucket : buckets) {
+                if (bucket != null && bucket.size > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The Space-Saving counters of one resource in one bucket, ordered by count from highest to lowest. Counter
+     * objects are reused after the bucket is cleared.
+     */
+    private class BucketSummary {
+        private Counter[] counters = new Counter[countersPerBucket];
+        private int size;
+        private Map<Record, Counter> index = new HashMap<>();
+
+        long increment(Record record) {
+            Counter counter = take(record);
+            promote(counter);
+            return counter.count;
+        }
+
+        /**
+         * Add a count to a record at once. Taking over a counter still makes its count the record's error.
+         */
+        void add(Record record, long count) {
+            Counter counter = take(record);
+            counter.count += count;
+            // Unlike promote() the counter may pass several runs, so move it up one place at a time
+            while (counter.index > 0 && counters[counter.index - 1].count < counter.count) {
+                Counter displaced = counters[counter.index - 1];
+                counters[counter.index] = displaced;
+                displaced.index = counter.index;
+                counter.index--;
+                counters[counter.index] = counter;
+            }
+        }
+
+        /**
+         * @return The counter of the record, taking a free counter or the one with the lowest count if it has none.
+         */
+        private Counter take(Record record) {
+            Counter counter = index.get(record);
+            if (counter == null) {
+                if (size < counters.length) {
+                    if (counters[size] == null) {
+                        counters[size] = new Counter();
+                    }
+                    counter = counters[size];
+                    counter.index = size++;
+                    counter.count = 0;
+                    counter.error = 0;
+                } else {
+                    // Take over the counter with the lowest count, which becomes this record's error
+                    counter = counters[size - 1];
+                    index.remove(counter.record);
+                    counter.error = counter.count;
+                }
+                counter.record = record;
+                index.put(record, counter);
+            }
+            return counter;
+        }
+
+        /**
+         * @return The most a record not counted in this bucket could have been counted here: the lowest count once
+         *         every counter is taken, otherwise 0.
+         */
+        long lowestUncountedCount() {
+            return size < counters.length ? 0 : counters[size - 1].count;
+        }
+
+        /**
+         * Increment a counter and restore the order of the counters. Counters with the same count form a run, so
+         * swapping the counter with the first counter of its run keeps every counter in order.
+         */
+        private void promote(Counter counter) {
+            int first = firstWithCount(counter.count, counter.index);
+            counter.count++;
+            if (first != counter.index) {
+                Counter displaced = counters[first];
+                counters[first] = counter;
+                counters[counter.index] = displaced;
+                displaced.index = counter.index;
+                counter.index = first;
+            }
+        }
+
+        /**
+         * Find the first counter with the given count. Counters are ordered from highest count to lowest.
+         *
+         * @param count The count of the counter at {@code end}.
+         * @param end Index of a counter with this count.
+         */
+        private int firstWithCount(long count, int end) {
+            int low = 0;
+            int high = end;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (counters[mid].count > count) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                counters[i].record = null;
+            }
+            size = 0;
+            index.clear();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes {@link Record}s from UTF-8 JSON with a streaming {@link JsonParser}. Only the fields that are counted and
+ * the record's timestamp are read, every other value is skipped, and field values are interned through a
+ * {@link BoundedStringInterner} so repeated values do not allocate new strings.
+ * <p/>
+ * Any record that is not a flat object with string values for the counted fields and an integer timestamp is handed to
+ * a {@link JsonRecordDecoder} instead.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class StreamingRecordDecoder implements RecordDecoder<Record> {
+    private static final String RESOURCE = "resource";
+    private static final String REFERRER = "referrer";
+    private static final String TIMESTAMP = "timestamp";
+
+    private static final int INITIAL_SCRATCH_SIZE = 1024;
+
+    private final JsonFactory factory = new JsonFactory();
+    private RecordDecoder<Record> fallback;
+    private BoundedStringInterner interner;
+    // Holds the contents of buffers that are not backed by an accessible array
+    private byte[] scratch = new byte[INITIAL_SCRATCH_SIZE];
+
+    /**
+     * @param maxInternedValues The maximum number of distinct field values to intern.
+     */
+    public StreamingRecordDecoder(int maxInternedValues) {
+        this(maxInternedValues, new JsonRecordDecoder<>(Record.class));
+    }
+
+    /**
+     * @param maxInternedValues The maximum number of distinct field values to intern.
+     * @param fallback Decoder to use for records this decoder does not understand.
+     */
+    public StreamingRecordDecoder(int maxInternedValues, RecordDecoder<Record> fallback) {
+        if (fallback == null) {
+            throw new NullPointerException("fallback must not be null");
+        }
+        this.interner = new BoundedStringInterner(maxInternedValues);
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Record decode(ByteBuffer data) throws IOException {
+        byte[] bytes;
+        int offset;
+        int length = data.remaining();
+        if (data.hasArray()) {
+            bytes = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length << 1)];
+            }
+            data.duplicate().get(scratch, 0, length);
+            bytes = scratch;
+            offset = 0;
+        }
+
+        Record record = decode(bytes, offset, length);
+        if (record == null) {
+            return fallback.decode(data);
+        }
+        return record;
+    }
+
+    /**
+     * Read the counted fields of a flat JSON object.
+     *
+     * @return The record, or {@code null} if the data is not in the shape this decoder expects.
+     */
+    private Record decode(byte[] bytes, int offset, int length) throws IOException {
+        String resource = null;
+        String referrer = null;
+        long timestamp = 0;
+
+        try (JsonParser parser = factory.createParser(bytes, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                // Field names are canonicalized by the parser's symbol table and do not allocate
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (RESOURCE.equals(name) || REFERRER.equals(name)) {
+                    if (value != JsonToken.VALUE_STRING) {
+                        return null;
+                    }
+                    String text = interner.intern(parser.getTextCharacters(),
+                            parser.getTextOffset(),
+                            parser.getTextLength());
+                    if (RESOURCE.equals(name)) {
+                        resource = text;
+                    } else {
+                        referrer = text;
+                    }
+                } else if (TIMESTAMP.equals(name)) {
+                    if (value != JsonToken.VALUE_NUMBER_INT) {
+                        return null;
+                    }
+                    timestamp = parser.getLongValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+                return null;
+            }
+        }
+
+        return new Record(resource, referrer, timestamp);
+    }
+}
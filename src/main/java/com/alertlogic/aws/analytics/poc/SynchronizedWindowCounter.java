@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes a {@link WindowCounter} that is not thread safe usable from multiple threads by synchronizing every call on
+ * this instance. Callers may also synchronize on this instance to perform several operations atomically.
+ */
+public class SynchronizedWindowCounter<ObjectType> implements WindowCounter<ObjectType> {
+
+    private WindowCounter<ObjectType> counter;
+
+    /**
+     * @param counter The counter to guard. It must not be used directly once wrapped.
+     */
+    public SynchronizedWindowCounter(WindowCounter<ObjectType> counter) {
+        if (counter == null) {
+            throw new NullPointerException("counter must not be null");
+        }
+        this.counter = counter;
+    }
+
+    @Override
+    public synchronized void increment(ObjectType obj) {
+        counter.increment(obj);
+    }
+
+    @Override
+    public synchronized Map<ObjectType, Long> getCounts() {
+        return counter.getCounts();
+    }
+
+    @Override
+    public synchronized Map<ObjectType, Long> getChangedCounts() {
+        return counter.getChangedCounts();
+    }
+
+    @Override
+    public synchronized void advanceWindow() {
+        counter.advanceWindow();
+    }
+
+    @Override
+    public synchronized Map<ObjectType, Long> getExpiringBucketCounts() {
+        return counter.getExpiringBucketCounts();
+    }
+
+    @Override
+    public synchronized boolean isWindowFull() {
+        return counter.isWindowFull();
+    }
+
+    @Override
+    public synchronized void pruneEmptyObjects() {
+        counter.pruneEmptyObjects();
+    }
+
+    @Override
+    public synchronized List<Map<ObjectType, Long>> getBucketCounts() {
+        return counter.getBucketCounts();
+    }
+
+    @Override
+    public synchronized void restore(List<Map<ObjectType, Long>> bucketCounts, boolean windowFull) {
+        counter.restore(bucketCounts, windowFull);
+    }
+}
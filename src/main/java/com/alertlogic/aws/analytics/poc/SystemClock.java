@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that responds in milliseconds since Jan 1, 1970. This is backed by {@link System#currentTimeMillis()}.
+ */
+public class SystemClock implements Clock {
+    @Override
+    public long getTime() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public TimeUnit getTimeUnit() {
+        return TimeUnit.MILLISECONDS;
+    }
+}
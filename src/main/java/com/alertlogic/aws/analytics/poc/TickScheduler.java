@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the interval tasks of many {@link RecordProcessor}s from a single timer. Ticks are aligned to the epoch, so
+ * every processor advances its window on the same interval boundary no matter when it started. On each tick the tasks
+ * are handed to a small fixed pool of threads, which bounds how much persistence work runs at once.
+ * <p/>
+ * A task never runs concurrently with itself. If a tick arrives while a task is still running, the task runs again
+ * as soon as it finishes, once for every tick it missed, the same way a fixed rate schedule catches up.
+ * <p/>
+ * This class is thread safe.
+ */
+public class TickScheduler {
+    private static final Log LOG = LogFactory.getLog(TickScheduler.class);
+
+    private long intervalInMillis;
+    private ScheduledExecutorService timer;
+    private ExecutorService workers;
+    private List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create and start a scheduler.
+     *
+     * @param intervalInMillis Time between ticks. Ticks happen at every multiple of the interval since the epoch.
+     * @param threads Number of threads to run tasks on.
+     */
+    public TickScheduler(long intervalInMillis, int threads) {
+        if (intervalInMillis <= 0) {
+            throw new IllegalArgumentException("intervalInMillis must be > 0");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        this.intervalInMillis = intervalInMillis;
+
+        timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("tick-scheduler"));
+        // Each registration has at most one task queued or running, so the queue never holds more than one task per
+        // registration
+        workers = Executors.newFixedThreadPool(threads, daemonThreads("tick-worker"));
+        scheduleNextTick();
+    }
+
+    public long getIntervalInMillis() {
+        return intervalInMillis;
+    }
+
+    /**
+     * Run a task on every tick.
+     *
+     * @param task Task to run.
+     * @param initialDelay Minimum time to wait before the first tick the task runs on.
+     * @param unit Unit of the initial delay.
+     * @return A registration to cancel the task with.
+     */
+    public Registration register(Runnable task, long initialDelay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task must not be null");
+        }
+        if (initialDelay < 0) {
+            throw new IllegalArgumentException("initialDelay must be >= 0");
+        }
+        Registration registration =
+                new Registration(task, System.currentTimeMillis() + unit.toMillis(initialDelay));
+        registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Stop ticking. Tasks that are already running finish, tasks waiting to run do not.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Wait until the next interval boundary.
+     */
+    private void scheduleNextTick() {
+        long now = System.currentTimeMillis();
+        long next = (now / intervalInMillis + 1) * intervalInMillis;
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, next - now, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // We've been shut down
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        // Schedule from the clock each time rather than at a fixed rate so ticks never drift off the boundaries
+        scheduleNextTick();
+        for (Registration registration : registrations) {
+            if (now >= registration.startAt) {
+                registration.tick();
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * A task run on every tick.
+     */
+    public class Registration {
+        private Runnable task;
+        private long startAt;
+        // Ticks the task has yet to run for, including the one running
+        private AtomicInteger pendingTicks = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        Registration(Runnable task, long startAt) {
+            this.task = task;
+            this.startAt = startAt;
+        }
+
+        private void tick() {
+            if (!cancelled && pendingTicks.getAndIncrement() == 0) {
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            runPendingTicks();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // We've been shut down
+                    pendingTicks.set(0);
+                }
+            }
+        }
+
+        private void runPendingTicks() {
+            while (!cancelled) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Error running interval task", e);
+                }
+                if (pendingTicks.decrementAndGet() == 0) {
+                    break;
+                }
+            }
+            if (cancelled) {
+                pendingTicks.set(0);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Stop running the task and wait for it to finish if it is running.
+         *
+         * @param timeout Maximum time to wait.
+         * @param unit Unit of the timeout.
+         * @return {@code true} if the task is not running, {@code false} if the timeout elapsed first.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public boolean cancel(long timeout, TimeUnit unit) throws InterruptedException {
+            cancelled = true;
+            registrations.remove(this);
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                while (pendingTicks.get() > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return true;
+        }
+    }
+}
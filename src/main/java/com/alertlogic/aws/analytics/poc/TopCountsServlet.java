@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Answers "top N referrers of a resource over the current window" from the {@link LiveCounts} of this worker and its
+ * peers, as JSON:
+ *
+ * <pre>
+ * GET /top?resource=/index.html&amp;n=10
+ * {"resource":"/index.html","counts":[{"field":"http://www.amazon.com","count":42},...],"failedPeers":[]}
+ * </pre>
+ *
+ * A resource's counts live on whichever worker processes its shard, so each query is sent to every peer at the same
+ * time and their answers are merged with this worker's. Peers that do not answer in time are listed in
+ * {@code failedPeers} and left out. Queries with {@code local=true} are answered from this worker alone, which is how
+ * peers are asked.
+ */
+public class TopCountsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = LogFactory.getLog(TopCountsServlet.class);
+
+    private static final int DEFAULT_N = 10;
+    private static final int MAX_N = 1000;
+    // How long to wait for every peer to answer
+    private static final int PEER_TIMEOUT_IN_MILLIS = 1000;
+
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // Base URLs of the other workers, e.g. http://10.0.0.2:8080
+    private List<String> peers;
+    private transient ExecutorService executor;
+
+    /**
+     * @param peers Base URLs of the other workers' servers, e.g. {@code http://10.0.0.2:8080}.
+     */
+    public TopCountsServlet(List<String> peers) {
+        if (peers == null) {
+            throw new NullPointerException("peers must not be null");
+        }
+        this.peers = new ArrayList<>(peers);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "top-counts-query");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * The answer to a query.
+     */
+    public static class TopCounts {
+        private String resource;
+        private List<FieldCount> counts;
+        private List<String> failedPeers;
+
+        public String getResource() {
+            return resource;
+        }
+
+        public void setResource(String resource) {
+            this.resource = resource;
+        }
+
+        public List<FieldCount> getCounts() {
+            return counts;
+        }
+
+        public void setCounts(List<FieldCount> counts) {
+            this.counts = counts;
+        }
+
+        public List<String> getFailedPeers() {
+            return failedPeers;
+        }
+
+        public void setFailedPeers(List<String> failedPeers) {
+            this.failedPeers = failedPeers;
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String resource = request.getParameter("resource");
+        if (resource == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "resource is required");
+            return;
+        }
+        int n = DEFAULT_N;
+        if (request.getParameter("n") != null) {
+            try {
+                n = Integer.parseInt(request.getParameter("n"));
+            } catch (NumberFormatException e) {
+                n = -1;
+            }
+            if (n < 1 || n > MAX_N) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "n must be between 1 and " + MAX_N);
+                return;
+            }
+        }
+        boolean local = Boolean.parseBoolean(request.getParameter("local"));
+
+        TopCounts topCounts = local ? queryLocal(resource, n) : query(resource, n);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JSON.writeValue(response.getOutputStream(), topCounts);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private TopCounts queryLocal(String resource, int n) {
+        TopCounts topCounts = new TopCounts();
+        topCounts.setResource(resource);
+        topCounts.setCounts(LiveCounts.top(resource, n));
+        topCounts.setFailedPeers(Collections.<String> emptyList());
+        return topCounts;
+    }
+
+    /**
+     * Query every peer and this worker, and merge their answers.
+     */
+    private TopCounts query(final String resource, final int n) throws IOException {
+        List<Future<TopCounts>> answers = new ArrayList<>(peers.size());
+        for (final String peer : peers) {
+            answers.add(executor.submit(new Callable<TopCounts>() {
+                @Override
+                public TopCounts call() throws IOException {
+                    return queryPeer(peer, resource, n);
+                }
+            }));
+        }
+
+        List<List<FieldCount>> lists = new ArrayList<>();
+        lists.add(LiveCounts.top(resource, n));
+        List<String> failedPeers = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PEER_TIMEOUT_IN_MILLIS);
+        for (int i = 0; i < answers.size(); i++) {
+            try {
+                lists.add(answers.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                        .getCounts());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while querying peers", e);
+            } catch (ExecutionException | TimeoutException e) {
+                answers.get(i).cancel(true);
+                failedPeers.add(peers.get(i));
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Peer " + peers.get(i) + " did not answer a query for " + resource, e);
+                }
+            }
+        }
+
+        TopCounts topCounts = new TopCounts();
+        topCounts.setResource(resource);
+        topCounts.setCounts(LiveCounts.merge(lists, n));
+        topCounts.setFailedPeers(failedPeers);
+        return topCounts;
+    }
+
+    private TopCounts queryPeer(String peer, String resource, int n) throws IOException {
+        URL url = new URL(peer + "/top?local=true&n=" + n + "&resource=" + URLEncoder.encode(resource, "UTF-8"));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(PEER_TIMEOUT_IN_MILLIS);
+        connection.setReadTimeout(PEER_TIMEOUT_IN_MILLIS);
+        try (InputStream in = connection.getInputStream()) {
+            return JSON.readValue(in, TopCounts.class);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
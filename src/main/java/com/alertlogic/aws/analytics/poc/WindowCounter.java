@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes a total count of occurrences over a moving window of buckets. Calls to {@link #increment(Object)} are
+ * added to the current bucket and {@link #advanceWindow()} drops the oldest bucket from the window.
+ *
+ * @param <ObjectType> Type of objects this counter counts.
+ */
+public interface WindowCounter<ObjectType> {
+
+    /**
+     * Increment the count for an object in the current bucket by 1.
+     *
+     * @param obj Object whose count should be incremented.
+     */
+    public void increment(ObjectType obj);
+
+    /**
+     * Get the counts for all objects across all buckets.
+     *
+     * @return A mapping of ObjectType -> total count across all buckets.
+     */
+    public Map<ObjectType, Long> getCounts();
+
+    /**
+     * Get the counts for the objects whose total changed since the last call to this method. Objects whose total
+     * dropped to 0 are included with a count of 0 until they are pruned.
+     *
+     * @return A mapping of ObjectType -> total count across all buckets for every object whose total changed.
+     */
+    public Map<ObjectType, Long> getChangedCounts();
+
+    /**
+     * Advance the window "one bucket". This will remove the oldest bucket and any count stored in it.
+     */
+    public void advanceWindow();
+
+    /**
+     * Get the counts of the bucket the next call to {@link #advanceWindow()} will remove, e.g. to roll them up into a
+     * coarser window.
+     *
+     * @return A mapping of ObjectType -> count in the oldest bucket. Empty until the window is full.
+     */
+    public Map<ObjectType, Long> getExpiringBucketCounts();
+
+    /**
+     * Check if we've advanced our window enough times to have completely filled all buckets.
+     *
+     * @return {@code true} if the window is full.
+     */
+    public boolean isWindowFull();
+
+    /**
+     * Remove any objects whose buckets total 0.
+     */
+    public void pruneEmptyObjects();
+
+    /**
+     * Get the counts of each bucket the window has advanced into, so they can be saved and restored with
+     * {@link #restore(List, boolean)}.
+     *
+     * @return One mapping of ObjectType -> count per bucket, oldest first. The last is the bucket currently being
+     *         incremented.
+     */
+    public List<Map<ObjectType, Long>> getBucketCounts();
+
+    /**
+     * Load bucket counts into an empty window, making the last bucket given the one currently being incremented.
+     *
+     * @param bucketCounts Counts of each bucket, oldest first, as returned by {@link #getBucketCounts()}. At most as
+     *        many buckets as the window holds.
+     * @param windowFull Whether the window the counts were taken from was full.
+     */
+    public void restore(List<Map<ObjectType, Long>> bucketCounts, boolean windowFull);
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The bucket counts of a shard's window at a point in time, saved to a local file so a restarted record processor can
+ * resume with the window it had instead of waiting for a new one to fill.
+ * <p/>
+ * A snapshot is tagged with the shard it was taken from, the last sequence number counted, the interval length and
+ * the start of the interval its current bucket counts. Files are written through a memory map to a temporary file
+ * that then replaces the snapshot, so readers never see a partial snapshot. A checksum guards against corrupt files.
+ * <p/>
+ * Objects are stored as JSON once each, and buckets refer to them by index, since the same objects are usually
+ * counted in many buckets.
+ *
+ * @param <ObjectType> Type of objects counted.
+ */
+public class WindowSnapshot<ObjectType> {
+    // "WNDS"
+    private static final int MAGIC = 0x574E4453;
+    private static final int VERSION = 1;
+    // Magic, version, body length and checksum
+    private static final int HEADER_SIZE = 16;
+
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private String shardId;
+    private String sequenceNumber;
+    private int intervalInMillis;
+    private long currentIntervalStartInMillis;
+    private boolean windowFull;
+    private List<Map<ObjectType, Long>> bucketCounts;
+
+    /**
+     * @param shardId The shard the window counts.
+     * @param sequenceNumber Every record of the shard up to this sequence number is counted in the window, or
+     *        {@code null} if no records were counted yet.
+     * @param intervalInMillis Length of the interval each bucket counts.
+     * @param currentIntervalStartInMillis Start of the interval the last bucket counts.
+     * @param windowFull Whether the window was full.
+     * @param bucketCounts Counts of each bucket, oldest first, as returned by {@link WindowCounter#getBucketCounts()}.
+     */
+    public WindowSnapshot(String shardId,
+            String sequenceNumber,
+            int intervalInMillis,
+            long currentIntervalStartInMillis,
+            boolean windowFull,
+            List<Map<ObjectType, Long>> bucketCounts) {
+        if (shardId == null) {
+            throw new NullPointerException("shardId must not be null");
+        }
+        if (bucketCounts == null) {
+            throw new NullPointerException("bucketCounts must not be null");
+        }
+        if (intervalInMillis <= 0) {
+            throw new IllegalArgumentException("intervalInMillis must be > 0");
+        }
+        this.shardId = shardId;
+        this.sequenceNumber = sequenceNumber;
+        this.intervalInMillis = intervalInMillis;
+        this.currentIntervalStartInMillis = currentIntervalStartInMillis;
+        this.windowFull = windowFull;
+        this.bucketCounts = bucketCounts;
+    }
+
+    public String getShardId() {
+        return shardId;
+    }
+
+    public String getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public int getIntervalInMillis() {
+        return intervalInMillis;
+    }
+
+    public long getCurrentIntervalStartInMillis() {
+        return currentIntervalStartInMillis;
+    }
+
+    public boolean isWindowFull() {
+        return windowFull;
+    }
+
+    public List<Map<ObjectType, Long>> getBucketCounts() {
+        return bucketCounts;
+    }
+
+    /**
+     * Save this snapshot, replacing any snapshot already in the file.
+     *
+     * @param file File to save to. A temporary file next to it is used while writing.
+     * @throws IOException if the snapshot could not be written.
+     */
+    public void write(File file) throws IOException {
+        // Number every distinct object so each is serialized once
+        Map<ObjectType, Integer> keyIndexes = new HashMap<>();
+        List<byte[]> keys = new ArrayList<>();
+        long size = HEADER_SIZE;
+        byte[] shard = shardId.getBytes(StandardCharsets.UTF_8);
+        byte[] sequence = sequenceNumber == null ? null : sequenceNumber.getBytes(StandardCharsets.UTF_8);
+        size += 4 + shard.length + 4 + (sequence == null ? 0 : sequence.length) + 4 + 8 + 1 + 4 + 4;
+        for (Map<ObjectType, Long> counts : bucketCounts) {
+            size += 4;
+            for (ObjectType obj : counts.keySet()) {
+                if (!keyIndexes.containsKey(obj)) {
+                    byte[] key = JSON.writeValueAsBytes(obj);
+                    keyIndexes.put(obj, keys.size());
+                    keys.add(key);
+                    size += 4 + key.length;
+                }
+                size += 4 + 8;
+            }
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Window snapshot of " + size + " bytes is too large to write");
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(size);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.position(HEADER_SIZE);
+            putBytes(buffer, shard);
+            putBytes(buffer, sequence);
+            buffer.putInt(intervalInMillis);
+            buffer.putLong(currentIntervalStartInMillis);
+            buffer.put((byte) (windowFull ? 1 : 0));
+            buffer.putInt(keys.size());
+            for (byte[] key : keys) {
+                putBytes(buffer, key);
+            }
+            buffer.putInt(bucketCounts.size());
+            for (Map<ObjectType, Long> counts : bucketCounts) {
+                buffer.putInt(counts.size());
+                for (Map.Entry<ObjectType, Long> count : counts.entrySet()) {
+                    buffer.putInt(keyIndexes.get(count.getKey()));
+                    buffer.putLong(count.getValue());
+                }
+            }
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, (int) size - HEADER_SIZE);
+            buffer.putInt(12, checksum(buffer, HEADER_SIZE, (int) size));
+            buffer.force();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a snapshot saved with {@link #write(File)}.
+     *
+     * @param file File to load from.
+     * @param objectType Type of objects counted.
+     * @return The snapshot, or {@code null} if the file does not exist.
+     * @throws IOException if the file could not be read or does not hold a valid snapshot.
+     */
+    public static <ObjectType> WindowSnapshot<ObjectType> read(File file, Class<ObjectType> objectType)
+            throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long size = in.length();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a window snapshot: " + file);
+            }
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a window snapshot: " + file);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported window snapshot version " + buffer.getInt(4) + ": " + file);
+            }
+            if (buffer.getInt(8) != size - HEADER_SIZE
+                    || buffer.getInt(12) != checksum(buffer, HEADER_SIZE, (int) size)) {
+                throw new IOException("Corrupt window snapshot: " + file);
+            }
+
+            buffer.position(HEADER_SIZE);
+            String shardId = getString(buffer);
+            String sequenceNumber = getString(buffer);
+            int intervalInMillis = buffer.getInt();
+            long currentIntervalStartInMillis = buffer.getLong();
+            boolean windowFull = buffer.get() != 0;
+            int keyCount = buffer.getInt();
+            List<ObjectType> keys = new ArrayList<>();
+            for (int i = 0; i < keyCount; i++) {
+                int length = buffer.getInt();
+                byte[] key = new byte[length];
+                buffer.get(key);
+                keys.add(JSON.readValue(key, objectType));
+            }
+            int bucketCount = buffer.getInt();
+            List<Map<ObjectType, Long>> bucketCounts = new ArrayList<>();
+            for (int i = 0; i < bucketCount; i++) {
+                int entries = buffer.getInt();
+                Map<ObjectType, Long> counts = new HashMap<>();
+                for (int j = 0; j < entries; j++) {
+                    ObjectType key = keys.get(buffer.getInt());
+                    counts.put(key, buffer.getLong());
+                }
+                bucketCounts.add(counts);
+            }
+            return new WindowSnapshot<>(shardId,
+                    sequenceNumber,
+                    intervalInMillis,
+                    currentIntervalStartInMillis,
+                    windowFull,
+                    Collections.unmodifiableList(bucketCounts));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                | NegativeArraySizeException e) {
+            throw new IOException("Corrupt window snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * Write a length prefixed byte array, or a length of -1 for {@code null}.
+     */
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Read a length prefixed UTF-8 string written by {@link #putBytes(ByteBuffer, byte[])}.
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The CRC-32 of the bytes of the buffer from start up to end.
+     */
+    private static int checksum(ByteBuffer buffer, int start, int end) {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.position(start);
+        bytes.limit(end);
+        byte[] chunk = new byte[8192];
+        while (bytes.hasRemaining()) {
+            int length = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeDetectingPersisterTest {
+    private static final int TOP_N = 2;
+    private static final double THRESHOLD = 0.05;
+    private static final long SNAPSHOT_INTERVAL_IN_MILLIS = 60000;
+
+    private ManualClock clock;
+    private CapturingPersister delegate;
+    private ChangeDetectingPersister persister;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock(0);
+        delegate = new CapturingPersister();
+        persister = new ChangeDetectingPersister(delegate,
+                TOP_N,
+                THRESHOLD,
+                SNAPSHOT_INTERVAL_IN_MILLIS,
+                TimeUnit.MILLISECONDS,
+                clock);
+    }
+
+    @Test
+    public void skipsChangesBelowThreshold() {
+        persist(counts("a", "x", 100L));
+        delegate.completeAll();
+
+        persist(counts("a", "x", 104L));
+
+        assertTrue(delegate.lastCounts().isEmpty());
+    }
+
+    @Test
+    public void persistsChangeAgainUntilTicketCompletes() {
+        persist(counts("a", "x", 100L));
+        delegate.completeAll();
+
+        persist(counts("a", "x", 200L));
+        assertEquals(counts("a", "x", 200L), delegate.lastCounts());
+
+        // The first change may not have been written yet, so it must not be taken as persisted
+        clock.advance(1000);
+        persist(counts("a", "x", 200L));
+        assertEquals(counts("a", "x", 200L), delegate.lastCounts());
+
+        delegate.completeAll();
+        clock.advance(1000);
+        persist(counts("a", "x", 200L));
+        assertTrue(delegate.lastCounts().isEmpty());
+    }
+
+    @Test
+    public void persistsZeroCountWhenResourceLeavesWindow() {
+        persist(counts("a", "x", 100L));
+        delegate.completeAll();
+
+        persist(counts("b", "x", 100L));
+        Map<Record, Long> expected = counts("b", "x", 100L);
+        expected.put(new Record("a", null), 0L);
+        assertEquals(expected, delegate.lastCounts());
+        delegate.completeAll();
+
+        persist(counts("b", "x", 100L));
+        assertTrue(delegate.lastCounts().isEmpty());
+    }
+
+    @Test
+    public void detectsChangesBeyondTopN() {
+        Map<Record, Long> counts = counts("a", "x", 100L);
+        counts.put(new Record("a", "y"), 90L);
+        counts.put(new Record("a", "z"), 10L);
+        persist(counts);
+        delegate.completeAll();
+
+        // Only the sum of the counts left out of the top N changes
+        counts.put(new Record("a", "z"), 20L);
+        persist(counts);
+
+        assertEquals(counts, delegate.lastCounts());
+    }
+
+    @Test
+    public void persistsUnchangedResourceOncePerSnapshotInterval() {
+        persist(counts("a", "x", 100L));
+        delegate.completeAll();
+
+        clock.advance(SNAPSHOT_INTERVAL_IN_MILLIS - 1);
+        persist(counts("a", "x", 100L));
+        assertTrue(delegate.lastCounts().isEmpty());
+
+        clock.advance(1);
+        persist(counts("a", "x", 100L));
+        assertEquals(counts("a", "x", 100L), delegate.lastCounts());
+    }
+
+    private void persist(Map<Record, Long> counts) {
+        persister.persist(counts, Collections.<String, Long> emptyMap(), new Date());
+    }
+
+    private static Map<Record, Long> counts(String resource, String referrer, long count) {
+        Map<Record, Long> counts = new HashMap<>();
+        counts.put(new Record(resource, referrer), count);
+        return counts;
+    }
+
+    /**
+     * Remembers the counts of every call and hands out tickets that only complete when told to.
+     */
+    private static class CapturingPersister implements Persister<Record> {
+        private List<Map<Record, Long>> persisted = new ArrayList<>();
+        private List<ManualTicket> tickets = new ArrayList<>();
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public FlushTicket persist(Map<Record, Long> objectCounts) {
+            return persist(objectCounts, Collections.<String, Long> emptyMap(), new Date());
+        }
+
+        @Override
+        public FlushTicket persist(Map<Record, Long> objectCounts, Map<String, Long> distinctCounts, Date windowEnd) {
+            persisted.add(new HashMap<>(objectCounts));
+            ManualTicket ticket = new ManualTicket();
+            tickets.add(ticket);
+            return ticket;
+        }
+
+        @Override
+        public void checkpoint() {
+        }
+
+        Map<Record, Long> lastCounts() {
+            return persisted.get(persisted.size() - 1);
+        }
+
+        void completeAll() {
+            for (ManualTicket ticket : tickets) {
+                ticket.complete = true;
+            }
+        }
+    }
+
+    private static class ManualTicket implements FlushTicket {
+        private volatile boolean complete;
+
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) {
+            return complete;
+        }
+    }
+
+    private static class ManualClock implements Clock {
+        private long time;
+
+        ManualClock(long time) {
+            this.time = time;
+        }
+
+        void advance(long millis) {
+            time += millis;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+}
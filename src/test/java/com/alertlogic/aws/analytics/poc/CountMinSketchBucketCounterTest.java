@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CountMinSketchBucketCounterTest {
+    private static final double ERROR = 0.01;
+    private static final double CONFIDENCE = 0.99;
+
+    @Test
+    public void estimatesAreWithinErrorBound() {
+        CountMinSketchBucketCounter<String> counter = new CountMinSketchBucketCounter<>(2, ERROR, CONFIDENCE, 10000);
+        // A long tail of objects counted a few times each, spread over both buckets
+        Map<String, Long> expected = new HashMap<>();
+        long total = 0;
+        for (int i = 0; i < 5000; i++) {
+            String obj = "object-" + i;
+            int count = i % 20 + 1;
+            for (int j = 0; j < count; j++) {
+                counter.increment(obj, j % 2);
+            }
+            expected.put(obj, (long) count);
+            total += count;
+        }
+
+        Map<String, Long> counts = counter.getCounts();
+        assertEquals(expected.keySet(), counts.keySet());
+        int outsideBound = 0;
+        for (Map.Entry<String, Long> count : expected.entrySet()) {
+            long estimate = counts.get(count.getKey());
+            assertTrue("Estimate of " + count.getKey() + " undercounts", estimate >= count.getValue());
+            if (estimate - count.getValue() > ERROR * total) {
+                outsideBound++;
+            }
+        }
+        assertTrue(outsideBound + " estimates overcount by more than the error bound",
+                outsideBound <= (1 - CONFIDENCE) * expected.size());
+    }
+
+    @Test
+    public void clearingBucketSubtractsItsCounts() {
+        CountMinSketchBucketCounter<String> counter = new CountMinSketchBucketCounter<>(2, ERROR, CONFIDENCE, 100);
+        counter.add("a", 0, 5);
+        counter.add("a", 1, 3);
+        counter.add("b", 0, 2);
+
+        counter.clearBucket(0);
+
+        assertEquals(Collections.singletonMap("a", 3L), counter.getCounts());
+        counter.pruneEmptyObjects();
+        assertEquals(Collections.singletonMap("a", 3L), counter.getChangedCounts());
+        assertTrue(counter.getChangedCounts().isEmpty());
+    }
+
+    @Test
+    public void tracksObjectsWithHighestEstimates() {
+        CountMinSketchBucketCounter<String> counter = new CountMinSketchBucketCounter<>(1, ERROR, CONFIDENCE, 10);
+        counter.add("heavy", 0, 1000);
+        for (int i = 0; i < 1000; i++) {
+            counter.increment("light-" + i, 0);
+        }
+
+        Map<String, Long> counts = counter.getCounts();
+        assertTrue(counts.size() < 20);
+        assertTrue(counts.get("heavy") >= 1000);
+    }
+}
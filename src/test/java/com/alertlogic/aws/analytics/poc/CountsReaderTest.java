@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CountsReaderTest {
+    private static final String TABLE_NAME = "counts";
+    private static final String RESOURCE = "/index.html";
+    private static final String REFERRER = "http://www.example.com/";
+    // The start of a chunk, long enough ago to have settled
+    private static final long CHUNK_START = 1400000040000L;
+
+    private LocalDynamoDB dynamoDB;
+    private DynamoDBBatchWriter writer;
+    private DynamoDBPersister<Record> persister;
+    private CountsReader reader;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new LocalDynamoDB(0, 0);
+        writer = new DynamoDBBatchWriter(dynamoDB.client(), TABLE_NAME, 1, 1000);
+        persister = new DynamoDBPersister<>(writer, 1000, 10, "resource", "referrer");
+        persister.initialize();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        writer.shutdown();
+        if (reader != null) {
+            reader.shutdown();
+        }
+    }
+
+    @Test
+    public void sumsEveryItemOfChunk() throws InterruptedException {
+        reader = new CountsReader(dynamoDB.client(), TABLE_NAME, 1, 10);
+        persist(REFERRER, 1, CHUNK_START + 10000);
+        persist(REFERRER, 2, CHUNK_START + 20000);
+
+        assertTopCount(3, CHUNK_START, CHUNK_START + CountsReader.CHUNK_IN_MILLIS);
+    }
+
+    @Test
+    public void takesLatestItemOfEachChunk() throws InterruptedException {
+        reader = new CountsReader(dynamoDB.client(), TABLE_NAME, 1, 10, CountsReader.Aggregation.LATEST);
+        persist(REFERRER, 1, CHUNK_START + 10000);
+        persist(REFERRER, 5, CHUNK_START + 20000);
+
+        assertTopCount(5, CHUNK_START, CHUNK_START + CountsReader.CHUNK_IN_MILLIS);
+        // The second chunk has no item of its own, so the counts written before it still hold
+        assertTopCount(10, CHUNK_START, CHUNK_START + 2 * CountsReader.CHUNK_IN_MILLIS);
+    }
+
+    @Test
+    public void latestItemWithoutCountsEndsCounts() throws InterruptedException {
+        reader = new CountsReader(dynamoDB.client(), TABLE_NAME, 1, 10, CountsReader.Aggregation.LATEST);
+        persist(REFERRER, 5, CHUNK_START + 10000);
+        // What a ChangeDetectingPersister writes once a resource leaves the window
+        persist(null, 0, CHUNK_START + CountsReader.CHUNK_IN_MILLIS + 10000);
+
+        long secondChunkStart = CHUNK_START + CountsReader.CHUNK_IN_MILLIS;
+        List<FieldCount> counts = reader.getTopCounts(Collections.singletonList(RESOURCE),
+                new Date(secondChunkStart),
+                new Date(secondChunkStart + CountsReader.CHUNK_IN_MILLIS),
+                10).get(RESOURCE);
+        assertTrue(counts.isEmpty());
+    }
+
+    private void persist(String referrer, long count, long timestamp) throws InterruptedException {
+        Map<Record, Long> counts = Collections.singletonMap(new Record(RESOURCE, referrer), count);
+        FlushTicket ticket = persister.persist(counts, Collections.<String, Long> emptyMap(), new Date(timestamp));
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+    }
+
+    private void assertTopCount(long expected, long startInMillis, long endInMillis) throws InterruptedException {
+        List<FieldCount> counts = reader.getTopCounts(Collections.singletonList(RESOURCE),
+                new Date(startInMillis),
+                new Date(endInMillis),
+                10).get(RESOURCE);
+        assertEquals(1, counts.size());
+        assertEquals(REFERRER, counts.get(0).getField());
+        assertEquals(expected, counts.get(0).getCount());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class DimensionDictionaryTest {
+    @Test
+    public void encodesNewValuesAsOtherOnceFull() {
+        DimensionDictionary dictionary = new DimensionDictionary("full_dimension", 2);
+        AtomicLong overflow =
+                Metrics.counter(Metrics.name("dimension_dictionary_overflow_total", "dimension", "full_dimension"));
+        long overflowBefore = overflow.get();
+
+        int a = dictionary.encode("a");
+        int b = dictionary.encode("b");
+        assertFalse(dictionary.isFull());
+        assertEquals(DimensionDictionary.OTHER, dictionary.encode("c"));
+        assertTrue(dictionary.isFull());
+        assertEquals(DimensionDictionary.OTHER, dictionary.encode("d"));
+
+        // Values encoded before it filled up keep their IDs
+        assertEquals(a, dictionary.encode("a"));
+        assertEquals(b, dictionary.encode("b"));
+        assertEquals("a", dictionary.decode(a));
+        assertEquals(DimensionDictionary.OTHER_VALUE, dictionary.decode(DimensionDictionary.OTHER));
+        assertEquals(2, dictionary.size());
+        assertEquals(2, overflow.get() - overflowBefore);
+    }
+
+    @Test
+    public void encodesNullAsMissing() {
+        DimensionDictionary dictionary = new DimensionDictionary("dimension", 2);
+
+        assertEquals(DimensionDictionary.MISSING, dictionary.encode(null));
+        assertEquals(null, dictionary.decode(DimensionDictionary.MISSING));
+        assertEquals(0, dictionary.size());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+public class DynamoDBBatchWriterTest {
+    private static final String TABLE_NAME = "counts";
+    private static final String TIMESTAMP = "2014-01-01T00:00:00.000Z";
+    // Retry almost immediately so items that are never written are dropped quickly
+    private static final long BACKOFF_IN_MILLIS = 1;
+    // The writer gives up on an item after this many attempts
+    private static final int MAX_ATTEMPTS_PER_ITEM = 10;
+
+    private List<DynamoDBBatchWriter> writers = new ArrayList<>();
+
+    @After
+    public void shutdown() throws InterruptedException {
+        for (DynamoDBBatchWriter writer : writers) {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void retriesUnprocessedItemsUntilWritten() throws InterruptedException {
+        LocalDynamoDB dynamoDB = new LocalDynamoDB(0, 0, 3);
+        DynamoDBBatchWriter writer = createWriter(dynamoDB, 4, 1000);
+
+        DynamoDBBatchWriter.WriteTicket ticket = new DynamoDBBatchWriter.WriteTicket();
+        assertEquals(100, writer.write(createItems(100), 1, TimeUnit.SECONDS, ticket));
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+
+        assertEquals(100, dynamoDB.itemCount(TABLE_NAME));
+        assertEquals(0, writer.getPendingItems());
+        // Every item was sent 4 times, at most 25 to a request
+        assertTrue(dynamoDB.requestCount() >= 4 * 100 / 25);
+    }
+
+    @Test
+    public void dropsItemsAfterMaxAttempts() throws InterruptedException {
+        LocalDynamoDB dynamoDB = new LocalDynamoDB(0, 0, MAX_ATTEMPTS_PER_ITEM);
+        DynamoDBBatchWriter writer = createWriter(dynamoDB, 1, 1000);
+
+        DynamoDBBatchWriter.WriteTicket ticket = new DynamoDBBatchWriter.WriteTicket();
+        assertEquals(3, writer.write(createItems(3), 1, TimeUnit.SECONDS, ticket));
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+
+        assertEquals(0, dynamoDB.itemCount(TABLE_NAME));
+        assertEquals(0, writer.getPendingItems());
+        assertTrue(dynamoDB.requestCount() >= MAX_ATTEMPTS_PER_ITEM);
+    }
+
+    @Test
+    public void writesNewestItemForDuplicateKeys() throws InterruptedException {
+        LocalDynamoDB dynamoDB = new LocalDynamoDB(0, 0, 1);
+        DynamoDBBatchWriter writer = createWriter(dynamoDB, 1, 1000);
+
+        // Three generations of the same 10 keys, all small enough to land in the same batches
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (int generation = 0; generation < 3; generation++) {
+            for (Map<String, AttributeValue> item : createItems(10)) {
+                item.put("count", new AttributeValue().withN(Integer.toString(generation)));
+                items.add(item);
+            }
+        }
+        DynamoDBBatchWriter.WriteTicket ticket = new DynamoDBBatchWriter.WriteTicket();
+        assertEquals(30, writer.write(items, 1, TimeUnit.SECONDS, ticket));
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+
+        assertEquals(10, dynamoDB.itemCount(TABLE_NAME));
+        assertEquals(0, writer.getPendingItems());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("2", dynamoDB.getItem(TABLE_NAME, "/resource/" + i, TIMESTAMP).get("count").getN());
+        }
+    }
+
+    @Test
+    public void retryDoesNotOverwriteNewerItem() throws InterruptedException {
+        // Every key is returned as unprocessed the first time it is sent
+        LocalDynamoDB dynamoDB = new LocalDynamoDB(0, 0, 1);
+        DynamoDBBatchWriter writer = createWriter(dynamoDB, 1, 1000, 100);
+
+        Map<String, AttributeValue> older = createItems(1).get(0);
+        older.put("count", new AttributeValue().withN("1"));
+        DynamoDBBatchWriter.WriteTicket ticket = new DynamoDBBatchWriter.WriteTicket();
+        assertEquals(1, writer.write(Collections.singletonList(older), 1, TimeUnit.SECONDS, ticket));
+        while (dynamoDB.requestCount() == 0) {
+            Thread.sleep(1);
+        }
+        // The older item is waiting to be retried, or already back on the queue, when the newer one arrives
+        Map<String, AttributeValue> newer = createItems(1).get(0);
+        newer.put("count", new AttributeValue().withN("2"));
+        assertEquals(1, writer.write(Collections.singletonList(newer), 1, TimeUnit.SECONDS, ticket));
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+
+        assertEquals("2", dynamoDB.getItem(TABLE_NAME, "/resource/0", TIMESTAMP).get("count").getN());
+        assertEquals(0, writer.getPendingItems());
+    }
+
+    @Test
+    public void shutdownCompletesItemsNotWritten() throws InterruptedException {
+        LocalDynamoDB dynamoDB = new LocalDynamoDB(0, 0, Integer.MAX_VALUE);
+        DynamoDBBatchWriter writer = createWriter(dynamoDB, 1, 1000, 1000);
+
+        DynamoDBBatchWriter.WriteTicket ticket = new DynamoDBBatchWriter.WriteTicket();
+        assertEquals(50, writer.write(createItems(50), 1, TimeUnit.SECONDS, ticket));
+        // Wait for the first batch to come back unprocessed so its items are waiting to be retried
+        while (dynamoDB.requestCount() == 0) {
+            Thread.sleep(1);
+        }
+        writer.shutdown();
+
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+        assertEquals(0, writer.getPendingItems());
+        assertFalse(writer.isRunning());
+        assertEquals(0, dynamoDB.itemCount(TABLE_NAME));
+    }
+
+    @Test
+    public void persistDropsCountsThatDoNotFitInTime() throws InterruptedException {
+        // One slow batch at a time and room for 10 items, so most of 30 counts cannot be queued in time
+        LocalDynamoDB dynamoDB = new LocalDynamoDB(500, 0);
+        DynamoDBBatchWriter writer = createWriter(dynamoDB, 1, 10);
+        DynamoDBPersister<Record> persister = new DynamoDBPersister<>(writer, 100, 100, "resource", "referrer");
+        persister.initialize();
+        // Write one count first so the time below is not spent loading classes
+        assertTrue(persister.persist(Collections.singletonMap(new Record("/warm-up", "http://www.example.com/"), 1L),
+                Collections.<String, Long> emptyMap(),
+                new Date(0)).await(10, TimeUnit.SECONDS));
+
+        Map<Record, Long> counts = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            counts.put(new Record("/resource/" + i, "http://www.example.com/"), 1L);
+        }
+        FlushTicket ticket = persister.persist(counts, Collections.<String, Long> emptyMap(), new Date(0));
+
+        // Only the counts that fit were queued and the first batch of them is still being written
+        assertFalse(ticket.isComplete());
+        assertEquals(10, persister.getPendingCounts());
+        // The ticket only waits for the counts that were accepted
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+        assertEquals(11, dynamoDB.itemCount(TABLE_NAME));
+    }
+
+    private DynamoDBBatchWriter createWriter(LocalDynamoDB dynamoDB, int maxBatchesInFlight, int maxPendingItems) {
+        return createWriter(dynamoDB, maxBatchesInFlight, maxPendingItems, BACKOFF_IN_MILLIS);
+    }
+
+    private DynamoDBBatchWriter createWriter(LocalDynamoDB dynamoDB, int maxBatchesInFlight, int maxPendingItems,
+            long backoffInMillis) {
+        DynamoDBBatchWriter writer = new DynamoDBBatchWriter(dynamoDB.client(),
+                TABLE_NAME,
+                maxBatchesInFlight,
+                maxPendingItems,
+                backoffInMillis,
+                backoffInMillis);
+        writer.start();
+        writers.add(writer);
+        return writer;
+    }
+
+    private static List<Map<String, AttributeValue>> createItems(int count) {
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("resource", new AttributeValue("/resource/" + i));
+            item.put("timestamp", new AttributeValue(TIMESTAMP));
+            items.add(item);
+        }
+        return items;
+    }
+}
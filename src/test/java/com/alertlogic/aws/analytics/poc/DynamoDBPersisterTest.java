@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.util.DateUtils;
+
+public class DynamoDBPersisterTest {
+    private static final String TABLE_NAME = "counts";
+    private static final Date WINDOW_END = new Date(1400000000000L);
+
+    private LocalDynamoDB dynamoDB;
+    private DynamoDBBatchWriter writer;
+    private DynamoDBPersister<Record> persister;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new LocalDynamoDB(0, 0);
+        writer = new DynamoDBBatchWriter(dynamoDB.client(), TABLE_NAME, 1, 1000);
+        persister = new DynamoDBPersister<>(writer, 1000, 10, "resource", "referrer");
+        persister.initialize();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        writer.shutdown();
+    }
+
+    @Test
+    public void skipsCountsWithoutKey() throws InterruptedException {
+        Map<Record, Long> counts = new HashMap<>();
+        counts.put(new Record("/index.html", "http://www.example.com/"), 3L);
+        counts.put(new Record(null, "http://www.example.com/"), 5L);
+        counts.put(new Record(null, null), 7L);
+
+        assertPersisted(counts);
+    }
+
+    @Test
+    public void skipsRankedCountsWithoutKey() throws InterruptedException {
+        Map<Record, Long> counts = new RankedCounts<>();
+        counts.put(new Record(null, "http://www.example.com/"), 5L);
+        counts.put(new Record("/index.html", "http://www.example.com/"), 3L);
+
+        assertPersisted(counts);
+    }
+
+    @Test
+    public void persistsNothingWhenNoCountHasKey() throws InterruptedException {
+        FlushTicket ticket = persister.persist(Collections.singletonMap(new Record(null, "http://www.example.com/"), 1L),
+                Collections.<String, Long> emptyMap(),
+                WINDOW_END);
+
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+        assertEquals(0, dynamoDB.itemCount(TABLE_NAME));
+        assertEquals(0, dynamoDB.requestCount());
+    }
+
+    @Test
+    public void storesZeroCountsWithoutFieldCounts() throws InterruptedException {
+        for (Map<Record, Long> counts : Arrays.asList(new HashMap<Record, Long>(), new RankedCounts<Record>())) {
+            counts.put(new Record("/index.html", null), 0L);
+            FlushTicket ticket = persister.persist(counts, Collections.<String, Long> emptyMap(), WINDOW_END);
+
+            assertTrue(ticket.await(10, TimeUnit.SECONDS));
+            Map<String, AttributeValue> item =
+                    dynamoDB.getItem(TABLE_NAME, "/index.html", DateUtils.formatISO8601Date(WINDOW_END));
+            assertEquals("[]", item.get("fieldCounts").getS());
+            assertNull(item.get("otherCount"));
+        }
+    }
+
+    /**
+     * Persist counts holding one count for /index.html and check only that count is written.
+     */
+    private void assertPersisted(Map<Record, Long> counts) throws InterruptedException {
+        FlushTicket ticket = persister.persist(counts, Collections.<String, Long> emptyMap(), WINDOW_END);
+
+        assertTrue(ticket.await(10, TimeUnit.SECONDS));
+        assertEquals(1, dynamoDB.itemCount(TABLE_NAME));
+        assertNotNull(dynamoDB.getItem(TABLE_NAME, "/index.html", DateUtils.formatISO8601Date(WINDOW_END)));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventTimeWindowCounterTest {
+    private static final long INTERVAL_IN_MILLIS = 1000;
+    private static final int WINDOW_SIZE = 2;
+    private static final long MAX_OUT_OF_ORDERNESS_IN_MILLIS = 500;
+    private static final long ALLOWED_LATENESS_IN_MILLIS = 2000;
+    private static final long IDLE_TIMEOUT_IN_MILLIS = 5000;
+    private static final long MAX_FUTURE_SKEW_IN_MILLIS = 60000;
+    // The start of an interval, where the wall clock starts
+    private static final long START = 1000000;
+
+    private ManualClock clock;
+    private ManualClock wallClock;
+    private EventTimeWindowCounter<String> counter;
+
+    @Before
+    public void setUp() {
+        clock = new ManualClock(0);
+        wallClock = new ManualClock(START);
+        counter = new EventTimeWindowCounter<>(INTERVAL_IN_MILLIS,
+                WINDOW_SIZE,
+                MAX_OUT_OF_ORDERNESS_IN_MILLIS,
+                ALLOWED_LATENESS_IN_MILLIS,
+                IDLE_TIMEOUT_IN_MILLIS,
+                MAX_FUTURE_SKEW_IN_MILLIS,
+                clock,
+                wallClock);
+    }
+
+    @Test
+    public void reportsWindowOnceWatermarkPassesItsEnd() {
+        assertTrue(counter.increment("a", START + 100));
+        assertTrue(counter.increment("b", START + 1200));
+        assertTrue(counter.advance().isEmpty());
+        assertEquals(START + 700, counter.getWatermark());
+
+        // Moves the watermark past the end of the first window, [START, START + 2000)
+        assertTrue(counter.increment("c", START + 2600));
+        List<EventTimeWindowCounter.Window<String>> windows = counter.advance();
+
+        assertEquals(1, windows.size());
+        assertEquals(START + 2000, windows.get(0).getEndInMillis());
+        assertEquals(Long.valueOf(1), windows.get(0).getCounts().get("a"));
+        assertEquals(Long.valueOf(1), windows.get(0).getCounts().get("b"));
+        assertFalse(windows.get(0).getCounts().containsKey("c"));
+        assertTrue(counter.advance().isEmpty());
+    }
+
+    @Test
+    public void outOfOrderObjectsLandInTheirWindow() {
+        assertTrue(counter.increment("a", START + 100));
+        assertTrue(counter.increment("b", START + 1900));
+        // Earlier than the latest event time but within the out-of-orderness, so the watermark has not passed it
+        assertTrue(counter.increment("c", START + 1500));
+        assertTrue(counter.advance().isEmpty());
+        assertTrue(counter.increment("d", START + 2600));
+
+        List<EventTimeWindowCounter.Window<String>> windows = counter.advance();
+        assertEquals(1, windows.size());
+        assertEquals(3, windows.get(0).getCounts().size());
+    }
+
+    @Test
+    public void lateObjectReportsItsWindowAgain() {
+        assertTrue(counter.increment("a", START + 100));
+        assertTrue(counter.increment("c", START + 2600));
+        assertEquals(1, counter.advance().size());
+
+        // Behind the watermark, which is at START + 2100, but within the allowed lateness
+        assertTrue(counter.increment("a", START + 1500));
+        List<EventTimeWindowCounter.Window<String>> windows = counter.advance();
+
+        assertEquals(1, windows.size());
+        assertEquals(START + 2000, windows.get(0).getEndInMillis());
+        assertEquals(Long.valueOf(2), windows.get(0).getCounts().get("a"));
+        assertEquals(0, counter.getDroppedCount());
+    }
+
+    @Test
+    public void dropsObjectsLaterThanAllowedLateness() {
+        assertTrue(counter.increment("a", START + 5000));
+        assertEquals(START + 4500, counter.getWatermark());
+
+        assertFalse(counter.increment("b", START + 4500 - ALLOWED_LATENESS_IN_MILLIS - 1));
+        assertTrue(counter.increment("b", START + 4500 - ALLOWED_LATENESS_IN_MILLIS));
+        assertEquals(1, counter.getDroppedCount());
+    }
+
+    @Test
+    public void watermarkAdvancesWithClockWhenIdle() {
+        assertTrue(counter.increment("a", START + 100));
+        clock.advance(IDLE_TIMEOUT_IN_MILLIS - 1);
+        assertTrue(counter.advance().isEmpty());
+        assertEquals(START - 400, counter.getWatermark());
+
+        clock.advance(1);
+        // Nothing has been counted for the idle timeout, so the watermark moves on by the time spent idle
+        List<EventTimeWindowCounter.Window<String>> windows = counter.advance();
+        assertEquals(START - 400 + IDLE_TIMEOUT_IN_MILLIS, counter.getWatermark());
+        assertEquals(1, windows.size());
+        assertEquals(Long.valueOf(1), windows.get(0).getCounts().get("a"));
+    }
+
+    @Test
+    public void everyObjectCountedRefreshesIdleTime() {
+        assertTrue(counter.increment("a", START + 1000));
+        clock.advance(IDLE_TIMEOUT_IN_MILLIS - 1000);
+        // Not a new latest event time, but the stream is not idle
+        assertTrue(counter.increment("b", START + 900));
+        clock.advance(IDLE_TIMEOUT_IN_MILLIS - 1000);
+        counter.advance();
+        assertEquals(START + 500, counter.getWatermark());
+
+        clock.advance(1000);
+        counter.advance();
+        assertEquals(START + 500 + IDLE_TIMEOUT_IN_MILLIS, counter.getWatermark());
+    }
+
+    @Test
+    public void clampsEventTimesAheadOfWallClock() {
+        // An hour ahead, from a producer with a bad clock
+        assertTrue(counter.increment("a", START + TimeUnit.HOURS.toMillis(1)));
+        assertEquals(1, counter.getClampedCount());
+        assertEquals(START + MAX_FUTURE_SKEW_IN_MILLIS - MAX_OUT_OF_ORDERNESS_IN_MILLIS, counter.getWatermark());
+
+        // Within the skew, so counted as it is
+        assertTrue(counter.increment("b", START + MAX_FUTURE_SKEW_IN_MILLIS));
+        assertEquals(1, counter.getClampedCount());
+
+        wallClock.advance(TimeUnit.HOURS.toMillis(1));
+        assertTrue(counter.increment("c", START + TimeUnit.HOURS.toMillis(1)));
+        assertEquals(1, counter.getClampedCount());
+    }
+
+    @Test
+    public void reportsSequenceNumberOnceItsIntervalsAreReported() {
+        assertTrue(counter.increment("a", START + 100));
+        counter.markSequenceNumber("1");
+        assertTrue(counter.increment("b", START + 1200));
+        counter.markSequenceNumber("2");
+        assertTrue(counter.increment("c", START + 2100));
+        counter.markSequenceNumber("3");
+
+        counter.advance();
+        assertEquals(null, counter.getReportedSequenceNumber());
+
+        // Reports the window ending with START + 1000's interval, which holds everything marked by 1 and 2
+        assertTrue(counter.increment("d", START + 2600));
+        counter.advance();
+        assertEquals("2", counter.getReportedSequenceNumber());
+    }
+
+    /**
+     * A clock that only moves when told to, in milliseconds.
+     */
+    private static class ManualClock implements Clock {
+        private long time;
+
+        ManualClock(long time) {
+            this.time = time;
+        }
+
+        void advance(long millis) {
+            time += millis;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+    @Test
+    public void estimatesWithinStandardErrorBounds() {
+        for (int precision : new int[] {HyperLogLog.MIN_PRECISION, 10, 14}) {
+            // Three standard errors, which the estimate misses well under 1% of the time
+            double maxError = 3 * 1.04 / Math.sqrt(1 << precision);
+            for (long cardinality : new long[] {10, 1000, 100000}) {
+                HyperLogLog estimator = new HyperLogLog(precision);
+                for (long i = 0; i < cardinality; i++) {
+                    estimator.add("value-" + i);
+                }
+                long estimate = estimator.cardinality();
+                assertTrue(String.format("Estimated %d for %d at precision %d", estimate, cardinality, precision),
+                        Math.abs(estimate - cardinality) <= Math.max(1, maxError * cardinality));
+            }
+        }
+    }
+
+    @Test
+    public void ignoresRepeatedValues() {
+        HyperLogLog estimator = new HyperLogLog(10);
+        for (int i = 0; i < 100000; i++) {
+            estimator.add("value-" + (i % 100));
+        }
+        long estimate = estimator.cardinality();
+        assertTrue("Estimated " + estimate + " for 100", Math.abs(estimate - 100) <= 5);
+    }
+
+    @Test
+    public void mergeEstimatesUnion() {
+        HyperLogLog a = new HyperLogLog(12);
+        HyperLogLog b = new HyperLogLog(12);
+        HyperLogLog both = new HyperLogLog(12);
+        for (int i = 0; i < 20000; i++) {
+            a.add("value-" + i);
+            both.add("value-" + i);
+        }
+        for (int i = 10000; i < 30000; i++) {
+            b.add("value-" + i);
+            both.add("value-" + i);
+        }
+
+        a.merge(b);
+        assertEquals(both.cardinality(), a.cardinality());
+    }
+
+    @Test
+    public void emptyUntilAddedAndAfterClear() {
+        HyperLogLog estimator = new HyperLogLog(10);
+        assertTrue(estimator.isEmpty());
+        assertEquals(0, estimator.cardinality());
+
+        estimator.add(null);
+        assertEquals(1, estimator.cardinality());
+
+        estimator.clear();
+        assertTrue(estimator.isEmpty());
+        assertEquals(0, estimator.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMergeOfDifferentPrecision() {
+        new HyperLogLog(10).merge(new HyperLogLog(11));
+    }
+}
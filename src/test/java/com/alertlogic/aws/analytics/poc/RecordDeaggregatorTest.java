@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class RecordDeaggregatorTest {
+
+    @Test
+    public void splitsAggregate() throws IOException {
+        List<ByteBuffer> records = RecordDeaggregator.deaggregate(aggregate("first", "second"));
+
+        assertEquals(2, records.size());
+        assertEquals("first", StandardCharsets.UTF_8.decode(records.get(0)).toString());
+        assertEquals("second", StandardCharsets.UTF_8.decode(records.get(1)).toString());
+    }
+
+    @Test
+    public void rejectsNegativeRecordCount() {
+        assertInvalidRecordCount(-1);
+    }
+
+    @Test
+    public void rejectsRecordCountLargerThanData() {
+        assertInvalidRecordCount(Integer.MAX_VALUE);
+    }
+
+    private static void assertInvalidRecordCount(int recordCount) {
+        ByteBuffer data = aggregate("first", "second");
+        data.putInt(RecordAggregator.HEADER_SIZE - 4, recordCount);
+        // Fix up the checksum so only the count is wrong
+        int checksumAt = data.limit() - RecordAggregator.CHECKSUM_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), data.arrayOffset(), checksumAt);
+        data.putInt(checksumAt, (int) crc.getValue());
+
+        try {
+            RecordDeaggregator.deaggregate(data);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Invalid aggregate record count: " + recordCount, e.getMessage());
+        }
+    }
+
+    private static ByteBuffer aggregate(String... records) {
+        RecordAggregator aggregator = new RecordAggregator(1024);
+        for (String record : records) {
+            aggregator.add(record.getBytes(StandardCharsets.UTF_8));
+        }
+        return aggregator.build();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+
+public class RecordProcessorTest {
+    private static final String SHARD_ID = "shardId-000000000000";
+    private static final int INTERVAL_IN_MILLIS = 1000;
+    private static final int WINDOW_SIZE = 5;
+    private static final Record RECORD = new Record("/index.html", "http://www.example.com/");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CapturingPersister persister = new CapturingPersister();
+    private RecordProcessor<Record> processor;
+
+    @After
+    public void tearDown() {
+        if (processor != null) {
+            processor.shutdown(new NoOpCheckpointer(), ShutdownReason.ZOMBIE);
+        }
+    }
+
+    @Test
+    public void restoredWindowPersistsTheLastRangeOnTheFirstTick() throws Exception {
+        RecordProcessorConfig config = new RecordProcessorConfig();
+        config.setSnapshotDirectory(folder.getRoot().getPath());
+        // Left at its default of several seconds, which a restored window must not wait for
+        config.setInitialWindowAdvanceDelayInSeconds(10);
+        processor = new RecordProcessor<>(config,
+                Record.class,
+                persister,
+                WINDOW_SIZE * INTERVAL_IN_MILLIS,
+                INTERVAL_IN_MILLIS);
+
+        // Bucket i counts the record 2^i times, so the total tells which buckets are in the window
+        List<Map<Record, Long>> buckets = new ArrayList<>();
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            buckets.add(Collections.singletonMap(RECORD, 1L << i));
+        }
+        File snapshotFile = new File(folder.getRoot(), SHARD_ID + ".snapshot");
+        // Write a snapshot once first so the one below is written quickly enough to be restored in its interval
+        new WindowSnapshot<>(SHARD_ID, "1", INTERVAL_IN_MILLIS, 0, true, buckets).write(snapshotFile);
+
+        // Start early in an interval. The snapshot was taken two intervals ago, so its two oldest buckets have
+        // expired by now.
+        long now = System.currentTimeMillis();
+        Thread.sleep(INTERVAL_IN_MILLIS - now % INTERVAL_IN_MILLIS + 20);
+        long intervalStart = System.currentTimeMillis() / INTERVAL_IN_MILLIS * INTERVAL_IN_MILLIS;
+        new WindowSnapshot<>(SHARD_ID, "1", INTERVAL_IN_MILLIS, intervalStart - 2 * INTERVAL_IN_MILLIS, true, buckets)
+                .write(snapshotFile);
+        processor.initialize(SHARD_ID);
+
+        Persisted first = persister.persisted.poll(3 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull("Restored window was not persisted on the first tick", first);
+        assertEquals(intervalStart + INTERVAL_IN_MILLIS, first.windowEnd.getTime());
+        assertEquals(Long.valueOf(4 + 8 + 16), first.counts.get(RECORD));
+
+        // The next bucket to expire leaves the window on the next tick
+        Persisted second = persister.persisted.poll(3 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(second);
+        assertEquals(Long.valueOf(8 + 16), second.counts.get(RECORD));
+    }
+
+    @Test
+    public void persistsOnlyChangedCounts() throws Exception {
+        RecordProcessorConfig config = new RecordProcessorConfig();
+        config.setSnapshotDirectory(folder.getRoot().getPath());
+        config.setPersistChangedCountsOnly(true);
+        processor = new RecordProcessor<>(config,
+                Record.class,
+                persister,
+                WINDOW_SIZE * INTERVAL_IN_MILLIS,
+                INTERVAL_IN_MILLIS);
+
+        // The oldest bucket counts one record and every other bucket counts another
+        Record other = new Record("/about.html", "http://www.example.com/");
+        List<Map<Record, Long>> buckets = new ArrayList<>();
+        buckets.add(Collections.singletonMap(RECORD, 1L));
+        for (int i = 1; i < WINDOW_SIZE; i++) {
+            buckets.add(Collections.singletonMap(other, 1L));
+        }
+        File snapshotFile = new File(folder.getRoot(), SHARD_ID + ".snapshot");
+        new WindowSnapshot<>(SHARD_ID, "1", INTERVAL_IN_MILLIS, 0, true, buckets).write(snapshotFile);
+
+        long now = System.currentTimeMillis();
+        Thread.sleep(INTERVAL_IN_MILLIS - now % INTERVAL_IN_MILLIS + 20);
+        long intervalStart = System.currentTimeMillis() / INTERVAL_IN_MILLIS * INTERVAL_IN_MILLIS;
+        new WindowSnapshot<>(SHARD_ID, "1", INTERVAL_IN_MILLIS, intervalStart, true, buckets).write(snapshotFile);
+        processor.initialize(SHARD_ID);
+
+        Map<Record, Long> expected = new HashMap<>();
+        expected.put(RECORD, 1L);
+        expected.put(other, 4L);
+        assertEquals(expected, poll().counts);
+        // Only the record whose bucket expired changed
+        assertEquals(Collections.singletonMap(RECORD, 0L), poll().counts);
+        assertEquals(Collections.singletonMap(other, 3L), poll().counts);
+    }
+
+    @Test
+    public void checkpointsOnlyOnceEarlierCountsAreDurable() throws Exception {
+        RecordProcessorConfig config = new RecordProcessorConfig();
+        config.setInitialWindowAdvanceDelayInSeconds(0);
+        // Checkpoint whenever records are processed
+        config.setCheckpointIntervalInSeconds(0);
+        persister.manualTickets = true;
+        // A window of a single interval fills on the first tick
+        processor = new RecordProcessor<>(config, Record.class, persister, INTERVAL_IN_MILLIS, INTERVAL_IN_MILLIS);
+        processor.initialize(SHARD_ID);
+        RecordingCheckpointer checkpointer = new RecordingCheckpointer();
+
+        processor.processRecords(Collections.singletonList(kinesisRecord(RECORD, "1")), checkpointer);
+        Persisted first = poll();
+        Record other = new Record("/about.html", "http://www.example.com/");
+        processor.processRecords(Collections.singletonList(kinesisRecord(other, "2")), checkpointer);
+        // Once the other record was counted, the next interval covers its sequence number
+        Persisted persisted = poll();
+        while (!persisted.counts.containsKey(other)) {
+            persisted = poll();
+        }
+        Persisted covering = poll();
+
+        // Counts completing out of order must not move the checkpoint past counts that are not durable yet
+        covering.ticket.complete = true;
+        processor.processRecords(Collections.<com.amazonaws.services.kinesis.model.Record> emptyList(), checkpointer);
+        assertTrue(checkpointer.sequenceNumbers.isEmpty());
+
+        first.ticket.complete = true;
+        processor.processRecords(Collections.<com.amazonaws.services.kinesis.model.Record> emptyList(), checkpointer);
+        assertEquals(Collections.singletonList("1"), checkpointer.sequenceNumbers);
+
+        persister.completeAll();
+        processor.processRecords(Collections.<com.amazonaws.services.kinesis.model.Record> emptyList(), checkpointer);
+        assertEquals("2", checkpointer.sequenceNumbers.get(checkpointer.sequenceNumbers.size() - 1));
+    }
+
+    @Test
+    public void ignoresSnapshotOfAnotherShard() throws Exception {
+        assertSnapshotIgnored("shardId-000000000001", INTERVAL_IN_MILLIS);
+    }
+
+    @Test
+    public void ignoresSnapshotWithAnotherInterval() throws Exception {
+        assertSnapshotIgnored(SHARD_ID, INTERVAL_IN_MILLIS / 2);
+    }
+
+    private Persisted poll() throws InterruptedException {
+        Persisted persisted = persister.persisted.poll(3 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(persisted);
+        return persisted;
+    }
+
+    /**
+     * Restore from a snapshot that does not match the processor and check the window starts empty, which means
+     * nothing is persisted until it fills.
+     */
+    private void assertSnapshotIgnored(String shardId, int intervalInMillis) throws Exception {
+        List<Map<Record, Long>> buckets = new ArrayList<>();
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            buckets.add(Collections.singletonMap(RECORD, 1L));
+        }
+        long intervalStart = System.currentTimeMillis() / intervalInMillis * intervalInMillis;
+        new WindowSnapshot<>(shardId, "1", intervalInMillis, intervalStart, true, buckets)
+                .write(new File(folder.getRoot(), SHARD_ID + ".snapshot"));
+
+        RecordProcessorConfig config = new RecordProcessorConfig();
+        config.setSnapshotDirectory(folder.getRoot().getPath());
+        config.setInitialWindowAdvanceDelayInSeconds(0);
+        processor = new RecordProcessor<>(config,
+                Record.class,
+                persister,
+                WINDOW_SIZE * INTERVAL_IN_MILLIS,
+                INTERVAL_IN_MILLIS);
+        processor.initialize(SHARD_ID);
+
+        assertNull(persister.persisted.poll(2 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static com.amazonaws.services.kinesis.model.Record kinesisRecord(Record record, String sequenceNumber) {
+        String json = String.format("{\"resource\":\"%s\",\"referrer\":\"%s\"}",
+                record.getField("resource"),
+                record.getField("referrer"));
+        return new com.amazonaws.services.kinesis.model.Record().withPartitionKey(record.getField("resource"))
+                .withSequenceNumber(sequenceNumber)
+                .withData(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class Persisted {
+        private Map<Record, Long> counts;
+        private Date windowEnd;
+        private ManualTicket ticket;
+
+        Persisted(Map<Record, Long> counts, Date windowEnd, ManualTicket ticket) {
+            this.counts = new HashMap<>(counts);
+            this.windowEnd = windowEnd;
+            this.ticket = ticket;
+        }
+    }
+
+    private static class ManualTicket implements FlushTicket {
+        private volatile boolean complete;
+
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) {
+            return complete;
+        }
+    }
+
+    private static class CapturingPersister implements Persister<Record> {
+        private BlockingQueue<Persisted> persisted = new LinkedBlockingQueue<>();
+        // Whether tickets only complete when told to, rather than right away
+        private volatile boolean manualTickets;
+        private List<ManualTicket> tickets = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public FlushTicket persist(Map<Record, Long> objectCounts) {
+            return persist(objectCounts, Collections.<String, Long> emptyMap(), new Date());
+        }
+
+        @Override
+        public FlushTicket persist(Map<Record, Long> objectCounts, Map<String, Long> distinctCounts, Date windowEnd) {
+            ManualTicket ticket = new ManualTicket();
+            ticket.complete = !manualTickets;
+            tickets.add(ticket);
+            persisted.add(new Persisted(objectCounts, windowEnd, ticket));
+            return ticket;
+        }
+
+        void completeAll() {
+            for (ManualTicket ticket : tickets) {
+                ticket.complete = true;
+            }
+        }
+
+        @Override
+        public void checkpoint() {
+        }
+    }
+
+    private static class RecordingCheckpointer implements IRecordProcessorCheckpointer {
+        private List<String> sequenceNumbers = new ArrayList<>();
+
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+            sequenceNumbers.add(sequenceNumber);
+        }
+    }
+
+    private static class NoOpCheckpointer implements IRecordProcessorCheckpointer {
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+        }
+    }
+}
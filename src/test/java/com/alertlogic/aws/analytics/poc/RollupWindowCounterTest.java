@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RollupWindowCounterTest {
+    // Intervals in the fine window
+    private static final int WINDOW_SIZE = 3;
+
+    @Test
+    public void rangesAreExactWhenDue() {
+        // Level 0 covers 2 buckets of 2 intervals and level 1 covers 2 buckets of 4 intervals, so the ranges are
+        // 3 + 4 = 7 and 7 + 8 = 15 intervals long
+        List<BucketCounter<String>> levelCounters = new ArrayList<>();
+        levelCounters.add(new BucketBasedCounter<String>(3));
+        levelCounters.add(new BucketBasedCounter<String>(3));
+        RollupWindowCounter<String> rollup = new RollupWindowCounter<>(levelCounters, new int[] {2, 4});
+        SlidingWindowCounter<String> window = new SlidingWindowCounter<>(WINDOW_SIZE);
+        int[] rangeInIntervals = {7, 15};
+
+        int[] timesDue = new int[rollup.getLevels()];
+        for (int interval = 0; interval < 40; interval++) {
+            // Interval i counts the object i + 1 times, so every range has its own total
+            for (int i = 0; i <= interval; i++) {
+                window.increment("x");
+            }
+            // Rolling up starts once the fine window holds whole intervals only
+            if (interval < WINDOW_SIZE - 1) {
+                window.advanceWindow();
+                continue;
+            }
+
+            Map<String, Long> windowCounts = window.getCounts();
+            for (int l = 0; l < rollup.getLevels(); l++) {
+                if (rollup.isDue(l)) {
+                    timesDue[l]++;
+                    Map<String, Long> counts = rollup.getCounts(l);
+                    long total = counts.get("x") + windowCounts.get("x");
+                    assertEquals("Range " + l + " after interval " + interval,
+                            sumOfIntervals(interval - rangeInIntervals[l] + 1, interval),
+                            total);
+                }
+            }
+            Map<String, Long> expired = window.getExpiringBucketCounts();
+            window.advanceWindow();
+            rollup.advance(expired);
+        }
+
+        // Each level is due once per bucket once it has filled
+        assertEquals(17, timesDue[0]);
+        assertEquals(7, timesDue[1]);
+    }
+
+    @Test
+    public void levelIsNotDueUntilFull() {
+        List<BucketCounter<String>> levelCounters = new ArrayList<>();
+        levelCounters.add(new BucketBasedCounter<String>(3));
+        RollupWindowCounter<String> rollup = new RollupWindowCounter<>(levelCounters, new int[] {2});
+
+        for (int interval = 0; interval < 3; interval++) {
+            rollup.advance(Collections.singletonMap("x", 1L));
+            assertFalse(rollup.isDue(0));
+        }
+        rollup.advance(Collections.singletonMap("x", 1L));
+        assertTrue(rollup.isDue(0));
+        assertEquals(Collections.singletonMap("x", 4L), rollup.getCounts(0));
+    }
+
+    /**
+     * @return The total count of intervals {@code first} through {@code last}, where interval i counts i + 1.
+     */
+    private static long sumOfIntervals(int first, int last) {
+        long sum = 0;
+        for (int i = first; i <= last; i++) {
+            sum += i + 1;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class SlidingWindowDistinctCounterTest {
+    private static final int PRECISION = 12;
+    // A few standard errors, 1.04 / sqrt(2^12) is about 1.6%
+    private static final double MAX_ERROR = 0.05;
+
+    @Test
+    public void estimatesDistinctReferrersPerResource() {
+        SlidingWindowDistinctCounter counter = new SlidingWindowDistinctCounter(3, PRECISION);
+        for (int i = 0; i < 10000; i++) {
+            counter.add(new Record("/a", "http://www.example.com/" + i));
+            // The same referrer again does not count
+            counter.add(new Record("/b", "http://www.example.com/" + (i % 100)));
+        }
+
+        Map<String, Long> counts = counter.getDistinctCounts();
+        assertEquals(2, counts.size());
+        assertWithinError(10000, counts.get("/a"));
+        assertWithinError(100, counts.get("/b"));
+    }
+
+    @Test
+    public void forgetsReferrersOnceTheirBucketLeavesTheWindow() {
+        SlidingWindowDistinctCounter counter = new SlidingWindowDistinctCounter(2, PRECISION);
+        for (int i = 0; i < 1000; i++) {
+            counter.add(new Record("/a", "first-" + i));
+        }
+        counter.advanceWindow();
+        for (int i = 0; i < 1000; i++) {
+            counter.add(new Record("/a", "second-" + i));
+            counter.add(new Record("/b", "second-" + i));
+        }
+        assertWithinError(2000, counter.getDistinctCounts().get("/a"));
+
+        counter.advanceWindow();
+        assertWithinError(1000, counter.getDistinctCounts().get("/a"));
+
+        // Nothing is left of either resource, so both are removed
+        counter.advanceWindow();
+        assertTrue(counter.getDistinctCounts().isEmpty());
+
+        counter.add(new Record("/a", "third"));
+        assertEquals(Long.valueOf(1), counter.getDistinctCounts().get("/a"));
+    }
+
+    @Test
+    public void addsWhileAnotherThreadAdvancesWindow() throws InterruptedException {
+        final int windowSize = 200;
+        final SlidingWindowDistinctCounter counter = new SlidingWindowDistinctCounter(windowSize, 8);
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread advancer = new Thread() {
+            @Override
+            public void run() {
+                started.countDown();
+                // Never advances far enough to forget anything added
+                for (int advances = 0; !done.get(); advances++) {
+                    if (advances < windowSize - 1) {
+                        counter.advanceWindow();
+                    }
+                    counter.getDistinctCounts();
+                }
+            }
+        };
+        advancer.start();
+        started.await();
+
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 50; i++) {
+                counter.add(new Record("/resource/" + i, "http://www.example.com/" + round));
+            }
+            Thread.yield();
+        }
+        done.set(true);
+        advancer.join();
+
+        Map<String, Long> counts = counter.getDistinctCounts();
+        assertEquals(50, counts.size());
+        for (long count : counts.values()) {
+            // 1.04 / sqrt(2^8) is 6.5%
+            assertTrue("Estimated " + count + " for 200", Math.abs(count - 200) <= 0.25 * 200);
+        }
+    }
+
+    private static void assertWithinError(long expected, Long actual) {
+        assertTrue("Estimated " + actual + " for " + expected,
+                Math.abs(actual - expected) <= MAX_ERROR * expected);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpaceSavingBucketCounterTest {
+    private static final int COUNTERS_PER_BUCKET = 20;
+    private static final int TOP_N = 10;
+
+    @Test
+    public void estimatesAreWithinErrorBound() {
+        SpaceSavingBucketCounter counter = new SpaceSavingBucketCounter(2, COUNTERS_PER_BUCKET, TOP_N);
+        // A few heavy hitters among many records counted once, shuffled and spread over both buckets
+        Map<Record, Long> expected = new HashMap<>();
+        List<Record> stream = new ArrayList<>();
+        long[] heavyCounts = {200, 150, 100, 80, 60};
+        for (int i = 0; i < heavyCounts.length; i++) {
+            Record record = new Record("/index.html", "heavy-" + i);
+            expected.put(record, heavyCounts[i]);
+            for (int j = 0; j < heavyCounts[i]; j++) {
+                stream.add(record);
+            }
+        }
+        for (int i = 0; i < 500; i++) {
+            Record record = new Record("/index.html", "light-" + i);
+            expected.put(record, 1L);
+            stream.add(record);
+        }
+        Collections.shuffle(stream, new Random(42));
+        for (int i = 0; i < stream.size(); i++) {
+            counter.increment(stream.get(i), i % 2);
+        }
+
+        long maxError = stream.size() / COUNTERS_PER_BUCKET;
+        Map<Record, Long> counts = counter.getCounts();
+        Map<Record, Long> guaranteed = counter.getGuaranteedCounts();
+        assertEquals(TOP_N, counts.size());
+        for (Map.Entry<Record, Long> count : counts.entrySet()) {
+            long actual = expected.get(count.getKey());
+            assertTrue(count.getKey() + " undercounts", count.getValue() >= actual);
+            assertTrue(count.getKey() + " overcounts by more than the bound", count.getValue() - actual <= maxError);
+            assertTrue(count.getKey() + " guaranteed count is too high", guaranteed.get(count.getKey()) <= actual);
+        }
+        // Every record counted more often than the error bound must be reported
+        for (int i = 0; i < heavyCounts.length; i++) {
+            assertTrue(counts.containsKey(new Record("/index.html", "heavy-" + i)));
+        }
+    }
+
+    @Test
+    public void reportsRankedTopNOfEachResource() {
+        SpaceSavingBucketCounter counter = new SpaceSavingBucketCounter(1, COUNTERS_PER_BUCKET, TOP_N);
+        for (String resource : new String[] {"/a.html", "/b.html"}) {
+            for (int i = 0; i < COUNTERS_PER_BUCKET; i++) {
+                counter.add(new Record(resource, "referrer-" + i), 0, i + 1);
+            }
+        }
+
+        Map<Record, Long> counts = counter.getCounts();
+        assertTrue(counts instanceof RankedCounts);
+        assertEquals(2 * TOP_N, counts.size());
+        Map<String, Long> previous = new HashMap<>();
+        for (Map.Entry<Record, Long> count : counts.entrySet()) {
+            String resource = count.getKey().getField("resource");
+            Long higher = previous.put(resource, count.getValue());
+            assertTrue(higher == null || higher >= count.getValue());
+            assertTrue(count.getValue() > COUNTERS_PER_BUCKET - TOP_N);
+        }
+    }
+
+    @Test
+    public void clearingBucketDropsItsCounts() {
+        SpaceSavingBucketCounter counter = new SpaceSavingBucketCounter(2, COUNTERS_PER_BUCKET, TOP_N);
+        Record first = new Record("/index.html", "first");
+        Record second = new Record("/index.html", "second");
+        counter.add(first, 0, 5);
+        counter.add(second, 1, 3);
+
+        counter.clearBucket(0);
+
+        assertEquals(Collections.singletonMap(second, 3L), new HashMap<>(counter.getCounts()));
+        counter.clearBucket(1);
+        counter.pruneEmptyObjects();
+        assertTrue(counter.getCounts().isEmpty());
+    }
+}
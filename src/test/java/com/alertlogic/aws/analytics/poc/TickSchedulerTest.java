@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TickSchedulerTest {
+    private static final long INTERVAL_IN_MILLIS = 200;
+
+    private TickScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new TickScheduler(INTERVAL_IN_MILLIS, 2);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void catchesUpTicksMissedWhileRunning() throws InterruptedException {
+        BlockingTask task = new BlockingTask();
+        scheduler.register(task, 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(task.started.await(2 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS));
+        // Miss three ticks
+        Thread.sleep(3 * INTERVAL_IN_MILLIS + INTERVAL_IN_MILLIS / 2);
+        long releasedAt = System.currentTimeMillis();
+        task.release.countDown();
+
+        // The missed ticks run right away, one after another, rather than waiting for the next ticks
+        long deadline = releasedAt + INTERVAL_IN_MILLIS / 2;
+        while (task.runs.size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Only " + task.runs.size() + " runs", task.runs.size() >= 4);
+        assertEquals(1, task.maxRunning.get());
+    }
+
+    @Test
+    public void cancelWaitsForRunningTaskAndDropsMissedTicks() throws InterruptedException {
+        BlockingTask task = new BlockingTask();
+        TickScheduler.Registration registration = scheduler.register(task, 0, TimeUnit.MILLISECONDS);
+        assertTrue(task.started.await(2 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS));
+        // Miss a tick, which must not run once cancelled
+        Thread.sleep(INTERVAL_IN_MILLIS + INTERVAL_IN_MILLIS / 2);
+
+        assertFalse(registration.cancel(10, TimeUnit.MILLISECONDS));
+        task.release.countDown();
+        assertTrue(registration.cancel(1, TimeUnit.SECONDS));
+
+        Thread.sleep(2 * INTERVAL_IN_MILLIS);
+        assertEquals(1, task.runs.size());
+    }
+
+    @Test
+    public void startsAfterInitialDelay() throws InterruptedException {
+        BlockingTask task = new BlockingTask();
+        task.release.countDown();
+        long registeredAt = System.currentTimeMillis();
+        scheduler.register(task, 2 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertTrue(task.started.await(4 * INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS));
+        long firstRun = task.runs.get(0);
+        assertTrue(firstRun - registeredAt >= 2 * INTERVAL_IN_MILLIS);
+    }
+
+    /**
+     * Blocks its first run until released and records when each run starts.
+     */
+    private static class BlockingTask implements Runnable {
+        private CountDownLatch started = new CountDownLatch(1);
+        private CountDownLatch release = new CountDownLatch(1);
+        private List<Long> runs = new CopyOnWriteArrayList<>();
+        private AtomicInteger running = new AtomicInteger();
+        private AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public void run() {
+            int now = running.incrementAndGet();
+            if (now > maxRunning.get()) {
+                maxRunning.set(now);
+            }
+            runs.add(System.currentTimeMillis());
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WindowSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        File file = new File(folder.getRoot(), "shard.snapshot");
+        createSnapshot("shardId-000000000001", "49538").write(file);
+
+        WindowSnapshot<Record> snapshot = WindowSnapshot.read(file, Record.class);
+        assertEquals("shardId-000000000001", snapshot.getShardId());
+        assertEquals("49538", snapshot.getSequenceNumber());
+        assertEquals(1000, snapshot.getIntervalInMillis());
+        assertEquals(1400000000000L, snapshot.getCurrentIntervalStartInMillis());
+        assertTrue(snapshot.isWindowFull());
+        assertEquals(createBuckets(), snapshot.getBucketCounts());
+    }
+
+    @Test
+    public void readsSnapshotWithoutSequenceNumber() throws IOException {
+        File file = new File(folder.getRoot(), "shard.snapshot");
+        createSnapshot("shardId-000000000001", null).write(file);
+
+        assertNull(WindowSnapshot.read(file, Record.class).getSequenceNumber());
+    }
+
+    @Test
+    public void returnsNullWithoutFile() throws IOException {
+        assertNull(WindowSnapshot.read(new File(folder.getRoot(), "missing.snapshot"), Record.class));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        File file = new File(folder.getRoot(), "shard.snapshot");
+        createSnapshot("shardId-000000000001", "49538").write(file);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 10);
+        }
+
+        assertUnreadable(file);
+    }
+
+    @Test
+    public void rejectsFileShorterThanItsHeader() throws IOException {
+        File file = new File(folder.getRoot(), "shard.snapshot");
+        createSnapshot("shardId-000000000001", "49538").write(file);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(6);
+        }
+
+        assertUnreadable(file);
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws IOException {
+        File file = new File(folder.getRoot(), "shard.snapshot");
+        createSnapshot("shardId-000000000001", "49538").write(file);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // Flip a byte of the body, which follows the 16 byte header
+            out.seek(20);
+            int b = out.read();
+            out.seek(20);
+            out.write(b ^ 0xFF);
+        }
+
+        assertUnreadable(file);
+    }
+
+    @Test
+    public void replacesExistingSnapshot() throws IOException {
+        File file = new File(folder.getRoot(), "shard.snapshot");
+        createSnapshot("shardId-000000000001", "1").write(file);
+        createSnapshot("shardId-000000000001", "2").write(file);
+
+        assertEquals("2", WindowSnapshot.read(file, Record.class).getSequenceNumber());
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    private static void assertUnreadable(File file) {
+        try {
+            WindowSnapshot.read(file, Record.class);
+            fail("Read a damaged snapshot");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static WindowSnapshot<Record> createSnapshot(String shardId, String sequenceNumber) {
+        return new WindowSnapshot<>(shardId, sequenceNumber, 1000, 1400000000000L, true, createBuckets());
+    }
+
+    private static List<Map<Record, Long>> createBuckets() {
+        List<Map<Record, Long>> buckets = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Map<Record, Long> counts = new HashMap<>();
+            counts.put(new Record("/index.html", "http://www.example.com/"), (long) i + 1);
+            if (i > 0) {
+                counts.put(new Record("/about.html", "http://www.example.com/" + i), 10L * i);
+            }
+            buckets.add(counts);
+        }
+        return buckets;
+    }
+}
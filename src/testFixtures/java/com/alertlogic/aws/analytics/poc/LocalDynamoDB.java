@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.alertlogic.aws.analytics.poc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * An in-memory stand-in for Amazon DynamoDB that only supports BatchWriteItem, and Query on the resource and timestamp
+ * of a counts table. Every write request takes a fixed latency and a fraction of the items in each request are
+ * returned as unprocessed, the way a throttled table behaves. Items can also be returned as unprocessed a fixed number
+ * of times each, for tests that must not depend on chance. Like DynamoDB, a request that puts two items with the same
+ * key is rejected as a whole. Queries return every matching item in a single page.
+ */
+class LocalDynamoDB implements InvocationHandler {
+    private long latencyInMillis;
+    private double unprocessedRate;
+    // Number of times each item is returned as unprocessed before it is written
+    private int unprocessedAttempts;
+
+    // Items by table name and then by hash and range key
+    private ConcurrentMap<String, ConcurrentMap<String, Map<String, AttributeValue>>> tables =
+            new ConcurrentHashMap<>();
+    private AtomicLong requests = new AtomicLong();
+    // Times each item was returned as unprocessed, by hash and range key
+    private ConcurrentMap<String, Integer> attempts = new ConcurrentHashMap<>();
+
+    /**
+     * @param latencyInMillis Time each request takes.
+     * @param unprocessedRate Fraction of the items of each request to report as unprocessed.
+     */
+    LocalDynamoDB(long latencyInMillis, double unprocessedRate) {
+        this.latencyInMillis = latencyInMillis;
+        this.unprocessedRate = unprocessedRate;
+    }
+
+    /**
+     * @param latencyInMillis Time each request takes.
+     * @param unprocessedRate Fraction of the items of each request to report as unprocessed.
+     * @param unprocessedAttempts Number of times to report each item as unprocessed before writing it.
+     */
+    LocalDynamoDB(long latencyInMillis, double unprocessedRate, int unprocessedAttempts) {
+        this(latencyInMillis, unprocessedRate);
+        this.unprocessedAttempts = unprocessedAttempts;
+    }
+
+    /**
+     * @return A client that sends its requests to this stand-in.
+     */
+    AmazonDynamoDB client() {
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[] {AmazonDynamoDB.class},
+                this);
+    }
+
+    /**
+     * @return The number of items written to a table.
+     */
+    int itemCount(String tableName) {
+        Map<String, Map<String, AttributeValue>> items = tables.get(tableName);
+        return items == null ? 0 : items.size();
+    }
+
+    /**
+     * @return The item written to a table with a key, or {@code null} if there is none.
+     */
+    Map<String, AttributeValue> getItem(String tableName, String resource, String timestamp) {
+        Map<String, Map<String, AttributeValue>> items = tables.get(tableName);
+        return items == null ? null : items.get(resource + "|" + timestamp);
+    }
+
+    /**
+     * @return The number of requests received.
+     */
+    long requestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("batchWriteItem".equals(method.getName()) && args != null && args[0] instanceof BatchWriteItemRequest) {
+            return batchWriteItem((BatchWriteItemRequest) args[0]);
+        }
+        if ("query".equals(method.getName()) && args != null && args[0] instanceof QueryRequest) {
+            return query((QueryRequest) args[0]);
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    private BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) throws InterruptedException {
+        requests.incrementAndGet();
+        Thread.sleep(latencyInMillis);
+
+        for (List<WriteRequest> writes : request.getRequestItems().values()) {
+            Set<String> keys = new HashSet<>();
+            for (WriteRequest write : writes) {
+                if (!keys.add(getKey(write.getPutRequest().getItem()))) {
+                    AmazonServiceException ex =
+                            new AmazonServiceException("Provided list of item keys contains duplicates");
+                    ex.setErrorCode("ValidationException");
+                    ex.setErrorType(AmazonServiceException.ErrorType.Client);
+                    ex.setStatusCode(400);
+                    throw ex;
+                }
+            }
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BatchWriteItemResult result = new BatchWriteItemResult();
+        for (Map.Entry<String, List<WriteRequest>> table : request.getRequestItems().entrySet()) {
+            ConcurrentMap<String, Map<String, AttributeValue>> items = tables.get(table.getKey());
+            if (items == null) {
+                tables.putIfAbsent(table.getKey(), new ConcurrentHashMap<String, Map<String, AttributeValue>>());
+                items = tables.get(table.getKey());
+            }
+
+            List<WriteRequest> unprocessed = new ArrayList<>();
+            for (WriteRequest write : table.getValue()) {
+                Map<String, AttributeValue> item = write.getPutRequest().getItem();
+                String key = getKey(item);
+                if (random.nextDouble() < unprocessedRate || isUnprocessedAttempt(key)) {
+                    unprocessed.add(write);
+                } else {
+                    items.put(key, item);
+                }
+            }
+            if (!unprocessed.isEmpty()) {
+                result.addUnprocessedItemsEntry(table.getKey(), unprocessed);
+            }
+        }
+        return result;
+    }
+
+    private QueryResult query(QueryRequest request) {
+        requests.incrementAndGet();
+        String resource = request.getKeyConditions().get("resource").getAttributeValueList().get(0).getS();
+        Condition timestamp = request.getKeyConditions().get("timestamp");
+
+        // Timestamps are ISO 8601 strings, which sort by time
+        List<Map<String, AttributeValue>> matches = new ArrayList<>();
+        Map<String, Map<String, AttributeValue>> items = tables.get(request.getTableName());
+        if (items != null) {
+            for (Map<String, AttributeValue> item : items.values()) {
+                if (resource.equals(item.get("resource").getS())
+                        && matches(timestamp, item.get("timestamp").getS())) {
+                    matches.add(item);
+                }
+            }
+        }
+        Collections.sort(matches, new Comparator<Map<String, AttributeValue>>() {
+            @Override
+            public int compare(Map<String, AttributeValue> i1, Map<String, AttributeValue> i2) {
+                return i1.get("timestamp").getS().compareTo(i2.get("timestamp").getS());
+            }
+        });
+        if (Boolean.FALSE.equals(request.getScanIndexForward())) {
+            Collections.reverse(matches);
+        }
+        if (request.getLimit() != null && matches.size() > request.getLimit()) {
+            matches = matches.subList(0, request.getLimit());
+        }
+        return new QueryResult().withItems(matches).withCount(matches.size());
+    }
+
+    /**
+     * @return {@code true} if a timestamp meets a BETWEEN, LE or GE condition, or there is no condition.
+     */
+    private static boolean matches(Condition condition, String timestamp) {
+        if (condition == null) {
+            return true;
+        }
+        List<AttributeValue> values = condition.getAttributeValueList();
+        switch (ComparisonOperator.fromValue(condition.getComparisonOperator())) {
+            case BETWEEN:
+                return timestamp.compareTo(values.get(0).getS()) >= 0 && timestamp.compareTo(values.get(1).getS()) <= 0;
+            case LE:
+                return timestamp.compareTo(values.get(0).getS()) <= 0;
+            case GE:
+                return timestamp.compareTo(values.get(0).getS()) >= 0;
+            default:
+                throw new UnsupportedOperationException(condition.getComparisonOperator());
+        }
+    }
+
+    private static String getKey(Map<String, AttributeValue> item) {
+        return item.get("resource").getS() + "|" + item.get("timestamp").getS();
+    }
+
+    /**
+     * @return {@code true} if the item has been returned as unprocessed fewer than {@code unprocessedAttempts} times.
+     *         Counts this attempt.
+     */
+    private boolean isUnprocessedAttempt(String key) {
+        if (unprocessedAttempts == 0) {
+            return false;
+        }
+        Integer previous = attempts.putIfAbsent(key, 1);
+        while (previous != null) {
+            if (previous >= unprocessedAttempts) {
+                return false;
+            }
+            if (attempts.replace(key, previous, previous + 1)) {
+                return true;
+            }
+            previous = attempts.get(key);
+        }
+        return true;
+    }
+}